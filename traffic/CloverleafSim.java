@@ -9,7 +9,6 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Path2D;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -114,12 +113,18 @@ public class CloverleafSim extends JFrame {
         // 併道區：在匝道接入主線前的矩形區域，車輛經過時會額外降速
         final List<MergeZone> merges = new ArrayList<>();
 
+        // 每條路徑上的車列 (依 s 遞增)：跨幀保存，生成/換路徑時就地增刪，
+        // 每幀只以插入排序修補順序 (前一幀已幾乎有序，成本約 O(n))，不再重建分組或整體排序
+        final Map<RoadPath, List<Car>> byPath = new HashMap<>();
+
         public World(int w, int h) {
             this.W = w;
             this.H = h;
             this.cx = W / 2;
             this.cy = H / 2;
             buildGeometry(); // 建立所有路徑與併道區
+            for (RoadPath p : paths)
+                byPath.put(p, new ArrayList<>());
         }
 
         void buildGeometry() {
@@ -202,17 +207,15 @@ public class CloverleafSim extends JFrame {
                 spawnCar();
             }
 
-            // 2) 依路徑分組，為每條路徑建立「前後車」關係，做簡易跟車控制
-            Map<RoadPath, List<Car>> byPath = new HashMap<>();
-            for (Car c : cars)
-                byPath.computeIfAbsent(c.path, k -> new ArrayList<>()).add(c);
-            for (List<Car> group : byPath.values())
-                group.sort(Comparator.comparingDouble(c -> c.s)); // 依沿線參數 s (0~1) 排序
+            // 2) 各路徑車列已跨幀保存，只需修補上一幀前進/迴圈造成的少量順序錯位，
+            //    再依「前後車」關係做簡易跟車控制
+            for (int p = 0; p < paths.size(); p++)
+                repairOrder(byPath.get(paths.get(p)));
 
             // 針對每條路徑的車列，套用速度調整規則
-            for (Map.Entry<RoadPath, List<Car>> e : byPath.entrySet()) {
-                RoadPath rp = e.getKey();
-                List<Car> group = e.getValue();
+            for (int p = 0; p < paths.size(); p++) {
+                RoadPath rp = paths.get(p);
+                List<Car> group = byPath.get(rp);
                 int n = group.size();
                 for (int i = 0; i < n; i++) {
                     Car me = group.get(i);
@@ -246,11 +249,15 @@ public class CloverleafSim extends JFrame {
             }
 
             // 3) 前進：將速度換算成路徑比例上的位移 (除以路徑長度)
-            for (Car c : cars) {
+            for (int i = 0; i < cars.size(); i++) {
+                Car c = cars.get(i);
                 c.s = (c.s + (c.speed * dt) / c.path.length);
                 if (c.s > 0.7 && c.s < 0.73) {
                     // 走到路徑末端：決定下一段路徑 (留在主線或轉入/轉出) ?
+                    RoadPath before = c.path;
                     chooseNextPath(c);
+                    if (c.path != before)
+                        movePath(c, before); // 換路徑：就地從舊車列移到新車列
                     //c.s -= 1; // 進入下一段後，將 s 回到 [0,1)
                     c.speed *= 40; //降速
                 }
@@ -261,6 +268,39 @@ public class CloverleafSim extends JFrame {
             }
         }
 
+        /** 插入排序：依 s 遞增修補車列；資料幾乎有序時每幀約 O(n)，且不配置任何物件 */
+        static void repairOrder(List<Car> group) {
+            for (int i = 1; i < group.size(); i++) {
+                Car c = group.get(i);
+                int j = i - 1;
+                if (!after(group.get(j), c))
+                    continue; // 已在正確位置 (常見情況)
+                while (j >= 0 && after(group.get(j), c)) {
+                    group.set(j + 1, group.get(j));
+                    j--;
+                }
+                group.set(j + 1, c);
+            }
+        }
+
+        /** 將車輛從舊路徑車列移出，並依 s 插入目前路徑的車列 */
+        void movePath(Car c, RoadPath from) {
+            byPath.get(from).remove(c);
+            insertSorted(byPath.get(c.path), c);
+        }
+
+        static void insertSorted(List<Car> group, Car c) {
+            int i = group.size();
+            while (i > 0 && after(group.get(i - 1), c))
+                i--;
+            group.add(i, c);
+        }
+
+        /** a 是否應排在 b 之後：先比 s，相同時依生成順序 (等同對 cars 做穩定排序) */
+        static boolean after(Car a, Car b) {
+            return a.s > b.s || (a.s == b.s && a.seq > b.seq);
+        }
+
         boolean inMergeZone(Point2D p) {
             // 檢查座標是否落在任一併道矩形內
             for (MergeZone mz : merges)
@@ -370,7 +410,9 @@ public class CloverleafSim extends JFrame {
                     return; // 放棄當前 tick 的生成
                 }
             }
+            c.seq = cars.size();
             cars.add(c);
+            insertSorted(byPath.get(p), c);
         }
 
         Color randomCarColor(Random r) {
@@ -509,6 +551,7 @@ public class CloverleafSim extends JFrame {
         double maxSpeed = 110; // 最高速度 (px/s)
         double length = 20;    // 車長，用於繪圖
         Color color = Color.CYAN; // 車色
+        int seq;           // 生成序號：s 相同時的排序依據 (與在 cars 中的順序一致)
 
         public Car(RoadPath path, double s) {
             this.path = path;
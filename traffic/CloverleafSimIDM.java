@@ -1,3 +1,4 @@
+import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Font;
@@ -10,32 +11,71 @@ import java.awt.event.KeyListener;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.awt.geom.RoundRectangle2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.RenderedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageTypeSpecifier;
-import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.metadata.IIOMetadataNode;
@@ -46,6 +86,13 @@ import javax.swing.SwingUtilities;
 import javax.swing.Timer;
 import javax.swing.WindowConstants;
 
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
 /**
  * Cloverleaf Interchange Traffic Simulation — Intelligent Driver Model IDM + MOBIL + QuadTree + Multithread + GIF export Java8 + Swing demo.
  * 
@@ -59,6 +106,7 @@ import javax.swing.WindowConstants;
  *  R：重置
  *  + / -：增加／減少車輛生成頻率
  *  L：切換是否啟用車道變換（MOBIL）
+ *  M：切換混合模式（長直線主線中段改用中觀佇列，只在匝道與併入區附近做微觀模擬）
  *  G：開始／停止 GIF 錄製（動畫 GIF 會存到工作目錄）
  *  S：儲存單張 PNG 畫面（frames/yyyymmdd_hhmmss.png）
  *  方向鍵上下：縮放
@@ -73,19 +121,471 @@ public class CloverleafSimIDM extends JFrame {
 	static double od = 60.0;
 	
 	public static void main(String[] args) {
+		// --replay <檔案>：重播先前以 T 鍵記錄的軌跡檔，而非即時模擬
+		// --checkpoint <檔案>：從 F5 存下的檢查點開始（暖機後的路網）
+		// --headless <秒>：不開視窗，以最快速度模擬指定的模擬秒數後把偵測器統計寫成 CSV
+		//   --detector <車道名稱@s 或 x,y>（可重複，省略則每條車道中點各一個）  --csv <檔案>
+		//   --integrator ballistic  --dt-max <秒>：彈道積分 + 可變步長（預設 euler，固定 1/60 秒）
+		// --bench-idm [車數]：IDM 加速度微基準（逐車 vs 批次，每車奈秒）
+		// --bench [車數,...]：World.update 規模基準（預設 260,2000,20000,100000；含各階段、配置量與離屏繪圖，--threads 同樣適用）
+		// --network <檔案>：改用 JSON 路網描述（視窗、無視窗與參數掃描皆適用）
+		// --corridor <n>：產生 n 個交流道串成的東西向走廊  --export-network <檔案>：寫出目前路網的 JSON 後結束
+		//   --max-cars <n>：改寫路網的車輛上限（生成間隔等比縮放）
+		//   --demand <veh/h>：改用起訖需求，總流量平均分給所有可到達的起訖組合（車輛到目的主線段尾即離開）
+		//   --spacing <px>：走廊相鄰交流道之間另加的直線主線長度
+		//   --safety <檔案>：另外輸出各車道的替代安全指標（TTC／DRAC 衝突、急煞）  --ttc <秒>：TTC 門檻（預設 1.5）
+		// --hybrid：長直線主線中段改用中觀佇列（視窗、無視窗與分區皆適用；視窗中可用 M 鍵切換）
+		// --deterministic：車輛屬性改用各車獨立的計數器式亂數流（與生成順序、分區數無關）
+		//   --checksum <n>：無視窗模式每 n 步印出世界狀態雜湊（分區模式另在結束時印一次）；--threads <n> 同樣決定單一世界的執行緒池大小
+		// --headless <秒> --partitions <k>：把路網沿走廊接縫切成 k 區、以 --threads 條執行緒分區推進（固定 1/60 秒步長，
+		//   --integrator ballistic 也用固定步長）；不支援 --detector、--csv、--safety、--ttc、--checkpoint、--dt-max，給了會直接報錯結束
+		// --sweep <參數網格>：平行參數掃描，例如 "v0=90,108;T=1.0,1.5;politeness=0,0.3"
+		//   --seeds <n>  --warmup <秒>  --seconds <秒>  --threads <n>  --out <檔案>（--integrator 同樣適用）
+		File replay = null, checkpoint = null, csv = new File("traffic_detectors.csv"), sweepOut = new File("traffic_sweep.csv");
+		File networkFile = null, exportNetwork = null, safetyCsv = null;
+		int corridor = 0, maxCars = 0, partitions = 0;
+		double headless = 0, warmup = 60, seconds = 300, demand = 0, spacing = 0, ttc = 1.5;
+		int seeds = 1, threads = 0, checksumEvery = 0;
+		boolean deterministic = false;
+		String sweep = null;
+		Integrator integrator = Integrator.EULER;
+		double dtMax = 0.5;
+		boolean hybrid = false;
+		List<String> detectorSpecs = new ArrayList<>();
+		for (int i = 0; i + 1 < args.length; i++) {
+			if (args[i].equals("--replay"))
+				replay = new File(args[i + 1]);
+			else if (args[i].equals("--checkpoint"))
+				checkpoint = new File(args[i + 1]);
+			else if (args[i].equals("--headless"))
+				headless = Double.parseDouble(args[i + 1]);
+			else if (args[i].equals("--detector"))
+				detectorSpecs.add(args[i + 1]);
+			else if (args[i].equals("--csv"))
+				csv = new File(args[i + 1]);
+			else if (args[i].equals("--sweep"))
+				sweep = args[i + 1];
+			else if (args[i].equals("--seeds"))
+				seeds = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--warmup"))
+				warmup = Double.parseDouble(args[i + 1]);
+			else if (args[i].equals("--seconds"))
+				seconds = Double.parseDouble(args[i + 1]);
+			else if (args[i].equals("--threads"))
+				threads = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--out"))
+				sweepOut = new File(args[i + 1]);
+			else if (args[i].equals("--integrator"))
+				integrator = Integrator.valueOf(args[i + 1].toUpperCase(Locale.ROOT));
+			else if (args[i].equals("--dt-max"))
+				dtMax = Double.parseDouble(args[i + 1]);
+			else if (args[i].equals("--network"))
+				networkFile = new File(args[i + 1]);
+			else if (args[i].equals("--corridor"))
+				corridor = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--export-network"))
+				exportNetwork = new File(args[i + 1]);
+			else if (args[i].equals("--max-cars"))
+				maxCars = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--partitions"))
+				partitions = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--demand"))
+				demand = Double.parseDouble(args[i + 1]);
+			else if (args[i].equals("--spacing"))
+				spacing = Double.parseDouble(args[i + 1]);
+			else if (args[i].equals("--safety"))
+				safetyCsv = new File(args[i + 1]);
+			else if (args[i].equals("--ttc"))
+				ttc = Double.parseDouble(args[i + 1]);
+			else if (args[i].equals("--checksum"))
+				checksumEvery = Integer.parseInt(args[i + 1]);
+		}
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--bench-idm")) {
+				benchIdm(i + 1 < args.length && !args[i + 1].startsWith("--") ? Integer.parseInt(args[i + 1]) : 4096);
+				return;
+			}
+			if (args[i].equals("--bench")) {
+				String spec = i + 1 < args.length && !args[i + 1].startsWith("--") ? args[i + 1] : "260,2000,20000,100000";
+				benchWorld(Arrays.stream(spec.split(",")).mapToInt(x -> Integer.parseInt(x.trim())).toArray(), threads > 0 ? threads : World.defaultThreads());
+				return;
+			}
+			if (args[i].equals("--hybrid"))
+				hybrid = true;
+			if (args[i].equals("--deterministic"))
+				deterministic = true;
+		}
+		RoadNetwork network = null;
+		try {
+			if (networkFile != null)
+				network = RoadNetwork.read(networkFile);
+			else if (corridor > 0)
+				network = RoadNetwork.corridor(corridor, spacing);
+			if (maxCars > 0 || demand > 0) {
+				if (network == null)
+					network = RoadNetwork.of(new World(1200, 900, new ModelParams(), false));
+				if (maxCars > 0) {
+					network.spawnEverySec *= (double) network.maxCars / maxCars;
+					network.maxCars = maxCars;
+				}
+				if (demand > 0)
+					network.uniformDemand(demand);
+			}
+			if (exportNetwork != null) {
+				RoadNetwork out = network != null ? network : RoadNetwork.of(new World(1200, 900, new ModelParams(), false));
+				out.write(exportNetwork);
+				System.out.printf(Locale.ROOT, "Road network: %d paths, %d lanes -> %s%n", out.paths.size(), out.lanes.size(),
+						exportNetwork.getAbsolutePath());
+				return;
+			}
+		} catch (IOException | IllegalArgumentException ex) {
+			System.err.println(ex.getMessage());
+			System.exit(1);
+		}
+		int nproc = Runtime.getRuntime().availableProcessors();
+		if (sweep != null) {
+			try {
+				ParameterSweep.run(ParameterSweep.grid(sweep, seeds), network, warmup, seconds, threads > 0 ? threads : nproc, integrator, dtMax, sweepOut);
+			} catch (IOException | IllegalArgumentException ex) {
+				System.err.println(ex.getMessage());
+				System.exit(1);
+			}
+			return;
+		}
+		if (headless > 0 && partitions > 0) {
+			// 分區世界沒有偵測器、安全指標與檢查點，也只走固定步長；與其默默忽略，不如直接告知
+			List<String> unsupported = new ArrayList<>();
+			for (String a : args)
+				if (Arrays.asList("--detector", "--csv", "--safety", "--ttc", "--checkpoint", "--dt-max").contains(a) && !unsupported.contains(a))
+					unsupported.add(a);
+			if (!unsupported.isEmpty()) {
+				System.err.println("--partitions does not support " + String.join(", ", unsupported)
+						+ " (detectors, safety metrics, checkpoints and variable steps need a single world; drop --partitions)");
+				System.exit(1);
+			}
+			try {
+				runPartitioned(headless, network != null ? network : RoadNetwork.of(new World(1200, 900, new ModelParams(), false)), partitions,
+						threads > 0 ? threads : nproc, integrator, hybrid, deterministic, checksumEvery);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			return;
+		}
+		if (headless > 0) {
+			try {
+				runHeadless(headless, network, checkpoint, detectorSpecs, csv, integrator, dtMax, hybrid, safetyCsv, ttc,
+						threads > 0 ? threads : World.defaultThreads(), deterministic, checksumEvery);
+			} catch (IOException | IllegalArgumentException ex) {
+				System.err.println(ex.getMessage());
+				System.exit(1);
+			}
+			return;
+		}
+		final File replayFile = replay, checkpointFile = checkpoint;
+		final RoadNetwork net = network;
+		final boolean meso = hybrid;
 		// Swing 元件需在 Event Dispatch Thread 建立與更新
 		SwingUtilities.invokeLater(() -> {
-			CloverleafSimIDM f = new CloverleafSimIDM();
+			CloverleafSimIDM f = new CloverleafSimIDM(replayFile, net);
+			if (checkpointFile != null)
+				f.panel.loadCheckpoint(checkpointFile);
+			if (meso)
+				f.panel.sim.post(w -> w.setHybrid(true));
 			f.setVisible(true);
 		});
 	}
 
+	/** 無視窗模式：盡快推進（EULER 固定 1/60 秒；BALLISTIC 依 nextDt() 可變步長），結束後輸出偵測器 CSV（safetyCsv 不為 null 時另輸出替代安全指標）。network 為 null 時用內建苜蓿葉。*/
+	static void runHeadless(double seconds, RoadNetwork network, File checkpoint, List<String> detectorSpecs, File csv, Integrator integrator,
+			double dtMax, boolean hybrid, File safetyCsv, double ttc, int threads, boolean deterministic, int checksumEvery) throws IOException {
+		World world = network != null ? new World(network, new ModelParams(), threads) : new World(1200, 900, new ModelParams(), threads);
+		world.vehicleStreams = deterministic;
+		world.integrator = integrator;
+		world.dtMax = dtMax;
+		world.setHybrid(hybrid);
+		if (safetyCsv != null)
+			world.safety = new SafetyMonitor(world.lanes.size(), ttc, world.aSafe);
+		try {
+			if (checkpoint != null)
+				WorldCheckpoint.load(world, checkpoint);
+			if (detectorSpecs.isEmpty())
+				world.detectors.addDefaults(world);
+			else
+				for (String spec : detectorSpecs)
+					world.detectors.add(world, spec);
+			long steps = 0;
+			long t0 = System.nanoTime();
+			for (double t = 0; t < seconds - 1e-6; steps++) {
+				double dt = Math.min(world.nextDt(), seconds - t);
+				world.update(dt, true);
+				t += dt;
+				if (checksumEvery > 0 && (steps + 1) % checksumEvery == 0)
+					System.out.printf(Locale.ROOT, "step %d t=%.3f checksum=%016x%n", steps + 1, t, world.stateChecksum());
+			}
+			world.detectors.writeCsv(csv);
+			System.out.printf(Locale.ROOT, "Simulated %.0f s (%d steps) in %.1f s, %d cars%s; detectors -> %s%n", seconds, steps,
+					(System.nanoTime() - t0) / 1e9, world.cars.size(),
+					world.demand != null ? ", " + world.tripsCompleted + " trips completed" : "", csv.getAbsolutePath());
+			if (world.safety != null) {
+				world.safety.writeCsv(safetyCsv, world.lanes);
+				StringBuilder sb = new StringBuilder();
+				for (Map.Entry<LaneKind, long[]> e : world.safety.eventsByKind(world.lanes).entrySet())
+					sb.append(String.format(Locale.ROOT, "  %s %d/%d/%d/%d", e.getKey(), e.getValue()[0], e.getValue()[1], e.getValue()[2], e.getValue()[3]));
+				System.out.printf(Locale.ROOT, "Safety (TTC/DRAC/hard-brake/overlap events):%s; -> %s%n", sb, safetyCsv.getAbsolutePath());
+			}
+		} finally {
+			world.pool.shutdown();
+		}
+	}
+
+	/**
+	 * 分區無視窗模式：各區由固定的工作執行緒以 1/60 秒步長推進（BALLISTIC 同樣固定步長），結束後輸出吞吐量與越區移交統計。
+	 * checksumEvery > 0 時每 n 步印出合併狀態雜湊（格式同 runHeadless），結束時再印一次。
+	 */
+	static void runPartitioned(double seconds, RoadNetwork network, int partitions, int threads, Integrator integrator, boolean hybrid,
+			boolean deterministic, int checksumEvery) throws InterruptedException {
+		PartitionedSim sim = new PartitionedSim(network, new ModelParams(), partitions, threads);
+		for (PartitionedSim.Region reg : sim.regions) {
+			reg.world.integrator = integrator;
+			reg.world.setHybrid(hybrid);
+			reg.world.vehicleStreams = deterministic;
+		}
+		double dt = 1.0 / 60.0;
+		int steps = PartitionedSim.steps(seconds, dt);
+		long t0 = System.nanoTime();
+		if (checksumEvery <= 0)
+			sim.run(steps, dt);
+		else
+			for (int done = 0; done < steps;) {
+				// 分段推進：段與段之間沒有其他動作，結果與一次跑完逐位元相同
+				int chunk = Math.min(checksumEvery, steps - done);
+				sim.run(chunk, dt);
+				done += chunk;
+				if (done % checksumEvery == 0)
+					System.out.printf(Locale.ROOT, "step %d t=%.3f checksum=%016x%n", done, done * dt, sim.stateChecksum());
+			}
+		double wall = (System.nanoTime() - t0) / 1e9;
+		long carSteps = 0, handoffs = 0;
+		for (PartitionedSim.Region reg : sim.regions) {
+			carSteps += reg.carSteps;
+			handoffs += reg.handedOff;
+		}
+		System.out.printf(Locale.ROOT, "Simulated %.0f s (%d fixed %s steps) on %d regions x %d threads in %.1f s: %d cars, %d handoffs, %.2f M car-steps/s%n",
+				seconds, steps, integrator.name().toLowerCase(Locale.ROOT), sim.regions.length, sim.threads, wall, sim.carCount(), handoffs,
+				carSteps / wall / 1e6);
+		if (checksumEvery > 0)
+			System.out.printf(Locale.ROOT, "checksum=%016x%n", sim.stateChecksum());
+	}
+
+	/**
+	 * IDM 加速度微基準：比較原本以 Math.pow 的公式、常數外提的逐車版本與批次核心。
+	 * 以隨機的速度／間距（約三成無前車）重複計算，先暖機讓 JIT 編譯，再取多輪中位數。
+	 */
+	static void benchIdm(int n) {
+		World w = new World(1200, 900, new ModelParams(), false);
+		Random r = new Random(42);
+		double[] v = new double[n], gap = new double[n], vl = new double[n], out = new double[n];
+		boolean[] follow = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			v[i] = r.nextDouble() * w.v0 * 1.1;
+			follow[i] = r.nextDouble() < 0.7;
+			gap[i] = follow[i] ? 2 + r.nextDouble() * 120 : Double.POSITIVE_INFINITY;
+			vl[i] = follow[i] ? r.nextDouble() * w.v0 : v[i];
+		}
+
+		// 精度：三種算法對照原公式
+		double maxRel = 0;
+		w.accIDMBatch(v, gap, vl, out, n);
+		for (int i = 0; i < n; i++) {
+			double ref = accIDMReference(w, v[i], follow[i], vl[i], gap[i]);
+			double scalar = w.accIDM(v[i], follow[i], vl[i], gap[i]);
+			if (scalar != out[i])
+				throw new IllegalStateException("batch and scalar kernels disagree at " + i);
+			maxRel = Math.max(maxRel, Math.abs(out[i] - ref) / Math.max(1e-9, Math.abs(ref)));
+		}
+
+		int reps = Math.max(1, 2_000_000 / n), rounds = 15;
+		double[] tRef = new double[rounds], tScalar = new double[rounds], tBatch = new double[rounds];
+		double sink = 0;
+		for (int round = -10; round < rounds; round++) { // 前 10 輪為暖機
+			long t0 = System.nanoTime();
+			for (int k = 0; k < reps; k++)
+				for (int i = 0; i < n; i++)
+					sink += accIDMReference(w, v[i], follow[i], vl[i], gap[i]);
+			long t1 = System.nanoTime();
+			for (int k = 0; k < reps; k++)
+				for (int i = 0; i < n; i++)
+					sink += w.accIDM(v[i], follow[i], vl[i], gap[i]);
+			long t2 = System.nanoTime();
+			for (int k = 0; k < reps; k++) {
+				w.accIDMBatch(v, gap, vl, out, n);
+				sink += out[k % n];
+			}
+			long t3 = System.nanoTime();
+			if (round >= 0) {
+				double per = (double) reps * n;
+				tRef[round] = (t1 - t0) / per;
+				tScalar[round] = (t2 - t1) / per;
+				tBatch[round] = (t3 - t2) / per;
+			}
+		}
+		Arrays.sort(tRef);
+		Arrays.sort(tScalar);
+		Arrays.sort(tBatch);
+		System.out.printf(Locale.ROOT, "IDM kernel, n=%d (median of %d rounds, ns/vehicle)%n", n, rounds);
+		System.out.printf(Locale.ROOT, "  pow reference : %6.2f%n", tRef[rounds / 2]);
+		System.out.printf(Locale.ROOT, "  scalar hoisted: %6.2f%n", tScalar[rounds / 2]);
+		System.out.printf(Locale.ROOT, "  batch kernel  : %6.2f%n", tBatch[rounds / 2]);
+		System.out.printf(Locale.ROOT, "  max rel. error vs reference: %.2e  (checksum %.3f)%n", maxRel, sink);
+	}
+
+	/** 原本的 IDM 公式（每次呼叫都算 sqrt 與 Math.pow），作為基準與精度對照。*/
+	static double accIDMReference(World w, double v, boolean follow, double vLeader, double s) {
+		double dv = follow ? v - vLeader : 0;
+		double sStar = w.s0 + Math.max(0, v * w.T + (v * dv) / (2 * Math.sqrt(w.aMax * w.b)));
+		double termFree = Math.pow(v / w.v0, w.delta);
+		double termInt = (!follow ? 0 : Math.pow(sStar / Math.max(1.0, s), 2));
+		return w.aMax * (1 - termFree - termInt);
+	}
+
+	/**
+	 * World.update 的規模基準（本樹沒有建置工具，無法引入 JMH，改以同樣的做法手寫：
+	 * 先依牆鐘時間暖機讓 JIT 編譯，再量測多步取中位數與平均，並以 ThreadMXBean 統計所有執行緒的配置量）。
+	 * 每個規模以 World.populate() 直接佈車（260 台用內建苜蓿葉，其餘用等比例長度的走廊），量測：
+	 * update(dt, true／false) 每步耗時與配置、StepProfiler 各階段平均、單獨的 findNeighbors／stepIDM 每車耗時，
+	 * 以及畫到 1200×900 離屏影像的成本（縮放 1 的局部視圖與整個路網的縮圖）。
+	 */
+	static void benchWorld(int[] sizes, int threads) {
+		double dt = 1.0 / 60.0;
+		for (int n : sizes) {
+			RoadNetwork net = n <= 260 ? null : RoadNetwork.corridor((int) Math.ceil(n / 260.0));
+			World w = net == null ? new World(1200, 900, new ModelParams(), threads) : new World(net, new ModelParams(), threads);
+			try {
+				w.populate(n);
+				System.out.printf(Locale.ROOT, "World.update, %d cars on %d lanes, %d threads%n", w.cars.size(), w.lanes.size(), threads);
+
+				// 暖機：至少 3 秒牆鐘且至少 20 步
+				long warmEnd = System.nanoTime() + 3_000_000_000L;
+				for (int k = 0; k < 20 || System.nanoTime() < warmEnd; k++)
+					w.update(dt, (k & 1) == 0);
+
+				long[] phaseNanos = new long[StepProfiler.STEP];
+				for (boolean mobil : new boolean[] { true, false }) {
+					List<Long> steps = new ArrayList<>();
+					long alloc0 = allocatedBytes(), t0 = System.nanoTime();
+					while (steps.size() < 5 || System.nanoTime() - t0 < 3_000_000_000L) {
+						long s0 = System.nanoTime();
+						w.update(dt, mobil);
+						steps.add(System.nanoTime() - s0);
+						if (mobil)
+							for (int p = 0; p < phaseNanos.length; p++)
+								phaseNanos[p] += w.profiler.lastNanos[p];
+					}
+					long alloc = (allocatedBytes() - alloc0) / steps.size();
+					Collections.sort(steps);
+					double mean = 0;
+					for (long s : steps)
+						mean += s;
+					mean /= steps.size();
+					System.out.printf(Locale.ROOT, "  update(dt, %-5s): median %9.3f ms  mean %9.3f ms  (%d steps)  alloc %,12d B/step%n", mobil, steps.get(steps.size() / 2) / 1e6,
+							mean / 1e6, steps.size(), alloc);
+					if (mobil) {
+						StringBuilder sb = new StringBuilder("  phases (mean, mobil on):");
+						for (StepProfiler.Phase p : StepProfiler.PHASES)
+							sb.append(String.format(Locale.ROOT, " %s=%.3f", p.label, phaseNanos[p.ordinal()] / 1e6 / steps.size()));
+						System.out.println(sb + " ms");
+					}
+				}
+
+				// 單獨量測：鄰車搜尋與 IDM（只讀目前狀態、只寫 next，可重複呼叫），單一執行緒
+				List<Car> cars = new ArrayList<>(w.cars);
+				NeighborInfo[] neigh = new NeighborInfo[cars.size()];
+				double nsNeighbors = Double.POSITIVE_INFINITY, nsIdm = Double.POSITIVE_INFINITY;
+				for (int round = 0; round < 5; round++) {
+					long t0 = System.nanoTime();
+					for (int i = 0; i < cars.size(); i++)
+						neigh[i] = w.findNeighbors(cars.get(i));
+					long t1 = System.nanoTime();
+					for (int i = 0; i < cars.size(); i++)
+						w.stepIDM(cars.get(i), neigh[i], dt);
+					long t2 = System.nanoTime();
+					nsNeighbors = Math.min(nsNeighbors, (t1 - t0) / (double) cars.size());
+					nsIdm = Math.min(nsIdm, (t2 - t1) / (double) cars.size());
+				}
+				System.out.printf(Locale.ROOT, "  isolated (best of 5, 1 thread): findNeighbors %.1f ns/car  stepIDM %.1f ns/car%n", nsNeighbors, nsIdm);
+
+				// 離屏繪圖：局部視圖（縮放 1）與整個路網的縮圖（依縮放自動改畫點或密度色塊）
+				BufferedImage img = new BufferedImage(1200, 900, BufferedImage.TYPE_INT_ARGB);
+				double fit = Math.min(1200.0 / w.W, 900.0 / w.H);
+				benchRender(w, img, 1.0); // 暖機
+				System.out.printf(Locale.ROOT, "  render 1200x900: zoom 1 %.3f ms/frame  whole network (zoom %.3f) %.3f ms/frame%n", benchRender(w, img, 1.0),
+						fit, benchRender(w, img, fit));
+			} finally {
+				if (w.pool != null)
+					w.pool.shutdown();
+			}
+		}
+	}
+
+	/** 以與 SimPanel.paintScene 相同的裁切與細節層級把最新一幀畫到 img，回傳多次繪製的平均毫秒數。*/
+	static double benchRender(World w, BufferedImage img, double zoom) {
+		RenderFrame f = w.frames.latest();
+		AffineTransform view = new AffineTransform();
+		view.translate(img.getWidth() / 2.0, img.getHeight() / 2.0);
+		view.scale(zoom, zoom);
+		view.translate(-w.cx, -w.cy);
+		Rectangle2D visible = new Rectangle2D.Double(w.cx - img.getWidth() / 2.0 / zoom, w.cy - img.getHeight() / 2.0 / zoom, img.getWidth() / zoom,
+				img.getHeight() / zoom);
+		int frames = 0;
+		long t0 = System.nanoTime(), elapsed;
+		do {
+			Graphics2D g = img.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g.setColor(Color.DARK_GRAY);
+			g.fillRect(0, 0, img.getWidth(), img.getHeight());
+			AffineTransform device = g.getTransform();
+			g.transform(view);
+			w.renderRoads(g, visible);
+			if (zoom >= World.LOD_DOT_ZOOM) {
+				w.renderCars(g, f, visible);
+			} else {
+				g.setTransform(device);
+				w.renderCarsLod(g, f, visible, view, img.getWidth(), img.getHeight());
+			}
+			g.dispose();
+			frames++;
+			elapsed = System.nanoTime() - t0;
+		} while (frames < 5 || elapsed < 1_000_000_000L);
+		return elapsed / 1e6 / frames;
+	}
+
+	/** 所有存活執行緒（含執行緒池）累計配置的位元組數。*/
+	static long allocatedBytes() {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long sum = 0;
+		for (long b : mx.getThreadAllocatedBytes(mx.getAllThreadIds()))
+			if (b > 0)
+				sum += b;
+		return sum;
+	}
+
+	final SimPanel panel;
+
 	public CloverleafSimIDM() {
+		this(null);
+	}
+
+	public CloverleafSimIDM(File replay) {
+		this(replay, null);
+	}
+
+	/** network 不為 null 時改用匯入的路網（null 為內建苜蓿葉）。*/
+	public CloverleafSimIDM(File replay, RoadNetwork network) {
 		super("Cloverleaf Interchange — IDM + MOBIL + QuadTree + Multithread + GIF");
 		setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
 		setSize(1200, 900);
 		setLocationRelativeTo(null); // 視窗置中
-		SimPanel panel = new SimPanel(1200, 900);
+		panel = new SimPanel(1200, 900, replay, network);
 		setContentPane(panel); // 將模擬面板設為內容
 	}
 
@@ -93,69 +593,213 @@ public class CloverleafSimIDM extends JFrame {
 	static class SimPanel extends JPanel implements KeyListener, MouseWheelListener {
 		final int W, H;           // 畫布寬高（畫面座標）
 		final World world;       // 模擬世界（道路、車輛、演算法）
-		Timer timer; // Swing 計時器（驅動 60 FPS 更新）
-		boolean paused = false;  // 是否暫停
+		final SimLoop sim;       // 模擬執行緒（與繪圖分離）
+		Timer timer; // Swing 計時器（驅動約 60 FPS 重繪）
 		double dt = 1.0 / 60.0;   // 每幀時間（秒）
 		double zoom = 1.0;        // 視圖縮放
 		double offsetX = 0, offsetY = 0; // 視圖平移
-		boolean mobilEnabled = true;     // 是否啟用 MOBIL 車道變換模型
 		final VideoRecorder recorder = new VideoRecorder(); // GIF 錄製器
+		final RateMeter renderRate = new RateMeter();       // 實測畫面更新率
+		final RoadLayer roadLayer = new RoadLayer();        // 靜態道路快取影像（螢幕，含 HiDPI 縮放）
+		final RoadLayer offscreenLayer = new RoadLayer();   // 離屏（錄影、存檔）專用：裝置縮放不同，共用會每幀互相踢掉
+		File lastCheckpoint;                                // 最近一次存檔／載入的檢查點（F9 還原用）
+		boolean showProfiler = false;                       // 是否顯示各階段耗時面板
 
 		public SimPanel(int w, int h) {
+			this(w, h, null);
+		}
+
+		public SimPanel(int w, int h, File replay) {
+			this(w, h, replay, null);
+		}
+
+		/** replay 不為 null 時以重播模式開啟（只播放軌跡檔，不推進模型）；network 為 null 時用內建苜蓿葉。*/
+		public SimPanel(int w, int h, File replay, RoadNetwork network) {
 			this.W = w;
 			this.H = h;
 			setBackground(new Color(30, 34, 44)); // 深色背景
 			setFocusable(true); // 接收鍵盤事件
 			addKeyListener(this);
 			addMouseWheelListener(this);
-			world = new World(W, H);
-			// 以固定 dt 觸發 tick（近似 60 FPS）
+			world = network != null ? new World(network, new ModelParams(), true) : new World(W, H);
+			TrajectoryReader reader = null;
+			if (replay != null) {
+				try {
+					reader = new TrajectoryReader(replay);
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+			sim = new SimLoop(world, dt, reader);
+			sim.start();
+			// 繪圖以自己的節奏觸發，只讀取模擬執行緒發佈的最新快照
 			timer = new Timer((int) (1000 * dt), e -> tick());
 			timer.start();
 		}
 
-		/** 每幀更新：運動學更新→重繪→如正在錄影則擷取一幀 */
+		/** 每次重繪：重畫畫面→如正在錄影則擷取一幀 */
 		void tick() {
-			if (!paused)
-				world.update(dt, mobilEnabled);
 			repaint();
-			// 若正在錄影：以目前面板內容產生一張 BufferedImage 存至 GIF 序列
-			if (recorder.isRecording()) {
-				BufferedImage frame = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
-				Graphics2D g2 = frame.createGraphics();
-				paintComponent(g2); // 直接呼叫繪製邏輯將視圖畫到影像上
-				g2.dispose();
-				recorder.addFrame(frame, (int) (dt * 1000)); // 指定該幀停留毫秒數
-			}
+			// 若正在錄影：把目前畫面畫進錄影緩衝區，交給背景編碼器（緩衝區用完則丟棄此幀）
+			if (recorder.isRecording())
+				recorder.capture(this::paintOffscreen, (int) (dt * 1000)); // 指定該幀停留毫秒數
 		}
 
 		@Override
 		protected void paintComponent(Graphics g) {
 			super.paintComponent(g);
-			Graphics2D g2 = (Graphics2D) g;
+			renderRate.tick();
+			paintScene((Graphics2D) g, roadLayer);
+		}
+
+		/** 將目前畫面畫到一張新的影像上（錄影、存檔用，不計入畫面更新率）。*/
+		BufferedImage renderOffscreen() {
+			BufferedImage img = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g2 = img.createGraphics();
+			paintOffscreen(g2);
+			g2.dispose();
+			return img;
+		}
+
+		/** 先填背景再繪製畫面（離屏影像沒有 JPanel 的背景）。*/
+		void paintOffscreen(Graphics2D g2) {
+			g2.setColor(getBackground());
+			g2.fillRect(0, 0, getWidth(), getHeight());
+			paintScene(g2, offscreenLayer);
+		}
+
+		/** 繪製道路、車輛與 HUD；roads 為這個繪圖目標使用的道路快取。*/
+		void paintScene(Graphics2D g2, RoadLayer roads) {
 			g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON); // 抗鋸齒
+			RenderFrame f = world.frames.latest(); // 取最新完成的一幀（不阻塞模擬執行緒）
 
 			// 建立當前轉換矩陣副本，繪完地圖後要還原
 			AffineTransform at = g2.getTransform();
 			// 視圖：先移動到面板中心，再套用使用者平移與縮放，最後把世界中心對齊
-			g2.translate(W / 2 + offsetX, H / 2 + offsetY);
-			g2.scale(zoom, zoom);
-			g2.translate(-world.cx, -world.cy);
-
-			world.render(g2); // 繪道路與車輛
+			AffineTransform view = new AffineTransform();
+			view.translate(W / 2 + offsetX, H / 2 + offsetY);
+			view.scale(zoom, zoom);
+			view.translate(-world.cx, -world.cy);
+
+			// 靜態道路：只有縮放／平移／尺寸改變時才重畫快取影像
+			int w = getWidth(), h = getHeight();
+			g2.drawImage(roads.get(world, view, at, w, h), 0, 0, w, h, null);
+
+			// 可見的世界範圍（畫面矩形反推回世界座標），用於裁掉畫面外的車
+			Rectangle2D visible = new Rectangle2D.Double(world.cx - (W / 2 + offsetX) / zoom, world.cy - (H / 2 + offsetY) / zoom, w / zoom, h / zoom);
+			if (zoom >= World.LOD_DOT_ZOOM) {
+				g2.transform(view);
+				world.renderCars(g2, f, visible); // 繪車輛（只走可見格子）
+			} else {
+				world.renderCarsLod(g2, f, visible, view, w, h); // 縮小時改畫點或密度色塊
+			}
 
 			g2.setTransform(at); // 還原轉換矩陣
-			drawHUD(g2); // 疊加 HUD 文字
+			drawHUD(g2, f); // 疊加 HUD 文字
+			if (showProfiler)
+				drawProfiler(g2, world.profiler.summary);
 		}
 
 		/** 繪製畫面左上角資訊與快捷鍵提示 */
-		void drawHUD(Graphics2D g) {
+		void drawHUD(Graphics2D g, RenderFrame f) {
 			g.setColor(new Color(235, 240, 250));
 			g.setFont(g.getFont().deriveFont(Font.BOLD, 14f));
-			String info = String.format("Cars:%d  Spawn:%.2fs  FPS:60  MOBIL:%s  %s  GIF:%s", world.cars.size(), world.spawnEverySec, (mobilEnabled ? "ON" : "OFF"), (paused ? "PAUSED" : "RUNNING"), (recorder.isRecording() ? "REC" : "idle"));
+			String info = String.format("Cars:%d  Spawn:%.2fs  Sim:%.0f/s  Render:%.0f FPS  MOBIL:%s  %s  GIF:%s", f.count, f.spawnEverySec, sim.simRate.rate(), renderRate.rate(), (sim.mobilEnabled ? "ON" : "OFF"), (sim.paused ? "PAUSED" : "RUNNING"), gifStatus());
 			g.drawString(info, 16, 24);
 			g.setFont(g.getFont().deriveFont(Font.PLAIN, 12f));
-			g.drawString("Space=Pause  R=Reset  +/-=Spawn  L=LaneChange  G=GIF  S=SavePNG  Arrows=Pan/Zoom", 16, 44);
+			if (sim.replay != null) {
+				g.drawString(String.format("REPLAY %d/%d   Space=Pause  ,/.=Step  PgUp/PgDn=-/+10s  Home=Start  G=GIF  S=SavePNG  Arrows=Pan/Zoom", sim.replayFrame, sim.replay.frameCount()), 16, 44);
+				return;
+			}
+			g.drawString("Space=Pause  R=Reset  +/-=Spawn  L=LaneChange  M=Meso  G=GIF  S=SavePNG  T=Trajectory  F5/F9=Save/Load state  P=Profiler  Arrows=Pan/Zoom", 16, 44);
+			File trj = sim.trajectoryFile();
+			if (trj != null)
+				g.drawString("TRJ: " + trj.getName(), 16, 62);
+		}
+
+		/** 左下角的階段耗時面板：最近一秒各階段的平均／p50／p99／最大值（µs）與事件頻率。*/
+		void drawProfiler(Graphics2D g, StepProfiler.Summary sum) {
+			int rowH = 15, x = 16;
+			int rows = StepProfiler.STEP + 4;
+			int y = getHeight() - 16 - rows * rowH;
+			g.setColor(new Color(0, 0, 0, 160));
+			g.fillRoundRect(x - 8, y - rowH, 380, rows * rowH + 12, 10, 10);
+			g.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+			g.setColor(new Color(235, 240, 250));
+			g.drawString(String.format("%-10s %8s %8s %8s %8s", "phase(us)", "mean", "p50", "p99", "max"), x, y);
+			for (int i = 0; i <= StepProfiler.STEP; i++) {
+				long[] r = sum.rows[i];
+				String name = i < StepProfiler.STEP ? StepProfiler.PHASES[i].label : "Step";
+				y += rowH;
+				g.drawString(String.format("%-10s %8.1f %8.1f %8.1f %8.1f", name, r[0] / 1e3, r[1] / 1e3, r[2] / 1e3, r[3] / 1e3), x, y);
+			}
+			y += rowH + 4;
+			g.drawString(String.format("cars %d  steps/s %.0f", sum.cars, sum.stepsPerSec), x, y);
+			y += rowH;
+			g.drawString(String.format("lane chg/s %.1f  merge/s %.1f  failed/s %.1f", sum.laneChangesPerSec, sum.mergesPerSec, sum.failedMergesPerSec), x, y);
+		}
+
+		/** GIF 錄影狀態：錄影中顯示編碼佇列深度與因背壓丟棄的幀數。*/
+		String gifStatus() {
+			if (!recorder.isRecording())
+				return "idle";
+			return String.format("REC q%d/%d drop%d", recorder.queued(), VideoRecorder.POOL, recorder.dropped());
+		}
+
+		/** 開始／停止軌跡紀錄（檔名依時間戳記產生）。*/
+		void toggleTrajectory() {
+			String ts = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+			File out = new File("traffic_" + ts + ".trj");
+			sim.post(w -> sim.toggleTrajectory(out));
+		}
+
+		/** 把世界目前狀態存成檢查點（檔名依時間戳記產生），在模擬執行緒上兩步之間寫出。*/
+		void saveCheckpoint() {
+			String ts = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+			File out = new File("traffic_" + ts + ".ckpt");
+			lastCheckpoint = out;
+			sim.post(w -> {
+				try {
+					WorldCheckpoint.save(w, out);
+					System.out.println("Checkpoint saved: " + out.getAbsolutePath() + " (" + w.cars.size() + " cars)");
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			});
+		}
+
+		/** 由檢查點還原世界（在模擬執行緒上兩步之間載入）。*/
+		void loadCheckpoint(File file) {
+			if (file == null)
+				return;
+			lastCheckpoint = file;
+			sim.post(w -> {
+				try {
+					WorldCheckpoint.load(w, file);
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			});
+		}
+
+		/** 重播模式的定位鍵；有處理則回傳 true。*/
+		boolean replayKey(KeyEvent e) {
+			int step = (int) Math.round(10 / dt); // 10 秒
+			int f = sim.replayFrame - 1;          // 目前顯示中的幀
+			int target;
+			switch (e.getKeyCode()) {
+			case KeyEvent.VK_COMMA: target = f - 1; break;
+			case KeyEvent.VK_PERIOD: target = f + 1; break;
+			case KeyEvent.VK_PAGE_UP: target = f - step; break;
+			case KeyEvent.VK_PAGE_DOWN: target = f + step; break;
+			case KeyEvent.VK_HOME: target = 0; break;
+			case KeyEvent.VK_R: case KeyEvent.VK_L: case KeyEvent.VK_M: case KeyEvent.VK_T: case KeyEvent.VK_F5: case KeyEvent.VK_F9:
+			case KeyEvent.VK_PLUS: case KeyEvent.VK_EQUALS: case KeyEvent.VK_MINUS:
+				return true; // 重播時不可改動模型
+			default: return false;
+			}
+			sim.post(w -> sim.seekReplay(target));
+			return true;
 		}
 
 		// ---------------- controls -----------------
@@ -165,20 +809,33 @@ public class CloverleafSimIDM extends JFrame {
 		@Override
 		public void keyPressed(KeyEvent e) {
 			// 鍵盤快捷鍵對應功能
+			// 會改動世界狀態的操作一律交給模擬執行緒在步與步之間執行
 			if (e.getKeyCode() == KeyEvent.VK_SPACE)
-				paused = !paused; // 暫停／繼續
+				sim.paused = !sim.paused; // 暫停／繼續
+			else if (sim.replay != null && replayKey(e))
+				return;
+			else if (e.getKeyCode() == KeyEvent.VK_T)
+				toggleTrajectory();
+			else if (e.getKeyCode() == KeyEvent.VK_F5)
+				saveCheckpoint();
+			else if (e.getKeyCode() == KeyEvent.VK_F9)
+				loadCheckpoint(lastCheckpoint);
+			else if (e.getKeyCode() == KeyEvent.VK_P)
+				showProfiler = !showProfiler;
 			else if (e.getKeyCode() == KeyEvent.VK_R)
-				world.reset();
+				sim.post(World::reset);
 			else if (e.getKeyCode() == KeyEvent.VK_L)
-				mobilEnabled = !mobilEnabled; // 切換 MOBIL
+				sim.mobilEnabled = !sim.mobilEnabled; // 切換 MOBIL
+			else if (e.getKeyCode() == KeyEvent.VK_M)
+				sim.post(w -> w.setHybrid(!w.hybrid)); // 切換中觀／微觀混合模式
 			else if (e.getKeyCode() == KeyEvent.VK_G)
 				toggleGIF();
 			else if (e.getKeyCode() == KeyEvent.VK_S)
 				savePNG();
 			else if (e.getKeyCode() == KeyEvent.VK_PLUS || e.getKeyCode() == KeyEvent.VK_EQUALS)
-				world.spawnEverySec = Math.max(0.2, world.spawnEverySec - 0.1); // 提高出生頻率
+				sim.post(w -> w.spawnEverySec = Math.max(0.2, w.spawnEverySec - 0.1)); // 提高出生頻率
 			else if (e.getKeyCode() == KeyEvent.VK_MINUS)
-				world.spawnEverySec = Math.min(3.0, world.spawnEverySec + 0.1); // 降低出生頻率
+				sim.post(w -> w.spawnEverySec = Math.min(3.0, w.spawnEverySec + 0.1)); // 降低出生頻率
 			else if (e.getKeyCode() == KeyEvent.VK_UP)
 				zoom *= 1.1; // 放大
 			else if (e.getKeyCode() == KeyEvent.VK_DOWN)
@@ -205,7 +862,7 @@ public class CloverleafSimIDM extends JFrame {
 		void toggleGIF() {
 			try {
 				if (!recorder.isRecording()) {
-					recorder.start(new File("traffic_" + timestamp() + ".gif"));
+					recorder.start(new File("traffic_" + timestamp() + ".gif"), getWidth(), getHeight());
 				} else {
 					recorder.finish();
 				}
@@ -217,10 +874,7 @@ public class CloverleafSimIDM extends JFrame {
 		/** 另存目前畫面為 PNG 檔（輸出到 frames 目錄）。 */
 		void savePNG() {
 			try {
-				BufferedImage frame = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
-				Graphics2D g2 = frame.createGraphics();
-				paintComponent(g2);
-				g2.dispose();
+				BufferedImage frame = renderOffscreen();
 				File dir = new File("frames");
 				if (!dir.exists())
 					dir.mkdirs();
@@ -239,1278 +893,4874 @@ public class CloverleafSimIDM extends JFrame {
 		}
 	}
 
-	// ================================ World ================================
-	static class World {
-		final int W, H;                   // 世界尺寸（畫布座標）
-		final double cx, cy;              // 世界中心，用於視圖定位
-		final Random rng = new Random(2); // 固定種子以利重現
-		final List<RoadPath> paths = new ArrayList<>(); // 所有路徑（直線與弧線）
-		final List<Car> cars = Collections.synchronizedList(new ArrayList<Car>()); // 車輛清單（同步）
-		final List<Lane> lanes = new ArrayList<>(); // 車道包裝（對應到 RoadPath）
-
-		// 車輛生成與上限
-		double spawnEverySec = 0.7; // 每隔幾秒生成一輛
-		double spawnAcc = 0.0;      // 積算器（達門檻則生成）
-		int maxCars = 260;          // 車輛上限
+	// ============================== ModelParams =========================
+	/**
+	 * ModelParams：World 的 IDM／MOBIL 參數與亂數種子。
+	 * 預設值即原本寫死在 World 的數值；參數掃描以 set() 依名稱覆寫後建立獨立的 World。
+	 */
+	static final class ModelParams {
+		static final String[] KEYS = { "v0", "T", "aMax", "b", "s0", "delta", "politeness", "aLaneChangeThreshold", "aSafe" };
+
+		// IDM（畫素尺度）
+		double v0 = 36.0 * 3;   // 期望速度（px/s）
+		double T = 1.2;         // 期望時距（秒）
+		double aMax = 1.2 * 40; // 最大加速度（px/s^2）
+		double b = 1.5 * 40;    // 舒適減速度（px/s^2）
+		double s0 = 8.0;        // 最小頭距（px）
+		double delta = 4.0;     // 加速度指數
+		// MOBIL
+		double politeness = 0.3;               // 禮讓係數
+		double aLaneChangeThreshold = 0.2 * 40; // 變道的最小淨效用門檻
+		double aSafe = -2.0 * 40;              // 目標車道後車允許的最大制動
+		long seed = 2;                         // 亂數種子
+
+		ModelParams copy() {
+			ModelParams p = new ModelParams();
+			for (String k : KEYS)
+				p.set(k, get(k));
+			p.seed = seed;
+			return p;
+		}
 
-		// IDM 參數（單位換算為畫素尺度，大致視覺合理即可）
-		final double v0 = 36.0 * 3;   // 期望速度（px/s）
-		final double T = 1.2;         // 期望時距（秒）
-		final double aMax = 1.2 * 40; // 最大加速度（px/s^2）
-		final double b = 1.5 * 40;    // 舒適減速度（px/s^2）
-		final double s0 = 8.0;        // 最小頭距（px）
-		final double delta = 4.0;     // 加速度指數
-		
-		// NEW: 橫向加速度上限（像素尺度），用於彎道最高安全車速 v_max = sqrt(a_lat_max * R)
-		final double aLatMax = 1.0 * 40; // 約等效 ~1g 的 0.1 量級（依需求可調）
-		final double rampEntryFactor = 0.90; // 進彎時再降低 10% 當 buffer
+		double get(String key) {
+			switch (key) {
+			case "v0": return v0;
+			case "T": return T;
+			case "aMax": return aMax;
+			case "b": return b;
+			case "s0": return s0;
+			case "delta": return delta;
+			case "politeness": return politeness;
+			case "aLaneChangeThreshold": return aLaneChangeThreshold;
+			case "aSafe": return aSafe;
+			default: throw new IllegalArgumentException("Unknown parameter: " + key);
+			}
+		}
 
-		// MOBIL 參數
-		final double politeness = 0.3;            // 禮讓係數（他人效用的權重）
-		final double aLaneChangeThreshold = 0.2 * 40; // 變道的最小淨效用門檻
-		final double aSafe = -2.0 * 40;           // 目標車道後車允許的最大制動（安全約束）
+		void set(String key, double v) {
+			switch (key) {
+			case "v0": v0 = v; break;
+			case "T": T = v; break;
+			case "aMax": aMax = v; break;
+			case "b": b = v; break;
+			case "s0": s0 = v; break;
+			case "delta": delta = v; break;
+			case "politeness": politeness = v; break;
+			case "aLaneChangeThreshold": aLaneChangeThreshold = v; break;
+			case "aSafe": aSafe = v; break;
+			default: throw new IllegalArgumentException("Unknown parameter: " + key);
+			}
+		}
+	}
 
-		// 幾何設置
-		final double laneWidth = 18;   // 車道寬
-		final double highwayHalf = 160;// 中央隔離帶至邊緣半寬（用於畫中央實體）
-		final double outerRadius = 200;// 外弧半徑（匝道）
-		final double innerRadius = 140;// 內弧半徑（可用於其他幾何）
+	// ============================= ParameterSweep =======================
+	/**
+	 * ParameterSweep：以參數網格（各參數值的笛卡兒積 × 種子數）同時執行多個獨立的無視窗 World，
+	 * 每個 World 在單一工作執行緒上循序推進（不再開自己的執行緒池，避免超額訂閱），
+	 * 暖機後量測吞吐量與延滯，最後依組合順序寫成一張 CSV 結果表。
+	 */
+	static final class ParameterSweep {
+		/** 一次執行的結果。*/
+		static final class Result {
+			final ModelParams params;
+			int carsEnd;
+			double mainlineFlow, rampFlow;    // veh/h（主線與匝道偵測器通過數加總）
+			double mergesPerHour, laneChangesPerHour, failedMergesPerHour;
+			double meanSpeed;                  // px/s（以行駛距離／車輛時間計）
+			double delayPerKpx;                // 每 1000 px 行駛距離的延滯秒數（相對 v0 自由流）
+			double wallSec;
+
+			Result(ModelParams params) {
+				this.params = params;
+			}
+		}
 
-		// 空間索引（QuadTree）
-		QuadTree qt;
-		final Rectangle2D worldBounds;
+		/**
+		 * 解析網格，例如 "v0=90,108,126;T=1.0,1.5;politeness=0,0.3"，
+		 * 回傳所有組合（每個組合再乘上 seeds 個種子 1..seeds）。
+		 */
+		static List<ModelParams> grid(String spec, int seeds) {
+			List<ModelParams> combos = new ArrayList<>();
+			combos.add(new ModelParams());
+			for (String axis : spec.split(";")) {
+				axis = axis.trim();
+				if (axis.isEmpty())
+					continue;
+				int eq = axis.indexOf('=');
+				if (eq <= 0)
+					throw new IllegalArgumentException("Sweep axis must be <param>=<v1>,<v2>,...: " + axis);
+				String key = axis.substring(0, eq).trim();
+				String[] values = axis.substring(eq + 1).split(",");
+				List<ModelParams> next = new ArrayList<>(combos.size() * values.length);
+				for (ModelParams base : combos) {
+					for (String v : values) {
+						ModelParams p = base.copy();
+						p.set(key, Double.parseDouble(v.trim()));
+						next.add(p);
+					}
+				}
+				combos = next;
+			}
+			List<ModelParams> runs = new ArrayList<>(combos.size() * seeds);
+			for (ModelParams p : combos) {
+				for (int s = 1; s <= seeds; s++) {
+					ModelParams q = p.copy();
+					q.seed = s;
+					runs.add(q);
+				}
+			}
+			return runs;
+		}
 
-		// 執行緒池（使用可用核心數-1，至少 2）
-		final ExecutorService pool = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors() - 1));
+		/** 執行單一組合：暖機 warmup 秒後量測 seconds 秒（BALLISTIC 時以 nextDt() 可變步長推進）；network 為 null 時用內建苜蓿葉。*/
+		static Result runOne(ModelParams p, RoadNetwork network, double warmup, double seconds, Integrator integrator, double dtMax) {
+			long t0 = System.nanoTime();
+			World w = network != null ? new World(network, p, false) : new World(1200, 900, p, false);
+			w.integrator = integrator;
+			w.dtMax = dtMax;
+			for (Lane l : w.lanes)
+				if (l.kind != LaneKind.CONNECTOR)
+					w.detectors.add(l.path.name + "#" + l.id, l, 0.5);
+			for (double t = 0; t < warmup - 1e-6;) {
+				double dt = Math.min(w.nextDt(), warmup - t);
+				w.update(dt, true);
+				t += dt;
+			}
+			w.detectors.reset();
+
+			double vehTime = 0, distance = 0;
+			long merges = 0, laneChanges = 0, failed = 0;
+			for (double t = 0; t < seconds - 1e-6;) {
+				double dt = Math.min(w.nextDt(), seconds - t);
+				w.update(dt, true);
+				t += dt;
+				merges += w.profiler.merges;
+				laneChanges += w.profiler.laneChanges;
+				failed += w.profiler.failedMerges;
+				for (Car c : w.cars) {
+					vehTime += dt;
+					distance += c.v * dt;
+				}
+			}
 
-		public World(int w, int h) {
-			this.W = w;
-			this.H = h;
-			this.cx = W / 2.0;
-			this.cy = H / 2.0;
-			worldBounds = new Rectangle2D.Double(0, 0, W, H);
-			buildGeometry(); // 建立道路幾何與車道
-			buildRouteGraph(); // 建立路徑圖（entry→ramp→exit→目標直線）
+			Result r = new Result(p);
+			double hours = seconds / 3600.0;
+			for (LoopDetector d : w.detectors.detectors) {
+				if (d.lane.kind == LaneKind.MAINLINE)
+					r.mainlineFlow += d.total / hours;
+				else
+					r.rampFlow += d.total / hours;
+			}
+			r.carsEnd = w.cars.size();
+			r.mergesPerHour = merges / hours;
+			r.laneChangesPerHour = laneChanges / hours;
+			r.failedMergesPerHour = failed / hours;
+			r.meanSpeed = vehTime > 0 ? distance / vehTime : 0;
+			r.delayPerKpx = distance > 0 ? (vehTime - distance / p.v0) / (distance / 1000.0) : 0;
+			r.wallSec = (System.nanoTime() - t0) / 1e9;
+			return r;
 		}
 
-		/** 重置世界：清空車輛與生成計數器。 */
-		void reset() {
-			cars.clear();
-			spawnAcc = 0;
+		/** 以 threads 條執行緒跑完所有組合並寫出結果表。*/
+		static void run(List<ModelParams> runs, RoadNetwork network, double warmup, double seconds, int threads, Integrator integrator, double dtMax,
+				File out)
+				throws IOException {
+			ExecutorService exec = Executors.newFixedThreadPool(threads);
+			List<Future<Result>> futures = new ArrayList<>(runs.size());
+			AtomicInteger done = new AtomicInteger();
+			long t0 = System.nanoTime();
+			for (ModelParams p : runs) {
+				futures.add(exec.submit(() -> {
+					Result r = runOne(p, network, warmup, seconds, integrator, dtMax);
+					System.out.printf(Locale.ROOT, "[%d/%d] seed=%d %.1fs%n", done.incrementAndGet(), runs.size(), p.seed, r.wallSec);
+					return r;
+				}));
+			}
+			exec.shutdown();
+			List<Result> results = new ArrayList<>(runs.size());
+			try {
+				for (Future<Result> f : futures)
+					results.add(f.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				exec.shutdownNow();
+				throw new IOException("Sweep interrupted", e);
+			} catch (ExecutionException e) {
+				exec.shutdownNow();
+				throw new IOException("Sweep run failed", e.getCause());
+			}
+			writeCsv(results, out);
+			System.out.printf(Locale.ROOT, "Sweep: %d runs on %d threads in %.1f s -> %s%n", runs.size(), threads,
+					(System.nanoTime() - t0) / 1e9, out.getAbsolutePath());
 		}
 
-		// ------------------ Route Graph ------------------
-		// 路徑圖：定義從某車道離開後，下一個允許接續的車道（entry→ramp→exit→目標直線）
-		Map<Lane, List<Lane>> routeGraph = new HashMap<>();
-
-		void buildRouteGraph() {
-			routeGraph.clear();
-			for (Lane l : lanes) routeGraph.put(l, new ArrayList<>());
+		static void writeCsv(List<Result> results, File file) throws IOException {
+			try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+				StringBuilder head = new StringBuilder("run");
+				for (String k : ModelParams.KEYS)
+					head.append(',').append(k);
+				head.append(",seed,cars_end,mainline_flow_veh_h,ramp_flow_veh_h,merges_per_h,lane_changes_per_h,failed_merges_per_h,mean_speed,delay_s_per_kpx,wall_s");
+				out.println(head);
+				for (int i = 0; i < results.size(); i++) {
+					Result r = results.get(i);
+					StringBuilder row = new StringBuilder().append(i);
+					for (String k : ModelParams.KEYS)
+						row.append(',').append(r.params.get(k));
+					row.append(',').append(r.params.seed).append(',').append(r.carsEnd);
+					row.append(String.format(Locale.ROOT, ",%.1f,%.1f,%.1f,%.1f,%.1f,%.2f,%.3f,%.2f", r.mainlineFlow, r.rampFlow, r.mergesPerHour,
+							r.laneChangesPerHour, r.failedMergesPerHour, r.meanSpeed, r.delayPerKpx, r.wallSec));
+					out.println(row);
+				}
+			}
+		}
+	}
 
-			// EB -> NB
-			connect("EW_East_C_off", "Connect_EB_R1");
-			connect("Connect_EB_R1", "Ramp_EB_to_NB");
-			connect("Ramp_EB_to_NB", "Connect_R1_NB");
-			connect("Connect_R1_NB", "NS_North_C_off");
+	// =========================== PartitionedSim =========================
+	/**
+	 * PartitionedSim：把大型路網沿走廊接縫（Lane.wrapTo 跨到另一個連通塊之處）切成數個區，
+	 * 每區是一個獨立的 World（循序、不用自己的執行緒池），由固定的工作執行緒推進。區與區只在兩處互動：
+	 *  - 車輛越過接縫進入他區車道時，整台 Car 經由對方的無鎖佇列（ConcurrentLinkedQueue）移交；
+	 *  - 每步結束時各區公布接縫兩側 GHOST 範圍內的車（影子），鄰區下一步把影子放進 QuadTree，
+	 *    讓 IDM 看得到接縫另一側的前車／後車（影子只讀，不推進）。
+	 * 每步兩道屏障：收車、讀影子 → 屏障 → 推進、送出越界車、公布影子 → 屏障；除此之外沒有全域同步。
+	 * 各區的亂數種子與車輛編號互不重疊，收到的車依編號排序後加入，結果與執行緒數及排程無關。
+	 */
+	static final class PartitionedSim {
+		static final double GHOST = 2 * World.NEIGHBOR_RANGE; // 影子區長度（px）
+
+		/** 一個區：擁有的 World、收車佇列與本步公布的影子。*/
+		static final class Region {
+			final int index;
+			final World world;
+			final ConcurrentLinkedQueue<Car> inbox = new ConcurrentLinkedQueue<>();
+			final List<Car> incoming = new ArrayList<>();
+			final List<Car> departed = new ArrayList<>(); // 本步剛送出、仍在接縫影子區內的車（副本）
+			int[] neighbors = new int[0]; // 需要讀取其影子的鄰區
+			int ghostCount;
+			int[] ghostId = new int[16], ghostLane = new int[16];
+			double[] ghostS = new double[16], ghostV = new double[16];
+			long handedOff; // 送出的越界車數
+			long carSteps;  // 累計推進的車·步
+
+			Region(int index, World world) {
+				this.index = index;
+				this.world = world;
+			}
 
-			// NB -> WB
-			connect("NS_North_C_off", "Connect_NB_R2");
-			connect("Connect_NB_R2", "Ramp_NB_to_WB");
-			connect("Ramp_NB_to_WB", "Connect_R2_WB");
-			connect("Connect_R2_WB", "EW_West_C_off");
+			void addGhost(Car c) {
+				if (ghostCount == ghostId.length) {
+					int cap = ghostCount * 2;
+					ghostId = Arrays.copyOf(ghostId, cap);
+					ghostLane = Arrays.copyOf(ghostLane, cap);
+					ghostS = Arrays.copyOf(ghostS, cap);
+					ghostV = Arrays.copyOf(ghostV, cap);
+				}
+				ghostId[ghostCount] = c.id;
+				ghostLane[ghostCount] = c.lane.id;
+				ghostS[ghostCount] = c.s;
+				ghostV[ghostCount] = c.v;
+				ghostCount++;
+			}
+		}
 
-			// WB -> SB
-			connect("EW_West_C_off", "Connect_WB_R3");
-			connect("Connect_WB_R3", "Ramp_WB_to_SB");
-			connect("Ramp_WB_to_SB", "Connect_R3_SB");
-			connect("Connect_R3_SB", "NS_South_C_off");
+		final Region[] regions;
+		final int[] owner;         // 全域車道 id → 所屬區
+		final boolean[] seamEntry; // 是否有他區車道接續進這條車道
+		final int threads;
+
+		/** 以 parts 個區（不超過連通塊數）、threads 條工作執行緒建立分區模擬；各區種子為 p.seed + 區號。*/
+		PartitionedSim(RoadNetwork net, ModelParams p, int parts, int threads) {
+			this.owner = partition(net, parts);
+			int count = 0;
+			for (int o : owner)
+				count = Math.max(count, o + 1);
+			this.threads = Math.max(1, Math.min(threads, count));
+
+			int totalSpawn = 0;
+			int[] regionSpawn = new int[count];
+			for (int i = 0; i < net.lanes.size(); i++)
+				if (net.lanes.get(i).spawn) {
+					totalSpawn++;
+					regionSpawn[owner[i]]++;
+				}
+			seamEntry = new boolean[owner.length];
+			for (int i = 0; i < owner.length; i++) {
+				int w = net.lanes.get(i).wrap;
+				if (w >= 0 && owner[w] != owner[i])
+					seamEntry[w] = true;
+			}
 
-			// SB -> EB
-			connect("NS_South_C_off", "Connect_SB_R4");
-			connect("Connect_SB_R4", "Ramp_SB_to_EB");
-			connect("Ramp_SB_to_EB", "Connect_R4_EB");
-			connect("Connect_R4_EB", "EW_East_C_off");
-			
-			// ==== 外側右轉匝道（Direct / Slip）====
-			// EB -> SB（Q4）
-			connect("EW_East_C_off", "Connect_EB_SR1");
-			connect("Connect_EB_SR1", "Slip_EB_to_SB");
-			connect("Slip_EB_to_SB", "Connect_SR1_SB");
-			connect("Connect_SR1_SB", "NS_South_C_off");
-	
-			// NB -> EB（Q1）
-			connect("NS_North_C_off", "Connect_NB_SR2");
-			connect("Connect_NB_SR2", "Slip_NB_to_EB");
-			connect("Slip_NB_to_EB", "Connect_SR2_EB");
-			connect("Connect_SR2_EB", "EW_East_C_off");
-	
-			// WB -> NB（Q2）
-			connect("EW_West_C_off", "Connect_WB_SR3");
-			connect("Connect_WB_SR3", "Slip_WB_to_NB");
-			connect("Slip_WB_to_NB", "Connect_SR3_NB");
-			connect("Connect_SR3_NB", "NS_North_C_off");
-	
-			// SB -> WB（Q3）
-			connect("NS_South_C_off", "Connect_SB_SR4");
-			connect("Connect_SB_SR4", "Slip_SB_to_WB");
-			connect("Slip_SB_to_WB", "Connect_SR4_WB");
-			connect("Connect_SR4_WB", "EW_West_C_off");
+			regions = new Region[count];
+			for (int r = 0; r < count; r++) {
+				ModelParams q = p.copy();
+				q.seed = p.seed + r;
+				World w = new World(net, q, false);
+				w.streamSeed = p.seed; // 車輛亂數流只看整體種子與車號，與分區數無關
+				w.ownedLanes = new boolean[owner.length];
+				for (int i = 0; i < owner.length; i++)
+					w.ownedLanes[i] = (owner[i] == r);
+				final int region = r;
+				w.spawnLanes.removeIf(l -> owner[l.id] != region);
+				// 車輛上限與生成率依本區的生成車道占比分配，總量與單一 World 相同
+				w.maxCars = (int) Math.round((double) net.maxCars * regionSpawn[r] / Math.max(1, totalSpawn));
+				w.spawnEverySec = regionSpawn[r] > 0 ? net.spawnEverySec * totalSpawn / regionSpawn[r] : Double.POSITIVE_INFINITY;
+				if (w.demand != null)
+					w.setDemand(net.demand); // 起訖需求：只保留起點在本區的流量，生成率跟著改
+				w.nextCarId = r;
+				w.carIdStride = count;
+				w.worldBounds = ownedBounds(w, GHOST + World.NEIGHBOR_RANGE);
+				regions[r] = new Region(r, w);
+			}
+			for (Region reg : regions) {
+				BitSet nb = new BitSet(count);
+				for (int i = 0; i < owner.length; i++) {
+					int w = net.lanes.get(i).wrap;
+					if (w < 0 || owner[w] == owner[i])
+						continue;
+					if (owner[i] == reg.index)
+						nb.set(owner[w]);
+					if (owner[w] == reg.index)
+						nb.set(owner[i]);
+				}
+				reg.neighbors = nb.stream().toArray();
+			}
 		}
 
-		/** 幫助函式：將名稱前綴相符的車道連成 from → to（以 Lane 為 key/value）。 */
-		void connect(String fromName, String toName) {
-			Lane from = findLaneByName(fromName);
-			Lane to = findLaneByName(toName);
-			if (from != null && to != null) {
-				routeGraph.get(from).add(to);
+		/**
+		 * 依不含 wrap 的車道連通塊（走廊中一個交流道即一塊）由西到東排序，
+		 * 再切成至多 parts 段車道數相近的連續區；回傳每條車道所屬的區。
+		 */
+		static int[] partition(RoadNetwork net, int parts) {
+			int n = net.lanes.size();
+			int[] parent = new int[n];
+			for (int i = 0; i < n; i++)
+				parent[i] = i;
+			for (int i = 0; i < n; i++) {
+				RoadNetwork.LaneSpec l = net.lanes.get(i);
+				for (int j : l.next)
+					union(parent, i, j);
+				for (int j : new int[] { l.left, l.right, l.slip, l.loop })
+					if (j >= 0)
+						union(parent, i, j);
 			}
+			double[] sumX = new double[n];
+			int[] size = new int[n];
+			for (int i = 0; i < n; i++) {
+				RoadPath p = net.paths.get(net.lanes.get(i).path);
+				int root = find(parent, i);
+				sumX[root] += p.pointAt(0.5).getX();
+				size[root]++;
+			}
+			List<Integer> roots = new ArrayList<>();
+			for (int i = 0; i < n; i++)
+				if (size[i] > 0)
+					roots.add(i);
+			roots.sort((a, b) -> {
+				int c = Double.compare(sumX[a] / size[a], sumX[b] / size[b]);
+				return c != 0 ? c : Integer.compare(a, b);
+			});
+			int k = Math.max(1, Math.min(parts, roots.size()));
+			int[] regionOfRoot = new int[n];
+			long before = 0;
+			for (int root : roots) {
+				regionOfRoot[root] = (int) Math.min(k - 1, before * k / n);
+				before += size[root];
+			}
+			int[] owner = new int[n];
+			for (int i = 0; i < n; i++)
+				owner[i] = regionOfRoot[find(parent, i)];
+			return owner;
 		}
 
-		/** 以名稱前綴尋找第一個符合的 Lane。 */
-		Lane findLaneByName(String namePrefix) {
-			for (Lane l : lanes) {
-				if (l.path.name.startsWith(namePrefix))
-					return l;
+		private static int find(int[] parent, int i) {
+			while (parent[i] != i) {
+				parent[i] = parent[parent[i]];
+				i = parent[i];
 			}
-			return null;
+			return i;
 		}
 
-		/**
-		 * 依決策與安全距離將車輛切換路段：
-		 * - 若車輛在直線且 takeRamp=true，於末端附近嘗試切到 entry（通過 canMergeInto）
-		 * - 若車輛已在 entry / ramp / exit，於段尾嘗試接到下一段（通過 canMergeInto）
-		 */
-		void followRoute(Car c) {
-			
-			// ★ 路段切換冷卻中就跳過，避免連續兩次
-	    if (c.routeCooldown > 0) return;
-			
-			// A) 已在 entry/ramp/exit/connector：用 routeGraph 串接
-			List<Lane> chain = routeGraph.get(c.lane);
-			
-			if (chain != null && !chain.isEmpty()) {
-				if (c.s >= 0.7) {
-					
-					if ((c.lane.path.name.startsWith("EW") || c.lane.path.name.startsWith("NS")) && c.s > 0.73) {
-						return;
-					}
-					
-					Lane nxt = chain.get(0);
+		private static void union(int[] parent, int a, int b) {
+			int ra = find(parent, a), rb = find(parent, b);
+			if (ra != rb)
+				parent[Math.max(ra, rb)] = Math.min(ra, rb);
+		}
 
-					// 先用幾何交點估個起點，再在一小段視窗內搜尋可安全插入的 s
-					Double sCand = findSafeAroundSByProjection(c, nxt, /*radius=*/0.06, /*samples=*/11);
-					
-					// 判斷是否「卡尾」
-	        boolean atTail = (c.s >= 0.97);
-	        if (atTail) {
-	            c.endHold = Math.min(c.endHold + 1.0/60.0, 5.0); // 以 60FPS 累積，最多 5 秒
-	            // 不要卡在 0.99~1.00，退回到 0.965，避免被 wrapOrRecycle 硬夾住
-	            c.s = 0.965;
-	            // 給一個「蠕行」速度，避免完全靜止
-	            c.v = Math.max(c.v, 6.0);
-	        } else {
-	            // 離段尾時重置等待
-	            c.endHold = Math.max(0.0, c.endHold - 2.0/60.0);
-	        }
+		/** 本區車道的外框（放寬 pad，讓影子與鄰車查詢仍落在 QuadTree 範圍內）。*/
+		static Rectangle2D ownedBounds(World w, double pad) {
+			double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY, x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+			for (Lane l : w.lanes) {
+				if (!w.ownedLanes[l.id])
+					continue;
+				for (int k = 0; k <= 8; k++) {
+					Point2D q = l.path.pointAt(k / 8.0);
+					x0 = Math.min(x0, q.getX());
+					y0 = Math.min(y0, q.getY());
+					x1 = Math.max(x1, q.getX());
+					y1 = Math.max(y1, q.getY());
+				}
+			}
+			if (x0 > x1)
+				return new Rectangle2D.Double(0, 0, w.W, w.H);
+			return new Rectangle2D.Double(x0 - pad, y0 - pad, x1 - x0 + 2 * pad, y1 - y0 + 2 * pad);
+		}
 
-	        double relax = c.endHold / 5.0 * 0.30; // 0~0.30 的放寬
-	        boolean ok = (sCand != null) && gapOK(c, nxt, sCand, relax);
-					
-					if (ok) {
-						// ★ 先記住舊車道
-				    Lane prevLane = c.lane;
-						
-						c.animFromPoint = c.position();
-            c.animFromLane  = null;
-            c.animT         = 0.0;
-						
-            // 先決定插入 s：優先用 from→to 的幾何交點；若找不到就用前面求得的 sCand
-            Double sIntersect = mergeSAtIntersection(prevLane.path, nxt.path);
-            double sNew = (sIntersect != null ? sIntersect : sCand);
+		/** 以固定步長 dt 推進 seconds 秒。*/
+		void run(double seconds, double dt) throws InterruptedException {
+			run(steps(seconds, dt), dt);
+		}
 
-            // 對所有段一律用 sNew（不用再特判 _off，也不用 1 - sCand）
-            c.lane = nxt;
-            c.s = Math.max(0.0, Math.min(1.0, sNew));
-						
-						// ★ 啟動路段切換冷卻，避免下一幀再次觸發
-				    c.routeCooldown = 0.60;  // 建議 0.5~0.8 秒，依路段長度可調
-				    c.lastRouteTo = c.lane;  // 記下目標，避免重覆
-				    
-						// ★ 若是從 Ramp_* 移到非 Ramp（例如 Connect_ 或主線），啟動出匝道「鎖＋降速」
-						if (prevLane.path.name.startsWith("Ramp_") && !c.lane.path.name.startsWith("Ramp_")) {
-							c.rampLockout = Math.max(c.rampLockout, 4.0); // 4 秒內禁上任何匝道（可調 3~6）
-							// 以最後彎道的動態上限當作出匝道初始上限再打折
-							double rampVmax = speedLimit(prevLane);
-							c.postExitVmax = Math.max(12.0, rampVmax * 0.85); // 初始上限：彎道上限的 85%
-							c.postExitCooldown = Math.max(c.postExitCooldown, 2.5); // 緩升 2.5 秒（和 speedLimit(Car) 對應）
-							// 若當前速度超過初始上限，直接夾住
-							c.v = Math.min(c.v, c.postExitVmax);
-						} else {
-	            // 還是沒成功，就保持蠕行但別再推到 s=1
-	            c.s = Math.min(c.s, 0.97);
-	            c.v = Math.max(6.0, c.v * 0.8);
+		/** 模擬 seconds 秒需要的固定步數。*/
+		static int steps(double seconds, double dt) {
+			return (int) Math.ceil(seconds / dt - 1e-6);
+		}
+
+		/**
+		 * 以固定步長 dt 推進 steps 步。任一工作執行緒失敗時強制結束 Phaser，
+		 * 其他執行緒不論已在等待或稍後才到同步點都會立即返回，run 以 IllegalStateException 回報原始錯誤。
+		 */
+		void run(int steps, double dt) throws InterruptedException {
+			Phaser phaser = new Phaser(threads);
+			AtomicReference<Throwable> failure = new AtomicReference<>();
+			Thread[] workers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				final int first = t;
+				workers[t] = new Thread(() -> {
+					try {
+						for (int k = 0; k < steps; k++) {
+							for (int r = first; r < regions.length; r += threads) {
+								absorb(regions[r]);
+								collectGhosts(regions[r]);
+							}
+							if (phaser.arriveAndAwaitAdvance() < 0)
+								return; // 另一條工作執行緒失敗，其錯誤已記錄在 failure
+							for (int r = first; r < regions.length; r += threads) {
+								Region reg = regions[r];
+								reg.world.update(dt, true);
+								reg.carSteps += reg.world.cars.size();
+								emit(reg);
+							}
+							if (phaser.arriveAndAwaitAdvance() < 0)
+								return;
 						}
-				    
-				    return;
-					
-					} else {
-						// 停在尾端、保留微速等窗口
-						c.s = 0.992;
-						c.v = Math.max(2.0, c.v * 0.5);
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+						phaser.forceTermination(); // 永久結束：之後的同步點都不再等待
 					}
-				}
+				}, "region-worker-" + t);
+				workers[t].start();
+			}
+			try {
+				for (Thread w : workers)
+					w.join();
+			} catch (InterruptedException e) {
+				phaser.forceTermination();
+				for (Thread w : workers)
+					w.interrupt();
+				throw e;
+			}
+			if (failure.get() != null)
+				throw new IllegalStateException("Region worker failed", failure.get());
+			for (Region reg : regions)
+				absorb(reg); // 最後一步送出的車也歸入目的區
+		}
+
+		/** 收下他區移交的車：依編號排序後換成本區的 Lane 物件再加入。*/
+		void absorb(Region reg) {
+			for (Car c; (c = reg.inbox.poll()) != null;)
+				reg.incoming.add(c);
+			if (reg.incoming.isEmpty())
 				return;
+			reg.incoming.sort((a, b) -> Integer.compare(a.id, b.id));
+			List<Lane> lanes = reg.world.lanes;
+			for (Car c : reg.incoming) {
+				c.lane = lanes.get(c.lane.id);
+				if (c.animFromLane != null)
+					c.animFromLane = lanes.get(c.animFromLane.id);
+				if (c.lastRouteTo != null)
+					c.lastRouteTo = lanes.get(c.lastRouteTo.id);
+				c.nextDecisionS = Double.NEGATIVE_INFINITY;
+				reg.world.cars.add(c);
 			}
+			reg.incoming.clear();
+		}
 
-			// B) 還在直線（決定是否上匝道）
-			if (!c.lane.path.isStraight)
-			  return;
-			
-			// ★ 出匝道後的鎖：鎖著就完全不考慮上匝道
-			if (c.rampLockout > 0.0)
-			    return;
+		/**
+		 * 依鄰區上一步公布的影子重建本區的影子車。本區上一步剛送出的車要到對方下一步才會出現在對方的影子裡，
+		 * 這一步先用送出時留下的副本補上，後車才不會有一步看不到前車。
+		 */
+		void collectGhosts(Region reg) {
+			List<Car> ghosts = reg.world.ghosts;
+			ghosts.clear();
+			ghosts.addAll(reg.departed);
+			reg.departed.clear();
+			for (int n : reg.neighbors) {
+				Region o = regions[n];
+				for (int i = 0; i < o.ghostCount; i++) {
+					if (reg.world.ownedLanes[o.ghostLane[i]])
+						continue; // 本區車道上的車由本區自己推進
+					Car g = new Car(reg.world.lanes.get(o.ghostLane[i]));
+					g.id = o.ghostId[i];
+					g.s = o.ghostS[i];
+					g.v = o.ghostV[i];
+					// 環狀走廊首尾相接處的影子在幾何上遠在另一端，鄰車搜尋本來就找不到；
+					// 落在 QuadTree 範圍外的點只能留在根節點，累積多了會反覆觸發分裂，所以不放進來
+					if (reg.world.worldBounds.contains(g.position()))
+						ghosts.add(g);
+				}
+			}
+		}
 
-			// 只有在允許走匝道、且大致靠近交點區域時才評估
-			if (c.takeRamp) {
-			  Lane entry = null;
-			  String n = c.lane.path.name;
-			  
-			  if (c.s < 0.2) {
-			  	if (n.startsWith("EW_East_C"))      entry = findLaneByName("Connect_EB_SR1");
-				  else if (n.startsWith("NS_North_C")) entry = findLaneByName("Connect_NB_SR2");
-				  else if (n.startsWith("EW_West_C"))  entry = findLaneByName("Connect_WB_SR3");
-				  else if (n.startsWith("NS_South_C")) entry = findLaneByName("Connect_SB_SR4");
-			  }
-			  
-			  if (c.s >= 0.65) {
-				  if (n.startsWith("EW_East_C"))      entry = findLaneByName("Connect_EB_R1");
-				  else if (n.startsWith("NS_North_C")) entry = findLaneByName("Connect_NB_R2");
-				  else if (n.startsWith("EW_West_C"))  entry = findLaneByName("Connect_WB_R3");
-				  else if (n.startsWith("NS_South_C")) entry = findLaneByName("Connect_SB_R4");
-			  }
+		/** 推進後：把越界到他區車道的車送進對方佇列，並公布接縫兩側 GHOST 內的車作為影子。*/
+		void emit(Region reg) {
+			reg.world.cars.removeIf(c -> {
+				int o = owner[c.lane.id];
+				if (o == reg.index)
+					return false;
+				if (seamEntry[c.lane.id] && c.s * c.lane.path.length < GHOST) {
+					Car g = new Car(reg.world.lanes.get(c.lane.id)); // 送出前留副本；原物件之後歸對方所有
+					g.id = c.id;
+					g.s = c.s;
+					g.v = c.v;
+					reg.departed.add(g);
+				}
+				regions[o].inbox.add(c);
+				reg.handedOff++;
+				return true;
+			});
+			reg.ghostCount = 0;
+			for (Car c : reg.world.cars) {
+				Lane l = c.lane;
+				if ((seamEntry[l.id] && c.s * l.path.length < GHOST)
+						|| (l.wrapTo != null && owner[l.wrapTo.id] != reg.index && (1 - c.s) * l.path.length < GHOST))
+					reg.addGhost(c);
+			}
+		}
 
-			  if (entry != null) {
-			    // ---- 新增：如果本圈已經越過該入口，直接不再嘗試 ----
-			    // 用「把匝道入口起點的一小段（s≈0.02）投影到主線」當作主線上的入口參考位置
-			    double sEntryOnMain = projectPointToPathS(c.lane.path, entry.path.pointAt(0.02));
-			    boolean sameLapNoWrap = (c.s >= c.sPrev); // 沒 wrap，表示同一圈正在前進
-			    if (sameLapNoWrap && c.s > sEntryOnMain + 0.01) {
-			      c.passedEntryThisLap = true; // 記錄已經通過入口
-			    }
-			    if (c.passedEntryThisLap) {
-			      return; // 本圈已過入口，不再併入
-			    }
+		int carCount() {
+			int n = 0;
+			for (Region reg : regions)
+				n += reg.world.cars.size();
+			return n;
+		}
 
-			    // ---- 仍可嘗試：用投影視窗找安全插入點，且要求「入口在車前方」----
-			    Double sCand = findSafeAroundSByProjection(c, entry, 0.06, 11);
-			    
-			    if (sCand != null) {
-			      // 入口是否在前方（而不是在車後方）：用主線 heading 與「車->入口點」的內積作判斷
-			      Point2D now = c.position();
-			      Point2D pin = entry.path.pointAt(sCand);
-			      double hx = Math.cos(c.heading()), hy = Math.sin(c.heading());
-			      double vx = pin.getX() - now.getX(), vy = pin.getY() - now.getY();
-			      boolean ahead = (hx * vx + hy * vy) > 0;
+		/** 依區號順序合併各區的狀態雜湊（與工作執行緒數無關）。*/
+		long stateChecksum() {
+			long h = regions.length;
+			for (Region reg : regions)
+				h = SimRandom.mix64(h ^ reg.world.stateChecksum());
+			return h;
+		}
+	}
 
-			      if (ahead && gapOK(c, entry, sCand)) {
-			        Lane from = c.lane;
-			        c.lane = entry;
-			        c.s = sCand;
+	// ============================= RoadNetwork ==========================
+	/**
+	 * RoadNetwork：可匯入／匯出的路網描述（JSON 文字檔）。
+	 * 路徑、車道、左右相鄰、路徑圖的下一段、匝道入口與走廊接續全部以整數 id 互相參照，
+	 * World.loadNetwork 依 id 直接接線，不做任何名稱查詢；名稱只用於顯示、偵測器與檢查點簽章。
+	 * <pre>
+	 * { "format": "cloverleaf-network", "version": 1, "width": 1200, "height": 900, "maxCars": 260, "spawnEverySec": 0.7,
+	 *   "medians": [[600.0, 450.0]],
+	 *   "paths": [{ "id": 0, "name": "EW_East_C_off", "type": "line", "p": [x0, y0, x1, y1] }, ...],
+	 *   "lanes": [{ "id": 0, "path": 0, "kind": "MAINLINE", "left": -1, "right": 1, "next": [8, 20],
+	 *               "slip": 20, "loop": 8, "wrap": -1, "spawn": true }, ...] }
+	 * </pre>
+	 * 幾何參數：line = x0,y0,x1,y1；arc = cx,cy,r,a0,a1（弧度）；clothoid = x0,y0,h0,k0,k1,len；bezier = 四個點共 8 個座標。
+	 * 緩和曲線與 Bézier 的平行線（OffsetSeg）寫成基準段的 type／p 再加上 "offset": d。
+	 * 數值以 Double.toString 寫出，讀回後與原值逐位元相同，因此匯出再匯入的內建路網會跑出完全相同的模擬。
+	 */
+	static final class RoadNetwork {
+		static final String FORMAT = "cloverleaf-network";
+		static final int VERSION = 1;
+
+		int width, height;                              // 世界尺寸
+		int maxCars = 260;                              // 車輛上限
+		double spawnEverySec = 0.7;                     // 生成間隔（秒）
+		final List<RoadPath> paths = new ArrayList<>(); // 索引即路徑 id
+		final List<LaneSpec> lanes = new ArrayList<>(); // 索引即車道 id
+		final List<Point2D> medians = new ArrayList<>(); // 中央分隔裝飾（每個交流道一個）
+		final List<OdFlow> demand = new ArrayList<>();   // 起訖需求（空白表示沿用隨機生成、在主線上無限繞行）
+
+		/** 一條車道的描述；所有參照都是 paths／lanes 的索引，-1 表示沒有。*/
+		static final class LaneSpec {
+			int path;
+			LaneKind kind = LaneKind.MAINLINE;
+			int left = -1, right = -1;   // 左右相鄰（可變道）
+			int slip = -1, loop = -1;    // 主線：外側直通匝道／環道入口
+			int wrap = -1;               // 主線回繞時的接續車道
+			int[] next = new int[0];     // 路徑圖的下一段（第一個為段尾併入目標）
+			boolean spawn;               // 是否可生成車輛
+		}
 
-			        // 一旦成功上匝道，避免立刻又嘗試其他跨段
-			        c.routeCooldown = 0.60;
+		/** 一筆起訖流量：from 所在車行道生成、開到 to 所在主線段尾離開（車道 id，同車行道的任一車道皆可）。*/
+		static final class OdFlow {
+			final int from, to;
+			final double perHour; // 每小時車數
 
-			        if (!entry.path.isStraight) {
-			          c.v = Math.min(Math.max(c.v, 8), speedLimit(entry) * rampEntryFactor);
-			          c.animFromLane = null;
-			          c.animFromPoint = now; // 視覺平滑：世界座標補間
-			          c.animT = 0.0;
-			        } else {
-			          if (c.v < 8) c.v = 8;
-			          if (from.path.isStraight) {
-			            c.animFromLane = from; c.animFromPoint = null; c.animT = 0.0;
-			          } else {
-			            c.animFromLane = null; c.animFromPoint = now;  c.animT = 0.0;
-			          }
-			        }
-			      } else {
-			        c.s = 0.992;
-			        c.v = Math.max(2.0, c.v * 0.5);
-			      }
-			    } else {
-			      c.s = 0.992;
-			      c.v = Math.max(2.0, c.v * 0.5);
-			    }
-			  }
+			OdFlow(int from, int to, double perHour) {
+				this.from = from;
+				this.to = to;
+				this.perHour = perHour;
 			}
+		}
 
+		/** 由已建好的世界（例如內建苜蓿葉）取出路網描述。*/
+		static RoadNetwork of(World w) {
+			RoadNetwork net = new RoadNetwork();
+			net.width = w.W;
+			net.height = w.H;
+			net.maxCars = w.maxCars;
+			net.spawnEverySec = w.spawnEverySec;
+			net.paths.addAll(w.paths);
+			net.medians.addAll(w.medians);
+			Map<RoadPath, Integer> pathId = new HashMap<>();
+			for (int i = 0; i < w.paths.size(); i++)
+				pathId.put(w.paths.get(i), i);
+			for (Lane l : w.lanes) {
+				LaneSpec ls = new LaneSpec();
+				ls.path = pathId.get(l.path);
+				ls.kind = l.kind;
+				ls.left = idOf(l.adjLeft);
+				ls.right = idOf(l.adjRight);
+				ls.slip = idOf(l.slipEntry);
+				ls.loop = idOf(l.loopEntry);
+				ls.wrap = idOf(l.wrapTo);
+				ls.next = new int[l.next.length];
+				for (int k = 0; k < l.next.length; k++)
+					ls.next[k] = l.next[k].id;
+				ls.spawn = l.spawn;
+				net.lanes.add(ls);
+			}
+			if (w.demand != null)
+				net.demand.addAll(w.demand.flows);
+			return net;
 		}
-		
-		// NEW: 依車道性質回傳速度上限；直線回傳 v0 的微幅放寬，弧線以 sqrt(a_lat_max * R)
-		double speedLimit(Lane lane) {
-			if (lane == null || lane.path == null)
-				return v0 * 0.8;
 
-			// 彎道：以向心加速度上限推得最高速
-			if (!lane.path.isStraight && lane.path.radius != null) {
-				double R = Math.max(1.0, lane.path.radius);
-				double vmax = Math.sqrt(aLatMax * R);
-				return Math.max(10.0, Math.min(v0, vmax)); // 不高於直線巡航，不低於基本值
+		/**
+		 * 以總流量 perHour 取代起訖需求：平均分給每個「可生成的車行道 × 到得了的可生成車行道」組合
+		 * （起訖同一條主線即直行穿越；交流道之間的連接段不當起訖點）。
+		 */
+		void uniformDemand(double perHour) {
+			if (!(perHour > 0) || Double.isInfinite(perHour))
+				throw new IllegalArgumentException("Demand must be a positive number of vehicles per hour: " + perHour);
+			demand.clear();
+			World w = new World(this, new ModelParams(), false);
+			RouteTable rt = new RouteTable(w.lanes);
+			List<int[]> pairs = new ArrayList<>();
+			BitSet zone = new BitSet();
+			for (Lane l : w.spawnLanes)
+				zone.set(rt.nodeOf[l.id]);
+			BitSet seen = new BitSet();
+			for (Lane l : w.spawnLanes) {
+				int node = rt.nodeOf[l.id];
+				if (seen.get(node))
+					continue;
+				seen.set(node);
+				for (int d = 0; d < rt.sinks.length; d++)
+					if (zone.get(rt.sinks[d]) && rt.reachable(node, d))
+						pairs.add(new int[] { l.id, rt.laneOf[rt.sinks[d]] });
 			}
+			for (int[] od : pairs)
+				demand.add(new OdFlow(od[0], od[1], perHour / pairs.size()));
+		}
 
-			// 直線：若「下一段」是彎道，則在直線上就預先採用彎道上限（含進彎 buffer）
-			List<Lane> nx = routeGraph.get(lane);
-			if (nx != null && !nx.isEmpty()) {
-				Lane first = nx.get(0);
-				if (first != null && first.path != null && !first.path.isStraight && first.path.radius != null) {
-					double Rnext = Math.max(1.0, first.path.radius);
-					double preRamp = Math.sqrt(aLatMax * Rnext) * rampEntryFactor; // 進彎預降速
-					return Math.max(10.0, Math.min(v0, preRamp));
+		private static int idOf(Lane l) {
+			return l != null ? l.id : -1;
+		}
+
+		static RoadNetwork corridor(int n) {
+			return corridor(n, 0);
+		}
+
+		/**
+		 * 產生 n 個交流道串成的東西向走廊：把內建苜蓿葉沿 x 方向每隔「寬 − 2·EDGE + spacing」複製一份，
+		 * 並以 wrap 把每條東西向車道接到下一個交流道的同一車道（東向往右、西向往左，走廊兩端接回另一端）；
+		 * 南北向主線仍在各自的交流道內循環。spacing > 0 時相鄰交流道之間多一段長 spacing 的直線主線
+		 * （路徑名稱加 _L<k>，不生成車輛），wrap 改為經過這段連接。
+		 * 車輛上限與生成率依交流道數放大，維持與單一交流道相近的密度。
+		 */
+		static RoadNetwork corridor(int n, double spacing) {
+			if (n < 1)
+				throw new IllegalArgumentException("Corridor needs at least one interchange: " + n);
+			if (!(spacing >= 0) || Double.isInfinite(spacing))
+				throw new IllegalArgumentException("Interchange spacing must be a non-negative length: " + spacing);
+			RoadNetwork base = of(new World(1200, 900, new ModelParams(), false));
+			double pitch = base.width - 2 * World.EDGE + spacing;
+			RoadNetwork net = new RoadNetwork();
+			net.width = (int) Math.ceil(base.width + (n - 1) * pitch);
+			net.height = base.height;
+			net.maxCars = base.maxCars * n;
+			net.spawnEverySec = base.spawnEverySec / n;
+			int np = base.paths.size(), nl = base.lanes.size();
+			for (int k = 0; k < n; k++) {
+				double dx = k * pitch;
+				for (RoadPath p : base.paths)
+					net.paths.add(new RoadPath(p.geom.translate(dx, 0), p.name + "_I" + k));
+				for (Point2D m : base.medians)
+					net.medians.add(new Point2D.Double(m.getX() + dx, m.getY()));
+				for (LaneSpec b : base.lanes) {
+					LaneSpec ls = new LaneSpec();
+					ls.path = b.path + k * np;
+					ls.kind = b.kind;
+					ls.left = shift(b.left, k * nl);
+					ls.right = shift(b.right, k * nl);
+					ls.slip = shift(b.slip, k * nl);
+					ls.loop = shift(b.loop, k * nl);
+					ls.next = new int[b.next.length];
+					for (int j = 0; j < b.next.length; j++)
+						ls.next[j] = b.next[j] + k * nl;
+					ls.spawn = b.spawn;
+					net.lanes.add(ls);
 				}
 			}
+			if (n > 1) {
+				for (int i = 0; i < nl; i++) {
+					LaneSpec b = base.lanes.get(i);
+					Segment g = base.paths.get(b.path).geom;
+					if (b.kind != LaneKind.MAINLINE || !(g instanceof LineSeg))
+						continue;
+					LineSeg seg = (LineSeg) g;
+					if (Math.abs(seg.y1 - seg.y0) > 1e-6)
+						continue; // 只有東西向主線跨交流道接續
+					int dir = seg.x1 > seg.x0 ? 1 : -1;
+					for (int k = 0; k < n; k++)
+						net.lanes.get(k * nl + i).wrap = Math.floorMod(k + dir, n) * nl + i;
+				}
+			}
+			if (n > 1 && spacing > 0)
+				addLinks(net, base, n, pitch);
+			return net;
+		}
 
-			// 一般直線
-			double v = v0 * 0.8;
-
-			// ★ 若是連接段（名稱以 Connect_ 開頭），再稍微壓一點
-			if (lane.path.name.startsWith("Connect_")) {
-			    v = Math.min(v * 0.7, v0 * 0.6);
+		/**
+		 * 在相鄰交流道 k、k+1 之間為每條東西向主線加一段直線連接（沿行進方向由前一個交流道的段尾到下一個的段首），
+		 * 左右相鄰照內建路網配對；原本跨交流道的 wrap 改成「車道 → 連接 → 下一個交流道」，走廊兩端的回繞維持直接相接。
+		 */
+		private static void addLinks(RoadNetwork net, RoadNetwork base, int n, double pitch) {
+			int nl = base.lanes.size();
+			int[] linkOf = new int[nl]; // 基底車道 → 第 0 段連接的車道 id（非東西向主線為 -1）
+			Arrays.fill(linkOf, -1);
+			int count = 0;
+			for (int i = 0; i < nl; i++)
+				if (net.lanes.get(i).wrap >= 0)
+					linkOf[i] = net.lanes.size() + count++;
+			for (int k = 0; k + 1 < n; k++) {
+				for (int i = 0; i < nl; i++) {
+					if (linkOf[i] < 0)
+						continue;
+					LaneSpec b = base.lanes.get(i);
+					RoadPath p = base.paths.get(b.path);
+					LineSeg seg = (LineSeg) p.geom;
+					boolean east = seg.x1 > seg.x0;
+					// 東向：k 的段尾 → k+1 的段首；西向：k+1 的段尾 → k 的段首
+					double x0 = east ? seg.x1 + k * pitch : seg.x1 + (k + 1) * pitch;
+					double x1 = east ? seg.x0 + (k + 1) * pitch : seg.x0 + k * pitch;
+					net.paths.add(new RoadPath(new LineSeg(x0, seg.y0, x1, seg.y1), p.name + "_L" + k));
+					LaneSpec ls = new LaneSpec();
+					ls.path = net.paths.size() - 1;
+					ls.kind = LaneKind.MAINLINE;
+					ls.left = b.left >= 0 && linkOf[b.left] >= 0 ? linkOf[b.left] + k * count : -1;
+					ls.right = b.right >= 0 && linkOf[b.right] >= 0 ? linkOf[b.right] + k * count : -1;
+					int from = (east ? k : k + 1) * nl + i, to = (east ? k + 1 : k) * nl + i;
+					ls.wrap = to;
+					net.lanes.get(from).wrap = linkOf[i] + k * count;
+					net.lanes.add(ls);
+				}
 			}
+		}
 
-			return v;
+		private static int shift(int id, int by) {
+			return id >= 0 ? id + by : -1;
 		}
-		
-		// ★ 依車輛狀態調整實際上限（出匝道緩升 & 匹配連接段/彎道）
-		double speedLimit(Car c) {
-			double base = speedLimit(c.lane); // 先用你原本的（彎道 √(aLatMax*R) / 直線 v0 或預降速）
 
-			// 連接段（Connect_）本身再保守一點，避免剛出彎就拉滿
-			if (c.lane.path.name.startsWith("Connect_")) {
-				base = Math.min(base, v0 * 0.65); // 約 65% 巡航
+		// ---------------- 寫出 ----------------
+
+		void write(File file) throws IOException {
+			try (PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)))) {
+				out.println("{");
+				out.println("  \"format\": " + quote(FORMAT) + ",");
+				out.println("  \"version\": " + VERSION + ",");
+				out.println("  \"width\": " + width + ",");
+				out.println("  \"height\": " + height + ",");
+				out.println("  \"maxCars\": " + maxCars + ",");
+				out.println("  \"spawnEverySec\": " + spawnEverySec + ",");
+				StringBuilder sb = new StringBuilder("  \"medians\": [");
+				for (int i = 0; i < medians.size(); i++)
+					sb.append(i > 0 ? ", [" : "[").append(medians.get(i).getX()).append(", ").append(medians.get(i).getY()).append(']');
+				out.println(sb.append("],"));
+				out.println("  \"paths\": [");
+				for (int i = 0; i < paths.size(); i++) {
+					RoadPath p = paths.get(i);
+					sb.setLength(0);
+					sb.append("    {\"id\": ").append(i).append(", \"name\": ").append(quote(p.name)).append(", \"type\": ")
+							.append(quote(typeOf(p.geom))).append(", \"p\": [");
+					double[] v = paramsOf(p.geom);
+					for (int k = 0; k < v.length; k++)
+						sb.append(k > 0 ? ", " : "").append(v[k]);
+					sb.append(']');
+					if (p.geom instanceof OffsetSeg)
+						sb.append(", \"offset\": ").append(((OffsetSeg) p.geom).d);
+					out.println(sb.append('}').append(i + 1 < paths.size() ? "," : ""));
+				}
+				out.println("  ],");
+				out.println("  \"lanes\": [");
+				for (int i = 0; i < lanes.size(); i++) {
+					LaneSpec l = lanes.get(i);
+					sb.setLength(0);
+					sb.append("    {\"id\": ").append(i).append(", \"path\": ").append(l.path).append(", \"kind\": ").append(quote(l.kind.name()))
+							.append(", \"left\": ").append(l.left).append(", \"right\": ").append(l.right).append(", \"next\": [");
+					for (int k = 0; k < l.next.length; k++)
+						sb.append(k > 0 ? ", " : "").append(l.next[k]);
+					sb.append("], \"slip\": ").append(l.slip).append(", \"loop\": ").append(l.loop).append(", \"wrap\": ").append(l.wrap)
+							.append(", \"spawn\": ").append(l.spawn).append('}');
+					out.println(sb.append(i + 1 < lanes.size() ? "," : ""));
+				}
+				if (demand.isEmpty()) {
+					out.println("  ]");
+				} else {
+					out.println("  ],");
+					out.println("  \"demand\": [");
+					for (int i = 0; i < demand.size(); i++) {
+						OdFlow f = demand.get(i);
+						out.println("    {\"from\": " + f.from + ", \"to\": " + f.to + ", \"perHour\": " + f.perHour + "}"
+								+ (i + 1 < demand.size() ? "," : ""));
+					}
+					out.println("  ]");
+				}
+				out.println("}");
+				if (out.checkError())
+					throw new IOException("Failed to write " + file);
 			}
+		}
 
-			// 出匝道冷卻：用 postExitVmax 緩升到 base
-			if (c.postExitCooldown > 0.0) {
-				// t=0 -> postExitVmax；t=1 -> base
-				double total = 2.5; // 冷卻總時長（秒），可微調 2~4s
-				double elapsed = Math.min(total, (total - c.postExitCooldown));
-				double t = Math.max(0.0, Math.min(1.0, elapsed / total));
-				double eased = c.postExitVmax + (base - c.postExitVmax) * t; // 線性即可，想更平滑可用 ease 函數
-				base = Math.min(base, eased);
+		static String quote(String s) {
+			StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c == '"' || c == '\\')
+					sb.append('\\').append(c);
+				else if (c < 0x20)
+					sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+				else
+					sb.append(c);
 			}
-
-			return base;
+			return sb.append('"').toString();
 		}
 
-		/** 建立道路幾何（主幹直線 + 四個匝道弧線 + 進出連接段），並建立對應的 Lane 與相鄰關係。 */
-		void buildGeometry() {
-			int edge = 60;
-			// 主幹道：東西向、南北向，各方向兩車道（以中心線平移得到內外側）
-			RoadPath eastCenter = RoadPath.straight(edge, cy + laneWidth*1.2, W-edge, cy + laneWidth*1.2, "EW_East_C");
-			RoadPath eastLeft   = eastCenter.offset( laneWidth/2);   // 東向內側
-			RoadPath eastRight  = eastCenter.offset(-laneWidth/2);   // 東向外側
+		static String typeOf(Segment g) {
+			if (g instanceof OffsetSeg)
+				return typeOf(((OffsetSeg) g).base);
+			if (g instanceof LineSeg)
+				return "line";
+			if (g instanceof ArcSeg)
+				return "arc";
+			if (g instanceof ClothoidSeg)
+				return "clothoid";
+			if (g instanceof BezierSeg)
+				return "bezier";
+			throw new IllegalArgumentException("Unsupported segment " + g.getClass().getSimpleName());
+		}
 
-			RoadPath westCenter = RoadPath.straight(W-edge, cy - laneWidth*1.2, edge, cy - laneWidth*1.2, "EW_West_C");
-			RoadPath westLeft   = westCenter.offset( laneWidth/2);   // 西向內側
-			RoadPath westRight  = westCenter.offset(-laneWidth/2);   // 西向外側
+		static double[] paramsOf(Segment g) {
+			if (g instanceof OffsetSeg)
+				return paramsOf(((OffsetSeg) g).base);
+			if (g instanceof LineSeg) {
+				LineSeg l = (LineSeg) g;
+				return new double[] { l.x0, l.y0, l.x1, l.y1 };
+			}
+			if (g instanceof ArcSeg) {
+				ArcSeg a = (ArcSeg) g;
+				return new double[] { a.cx, a.cy, a.r, a.a0, a.a1 };
+			}
+			if (g instanceof ClothoidSeg) {
+				ClothoidSeg c = (ClothoidSeg) g;
+				return new double[] { c.x0, c.y0, c.h0, c.k0, c.k1, c.len };
+			}
+			if (g instanceof BezierSeg) {
+				BezierSeg b = (BezierSeg) g;
+				return new double[] { b.x0, b.y0, b.x1, b.y1, b.x2, b.y2, b.x3, b.y3 };
+			}
+			throw new IllegalArgumentException("Unsupported segment " + g.getClass().getSimpleName());
+		}
 
-			RoadPath southCenter = RoadPath.straight(cx - laneWidth*1.2, edge, cx - laneWidth*1.2, H-edge, "NS_South_C");
-			RoadPath southLeft   = southCenter.offset( laneWidth/2); // 南向內側
-			RoadPath southRight  = southCenter.offset(-laneWidth/2); // 南向外側
+		// ---------------- 讀入 ----------------
 
-			RoadPath northCenter = RoadPath.straight(cx + laneWidth*1.2, H-edge, cx + laneWidth*1.2, edge, "NS_North_C");
-			RoadPath northLeft   = northCenter.offset( laneWidth/2); // 北向內側
-			RoadPath northRight  = northCenter.offset(-laneWidth/2); // 北向外側
+		static RoadNetwork read(File file) throws IOException {
+			try {
+				return parse(Json.parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)));
+			} catch (IllegalArgumentException ex) {
+				throw new IOException(file + ": " + ex.getMessage(), ex);
+			}
+		}
 
-			// 四個匝道（外圓弧）
-			RoadPath r1 = RoadPath.arc(cx + laneWidth, cy + laneWidth, outerRadius, 30, 60, true, "Ramp_EB_to_NB");   //Q4
-			RoadPath r2 = RoadPath.arc(cx + laneWidth, cy - laneWidth, outerRadius, 300, 330, true, "Ramp_NB_to_WB"); //Q1
-			RoadPath r3 = RoadPath.arc(cx - laneWidth, cy - laneWidth, outerRadius, 210, 240, true, "Ramp_WB_to_SB"); //Q2
-			RoadPath r4 = RoadPath.arc(cx - laneWidth, cy + laneWidth, outerRadius, 120, 150, true, "Ramp_SB_to_EB"); //Q3
+		/** 由解析好的 JSON 樹建立路網；格式或 id 參照錯誤時丟 IllegalArgumentException。*/
+		static RoadNetwork parse(Object json) {
+			Map<?, ?> root = object(json, "network");
+			if (!FORMAT.equals(root.get("format")))
+				throw new IllegalArgumentException("Not a road network file");
+			int version = integer(root, "version", "");
+			if (version != VERSION)
+				throw new IllegalArgumentException("Unsupported road network version " + version);
+			RoadNetwork net = new RoadNetwork();
+			net.width = integer(root, "width", "");
+			net.height = integer(root, "height", "");
+			if (net.width <= 0 || net.height <= 0)
+				throw new IllegalArgumentException("World size must be positive");
+			if (root.containsKey("maxCars"))
+				net.maxCars = integer(root, "maxCars", "");
+			if (root.containsKey("spawnEverySec"))
+				net.spawnEverySec = number(root, "spawnEverySec");
+			if (root.containsKey("medians"))
+				for (Object m : array(root.get("medians"), "medians")) {
+					double[] xy = numbers(m, "median");
+					if (xy.length != 2)
+						throw new IllegalArgumentException("Median must be [x, y]");
+					net.medians.add(new Point2D.Double(xy[0], xy[1]));
+				}
 
-			// 各匝道的進入／離開連接線（簡化為直線）
-			double a0 = Math.toRadians(30);
-			double a1 = Math.toRadians(60);
-			RoadPath r1Entry = RoadPath.straight(edge + (W - edge * 2)*0.7, cy + laneWidth*1.7, 
-			                                     cx + laneWidth + outerRadius * Math.cos(a0), cy + laneWidth + outerRadius * Math.sin(a0), "Connect_EB_R1");
-			RoadPath r1Exit  = RoadPath.straight(cx + laneWidth + outerRadius * Math.cos(a1), cy + laneWidth + outerRadius * Math.sin(a1), 
-			                                     cx + laneWidth*1.7, edge + (H - edge * 2) * 0.7, "Connect_R1_NB");
+			List<?> paths = array(root.get("paths"), "paths");
+			for (int i = 0; i < paths.size(); i++) {
+				Map<?, ?> p = object(paths.get(i), "path");
+				checkId(p, i, "paths");
+				Object name = p.get("name");
+				String type = String.valueOf(p.get("type"));
+				Segment g = segment(type, numbers(p.get("p"), "path " + i));
+				if (p.get("offset") != null)
+					g = g.offset(number(p, "offset"));
+				net.paths.add(new RoadPath(g, name != null ? name.toString() : "Path" + i));
+			}
 
-			a0 = Math.toRadians(300); 
-			a1 = Math.toRadians(330);
-			RoadPath r2Entry = RoadPath.straight(cx + laneWidth*1.7, edge + (H - edge * 2) * 0.3,  
-			                                     cx + laneWidth + outerRadius * Math.cos(a0), cy - laneWidth + outerRadius * Math.sin(a0), "Connect_NB_R2");
-			RoadPath r2Exit  = RoadPath.straight(cx + laneWidth + outerRadius * Math.cos(a1), cy - laneWidth + outerRadius * Math.sin(a1),
-			                                     edge + (W - edge * 2) * 0.7, cy - laneWidth*1.7, "Connect_R2_WB");
+			List<?> lanes = array(root.get("lanes"), "lanes");
+			for (int i = 0; i < lanes.size(); i++) {
+				Map<?, ?> l = object(lanes.get(i), "lane");
+				checkId(l, i, "lanes");
+				String at = "lanes[" + i + "]";
+				LaneSpec ls = new LaneSpec();
+				ls.path = integer(l, "path", at);
+				if (ls.path < 0 || ls.path >= net.paths.size())
+					throw new IllegalArgumentException(at + ".path refers to unknown path " + ls.path);
+				try {
+					ls.kind = LaneKind.valueOf(String.valueOf(l.get("kind")));
+				} catch (IllegalArgumentException ex) {
+					throw new IllegalArgumentException("Lane " + i + " has unknown kind " + l.get("kind"));
+				}
+				ls.left = laneRef(l, "left", at, lanes.size());
+				ls.right = laneRef(l, "right", at, lanes.size());
+				ls.slip = laneRef(l, "slip", at, lanes.size());
+				ls.loop = laneRef(l, "loop", at, lanes.size());
+				ls.wrap = laneRef(l, "wrap", at, lanes.size());
+				if (l.containsKey("next")) {
+					double[] nx = numbers(l.get("next"), at + ".next");
+					ls.next = new int[nx.length];
+					for (int k = 0; k < nx.length; k++) {
+						String where = at + ".next[" + k + "]";
+						ls.next[k] = integer(nx[k], where);
+						if (ls.next[k] < 0 || ls.next[k] >= lanes.size())
+							throw new IllegalArgumentException(where + " refers to unknown lane " + ls.next[k]);
+					}
+				}
+				ls.spawn = Boolean.TRUE.equals(l.get("spawn"));
+				net.lanes.add(ls);
+			}
+			boolean anySpawn = false;
+			for (LaneSpec ls : net.lanes)
+				anySpawn |= ls.spawn;
+			if (!anySpawn)
+				throw new IllegalArgumentException("Road network has no spawn lane");
+			if (root.containsKey("demand")) {
+				List<?> flows = array(root.get("demand"), "demand");
+				for (int j = 0; j < flows.size(); j++) {
+					Map<?, ?> f = object(flows.get(j), "demand flow");
+					String at = "demand[" + j + "]";
+					int from = integer(f, "from", at), to = integer(f, "to", at);
+					double perHour = number(f, "perHour");
+					if (from < 0 || from >= net.lanes.size())
+						throw new IllegalArgumentException(at + ".from refers to unknown lane " + from);
+					if (to < 0 || to >= net.lanes.size())
+						throw new IllegalArgumentException(at + ".to refers to unknown lane " + to);
+					if (!(perHour >= 0) || Double.isInfinite(perHour))
+						throw new IllegalArgumentException("Demand flow " + from + "->" + to + " has invalid perHour " + perHour);
+					net.demand.add(new OdFlow(from, to, perHour));
+				}
+			}
+			return net;
+		}
 
-			a0 = Math.toRadians(210); 
-			a1 = Math.toRadians(240);
-			RoadPath r3Entry = RoadPath.straight(edge + (W - edge * 2)*0.3, cy - laneWidth*1.7,  
-			                                     cx - laneWidth + outerRadius * Math.cos(a0), cy - laneWidth + outerRadius * Math.sin(a0), "Connect_WB_R3");
-			RoadPath r3Exit  = RoadPath.straight(cx - laneWidth + outerRadius * Math.cos(a1), cy - laneWidth + outerRadius * Math.sin(a1), 
-			                                     cx - laneWidth*1.7, edge + (H - edge * 2) * 0.3, "Connect_R3_SB");
+		static Segment segment(String type, double[] p) {
+			int need;
+			switch (type) {
+			case "line": need = 4; break;
+			case "arc": need = 5; break;
+			case "clothoid": need = 6; break;
+			case "bezier": need = 8; break;
+			default: throw new IllegalArgumentException("Unknown path type " + type);
+			}
+			if (p.length != need)
+				throw new IllegalArgumentException("Path type " + type + " needs " + need + " parameters, got " + p.length);
+			switch (type) {
+			case "line": return new LineSeg(p[0], p[1], p[2], p[3]);
+			case "arc": return new ArcSeg(p[0], p[1], p[2], p[3], p[4]);
+			case "clothoid": return new ClothoidSeg(p[0], p[1], p[2], p[3], p[4], p[5]);
+			default: return new BezierSeg(p[0], p[1], p[2], p[3], p[4], p[5], p[6], p[7]);
+			}
+		}
 
-			a0 = Math.toRadians(120); 
-			a1 = Math.toRadians(150);
-			RoadPath r4Entry = RoadPath.straight(cx - laneWidth*1.7, edge + (H - edge * 2) * 0.7, 
-			                                     cx - laneWidth + outerRadius * Math.cos(a0), cy + laneWidth + outerRadius * Math.sin(a0), "Connect_SB_R4");
-			RoadPath r4Exit  = RoadPath.straight(cx - laneWidth + outerRadius * Math.cos(a1), cy + laneWidth + outerRadius * Math.sin(a1), 
-			                                     edge + (W - edge * 2)*0.3, cy + laneWidth*1.7, "Connect_R4_EB");
+		private static void checkId(Map<?, ?> m, int index, String what) {
+			String at = what + "[" + index + "]";
+			if (m.containsKey("id") && integer(m, "id", at) != index)
+				throw new IllegalArgumentException(at + ".id must equal its position " + index + ", got " + m.get("id"));
+		}
 
-			// 將所有路徑加入清單（繪圖時用）
-			Collections.addAll(paths, eastLeft, eastRight, westLeft, westRight,
-					southLeft, southRight, northLeft, northRight,
-					r1Entry, r1, r1Exit,
-					r2Entry, r2, r2Exit,
-					r3Entry, r3, r3Exit,
-					r4Entry, r4, r4Exit);
+		private static int laneRef(Map<?, ?> m, String key, String at, int laneCount) {
+			if (!m.containsKey(key) || m.get(key) == null)
+				return -1;
+			int id = integer(m, key, at);
+			if (id < -1 || id >= laneCount)
+				throw new IllegalArgumentException(at + "." + key + " refers to unknown lane " + id);
+			return id;
+		}
 
-			// ---- 建立 Lane 實例（保留參考，方便設 adjacents）----
-			Lane lnEastLeft  = new Lane(eastLeft);   Lane lnEastRight  = new Lane(eastRight);
-			Lane lnWestLeft  = new Lane(westLeft);   Lane lnWestRight  = new Lane(westRight);
-			Lane lnSouthLeft = new Lane(southLeft);  Lane lnSouthRight = new Lane(southRight);
-			Lane lnNorthLeft = new Lane(northLeft);  Lane lnNorthRight = new Lane(northRight);
+		/** 取整數欄位（id、尺寸等）；at 為所在物件的路徑（例如 lanes[3]），根物件傳空字串。*/
+		private static int integer(Map<?, ?> m, String key, String at) {
+			String where = at.isEmpty() ? key : at + "." + key;
+			if (!(m.get(key) instanceof Double))
+				throw new IllegalArgumentException("Expected a number for " + where);
+			return integer((Double) m.get(key), where);
+		}
 
-			Lane lnR1Entry = new Lane(r1Entry); Lane lnR1 = new Lane(r1); Lane lnR1Exit = new Lane(r1Exit);
-			Lane lnR2Entry = new Lane(r2Entry); Lane lnR2 = new Lane(r2); Lane lnR2Exit = new Lane(r2Exit);
-			Lane lnR3Entry = new Lane(r3Entry); Lane lnR3 = new Lane(r3); Lane lnR3Exit = new Lane(r3Exit);
-			Lane lnR4Entry = new Lane(r4Entry); Lane lnR4 = new Lane(r4); Lane lnR4Exit = new Lane(r4Exit);
+		/** 小數、NaN 或超出 int 範圍時丟例外，不默默截斷（3.7 不會變成 3）。*/
+		private static int integer(double v, String where) {
+			if (v != Math.rint(v) || v < Integer.MIN_VALUE || v > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("Expected an integer for " + where + ", got " + v);
+			return (int) v;
+		}
 
-			// 放入列表
-			Collections.addAll(lanes,
-					lnEastLeft, lnEastRight,
-					lnWestLeft, lnWestRight,
-					lnSouthLeft, lnSouthRight,
-					lnNorthLeft, lnNorthRight,
-					lnR1Entry, lnR1, lnR1Exit,
-					lnR2Entry, lnR2, lnR2Exit,
-					lnR3Entry, lnR3, lnR3Exit,
-					lnR4Entry, lnR4, lnR4Exit);
+		private static Map<?, ?> object(Object o, String what) {
+			if (!(o instanceof Map))
+				throw new IllegalArgumentException("Expected an object for " + what);
+			return (Map<?, ?>) o;
+		}
 
-			// ---- 設定直線雙線的左右相鄰（僅直線允許 MOBIL 變道）----
-			lnEastLeft.adjRight = lnEastRight; lnEastRight.adjLeft = lnEastLeft;
-			lnWestLeft.adjRight = lnWestRight; lnWestRight.adjLeft = lnWestLeft;
-			lnSouthLeft.adjRight = lnSouthRight; lnSouthRight.adjLeft = lnSouthLeft;
-			lnNorthLeft.adjRight = lnNorthRight; lnNorthRight.adjLeft = lnNorthLeft;
+		private static List<?> array(Object o, String what) {
+			if (!(o instanceof List))
+				throw new IllegalArgumentException("Expected an array for " + what);
+			return (List<?>) o;
+		}
 
-			// ===== 外側右轉匝道（依圖片方向）=====
-			// 1) EB → SB（第4象限，右下）
-			Point2D ebStart = eastCenter.pointAt(slipInset);
-			Point2D sbEnd   = southCenter.pointAt(slipFar);
-			RoadPath sr1Entry = RoadPath.straight(ebStart.getX(), ebStart.getY(), ebStart.getX()+od, ebStart.getY()+od, "Connect_EB_SR1");
-			RoadPath sr1     = RoadPath.straight(ebStart.getX()+od, ebStart.getY()+od, sbEnd.getX()-od, sbEnd.getY()-od, "Slip_EB_to_SB");
-			RoadPath sr1Exit  = RoadPath.straight(sbEnd.getX()-od, sbEnd.getY()-od, sbEnd.getX(), sbEnd.getY(), "Connect_SR1_SB");
+		private static double number(Map<?, ?> m, String key) {
+			Object o = m.get(key);
+			if (!(o instanceof Double))
+				throw new IllegalArgumentException("Expected a number for \"" + key + "\"");
+			return (Double) o;
+		}
 
-			// 2) NB → EB（第1象限，右上）
-			Point2D nbStart = northCenter.pointAt(slipInset);
-			Point2D ebEnd   = eastCenter.pointAt(slipFar);
-			RoadPath sr2Entry = RoadPath.straight(nbStart.getX(), nbStart.getY(), nbStart.getX()+od, nbStart.getY()-od, "Connect_NB_SR2");
-			RoadPath sr2     = RoadPath.straight(nbStart.getX()+od, nbStart.getY()-od, ebEnd.getX()-od, ebEnd.getY()+od, "Slip_NB_to_EB");
-			RoadPath sr2Exit  = RoadPath.straight(ebEnd.getX()-od, ebEnd.getY()+od, ebEnd.getX(), ebEnd.getY(), "Connect_SR2_EB");
+		private static double[] numbers(Object o, String what) {
+			List<?> list = array(o, what);
+			double[] v = new double[list.size()];
+			for (int i = 0; i < v.length; i++) {
+				if (!(list.get(i) instanceof Double))
+					throw new IllegalArgumentException("Expected numbers in " + what);
+				v[i] = (Double) list.get(i);
+			}
+			return v;
+		}
+	}
 
-			// 3) WB → NB（第2象限，左上）
-			Point2D wbStart = westCenter.pointAt(slipInset);
-			Point2D nbEnd   = northCenter.pointAt(slipFar);
-			RoadPath sr3Entry = RoadPath.straight(wbStart.getX(), wbStart.getY(), wbStart.getX()-od, wbStart.getY()-od, "Connect_WB_SR3");
-			RoadPath sr3     = RoadPath.straight(wbStart.getX()-od, wbStart.getY()-od, nbEnd.getX()+od, nbEnd.getY()+od, "Slip_WB_to_NB");
-			RoadPath sr3Exit  = RoadPath.straight(nbEnd.getX()+od, nbEnd.getY()+od, nbEnd.getX(), nbEnd.getY(), "Connect_SR3_NB");
+	// ================================ Json ==============================
+	/**
+	 * Json：路網檔用的最小 JSON 解析器。物件→LinkedHashMap、陣列→ArrayList、數字→Double、
+	 * 字串→String、true/false→Boolean、null→null；語法錯誤丟 IllegalArgumentException（含字元位置）。
+	 * 解析器是遞迴的，巢狀層數超過 MAX_DEPTH 時當成語法錯誤，不讓惡意或損壞的檔案撐爆堆疊。
+	 */
+	static final class Json {
+		static final int MAX_DEPTH = 256; // 路網檔實際只有 4 層
+		private final String src;
+		private int pos;
+		private int depth;
+
+		private Json(String src) {
+			this.src = src;
+		}
 
-			// 4) SB → WB（第3象限，左下）
-			Point2D sbStart = southCenter.pointAt(slipInset);
-			Point2D wbEnd   = westCenter.pointAt(slipFar);
-			RoadPath sr4Entry = RoadPath.straight(sbStart.getX(), sbStart.getY(), sbStart.getX()-od, sbStart.getY()+od, "Connect_SB_SR4");
-			RoadPath sr4     = RoadPath.straight(sbStart.getX()-od, sbStart.getY()+od, wbEnd.getX()+od, wbEnd.getY()-od, "Slip_SB_to_WB");
-			RoadPath sr4Exit  = RoadPath.straight(wbEnd.getX()+od, wbEnd.getY()-od, wbEnd.getX(), wbEnd.getY(), "Connect_SR4_WB");
+		static Object parse(String text) {
+			Json p = new Json(text);
+			Object v = p.value();
+			p.skipWhitespace();
+			if (p.pos != text.length())
+				throw p.error("trailing characters");
+			return v;
+		}
 
-			// 放進 paths
-			Collections.addAll(paths,
-			    sr1Entry, sr1, sr1Exit,
-			    sr2Entry, sr2, sr2Exit,
-			    sr3Entry, sr3, sr3Exit,
-			    sr4Entry, sr4, sr4Exit);
-			
-			// 包成 Lane
-			Lane lnSR1Entry = new Lane(sr1Entry), lnSR1 = new Lane(sr1), lnSR1Exit = new Lane(sr1Exit);
-			Lane lnSR2Entry = new Lane(sr2Entry), lnSR2 = new Lane(sr2), lnSR2Exit = new Lane(sr2Exit);
-			Lane lnSR3Entry = new Lane(sr3Entry), lnSR3 = new Lane(sr3), lnSR3Exit = new Lane(sr3Exit);
-			Lane lnSR4Entry = new Lane(sr4Entry), lnSR4 = new Lane(sr4), lnSR4Exit = new Lane(sr4Exit);
-			
-			// 進 lanes
-			Collections.addAll(lanes,
-			    lnSR1Entry, lnSR1, lnSR1Exit,
-			    lnSR2Entry, lnSR2, lnSR2Exit,
-			    lnSR3Entry, lnSR3, lnSR3Exit,
-			    lnSR4Entry, lnSR4, lnSR4Exit);
+		private Object value() {
+			skipWhitespace();
+			if (pos >= src.length())
+				throw error("unexpected end of input");
+			char c = src.charAt(pos);
+			switch (c) {
+			case '{':
+			case '[':
+				if (++depth > MAX_DEPTH)
+					throw error("nesting deeper than " + MAX_DEPTH + " levels");
+				Object nested = c == '{' ? object() : array();
+				depth--;
+				return nested;
+			case '"': return string();
+			case 't': return literal("true", Boolean.TRUE);
+			case 'f': return literal("false", Boolean.FALSE);
+			case 'n': return literal("null", null);
+			default:
+				if (c == '-' || (c >= '0' && c <= '9'))
+					return number();
+				throw error("unexpected '" + c + "'");
+			}
+		}
 
-			// 匝道不設相鄰（不變道）；直線主線相鄰設定保持原樣
+		private Map<String, Object> object() {
+			Map<String, Object> m = new LinkedHashMap<>();
+			pos++; // '{'
+			skipWhitespace();
+			if (peek() == '}') {
+				pos++;
+				return m;
+			}
+			while (true) {
+				skipWhitespace();
+				if (peek() != '"')
+					throw error("expected a key");
+				String key = string();
+				skipWhitespace();
+				expect(':');
+				m.put(key, value());
+				skipWhitespace();
+				if (peek() == ',') {
+					pos++;
+					continue;
+				}
+				expect('}');
+				return m;
+			}
 		}
 
-		// 幫手：在直線 RoadPath 上取得某個 s 的實座標
-//		Point2D ptOn(RoadPath p, double s01) { return p.pointAt(Math.max(0, Math.min(1, s01))); }
+		private List<Object> array() {
+			List<Object> list = new ArrayList<>();
+			pos++; // '['
+			skipWhitespace();
+			if (peek() == ']') {
+				pos++;
+				return list;
+			}
+			while (true) {
+				list.add(value());
+				skipWhitespace();
+				if (peek() == ',') {
+					pos++;
+					continue;
+				}
+				expect(']');
+				return list;
+			}
+		}
+
+		private String string() {
+			StringBuilder sb = new StringBuilder();
+			pos++; // '"'
+			while (pos < src.length()) {
+				char c = src.charAt(pos++);
+				if (c == '"')
+					return sb.toString();
+				if (c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				if (pos >= src.length())
+					break;
+				char e = src.charAt(pos++);
+				switch (e) {
+				case 'n': sb.append('\n'); break;
+				case 't': sb.append('\t'); break;
+				case 'r': sb.append('\r'); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'u':
+					if (pos + 4 > src.length())
+						throw error("bad unicode escape");
+					sb.append((char) Integer.parseInt(src.substring(pos, pos + 4), 16));
+					pos += 4;
+					break;
+				default: sb.append(e); // \" \\ \/
+				}
+			}
+			throw error("unterminated string");
+		}
+
+		private Double number() {
+			int start = pos;
+			while (pos < src.length() && "+-0123456789.eE".indexOf(src.charAt(pos)) >= 0)
+				pos++;
+			try {
+				return Double.parseDouble(src.substring(start, pos));
+			} catch (NumberFormatException ex) {
+				pos = start;
+				throw error("bad number");
+			}
+		}
+
+		private Object literal(String word, Object v) {
+			if (!src.startsWith(word, pos))
+				throw error("unexpected token");
+			pos += word.length();
+			return v;
+		}
+
+		private void expect(char c) {
+			if (peek() != c)
+				throw error("expected '" + c + "'");
+			pos++;
+		}
+
+		private char peek() {
+			return pos < src.length() ? src.charAt(pos) : '\0';
+		}
+
+		private void skipWhitespace() {
+			while (pos < src.length() && Character.isWhitespace(src.charAt(pos)))
+				pos++;
+		}
+
+		private IllegalArgumentException error(String msg) {
+			return new IllegalArgumentException("JSON " + msg + " at offset " + pos);
+		}
+	}
+
+	// ================================ World ================================
+	static class World {
+		final int W, H;                   // 世界尺寸（畫布座標）
+		final double cx, cy;              // 世界中心，用於視圖定位
+		final SimRandom rng;              // 固定種子以利重現（狀態可存入檢查點）
+		final List<RoadPath> paths = new ArrayList<>(); // 所有路徑（直線與弧線）
+		final List<Car> cars = new ArrayList<>(); // 車輛清單（只由模擬執行緒存取；繪圖改讀 RenderFrame）
+		final FrameExchange frames = new FrameExchange(); // 模擬→繪圖的三重緩衝快照
+		final StepProfiler profiler = new StepProfiler();  // update 各階段耗時與計數
+		final DetectorBank detectors = new DetectorBank(); // 虛擬線圈偵測器（流量／速度／密度）
+		SafetyMonitor safety;                              // 替代安全指標（null 表示關閉）
+		final List<Lane> lanes = new ArrayList<>(); // 車道包裝（對應到 RoadPath）
+		final List<Point2D> medians = new ArrayList<>(); // 各交流道中央分隔裝飾的中心
+		final SegmentIndex roadIndex;     // 路段的均勻格網索引（依位置找車道、繪圖裁切）
+
+		// 車輛生成與上限
+		double spawnEverySec = 0.7; // 每隔幾秒生成一輛
+		double spawnAcc = 0.0;      // 積算器（達門檻則生成）
+		int maxCars = 260;          // 車輛上限
+		int nextCarId = 0;          // 下一台車的編號（決定性排序用）
+		int carIdStride = 1;        // 編號間隔（分區模擬時各區以不同起點交錯編號，全域不重複）
+
+		// 起訖需求（null 表示沿用隨機生成、在主線上無限繞行）；離開路網的車回收到車輛池重用
+		RouteTable routes;
+		OdDemand demand;
+		final ArrayDeque<Car> carPool = new ArrayDeque<>();
+		long tripsCompleted;        // 到達目的地離開的車數
+
+		// 混合模式：長直線主線中段改用中觀佇列（MesoLink），微觀 IDM/MOBIL 只留在匝道與併入區附近（緩衝取兩倍鄰車搜尋半徑）
+		boolean hybrid;
+		final List<MesoLink> mesoLinks = new ArrayList<>();
+		MesoLink[] mesoLinkOf;      // 車道 id → 中觀路段（null 表示整條車道都是微觀）
+		double simTime;             // 模擬時間（秒）
+		static final double MESO_PAD = 120; // 匝道入口、併入點與車道兩端保留的微觀緩衝（px）
+		static final double MESO_MIN_LENGTH = 400;          // 中觀路段的最短長度（px）
+		private final List<Car> micro = new ArrayList<>();  // 本步以微觀模擬推進的車
+		private double[] mesoAheadS = new double[0];        // 各車道中觀出口下游最近微觀車的 s
+
+		// IDM 參數（單位換算為畫素尺度，大致視覺合理即可；預設值見 ModelParams）
+		final double v0;    // 期望速度（px/s）
+		final double T;     // 期望時距（秒）
+		final double aMax;  // 最大加速度（px/s^2）
+		final double b;     // 舒適減速度（px/s^2）
+		final double s0;    // 最小頭距（px）
+		final double delta; // 加速度指數
+		final double inv2SqrtAB; // 1 / (2·sqrt(aMax·b))（預先計算）
+		final double invV0;      // 1 / v0
+		final int deltaInt;      // delta 為 1~4 的整數時的值，否則 -1（powDelta 用）
 		
+		// NEW: 橫向加速度上限（像素尺度），用於彎道最高安全車速 v_max = sqrt(a_lat_max * R)
+		final double aLatMax = 1.0 * 40; // 約等效 ~1g 的 0.1 量級（依需求可調）
+		final double rampEntryFactor = 0.90; // 進彎時再降低 10% 當 buffer
+
+		// MOBIL 參數
+		final double politeness;           // 禮讓係數（他人效用的權重）
+		final double aLaneChangeThreshold; // 變道的最小淨效用門檻
+		final double aSafe;                // 目標車道後車允許的最大制動（安全約束）
+
+		// 幾何設置
+		static final int EDGE = 60;    // 主線端點離世界邊緣的距離
+		final double laneWidth = 18;   // 車道寬
+		final double highwayHalf = 160;// 中央隔離帶至邊緣半寬（用於畫中央實體）
+		final double outerRadius = 200;// 外弧半徑（匝道）
+		final double innerRadius = 140;// 內弧半徑（可用於其他幾何）
+
+		// 時間積分：EULER 為原本固定 1/60 秒的顯式積分；BALLISTIC 搭配 nextDt() 可用可變大步長
+		Integrator integrator = Integrator.EULER;
+		double dtMin = 1.0 / 60.0, dtMax = 0.5; // 可變步長範圍（秒）
+		double dtHint = 1.0 / 60.0;             // 上一步算出的建議步長
+
+		// 空間索引（QuadTree）
+		QuadTree qt;
+		Rectangle2D worldBounds;          // QuadTree 範圍（分區模擬時縮小到該區）
+
+		// 分區模擬（PartitionedSim）：本區擁有的車道（null 表示全部）與鄰區邊界附近的影子車（只進 QuadTree，不推進）
+		boolean[] ownedLanes;
+		final List<Car> ghosts = new ArrayList<>();
+
+		// 執行緒池（預設使用可用核心數-1，至少 2）；null 表示在呼叫端執行緒上循序執行（參數掃描用）
+		final ExecutorService pool;
+
+		// 決定性模式：車輛自身的亂數（初始位置、速度、顏色、是否走匝道）改由 (streamSeed, 車號, 第幾次抽)
+		// 以計數器式雜湊產生（VehicleRandom），與生成順序、分區方式無關；共用的 rng 只負責挑車道與起訖組合
+		boolean vehicleStreams;
+		long streamSeed;
+
+		public World(int w, int h) {
+			this(w, h, new ModelParams(), true);
+		}
+
+		public World(int w, int h, ModelParams p, boolean parallel) {
+			this(w, h, null, p, parallel ? defaultThreads() : 0);
+		}
+
+		/** 以 threads 條工作執行緒建立內建苜蓿葉世界（0 表示在呼叫端執行緒上循序執行）。*/
+		public World(int w, int h, ModelParams p, int threads) {
+			this(w, h, null, p, threads);
+		}
+
+		/** 以匯入的路網（RoadNetwork）建立世界；世界尺寸、車輛上限與生成間隔取自路網描述。*/
+		public World(RoadNetwork net, ModelParams p, boolean parallel) {
+			this(net.width, net.height, net, p, parallel ? defaultThreads() : 0);
+		}
+
+		public World(RoadNetwork net, ModelParams p, int threads) {
+			this(net.width, net.height, net, p, threads);
+		}
+
+		static int defaultThreads() {
+			return Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+		}
+
+		private World(int w, int h, RoadNetwork net, ModelParams p, int threads) {
+			this.W = w;
+			this.H = h;
+			this.rng = new SimRandom(p.seed);
+			this.streamSeed = p.seed;
+			this.v0 = p.v0;
+			this.T = p.T;
+			this.aMax = p.aMax;
+			this.b = p.b;
+			this.s0 = p.s0;
+			this.delta = p.delta;
+			this.inv2SqrtAB = 1.0 / (2 * Math.sqrt(aMax * b));
+			this.invV0 = 1.0 / v0;
+			this.deltaInt = (delta == Math.rint(delta) && delta >= 1 && delta <= 4) ? (int) delta : -1;
+			this.politeness = p.politeness;
+			this.aLaneChangeThreshold = p.aLaneChangeThreshold;
+			this.aSafe = p.aSafe;
+			this.pool = threads > 0 ? Executors.newFixedThreadPool(threads) : null;
+			this.cx = W / 2.0;
+			this.cy = H / 2.0;
+			worldBounds = new Rectangle2D.Double(0, 0, W, H);
+			if (net == null) {
+				buildGeometry(); // 建立道路幾何與車道
+				buildRouteGraph(); // 建立路徑圖（entry→ramp→exit→目標直線）
+				medians.add(new Point2D.Double(cx, cy));
+			} else {
+				loadNetwork(net);
+			}
+			roadIndex = new SegmentIndex(paths, SegmentIndex.CELL);
+		}
+
+		/** 重置世界：清空車輛與生成計數器。 */
+		void reset() {
+			for (MesoLink m : mesoLinks)
+				m.release();
+			carPool.addAll(cars);
+			cars.clear();
+			spawnAcc = 0;
+			simTime = 0;
+			nextCarId = 0;
+			tripsCompleted = 0;
+			detectors.reset();
+			if (safety != null)
+				safety.reset();
+			publishFrame();
+		}
+
 		/**
-		 * 世界更新單步：
-		 * 1) 生成新車 → 2) 建立 QuadTree → 3) 搜尋前後鄰車 → 4) MOBIL 判斷變道 → 5) IDM 加速度與積分 → 6) 推進位置與回收。
+		 * 世界動態狀態的 64 位元雜湊：依 cars 的順序混入每台車的車道、位置、速度與各種計時器的位元表示，
+		 * 再混入生成計時、亂數狀態與旅次數。同種子下不同執行緒數的執行每步都應得到相同的值。
 		 */
-		void update(double dt, boolean mobilEnabled) {
-			
+		long stateChecksum() {
+			long h = SimRandom.mix64(cars.size());
 			for (Car c : cars) {
-		    // NEW: 冷卻/動畫時間流逝
-		    if (c.laneCooldown > 0) c.laneCooldown -= dt;
-		    if (c.routeCooldown > 0) c.routeCooldown -= dt;          // ★ 新增
-		    if (c.rampLockout > 0) c.rampLockout -= (dt-2);          // ★ 新增 降慢2s
-		    if (c.postExitCooldown > 0) c.postExitCooldown -= dt;    // ★ 新增
-		    if (c.animFromLane != null) c.animT = Math.min(1.0, c.animT + dt / 0.35); // 0.35s 動畫
-		    // ★ 若使用世界座標補間，一樣推進 animT
-		    if (c.animFromPoint != null) c.animT = Math.min(1.0, c.animT + dt / 0.35);
+				h = SimRandom.mix64(h ^ ((long) c.id << 32 | c.lane.id & 0xFFFFFFFFL));
+				h = SimRandom.mix64(h ^ Double.doubleToLongBits(c.s));
+				h = SimRandom.mix64(h ^ Double.doubleToLongBits(c.v));
+				h = SimRandom.mix64(h ^ Double.doubleToLongBits(c.sPrev));
+				h = SimRandom.mix64(h ^ Double.doubleToLongBits(c.laneCooldown));
+				h = SimRandom.mix64(h ^ Double.doubleToLongBits(c.routeCooldown));
+				h = SimRandom.mix64(h ^ Double.doubleToLongBits(c.rampLockout));
+				h = SimRandom.mix64(h ^ Double.doubleToLongBits(c.postExitCooldown));
+				h = SimRandom.mix64(h ^ Double.doubleToLongBits(c.endHold));
+				h = SimRandom.mix64(h ^ ((long) c.dest << 8 | (c.takeRamp ? 1 : 0) | (c.passedEntryThisLap ? 2 : 0) | (c.meso != null ? 4 : 0)));
 			}
-			
-			// 1) 生成車輛（達時間門檻且未達上限）
-			spawnAcc += dt;
-			if (cars.size() < maxCars && spawnAcc >= spawnEverySec) {
-				spawnAcc = 0;
-				spawnCar();
+			h = SimRandom.mix64(h ^ Double.doubleToLongBits(spawnAcc));
+			h = SimRandom.mix64(h ^ rng.getState());
+			h = SimRandom.mix64(h ^ ((long) nextCarId << 32 | tripsCompleted & 0xFFFFFFFFL));
+			return h;
+		}
+
+		// ------------------ Route Graph ------------------
+		// 路徑圖：定義從某車道離開後，下一個允許接續的車道（entry→ramp→exit→目標直線）
+		Map<Lane, List<Lane>> routeGraph = new HashMap<>();
+
+		void buildRouteGraph() {
+			routeGraph.clear();
+			for (Lane l : lanes) routeGraph.put(l, new ArrayList<>());
+
+			// EB -> NB
+			connect("EW_East_C_off", "Connect_EB_R1");
+			connect("Connect_EB_R1", "Ramp_EB_to_NB");
+			connect("Ramp_EB_to_NB", "Connect_R1_NB");
+			connect("Connect_R1_NB", "NS_North_C_off");
+
+			// NB -> WB
+			connect("NS_North_C_off", "Connect_NB_R2");
+			connect("Connect_NB_R2", "Ramp_NB_to_WB");
+			connect("Ramp_NB_to_WB", "Connect_R2_WB");
+			connect("Connect_R2_WB", "EW_West_C_off");
+
+			// WB -> SB
+			connect("EW_West_C_off", "Connect_WB_R3");
+			connect("Connect_WB_R3", "Ramp_WB_to_SB");
+			connect("Ramp_WB_to_SB", "Connect_R3_SB");
+			connect("Connect_R3_SB", "NS_South_C_off");
+
+			// SB -> EB
+			connect("NS_South_C_off", "Connect_SB_R4");
+			connect("Connect_SB_R4", "Ramp_SB_to_EB");
+			connect("Ramp_SB_to_EB", "Connect_R4_EB");
+			connect("Connect_R4_EB", "EW_East_C_off");
+			
+			// ==== 外側右轉匝道（Direct / Slip）====
+			// EB -> SB（Q4）
+			connect("EW_East_C_off", "Connect_EB_SR1");
+			connect("Connect_EB_SR1", "Slip_EB_to_SB");
+			connect("Slip_EB_to_SB", "Connect_SR1_SB");
+			connect("Connect_SR1_SB", "NS_South_C_off");
+	
+			// NB -> EB（Q1）
+			connect("NS_North_C_off", "Connect_NB_SR2");
+			connect("Connect_NB_SR2", "Slip_NB_to_EB");
+			connect("Slip_NB_to_EB", "Connect_SR2_EB");
+			connect("Connect_SR2_EB", "EW_East_C_off");
+	
+			// WB -> NB（Q2）
+			connect("EW_West_C_off", "Connect_WB_SR3");
+			connect("Connect_WB_SR3", "Slip_WB_to_NB");
+			connect("Slip_WB_to_NB", "Connect_SR3_NB");
+			connect("Connect_SR3_NB", "NS_North_C_off");
+	
+			// SB -> WB（Q3）
+			connect("NS_South_C_off", "Connect_SB_SR4");
+			connect("Connect_SB_SR4", "Slip_SB_to_WB");
+			connect("Slip_SB_to_WB", "Connect_SR4_WB");
+			connect("Connect_SR4_WB", "EW_West_C_off");
+
+			classifyLanesByName();
+			resolveLaneMeta();
+		}
+
+		// 主線名稱前綴 → { 外側直通匝道入口（段首 s<0.2）, 苜蓿葉環道入口（段尾 s>=0.65）}
+		static final String[][] RAMP_ENTRIES = {
+				{ "EW_East_C",  "Connect_EB_SR1", "Connect_EB_R1" },
+				{ "NS_North_C", "Connect_NB_SR2", "Connect_NB_R2" },
+				{ "EW_West_C",  "Connect_WB_SR3", "Connect_WB_R3" },
+				{ "NS_South_C", "Connect_SB_SR4", "Connect_SB_R4" },
+		};
+
+		final List<Lane> spawnLanes = new ArrayList<>(); // 可生成車輛的主線直線
+
+		/**
+		 * 內建苜蓿葉專用：依名稱前綴決定車道種類、下一段、可生成與匝道入口。
+		 * 匯入的路網（loadNetwork）直接以整數 id 給出這些欄位，不經過名稱比對。
+		 */
+		void classifyLanesByName() {
+			for (Lane l : lanes) {
+				String n = l.path.name;
+				if (n.startsWith("EW") || n.startsWith("NS"))
+					l.kind = LaneKind.MAINLINE;
+				else if (n.startsWith("Connect_"))
+					l.kind = LaneKind.CONNECTOR;
+				else if (n.startsWith("Ramp_"))
+					l.kind = LaneKind.RAMP;
+				else
+					l.kind = LaneKind.SLIP;
+				l.next = routeGraph.get(l).toArray(new Lane[0]);
+				l.spawn = (l.kind == LaneKind.MAINLINE && l.path.isStraight);
+				l.slipEntry = l.loopEntry = null;
+				for (String[] e : RAMP_ENTRIES) {
+					if (!n.startsWith(e[0]))
+						continue;
+					l.slipEntry = findLaneByName(e[1]);
+					l.loopEntry = findLaneByName(e[2]);
+				}
+			}
+		}
+
+		/**
+		 * 依整數 id 建立匯入路網的 RoadPath／Lane／routeGraph（不做任何名稱查詢）。
+		 * 路網描述已在 RoadNetwork.read 檢查過 id 範圍，這裡只負責接線。
+		 */
+		void loadNetwork(RoadNetwork net) {
+			maxCars = net.maxCars;
+			spawnEverySec = net.spawnEverySec;
+			paths.addAll(net.paths);
+			medians.addAll(net.medians);
+			for (RoadNetwork.LaneSpec ls : net.lanes)
+				lanes.add(new Lane(net.paths.get(ls.path)));
+			routeGraph.clear();
+			for (int i = 0; i < lanes.size(); i++) {
+				RoadNetwork.LaneSpec ls = net.lanes.get(i);
+				Lane l = lanes.get(i);
+				l.kind = ls.kind;
+				l.spawn = ls.spawn;
+				l.adjLeft = ls.left >= 0 ? lanes.get(ls.left) : null;
+				l.adjRight = ls.right >= 0 ? lanes.get(ls.right) : null;
+				l.slipEntry = ls.slip >= 0 ? lanes.get(ls.slip) : null;
+				l.loopEntry = ls.loop >= 0 ? lanes.get(ls.loop) : null;
+				l.wrapTo = ls.wrap >= 0 ? lanes.get(ls.wrap) : null;
+				l.next = new Lane[ls.next.length];
+				for (int k = 0; k < ls.next.length; k++)
+					l.next[k] = lanes.get(ls.next[k]);
+				routeGraph.put(l, new ArrayList<>(Arrays.asList(l.next)));
+			}
+			resolveLaneMeta();
+			if (!net.demand.isEmpty())
+				setDemand(net.demand);
+		}
+
+		/**
+		 * 改用起訖需求生成車輛（空白清單則回到隨機生成）：路徑表只在第一次建立，
+		 * 生成間隔改由本世界生成車道上的總流量決定。
+		 */
+		void setDemand(List<RoadNetwork.OdFlow> flows) {
+			if (flows.isEmpty()) {
+				demand = null;
+				return;
+			}
+			if (routes == null)
+				routes = new RouteTable(lanes);
+			demand = new OdDemand(this, flows);
+			spawnEverySec = demand.totalPerHour > 0 ? 3600 / demand.totalPerHour : Double.POSITIVE_INFINITY;
+		}
+
+		/** 開關混合模式：第一次開啟時才切出中觀路段；關閉時佇列裡的車原地回到微觀模擬。*/
+		void setHybrid(boolean on) {
+			if (on && mesoLinkOf == null)
+				buildMesoLinks();
+			if (!on)
+				for (MesoLink m : mesoLinks)
+					m.release();
+			hybrid = on;
+		}
+
+		/**
+		 * 為每組直線主線車行道（以 adjLeft/adjRight 相連的車道）切出中觀路段：
+		 * 先標出必須保留微觀的區間（車道兩端、生成區、匝道入口與環道入口決策窗、段尾併入窗、
+		 * 其他車道併入本車道的交點），各外擴 MESO_PAD，再取同一車行道聯集後最長的空白區間。
+		 * 夠長（MESO_MIN_LENGTH 以上）才建立，車行道上每條車道各一個 MesoLink、範圍相同。
+		 */
+		void buildMesoLinks() {
+			mesoLinks.clear();
+			mesoLinkOf = new MesoLink[lanes.size()];
+			// 被其他車道併入的交點（以目標車道 id 分組）
+			List<List<Double>> mergeS = new ArrayList<>();
+			for (int i = 0; i < lanes.size(); i++)
+				mergeS.add(new ArrayList<>());
+			for (Lane l : lanes)
+				for (MergeEdge e : l.nextEdge)
+					mergeS.get(e.to.id).add(e.sIntersect);
+
+			boolean[] seen = new boolean[lanes.size()];
+			for (Lane start : lanes) {
+				if (seen[start.id])
+					continue;
+				// 收集整組車行道
+				List<Lane> group = new ArrayList<>();
+				ArrayDeque<Lane> todo = new ArrayDeque<>();
+				todo.add(start);
+				seen[start.id] = true;
+				while (!todo.isEmpty()) {
+					Lane l = todo.poll();
+					group.add(l);
+					for (Lane a : new Lane[] { l.adjLeft, l.adjRight })
+						if (a != null && !seen[a.id]) {
+							seen[a.id] = true;
+							todo.add(a);
+						}
+				}
+				boolean eligible = true;
+				double minLen = Double.POSITIVE_INFINITY;
+				for (Lane l : group) {
+					eligible &= l.mainline && l.path.isStraight && !l.finite;
+					minLen = Math.min(minLen, l.path.length);
+				}
+				if (!eligible || minLen < MESO_MIN_LENGTH + 2 * MESO_PAD)
+					continue;
+
+				// 微觀區間 [lo,hi]（車道參數 s）
+				double pad = MESO_PAD / minLen;
+				List<double[]> keep = new ArrayList<>();
+				keep.add(new double[] { 0, pad });
+				keep.add(new double[] { 1 - pad, 1 });
+				for (Lane l : group) {
+					if (l.spawn)
+						keep.add(new double[] { 0, 0.08 + pad });
+					if (l.slipEntry != null)
+						keep.add(new double[] { 0, 0.2 + pad });
+					if (l.loopEntry != null)
+						keep.add(new double[] { 0.65 - pad, 1 });
+					for (double s : mergeS.get(l.id))
+						keep.add(new double[] { s - pad, s + pad });
+				}
+				keep.sort((x, y) -> Double.compare(x[0], y[0]));
+				double bestLo = 0, bestHi = 0, reach = 0;
+				for (double[] k : keep) {
+					if (k[0] - reach > bestHi - bestLo) {
+						bestLo = reach;
+						bestHi = k[0];
+					}
+					reach = Math.max(reach, k[1]);
+				}
+				if ((bestHi - bestLo) * minLen < MESO_MIN_LENGTH)
+					continue;
+				for (Lane l : group) {
+					MesoLink m = new MesoLink(l, bestLo, bestHi, Math.min(v0, speedLimit(l)), T, s0);
+					mesoLinks.add(m);
+					mesoLinkOf[l.id] = m;
+				}
+			}
+			if (mesoAheadS.length < lanes.size())
+				mesoAheadS = new double[lanes.size()];
+		}
+
+		/**
+		 * 推進所有中觀路段：先找出每條車道中觀出口下游最近的微觀車（決定出口能否放行），
+		 * 再逐段推進。回傳本步要以微觀模擬的車（不在任何中觀佇列裡的車，依 cars 原順序）。
+		 */
+		List<Car> stepMeso(double dt) {
+			Arrays.fill(mesoAheadS, Double.POSITIVE_INFINITY);
+			for (Car c : cars) {
+				MesoLink m = c.meso == null ? mesoLinkOf[c.lane.id] : null;
+				if (m != null && c.s >= m.sOut && c.s < mesoAheadS[c.lane.id])
+					mesoAheadS[c.lane.id] = c.s;
+			}
+			for (MesoLink m : mesoLinks)
+				m.advance(simTime, dt, mesoAheadS[m.lane.id]);
+			micro.clear();
+			for (Car c : cars)
+				if (c.meso == null)
+					micro.add(c);
+			return micro;
+		}
+
+		/** 微觀車推進後落在中觀範圍內就轉入；佇列已滿則停在入口前等空位。*/
+		void enterMeso(Car c) {
+			MesoLink m = mesoLinkOf[c.lane.id];
+			if (m == null || c.exited || c.s < m.sIn || c.s >= m.sOut)
+				return;
+			if (!m.full()) {
+				m.admit(c, simTime);
+				return;
+			}
+			c.s = c.sPrev = Math.max(0, m.sIn - 1e-6);
+			c.v = 0;
+		}
+
+		/**
+		 * 車道種類、下一段與匝道入口就緒後，一次算出每條 Lane 的衍生資訊（有限段、併入表、入口位置、速度上限），
+		 * 讓每幀的路由邏輯只需讀欄位，不再比對字串或線性搜尋。
+		 */
+		void resolveLaneMeta() {
+			spawnLanes.clear();
+			for (int i = 0; i < lanes.size(); i++) {
+				Lane l = lanes.get(i);
+				l.id = i;
+				l.mainline = (l.kind == LaneKind.MAINLINE);
+				l.finite = l.next.length > 0;
+				l.slipEdge = l.loopEdge = null;
+
+				// 每條 routeGraph 邊的併入表：段尾 [0.7,1] 投影到下一段
+				l.nextEdge = new MergeEdge[l.next.length];
+				for (int k = 0; k < l.next.length; k++)
+					l.nextEdge[k] = buildMergeEdge(l, l.next[k], 0.7, 1.0);
+
+				if (l.spawn)
+					spawnLanes.add(l);
+
+				// 把匝道入口起點的一小段（s≈0.02）投影到主線，當作主線上的入口參考位置
+				if (l.slipEntry != null) {
+					l.slipEntryS = projectPointToPathS(l.path, l.slipEntry.path.pointAt(0.02));
+					l.slipEdge = buildMergeEdge(l, l.slipEntry, 0.0, 0.2);
+				}
+				if (l.loopEntry != null) {
+					l.loopEntryS = projectPointToPathS(l.path, l.loopEntry.path.pointAt(0.02));
+					l.loopEdge = buildMergeEdge(l, l.loopEntry, 0.65, 1.0);
+				}
+			}
+			// 速度上限依賴下一段資訊，需在 next 全部就緒後再算
+			for (Lane l : lanes)
+				l.vLimit = computeSpeedLimit(l);
+		}
+
+		/** 建立 from→to 的併入表：交點 s 與 from 上 [fromLo,fromHi] 投影到 to 的取樣。*/
+		MergeEdge buildMergeEdge(Lane from, Lane to, double fromLo, double fromHi) {
+			double[] projS = new double[MergeEdge.SAMPLES + 1];
+			for (int i = 0; i <= MergeEdge.SAMPLES; i++) {
+				double sf = fromLo + (fromHi - fromLo) * i / MergeEdge.SAMPLES;
+				projS[i] = projectPointToPathS(to.path, from.path.pointAt(sf));
+			}
+			return new MergeEdge(from, to, mergeSAtIntersection(from.path, to.path), fromLo, fromHi, projS);
+		}
+
+		/** 幫助函式：將名稱前綴相符的車道連成 from → to（以 Lane 為 key/value）。 */
+		void connect(String fromName, String toName) {
+			Lane from = findLaneByName(fromName);
+			Lane to = findLaneByName(toName);
+			if (from != null && to != null) {
+				routeGraph.get(from).add(to);
+			}
+		}
+
+		/** 以名稱前綴尋找第一個符合的 Lane。 */
+		Lane findLaneByName(String namePrefix) {
+			for (Lane l : lanes) {
+				if (l.path.name.startsWith(namePrefix))
+					return l;
+			}
+			return null;
+		}
+
+		/**
+		 * 車輛在目前車道上下一個 followRoute 可能有作用的位置（對應 followRoute 的分支結構）：
+		 * 已在決策區內回傳 -∞（每步都要評估），區間之間回傳區間起點，本車道不會再有決策則回傳 +∞。
+		 * 車道改變或 s 回退時由呼叫端把 nextDecisionS 設為 -∞ 觸發重算。
+		 */
+		double nextDecisionS(Car c) {
+			Lane l = c.lane;
+			if (l.finite) {
+				if (c.s < 0.7)
+					return 0.7;                                    // 段尾併入區
+				if (l.mainline && c.s > 0.73)
+					return Double.POSITIVE_INFINITY;               // 主線過了併入窗，直到回繞
+				return Double.NEGATIVE_INFINITY;
+			}
+			if (!l.path.isStraight || !wantsRamp(c))
+				return Double.POSITIVE_INFINITY;                   // 不走匝道：本車道沒有決策點
+			boolean loop = l.loopEntry != null && routeAllows(c, l.loopEntry);
+			if (c.s < 0.2 && l.slipEntry != null && routeAllows(c, l.slipEntry))
+				return Double.NEGATIVE_INFINITY;                   // 外側直通匝道入口區
+			if (c.s < 0.65)
+				return loop ? 0.65 : Double.POSITIVE_INFINITY;
+			return loop ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY; // 環道入口區
+		}
+
+		/** 起訖需求下路徑表給的下一個節點；隨機繞行的車（dest < 0）、已在目的地或無路可到時為 NONE。*/
+		int nextHop(Car c) {
+			return c.dest < 0 ? RouteTable.NONE : routes.next(routes.nodeOf[c.lane.id], c.dest);
+		}
+
+		/** 路由是否允許從目前車道接到 to：隨機繞行的車一律允許，有目的地的車只接最短路徑上的下一個節點。*/
+		boolean routeAllows(Car c, Lane to) {
+			return c.dest < 0 || (to != null && routes.nodeOf[to.id] == nextHop(c));
+		}
+
+		/** 主線上是否要找匝道入口：隨機繞行看 takeRamp，有目的地看下一個節點是否為本主線的匝道入口。*/
+		boolean wantsRamp(Car c) {
+			if (c.dest < 0)
+				return c.takeRamp;
+			return routeAllows(c, c.lane.slipEntry) || routeAllows(c, c.lane.loopEntry);
+		}
+
+		/** 段尾要接的 next 索引：隨機繞行固定第一條；有目的地取路徑上的那條，主線不在路徑上則回傳 -1（直行）。*/
+		int routeEdge(Car c) {
+			if (c.dest < 0)
+				return 0;
+			Lane[] next = c.lane.next;
+			for (int k = 0; k < next.length; k++)
+				if (routeAllows(c, next[k]))
+					return k;
+			return c.lane.mainline ? -1 : 0;
+		}
+
+		/**
+		 * 依決策與安全距離將車輛切換路段：
+		 * - 若車輛在直線且 takeRamp=true，於末端附近嘗試切到 entry（通過 canMergeInto）
+		 * - 若車輛已在 entry / ramp / exit，於段尾嘗試接到下一段（通過 canMergeInto）
+		 */
+		void followRoute(Car c, double dt) {
+			
+			// ★ 路段切換冷卻中就跳過，避免連續兩次
+	    if (c.routeCooldown > 0) return;
+			
+			// A) 已在 entry/ramp/exit/connector：用 routeGraph 串接
+			if (c.lane.finite) {
+				if (c.s >= 0.7) {
+					
+					if (c.lane.mainline && c.s > 0.73) {
+						return;
+					}
+					
+					int k = routeEdge(c);
+					if (k < 0)
+						return; // 路徑不從這裡下主線：直行到段尾
+					MergeEdge edge = c.lane.nextEdge[k];
+					Lane nxt = edge.to;
+
+					// 先用預先算好的投影表估個起點，再在一小段視窗內搜尋可安全插入的 s
+					Double sCand = findSafeAroundSByEdge(c, edge, /*radius=*/0.06, /*samples=*/11);
+					
+					// 判斷是否「卡尾」
+	        boolean atTail = (c.s >= 0.97);
+	        if (atTail) {
+	            c.endHold = Math.min(c.endHold + dt, 5.0); // 依經過時間累積，最多 5 秒
+	            // 不要卡在 0.99~1.00，退回到 0.965，避免被 wrapOrRecycle 硬夾住
+	            c.s = 0.965;
+	            // 給一個「蠕行」速度，避免完全靜止
+	            c.v = Math.max(c.v, 6.0);
+	        } else {
+	            // 離段尾時重置等待
+	            c.endHold = Math.max(0.0, c.endHold - 2.0 * dt);
+	        }
+
+	        double relax = c.endHold / 5.0 * 0.30; // 0~0.30 的放寬
+	        boolean ok = (sCand != null) && gapOK(c, nxt, sCand, relax);
+					
+					if (ok) {
+						// ★ 先記住舊車道
+				    Lane prevLane = c.lane;
+						
+						c.animFromPoint = c.position();
+            c.animFromLane  = null;
+            c.animT         = 0.0;
+						
+            // 先決定插入 s：優先用 from→to 的幾何交點；若找不到就用前面求得的 sCand
+            double sNew = edge.sIntersect;
+
+            // 對所有段一律用 sNew（不用再特判 _off，也不用 1 - sCand）
+            c.lane = nxt;
+            c.s = Math.max(0.0, Math.min(1.0, sNew));
+            profiler.merges++;
+						
+						// ★ 啟動路段切換冷卻，避免下一幀再次觸發
+				    c.routeCooldown = 0.60;  // 建議 0.5~0.8 秒，依路段長度可調
+				    c.lastRouteTo = c.lane;  // 記下目標，避免重覆
+				    
+						// ★ 若是從 Ramp_* 移到非 Ramp（例如 Connect_ 或主線），啟動出匝道「鎖＋降速」
+						if (prevLane.kind == LaneKind.RAMP && c.lane.kind != LaneKind.RAMP) {
+							c.rampLockout = Math.max(c.rampLockout, 4.0); // 4 秒內禁上任何匝道（可調 3~6）
+							// 以最後彎道的動態上限當作出匝道初始上限再打折
+							double rampVmax = speedLimit(prevLane);
+							c.postExitVmax = Math.max(12.0, rampVmax * 0.85); // 初始上限：彎道上限的 85%
+							c.postExitCooldown = Math.max(c.postExitCooldown, 2.5); // 緩升 2.5 秒（和 speedLimit(Car) 對應）
+							// 若當前速度超過初始上限，直接夾住
+							c.v = Math.min(c.v, c.postExitVmax);
+						} else {
+	            // 還是沒成功，就保持蠕行但別再推到 s=1
+	            c.s = Math.min(c.s, 0.97);
+	            c.v = Math.max(6.0, c.v * 0.8);
+						}
+				    
+				    return;
+					
+					} else {
+						profiler.failedMerges++;
+						// 停在尾端、保留微速等窗口
+						c.s = 0.992;
+						c.v = Math.max(2.0, c.v * 0.5);
+					}
+				}
+				return;
+			}
+
+			// B) 還在直線（決定是否上匝道）
+			if (!c.lane.path.isStraight)
+			  return;
+			
+			// ★ 出匝道後的鎖：鎖著就完全不考慮上匝道
+			if (c.rampLockout > 0.0)
+			    return;
+
+			// 只有在允許走匝道、且大致靠近交點區域時才評估
+			if (wantsRamp(c)) {
+			  Lane entry = null;
+			  MergeEdge edge = null;
+			  double sEntryOnMain = 0;
+			  
+			  if (c.s < 0.2 && routeAllows(c, c.lane.slipEntry)) {
+			    entry = c.lane.slipEntry;
+			    edge = c.lane.slipEdge;
+			    sEntryOnMain = c.lane.slipEntryS;
+			  }
+			  
+			  if (c.s >= 0.65 && routeAllows(c, c.lane.loopEntry)) {
+			    entry = c.lane.loopEntry;
+			    edge = c.lane.loopEdge;
+			    sEntryOnMain = c.lane.loopEntryS;
+			  }
+
+			  if (entry != null) {
+			    // ---- 新增：如果本圈已經越過該入口，直接不再嘗試 ----
+			    // sEntryOnMain：匝道入口在主線上的參考位置（resolveLaneMeta 預先投影）
+			    boolean sameLapNoWrap = (c.s >= c.sPrev); // 沒 wrap，表示同一圈正在前進
+			    if (sameLapNoWrap && c.s > sEntryOnMain + 0.01) {
+			      c.passedEntryThisLap = true; // 記錄已經通過入口
+			    }
+			    if (c.passedEntryThisLap) {
+			      return; // 本圈已過入口，不再併入
+			    }
+
+			    // ---- 仍可嘗試：用投影視窗找安全插入點，且要求「入口在車前方」----
+			    Double sCand = findSafeAroundSByEdge(c, edge, 0.06, 11);
+			    
+			    if (sCand != null) {
+			      // 入口是否在前方（而不是在車後方）：用主線 heading 與「車->入口點」的內積作判斷
+			      Point2D now = c.position();
+			      Point2D pin = entry.path.pointAt(sCand);
+			      double hx = Math.cos(c.heading()), hy = Math.sin(c.heading());
+			      double vx = pin.getX() - now.getX(), vy = pin.getY() - now.getY();
+			      boolean ahead = (hx * vx + hy * vy) > 0;
+
+			      if (ahead && gapOK(c, entry, sCand)) {
+			        Lane from = c.lane;
+			        c.lane = entry;
+			        c.s = sCand;
+			        profiler.merges++;
+
+			        // 一旦成功上匝道，避免立刻又嘗試其他跨段
+			        c.routeCooldown = 0.60;
+
+			        if (!entry.path.isStraight) {
+			          c.v = Math.min(Math.max(c.v, 8), speedLimit(entry) * rampEntryFactor);
+			          c.animFromLane = null;
+			          c.animFromPoint = now; // 視覺平滑：世界座標補間
+			          c.animT = 0.0;
+			        } else {
+			          if (c.v < 8) c.v = 8;
+			          if (from.path.isStraight) {
+			            c.animFromLane = from; c.animFromPoint = null; c.animT = 0.0;
+			          } else {
+			            c.animFromLane = null; c.animFromPoint = now;  c.animT = 0.0;
+			          }
+			        }
+			      } else {
+			        profiler.failedMerges++;
+			        c.s = 0.992;
+			        c.v = Math.max(2.0, c.v * 0.5);
+			      }
+			    } else {
+			      profiler.failedMerges++;
+			      c.s = 0.992;
+			      c.v = Math.max(2.0, c.v * 0.5);
+			    }
+			  }
+			}
+
+		}
+		
+		// 依車道性質回傳速度上限（resolveLaneMeta 預先算好）
+		double speedLimit(Lane lane) {
+			if (lane == null || lane.path == null)
+				return v0 * 0.8;
+			return lane.vLimit;
+		}
+
+		// NEW: 依車道性質計算速度上限；直線回傳 v0 的微幅放寬，弧線以 sqrt(a_lat_max * R)
+		double computeSpeedLimit(Lane lane) {
+
+			// 彎道：以向心加速度上限推得最高速
+			if (!lane.path.isStraight && lane.path.radius != null) {
+				double R = Math.max(1.0, lane.path.radius);
+				double vmax = Math.sqrt(aLatMax * R);
+				return Math.max(10.0, Math.min(v0, vmax)); // 不高於直線巡航，不低於基本值
+			}
+
+			// 直線：若「下一段」是彎道，則在直線上就預先採用彎道上限（含進彎 buffer）
+			if (lane.next.length > 0) {
+				Lane first = lane.next[0];
+				if (first != null && first.path != null && !first.path.isStraight && first.path.radius != null) {
+					double Rnext = Math.max(1.0, first.path.radius);
+					double preRamp = Math.sqrt(aLatMax * Rnext) * rampEntryFactor; // 進彎預降速
+					return Math.max(10.0, Math.min(v0, preRamp));
+				}
+			}
+
+			// 一般直線
+			double v = v0 * 0.8;
+
+			// ★ 若是連接段（名稱以 Connect_ 開頭），再稍微壓一點
+			if (lane.kind == LaneKind.CONNECTOR) {
+			    v = Math.min(v * 0.7, v0 * 0.6);
+			}
+
+			return v;
+		}
+		
+		// ★ 依車輛狀態調整實際上限（出匝道緩升 & 匹配連接段/彎道）
+		double speedLimit(Car c) {
+			double base = speedLimit(c.lane); // 先用你原本的（彎道 √(aLatMax*R) / 直線 v0 或預降速）
+
+			// 連接段（Connect_）本身再保守一點，避免剛出彎就拉滿
+			if (c.lane.kind == LaneKind.CONNECTOR) {
+				base = Math.min(base, v0 * 0.65); // 約 65% 巡航
+			}
+
+			// 出匝道冷卻：用 postExitVmax 緩升到 base
+			if (c.postExitCooldown > 0.0) {
+				// t=0 -> postExitVmax；t=1 -> base
+				double total = 2.5; // 冷卻總時長（秒），可微調 2~4s
+				double elapsed = Math.min(total, (total - c.postExitCooldown));
+				double t = Math.max(0.0, Math.min(1.0, elapsed / total));
+				double eased = c.postExitVmax + (base - c.postExitVmax) * t; // 線性即可，想更平滑可用 ease 函數
+				base = Math.min(base, eased);
+			}
+
+			return base;
+		}
+
+		/** 建立道路幾何（主幹直線 + 四個匝道弧線 + 進出連接段），並建立對應的 Lane 與相鄰關係。 */
+		void buildGeometry() {
+			int edge = EDGE;
+			// 主幹道：東西向、南北向，各方向兩車道（以中心線平移得到內外側）
+			RoadPath eastCenter = RoadPath.straight(edge, cy + laneWidth*1.2, W-edge, cy + laneWidth*1.2, "EW_East_C");
+			RoadPath eastLeft   = eastCenter.offset( laneWidth/2);   // 東向內側
+			RoadPath eastRight  = eastCenter.offset(-laneWidth/2);   // 東向外側
+
+			RoadPath westCenter = RoadPath.straight(W-edge, cy - laneWidth*1.2, edge, cy - laneWidth*1.2, "EW_West_C");
+			RoadPath westLeft   = westCenter.offset( laneWidth/2);   // 西向內側
+			RoadPath westRight  = westCenter.offset(-laneWidth/2);   // 西向外側
+
+			RoadPath southCenter = RoadPath.straight(cx - laneWidth*1.2, edge, cx - laneWidth*1.2, H-edge, "NS_South_C");
+			RoadPath southLeft   = southCenter.offset( laneWidth/2); // 南向內側
+			RoadPath southRight  = southCenter.offset(-laneWidth/2); // 南向外側
+
+			RoadPath northCenter = RoadPath.straight(cx + laneWidth*1.2, H-edge, cx + laneWidth*1.2, edge, "NS_North_C");
+			RoadPath northLeft   = northCenter.offset( laneWidth/2); // 北向內側
+			RoadPath northRight  = northCenter.offset(-laneWidth/2); // 北向外側
+
+			// 四個匝道（外圓弧）
+			RoadPath r1 = RoadPath.arc(cx + laneWidth, cy + laneWidth, outerRadius, 30, 60, true, "Ramp_EB_to_NB");   //Q4
+			RoadPath r2 = RoadPath.arc(cx + laneWidth, cy - laneWidth, outerRadius, 300, 330, true, "Ramp_NB_to_WB"); //Q1
+			RoadPath r3 = RoadPath.arc(cx - laneWidth, cy - laneWidth, outerRadius, 210, 240, true, "Ramp_WB_to_SB"); //Q2
+			RoadPath r4 = RoadPath.arc(cx - laneWidth, cy + laneWidth, outerRadius, 120, 150, true, "Ramp_SB_to_EB"); //Q3
+
+			// 各匝道的進入／離開連接線（簡化為直線）
+			double a0 = Math.toRadians(30);
+			double a1 = Math.toRadians(60);
+			RoadPath r1Entry = RoadPath.straight(edge + (W - edge * 2)*0.7, cy + laneWidth*1.7, 
+			                                     cx + laneWidth + outerRadius * Math.cos(a0), cy + laneWidth + outerRadius * Math.sin(a0), "Connect_EB_R1");
+			RoadPath r1Exit  = RoadPath.straight(cx + laneWidth + outerRadius * Math.cos(a1), cy + laneWidth + outerRadius * Math.sin(a1), 
+			                                     cx + laneWidth*1.7, edge + (H - edge * 2) * 0.7, "Connect_R1_NB");
+
+			a0 = Math.toRadians(300); 
+			a1 = Math.toRadians(330);
+			RoadPath r2Entry = RoadPath.straight(cx + laneWidth*1.7, edge + (H - edge * 2) * 0.3,  
+			                                     cx + laneWidth + outerRadius * Math.cos(a0), cy - laneWidth + outerRadius * Math.sin(a0), "Connect_NB_R2");
+			RoadPath r2Exit  = RoadPath.straight(cx + laneWidth + outerRadius * Math.cos(a1), cy - laneWidth + outerRadius * Math.sin(a1),
+			                                     edge + (W - edge * 2) * 0.7, cy - laneWidth*1.7, "Connect_R2_WB");
+
+			a0 = Math.toRadians(210); 
+			a1 = Math.toRadians(240);
+			RoadPath r3Entry = RoadPath.straight(edge + (W - edge * 2)*0.3, cy - laneWidth*1.7,  
+			                                     cx - laneWidth + outerRadius * Math.cos(a0), cy - laneWidth + outerRadius * Math.sin(a0), "Connect_WB_R3");
+			RoadPath r3Exit  = RoadPath.straight(cx - laneWidth + outerRadius * Math.cos(a1), cy - laneWidth + outerRadius * Math.sin(a1), 
+			                                     cx - laneWidth*1.7, edge + (H - edge * 2) * 0.3, "Connect_R3_SB");
+
+			a0 = Math.toRadians(120); 
+			a1 = Math.toRadians(150);
+			RoadPath r4Entry = RoadPath.straight(cx - laneWidth*1.7, edge + (H - edge * 2) * 0.7, 
+			                                     cx - laneWidth + outerRadius * Math.cos(a0), cy + laneWidth + outerRadius * Math.sin(a0), "Connect_SB_R4");
+			RoadPath r4Exit  = RoadPath.straight(cx - laneWidth + outerRadius * Math.cos(a1), cy + laneWidth + outerRadius * Math.sin(a1), 
+			                                     edge + (W - edge * 2)*0.3, cy + laneWidth*1.7, "Connect_R4_EB");
+
+			// 將所有路徑加入清單（繪圖時用）
+			Collections.addAll(paths, eastLeft, eastRight, westLeft, westRight,
+					southLeft, southRight, northLeft, northRight,
+					r1Entry, r1, r1Exit,
+					r2Entry, r2, r2Exit,
+					r3Entry, r3, r3Exit,
+					r4Entry, r4, r4Exit);
+
+			// ---- 建立 Lane 實例（保留參考，方便設 adjacents）----
+			Lane lnEastLeft  = new Lane(eastLeft);   Lane lnEastRight  = new Lane(eastRight);
+			Lane lnWestLeft  = new Lane(westLeft);   Lane lnWestRight  = new Lane(westRight);
+			Lane lnSouthLeft = new Lane(southLeft);  Lane lnSouthRight = new Lane(southRight);
+			Lane lnNorthLeft = new Lane(northLeft);  Lane lnNorthRight = new Lane(northRight);
+
+			Lane lnR1Entry = new Lane(r1Entry); Lane lnR1 = new Lane(r1); Lane lnR1Exit = new Lane(r1Exit);
+			Lane lnR2Entry = new Lane(r2Entry); Lane lnR2 = new Lane(r2); Lane lnR2Exit = new Lane(r2Exit);
+			Lane lnR3Entry = new Lane(r3Entry); Lane lnR3 = new Lane(r3); Lane lnR3Exit = new Lane(r3Exit);
+			Lane lnR4Entry = new Lane(r4Entry); Lane lnR4 = new Lane(r4); Lane lnR4Exit = new Lane(r4Exit);
+
+			// 放入列表
+			Collections.addAll(lanes,
+					lnEastLeft, lnEastRight,
+					lnWestLeft, lnWestRight,
+					lnSouthLeft, lnSouthRight,
+					lnNorthLeft, lnNorthRight,
+					lnR1Entry, lnR1, lnR1Exit,
+					lnR2Entry, lnR2, lnR2Exit,
+					lnR3Entry, lnR3, lnR3Exit,
+					lnR4Entry, lnR4, lnR4Exit);
+
+			// ---- 設定直線雙線的左右相鄰（僅直線允許 MOBIL 變道）----
+			lnEastLeft.adjRight = lnEastRight; lnEastRight.adjLeft = lnEastLeft;
+			lnWestLeft.adjRight = lnWestRight; lnWestRight.adjLeft = lnWestLeft;
+			lnSouthLeft.adjRight = lnSouthRight; lnSouthRight.adjLeft = lnSouthLeft;
+			lnNorthLeft.adjRight = lnNorthRight; lnNorthRight.adjLeft = lnNorthLeft;
+
+			// ===== 外側右轉匝道（依圖片方向）=====
+			// 1) EB → SB（第4象限，右下）
+			Point2D ebStart = eastCenter.pointAt(slipInset);
+			Point2D sbEnd   = southCenter.pointAt(slipFar);
+			RoadPath sr1Entry = RoadPath.straight(ebStart.getX(), ebStart.getY(), ebStart.getX()+od, ebStart.getY()+od, "Connect_EB_SR1");
+			RoadPath sr1     = RoadPath.straight(ebStart.getX()+od, ebStart.getY()+od, sbEnd.getX()-od, sbEnd.getY()-od, "Slip_EB_to_SB");
+			RoadPath sr1Exit  = RoadPath.straight(sbEnd.getX()-od, sbEnd.getY()-od, sbEnd.getX(), sbEnd.getY(), "Connect_SR1_SB");
+
+			// 2) NB → EB（第1象限，右上）
+			Point2D nbStart = northCenter.pointAt(slipInset);
+			Point2D ebEnd   = eastCenter.pointAt(slipFar);
+			RoadPath sr2Entry = RoadPath.straight(nbStart.getX(), nbStart.getY(), nbStart.getX()+od, nbStart.getY()-od, "Connect_NB_SR2");
+			RoadPath sr2     = RoadPath.straight(nbStart.getX()+od, nbStart.getY()-od, ebEnd.getX()-od, ebEnd.getY()+od, "Slip_NB_to_EB");
+			RoadPath sr2Exit  = RoadPath.straight(ebEnd.getX()-od, ebEnd.getY()+od, ebEnd.getX(), ebEnd.getY(), "Connect_SR2_EB");
+
+			// 3) WB → NB（第2象限，左上）
+			Point2D wbStart = westCenter.pointAt(slipInset);
+			Point2D nbEnd   = northCenter.pointAt(slipFar);
+			RoadPath sr3Entry = RoadPath.straight(wbStart.getX(), wbStart.getY(), wbStart.getX()-od, wbStart.getY()-od, "Connect_WB_SR3");
+			RoadPath sr3     = RoadPath.straight(wbStart.getX()-od, wbStart.getY()-od, nbEnd.getX()+od, nbEnd.getY()+od, "Slip_WB_to_NB");
+			RoadPath sr3Exit  = RoadPath.straight(nbEnd.getX()+od, nbEnd.getY()+od, nbEnd.getX(), nbEnd.getY(), "Connect_SR3_NB");
+
+			// 4) SB → WB（第3象限，左下）
+			Point2D sbStart = southCenter.pointAt(slipInset);
+			Point2D wbEnd   = westCenter.pointAt(slipFar);
+			RoadPath sr4Entry = RoadPath.straight(sbStart.getX(), sbStart.getY(), sbStart.getX()-od, sbStart.getY()+od, "Connect_SB_SR4");
+			RoadPath sr4     = RoadPath.straight(sbStart.getX()-od, sbStart.getY()+od, wbEnd.getX()+od, wbEnd.getY()-od, "Slip_SB_to_WB");
+			RoadPath sr4Exit  = RoadPath.straight(wbEnd.getX()+od, wbEnd.getY()-od, wbEnd.getX(), wbEnd.getY(), "Connect_SR4_WB");
+
+			// 放進 paths
+			Collections.addAll(paths,
+			    sr1Entry, sr1, sr1Exit,
+			    sr2Entry, sr2, sr2Exit,
+			    sr3Entry, sr3, sr3Exit,
+			    sr4Entry, sr4, sr4Exit);
+			
+			// 包成 Lane
+			Lane lnSR1Entry = new Lane(sr1Entry), lnSR1 = new Lane(sr1), lnSR1Exit = new Lane(sr1Exit);
+			Lane lnSR2Entry = new Lane(sr2Entry), lnSR2 = new Lane(sr2), lnSR2Exit = new Lane(sr2Exit);
+			Lane lnSR3Entry = new Lane(sr3Entry), lnSR3 = new Lane(sr3), lnSR3Exit = new Lane(sr3Exit);
+			Lane lnSR4Entry = new Lane(sr4Entry), lnSR4 = new Lane(sr4), lnSR4Exit = new Lane(sr4Exit);
+			
+			// 進 lanes
+			Collections.addAll(lanes,
+			    lnSR1Entry, lnSR1, lnSR1Exit,
+			    lnSR2Entry, lnSR2, lnSR2Exit,
+			    lnSR3Entry, lnSR3, lnSR3Exit,
+			    lnSR4Entry, lnSR4, lnSR4Exit);
+
+			// 匝道不設相鄰（不變道）；直線主線相鄰設定保持原樣
+		}
+
+		// 幫手：在直線 RoadPath 上取得某個 s 的實座標
+//		Point2D ptOn(RoadPath p, double s01) { return p.pointAt(Math.max(0, Math.min(1, s01))); }
+		
+		/**
+		 * 世界更新單步：
+		 * 1) 生成新車 → 2) 建立 QuadTree → 3) 搜尋前後鄰車 → 4) MOBIL 判斷變道 → 5) IDM 加速度與積分 → 6) 推進位置與回收。
+		 */
+		void update(double dt, boolean mobilEnabled) {
+			StepProfiler prof = profiler;
+			prof.begin();
+
+			for (Car c : cars) {
+		    // NEW: 冷卻/動畫時間流逝
+		    if (c.laneCooldown > 0) c.laneCooldown -= dt;
+		    if (c.routeCooldown > 0) c.routeCooldown -= dt;          // ★ 新增
+		    if (c.rampLockout > 0) c.rampLockout -= (dt-2);          // ★ 新增 降慢2s
+		    if (c.postExitCooldown > 0) c.postExitCooldown -= dt;    // ★ 新增
+		    if (c.animFromLane != null) c.animT = Math.min(1.0, c.animT + dt / 0.35); // 0.35s 動畫
+		    // ★ 若使用世界座標補間，一樣推進 animT
+		    if (c.animFromPoint != null) c.animT = Math.min(1.0, c.animT + dt / 0.35);
+		    // 補間結束即清除（原本在 drawCar 內清，繪圖端改為唯讀）
+		    if (c.animT >= 1.0) {
+		    	c.animFromLane = null;
+		    	c.animFromPoint = null;
+		    }
+			}
+			prof.mark(StepProfiler.Phase.COOLDOWN);
+			
+			// 1) 生成車輛（達時間門檻且未達上限）
+			spawnAcc += dt;
+			if (cars.size() < maxCars && spawnAcc >= spawnEverySec) {
+				spawnAcc = 0;
+				spawnCar();
+			}
+			prof.mark(StepProfiler.Phase.SPAWN);
+
+			// 1b) 混合模式：推進中觀路段上的車並放行到出口的車；之後各階段只處理微觀車
+			simTime += dt;
+			List<Car> active = hybrid ? stepMeso(dt) : cars;
+			prof.mark(StepProfiler.Phase.MESO);
+
+			// 2) 以目前車輛位置重建 QuadTree（便於區域查詢）
+			qt = new QuadTree(worldBounds, 6, 8);
+			for (Car c : active)
+				qt.insert(new QTItem(c.position(), c));
+			if (hybrid)
+				for (MesoLink m : mesoLinks)
+					for (Car c : m.queue) // 只有靠近入口的中觀車會是上游微觀車的前車（佇列尾在後）
+						if ((c.s - m.sIn) * m.lane.path.length < NEIGHBOR_RANGE)
+							qt.insert(new QTItem(c.position(), c));
+			for (Car g : ghosts)
+				qt.insert(new QTItem(g.position(), g));
+			prof.mark(StepProfiler.Phase.QUADTREE);
+
+			// 3) 第一階段：使用 QuadTree 找出各車在同車道/左右車道的前車與後車（近似）
+			Map<Car, NeighborInfo> neigh = new ConcurrentHashMap<>();
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (Car c : active) {
+				tasks.add(() -> {
+					neigh.put(c, findNeighbors(c));
+					return null;
+				});
+			}
+			invokeAll(tasks); // 平行化鄰近搜尋
+			prof.mark(StepProfiler.Phase.NEIGHBORS);
+
+			// 4) 第二階段：MOBIL 變換車道（順序處理以避免衝突；隨機順序減少偏誤）
+			if (mobilEnabled)
+				laneChangeRound(active, neigh);
+			prof.mark(StepProfiler.Phase.MOBIL);
+
+			// 5) 第三階段：依 IDM 計算加速度並積分速度與參數 s
+			//    只讀 current（c.s / c.v），只寫 next（c.sNext / c.vNext），不會讀到半更新的狀態
+			if (integrator == Integrator.EULER) {
+				// 收集成基本型別陣列後以批次核心一次算完（每車只需數奈秒，不值得分派到執行緒池）
+				int n = active.size();
+				ensureKernelCapacity(n);
+				for (int i = 0; i < n; i++) {
+					Car c = active.get(i);
+					NeighborInfo N = neigh.get(c);
+					Car leader = (N != null ? N.leaderSame : null);
+					kV[i] = c.v;
+					kGap[i] = (leader != null ? N.leaderSameDist : Double.POSITIVE_INFINITY);
+					kVLead[i] = (leader != null ? leader.v : c.v);
+				}
+				accIDMBatch(kV, kGap, kVLead, kAcc, n);
+				for (int i = 0; i < n; i++)
+					integrateEuler(active.get(i), kAcc[i], dt);
+			} else {
+				// 彈道積分含子步，成本因車而異，維持平行化
+				tasks.clear();
+				for (Car c : active) {
+					tasks.add(() -> {
+						stepIDM(c, neigh.get(c), dt);
+						return null;
+					});
+				}
+				invokeAll(tasks);
+			}
+			if (safety != null)
+				safety.capture(active, neigh, dt); // 替代安全指標：提交前抄下間距、速度與本步加速度
+			for (Car c : active)
+				c.swapState(); // 屏障之後一次提交 next → current
+
+			// 6) 單次推進位置，並交給 wrapOrRecycle 與 followRoute 處理
+			//    （BALLISTIC 的位移已在 stepIDM 一次算完，不再額外推進）
+			double hint = dtMax;
+			int exited = 0;
+			for (Car c : active) {
+				double sPrev = c.s; // 先存起來
+				if (integrator == Integrator.EULER)
+					c.advance(dt);
+				// 虛擬偵測器：本步從步首 c.sPrev 前進到 s 時跨過偵測點即計為一次通過
+				// （s 在 stepIDM + swapState 時已前進過，不能用上面剛存的 sPrev）
+				for (LoopDetector d : c.lane.detectors)
+					if (c.sPrev < d.s && c.s >= d.s)
+						d.hit(c.v);
+				wrapOrRecycle(c);
+				if (c.exited) {
+					exited++;
+					continue;
+				}
+				if (c.s < sPrev)
+					c.nextDecisionS = Double.NEGATIVE_INFINITY; // s 回退（回繞／夾回）：決策點需重排
+				// 只有到達下一個決策點的車才跑完整的路由邏輯（大多數車一次比較就略過）；
+				// 剛越界到他區車道的車交由該區決策
+				if (c.s >= c.nextDecisionS && (ownedLanes == null || ownedLanes[c.lane.id])) {
+					followRoute(c, dt);
+					c.nextDecisionS = nextDecisionS(c);
+				}
+				hint = Math.min(hint, c.dtHint);
+
+				// 若這條主線是「無限直線」（沒有下一段），s 從大變小代表 wrap 了一圈
+				if (!c.lane.finite && c.lane.path.isStraight) {
+					if (c.s < sPrev) {
+						c.passedEntryThisLap = false; // 新的一圈，解鎖
+					}
+				}
+				c.sPrev = c.s; // 更新上一幀進度
+				if (hybrid)
+					enterMeso(c);
+			}
+			if (exited > 0)
+				recycleExited();
+			detectors.tick(dt);
+			dtHint = hint;
+			prof.mark(StepProfiler.Phase.IDM_ROUTE);
+
+			// 6b) 替代安全指標（開啟時）：平行計算 TTC／DRAC／急煞並累加到各車道
+			if (safety != null)
+				safety.observe(this);
+			prof.mark(StepProfiler.Phase.SAFETY);
+
+			// 7) 發佈本幀的繪圖快照（繪圖端不需鎖定 cars）
+			publishFrame();
+			prof.mark(StepProfiler.Phase.PUBLISH);
+			prof.end(cars.size());
+		}
+
+		// 批次 IDM 的輸入／輸出陣列（只由模擬執行緒使用）
+		private double[] kV = new double[0], kGap = new double[0], kVLead = new double[0], kAcc = new double[0];
+
+		private void ensureKernelCapacity(int n) {
+			if (kV.length >= n)
+				return;
+			int cap = Math.max(n, kV.length * 2);
+			kV = new double[cap];
+			kGap = new double[cap];
+			kVLead = new double[cap];
+			kAcc = new double[cap];
+		}
+
+		/** 以目前車輛狀態填寫三重緩衝的後台 RenderFrame 並發佈。*/
+		void publishFrame() {
+			int n = cars.size();
+			RenderFrame f = frames.back();
+			f.ensureCapacity(n);
+			for (int i = 0; i < n; i++) {
+				Car c = cars.get(i);
+				poseInto(f, i, c.lane, c.s, c.animFromLane, c.animFromPoint, c.animT);
+				f.color[i] = c.color;
+			}
+			f.count = n;
+			f.spawnEverySec = spawnEverySec;
+			f.buildIndex(roadIndex);
+			frames.publish();
+		}
+
+		/** 以軌跡紀錄的一幀（而非模擬狀態）填寫並發佈 RenderFrame，供重播使用。*/
+		void publishFrame(CarRecords r) {
+			RenderFrame f = frames.back();
+			f.ensureCapacity(r.n);
+			for (int i = 0; i < r.n; i++) {
+				Lane from = null;
+				Point2D fromPt = null;
+				if (r.animKind[i] == CarRecords.ANIM_LANE)
+					from = lanes.get(r.animFrom[i]);
+				else if (r.animKind[i] == CarRecords.ANIM_POINT)
+					fromPt = new Point2D.Double(r.animX(i), r.animY(i));
+				poseInto(f, i, lanes.get(r.lane[i]), r.s(i), from, fromPt, r.animT(i));
+				f.color[i] = r.color(i);
+			}
+			f.count = r.n;
+			f.spawnEverySec = spawnEverySec;
+			f.buildIndex(roadIndex);
+			frames.publish();
+		}
+
+		/** 計算車輛繪圖位置與朝向（含變道補間），寫入 f 的第 i 筆。*/
+		static void poseInto(RenderFrame f, int i, Lane lane, double s, Lane animFromLane, Point2D animFromPoint, double animT) {
+			Point2D pt;
+			double h;
+			if (animFromPoint != null && animT < 1.0) {
+				Point2D p1 = lane.path.pointAt(s); // 新車道上的當前位置
+				pt = new Point2D.Double(RoadPath.lerp(animFromPoint.getX(), p1.getX(), animT), RoadPath.lerp(animFromPoint.getY(), p1.getY(), animT));
+				h = lane.path.headingAt(s); // 方向以目標車道為準
+			} else if (animFromLane != null && animT < 1.0) {
+				Point2D p0 = animFromLane.path.pointAt(s);
+				Point2D p1 = lane.path.pointAt(s);
+				pt = new Point2D.Double(RoadPath.lerp(p0.getX(), p1.getX(), animT), RoadPath.lerp(p0.getY(), p1.getY(), animT));
+				double h0 = animFromLane.path.headingAt(s);
+				double h1 = lane.path.headingAt(s);
+				h = h0 + (h1 - h0) * animT;
+			} else {
+				pt = lane.path.pointAt(s);
+				h = lane.path.headingAt(s);
+			}
+			f.x[i] = pt.getX();
+			f.y[i] = pt.getY();
+			f.heading[i] = h;
+		}
+
+		/** 將任務提交至執行緒池並等待完成（無執行緒池時直接依序執行）。 */
+		void invokeAll(List<Callable<Void>> tasks) {
+			try {
+				if (pool == null) {
+					for (Callable<Void> t : tasks)
+						t.call();
+				} else {
+					pool.invokeAll(tasks);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * 直線道：s 超出 [0,1) 時循環回包（實現無限長直線效果）。
+		 * 匝道弧線：s>=1 時回到 0（形成回圈）。
+		 */
+		void wrapOrRecycle(Car c) {
+			// 只要這條 Lane 在 routeGraph 中「有」下一段，表示它是有限段（entry/ramp/exit/connector）
+			boolean finiteSegment = c.lane.finite;
+			
+			if (c.lane.path.isStraight) { //連結型態為直線
+				if (finiteSegment) {
+					// NEW: 有下一段 → not wrap，夾住在尾端附近等合流
+					if (c.s > 0.995) {
+						if (c.lane.mainline && exitAtSink(c))
+							return;
+						// 溫和降速，但保留最小蠕行速度
+		        c.v = Math.max(6.0, c.v * 0.85);
+		        c.s -= 1;
+		        continueOnto(c);
+					}
+				} else {
+					// 無下一段的無限直線（主線）才循環
+					if (c.s > 1.0) {
+						if (exitAtSink(c))
+							return;
+						c.s = 0;
+						continueOnto(c);
+					} else if (c.s < 0)
+						c.s = 0;
+				}
+			} else {
+				// 弧線（匝道本身通常也有下一段），同理：有下一段就別回繞
+				if (finiteSegment) {
+					if (c.s > 0.995)
+						c.s = 0.995;
+				} else {
+					if (c.s > 1.0)
+						c.s = 0.0; // 保留原本回圈行為
+				}
+			}
+		}
+
+		/** 有目的地的車開到目的主線段尾（或從這裡已到不了目的地）時標記離開，由 update 收回車輛池。*/
+		boolean exitAtSink(Car c) {
+			if (c.dest < 0 || nextHop(c) != RouteTable.NONE)
+				return false;
+			c.exited = true;
+			return true;
+		}
+
+		/** 移除已離開的車並放回車輛池（池的大小以車輛上限為限）。*/
+		void recycleExited() {
+			cars.removeIf(c -> {
+				if (!c.exited)
+					return false;
+				tripsCompleted++;
+				if (carPool.size() < maxCars)
+					carPool.add(c);
+				return true;
+			});
+		}
+
+		/**
+		 * 直接把 n 台車均勻佈在所有車道上（依可用長度分配、同車道等距；有限段只佈在段尾併入區之前），
+		 * 初速取期望速度與車道上限的八成，並把車輛上限設為 n。取代逐台生成的暖機，讓基準測試能快速建出大規模的世界。
+		 */
+		void populate(int n) {
+			double total = 0;
+			for (Lane l : lanes)
+				total += l.path.length * (l.finite ? 0.7 : 1.0);
+			double spacing = total / n, pos = spacing / 2;
+			for (Lane l : lanes) {
+				double usable = l.path.length * (l.finite ? 0.7 : 1.0);
+				for (; pos < usable && cars.size() < n; pos += spacing) {
+					Car c = obtainCar(l);
+					c.id = nextCarId;
+					nextCarId += carIdStride;
+					c.s = c.sPrev = pos / l.path.length;
+					c.v = 0.8 * Math.min(v0, speedLimit(l));
+					c.color = randomColor(rng);
+					c.takeRamp = rng.nextDouble() < 0.4;
+					cars.add(c);
+				}
+				pos -= usable;
+			}
+			maxCars = n;
+			publishFrame();
+		}
+
+		/** 由車輛池取一台車（池空才配置新的）並重設到 lane 的起始狀態。*/
+		Car obtainCar(Lane lane) {
+			Car c = carPool.poll();
+			if (c == null)
+				return new Car(lane);
+			c.reset(lane);
+			return c;
+		}
+
+		/** 主線回繞時若有接續車道（走廊中的下一個交流道）就換過去，否則留在原車道循環。*/
+		void continueOnto(Car c) {
+			if (c.lane.wrapTo != null)
+				c.lane = c.lane.wrapTo;
+		}
+
+		/**
+		 * 在主幹直線道生成一輛車（初始 s 落在 [0,0.08)）。沒有起訖需求時隨機挑車道並隨機決定是否偏好走匝道；
+		 * 有起訖需求時依流量比例抽一筆，從其起點車行道出發、記下目的地。
+		 */
+		void spawnCar() {
+			if (demand != null && demand.sink.length == 0)
+				return; // 起訖需求中沒有從本世界出發的流量
+			int flow = demand != null ? demand.pick(rng) : -1;
+			Lane lane;
+			if (flow >= 0) {
+				Lane[] starts = demand.origin[flow];
+				lane = starts[rng.nextInt(starts.length)];
+			} else {
+				lane = spawnLanes.get(rng.nextInt(spawnLanes.size()));
+			}
+			Car c = obtainCar(lane);
+			c.id = nextCarId;
+			nextCarId += carIdStride;
+			Random r = vehicleStreams ? new VehicleRandom(streamSeed, c.id) : rng; // 車輛自身的屬性
+			c.s = r.nextDouble() * 0.08;
+			c.v = v0 * (0.4 + 0.2 * r.nextDouble()); // 初速略低於期望速度
+			c.color = randomColor(r);
+			if (flow >= 0)
+				c.dest = demand.sink[flow];
+			else
+				c.takeRamp = (r.nextDouble() < 0.4); // 60% 直行、40% 走匝道（可調整）
+			cars.add(c);
+		}
+
+		/** 產生亮麗的 HSB 顏色當作車色。 */
+		Color randomColor(Random r) {
+			float h = r.nextFloat();
+			float s = 0.6f + r.nextFloat() * 0.3f;
+			float b = 0.75f + r.nextFloat() * 0.2f;
+			return Color.getHSBColor(h, s, b);
+		}
+
+		static final double NEIGHBOR_RANGE = 60; // 鄰車搜尋半徑（px）
+
+		/** 使用 QuadTree 在附近範圍找出可能的前後車（同車道、左右相鄰車道）。*/
+		NeighborInfo findNeighbors(Car me) {
+			Point2D p = me.position();
+			// 以 me 為中心建立查詢矩形（寬高 2×NEIGHBOR_RANGE）
+			Rectangle2D rect = new Rectangle2D.Double(p.getX() - NEIGHBOR_RANGE, p.getY() - NEIGHBOR_RANGE, 2 * NEIGHBOR_RANGE, 2 * NEIGHBOR_RANGE);
+			List<QTItem> list = qt.query(rect);
+
+			Car leaderSame = null;
+			double leaderSameDist = Double.POSITIVE_INFINITY;
+			Car follSame = null;
+			double follSameDist = Double.POSITIVE_INFINITY;
+			Car leaderLeft = null, leaderRight = null, follLeft = null, follRight = null;
+			double ld = 1e9, rd = 1e9, fld = 1e9, frd = 1e9;
+
+			for (QTItem it : list) {
+				Car other = (Car) it.payload;
+				if (other == me)
+					continue;
+				// 同車道：找前車與後車（取最近者）
+				if (other.lane == me.lane) {
+					double d = laneDistanceAhead(me, other);
+					double back = laneDistanceAhead(other, me);
+					if (d >= 0 && d < leaderSameDist) {
+						leaderSameDist = d;
+						leaderSame = other;
+					}
+					if (back >= 0 && back < follSameDist) {
+						follSameDist = back;
+						follSame = other;
+					}
+				} else if (other.lane == me.lane.wrapTo) {
+					// 接續車道上的車：距離跨過本段段尾
+					double d = (1 - me.s) * me.lane.path.length + other.s * other.lane.path.length;
+					if (d < leaderSameDist) {
+						leaderSameDist = d;
+						leaderSame = other;
+					}
+				} else if (other.lane.wrapTo == me.lane) {
+					double back = (1 - other.s) * other.lane.path.length + me.s * me.lane.path.length;
+					if (back < follSameDist) {
+						follSameDist = back;
+						follSame = other;
+					}
+				}
+				// 只在直線道上考慮左右相鄰變道
+				if (me.lane.adjLeft != null && other.lane == me.lane.adjLeft) {
+					double d = laneDistanceAhead(me, other);
+					if (d >= 0 && d < ld) {
+						ld = d;
+						leaderLeft = other;
+					}
+					double back = laneDistanceAhead(other, me);
+					if (back >= 0 && back < fld) {
+						fld = back;
+						follLeft = me; // 簡化：僅記錄距離
+					}
+				}
+				if (me.lane.adjRight != null && other.lane == me.lane.adjRight) {
+					double d = laneDistanceAhead(me, other);
+					if (d >= 0 && d < rd) {
+						rd = d;
+						leaderRight = other;
+					}
+					double back = laneDistanceAhead(other, me);
+					if (back >= 0 && back < frd) {
+						frd = back;
+						follRight = me; // 簡化：僅記錄距離
+					}
+				}
+			}
+			return new NeighborInfo(leaderSame, follSame, leaderLeft, follLeft, leaderRight, follRight,
+					leaderSameDist, follSameDist, ld, fld, rd, frd);
+		}
+
+		/** 回傳 a 車看見 b 車的前向距離（同車道、以 s 參數差轉換為長度）。*/
+		double laneDistanceAhead(Car a, Car b) {
+			if (a.lane != b.lane)
+				return Double.NaN;
+			double ds = b.s - a.s;
+			if (ds < 0)
+				ds += 1.0;
+			return ds * a.lane.path.length;
+		}
+
+		// ------------------- MOBIL lane change -------------------
+		/**
+		 * 兩階段平行 MOBIL：
+		 * 1) 以凍結快照（本階段不改任何車輛狀態）平行計算每台車的變道提案（先左後右）；
+		 * 2) 依目標車道分組，按效用高→低、車號小→大的固定順序接受彼此不衝突的提案。
+		 * 結果只取決於快照，與執行緒排程無關，同一種子可重現。
+		 */
+		void laneChangeRound(List<Car> active, Map<Car, NeighborInfo> neigh) {
+			List<Car> order = new ArrayList<>(active);
+			LaneSnapshot snap = new LaneSnapshot(lanes, cars); // 含中觀車：目標車道上的前後車照樣看得到
+
+			// 1) 平行提案
+			int n = order.size();
+			Lane[] propTarget = new Lane[n];
+			double[] propIncentive = new double[n];
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				final int k = i;
+				tasks.add(() -> {
+					Car c = order.get(k);
+					// NEW: 冷卻中就跳過
+					if (c.laneCooldown > 0)
+						return null;
+					Lane left = c.lane.adjLeft;
+					Lane right = c.lane.adjRight;
+					double gain = mobilThreshold();
+					double inc;
+					if (left != null && (inc = mobilIncentive(c, left, neigh, snap)) > gain) {
+						propTarget[k] = left;
+						propIncentive[k] = inc;
+					} else if (right != null && (inc = mobilIncentive(c, right, neigh, snap)) > gain) {
+						propTarget[k] = right;
+						propIncentive[k] = inc;
+					}
+					return null;
+				});
+			}
+			invokeAll(tasks);
+
+			// 2) 決定性解衝突：同一目標車道上彼此過近的提案只接受效用最高者
+			List<Integer> props = new ArrayList<>();
+			for (int i = 0; i < n; i++)
+				if (propTarget[i] != null)
+					props.add(i);
+			props.sort((x, y) -> {
+				int byLane = Integer.compare(propTarget[x].id, propTarget[y].id);
+				if (byLane != 0)
+					return byLane;
+				int byGain = Double.compare(propIncentive[y], propIncentive[x]);
+				return byGain != 0 ? byGain : Integer.compare(order.get(x).id, order.get(y).id);
+			});
+
+			List<Car> accepted = new ArrayList<>();
+			Lane current = null;
+			for (int k : props) {
+				Lane target = propTarget[k];
+				if (target != current) {
+					accepted.clear();
+					current = target;
+				}
+				Car c = order.get(k);
+				boolean conflict = false;
+				for (Car a : accepted) {
+					double ds = Math.abs(a.s - c.s);
+					ds = Math.min(ds, 1.0 - ds); // 主線為環狀
+					double gap = s0 + Math.max(a.v, c.v) * T;
+					if (ds * target.path.length < gap) {
+						conflict = true;
+						break;
+					}
+				}
+				if (!conflict) {
+					accepted.add(c);
+					startLaneChange(c, target); // NEW
+				}
+			}
+		}
+		
+		void startLaneChange(Car c, Lane target) {
+			Lane from = c.lane;
+			c.lane = target;
+			c.nextDecisionS = Double.NEGATIVE_INFINITY; // 換了車道，決策點重排
+			c.laneCooldown = Math.max(c.laneCooldown, 1.8); // 約 1.8s 冷卻，可依喜好 1.2~3.0
+			profiler.laneChanges++;
+			// 視覺補間：從舊線過渡到新線
+			c.animFromLane = from;
+			c.animT = 0.0;
+		}
+
+		/** 變道觸發門檻：淨效用門檻 + 遲滯。*/
+		double mobilThreshold() {
+	    // NEW: 遲滯（hysteresis）：提高觸發門檻，避免邊界振盪
+	    double hysteresis = 0.15 * 40; // 約 6 px/s^2 的額外門檻
+			return aLaneChangeThreshold + hysteresis;
+		}
+
+		/**
+		 * 由 me 變到 target 車道的 MOBIL 淨效用（不允許或不安全時回傳 -∞）；只讀取快照，可平行呼叫。
+		 * 1) 安全性：目標車道後車的加速度不可低於 aSafe（避免急煞）。
+		 * 2) 動機值：IDM 估算變道前後自身加速度差 + 禮讓加權他人影響，須大於 mobilThreshold()。
+		 */
+		double mobilIncentive(Car me, Lane target, Map<Car, NeighborInfo> neigh, LaneSnapshot snap) {
+			
+			if (me.lane.finite) return Double.NEGATIVE_INFINITY; // 在 entry/ramp/exit 等有限段不上 MOBIL
+			
+	    if (!me.lane.path.isStraight || !target.path.isStraight) return Double.NEGATIVE_INFINITY; // 簡化：僅在直線上變道
+	    if (me.laneCooldown > 0) return Double.NEGATIVE_INFINITY; // NEW: 冷卻
+			
+			// 安全性：計算目標車道之後車（newFollower）是否需過度煞車
+			Car newFollower = snap.behind(target, me.s);
+			Car newLeader = snap.ahead(target, me.s);
+			double aNewFollower = 0;
+			if (newFollower != null)
+				aNewFollower = accIDM(newFollower, newLeader, distAlong(newFollower, newLeader));
+			if (newFollower != null && aNewFollower < aSafe)
+				return Double.NEGATIVE_INFINITY; // 不安全，放棄
+
+			// 動機值：自己變道的收益（aGo - aStay）+ 禮讓乘子 ×（跟車者變化）
+			NeighborInfo N = neigh.get(me);
+			Car oldLeader = N.leaderSame;
+			double sOld = N.leaderSameDist;
+			double aOld = accIDM(me, oldLeader, sOld);
+			double aStay = aOld; // 簡化：忽略他車隨後調整
+
+			double sNew = distAlong(me, newLeader);
+			double aGo = accIDM(me, newLeader, sNew);
+
+			// 影響跟車者（近似）
+			double aOldFollowerDelta = 0; // 簡化未計算舊後車
+			double aNewFollowerDelta = 0;
+			if (newFollower != null) {
+				double aBefore = aNewFollower;
+				double aAfter = accIDM(newFollower, me, distAlong(newFollower, me));
+				aNewFollowerDelta = aAfter - aBefore;
+			}
+			return (aGo - aStay) + politeness * (aOldFollowerDelta + aNewFollowerDelta);
+		}
+
+		/** 找出 ref 在指定車道上最近的前車。*/
+		Car nearestAheadInLane(Car ref, Lane lane) {
+			Car best = null;
+			double bestDs = Double.POSITIVE_INFINITY;
+			for (Car c : cars)
+				if (c.lane == lane && c != ref) {
+					double ds = c.s - ref.s;
+					if (ds < 0)
+						ds += 1.0;
+					if (ds >= 0 && ds < bestDs) {
+						bestDs = ds;
+						best = c;
+					}
+				}
+			return best;
+		}
+
+		/** 找出 ref 在指定車道上最近的後車。*/
+		Car nearestBehindInLane(Car ref, Lane lane) {
+			Car best = null;
+			double bestDs = Double.POSITIVE_INFINITY;
+			for (Car c : cars)
+				if (c.lane == lane && c != ref) {
+					double ds = ref.s - c.s;
+					if (ds < 0)
+						ds += 1.0;
+					if (ds >= 0 && ds < bestDs) {
+						bestDs = ds;
+						best = c;
+					}
+				}
+			return best;
+		}
+
+		/** 計算 rear 與 front 之間沿車道的距離（若非同車道或 front 不存在回傳無限大）。*/
+		double distAlong(Car rear, Car front) {
+			if (front == null)
+				return Double.POSITIVE_INFINITY;
+			if (rear.lane != front.lane)
+				return Double.POSITIVE_INFINITY;
+			double ds = front.s - rear.s;
+			if (ds < 0)
+				ds += 1.0;
+			return ds * rear.lane.path.length;
+		}
+
+		// ------------------- IDM -------------------
+		/**
+		 * 依 IDM 計算加速度並以顯式歐拉積分更新速度與位置參數 s。
+		 * 讀 current（c.v、c.s 與前車 v），結果寫入 next（c.vNext、c.sNext），由 swapState() 提交。
+		 */
+		void stepIDM(Car c, NeighborInfo N, double dt) {
+			Car leader = (N != null ? N.leaderSame : null);
+			double s = (N != null ? N.leaderSameDist : Double.POSITIVE_INFINITY);
+			if (integrator == Integrator.BALLISTIC) {
+				stepBallistic(c, leader, s, dt);
+				return;
+			}
+			integrateEuler(c, accIDM(c, leader, s), dt);
+		}
+
+		/** 顯式 Euler：以加速度 a 更新速度（夾在 [0, 速度上限]）與位置，寫入 next。*/
+		void integrateEuler(Car c, double a, double dt) {
+			c.accIdm = a;
+			// 積分速度
+			double v = c.v + a * dt;
+			if (v < 0)
+				v = 0;
+
+			// ★ 新增：以當前車道（或預彎道）的上限夾住
+			//double vmax = speedLimit(c.lane);
+			double vmax = speedLimit(c); // ★ 改看車輛狀態
+			if (v > vmax)
+				v = vmax;
+
+			// 積分位置參數
+			c.vNext = v;
+			c.sNext = c.s + (v * dt) / c.lane.path.length;
+		}
+
+		/** IDM 加速度項：自由加速 - 跟車抑制。*/
+		double accIDM(Car c, Car leader, double s) {
+			return accIDM(c.v, leader != null, leader != null ? leader.v : 0, s);
+		}
+
+		/**
+		 * 同上，以速度值計算（子步積分時前車狀態為外插值）。
+		 * 與 accIDMBatch 使用完全相同的運算順序，兩者結果逐位元一致。
+		 */
+		double accIDM(double v, boolean follow, double vLeader, double s) {
+			double dv = 0;
+			if (follow)
+				dv = v - vLeader; // 與前車相對速度
+			double sStar = s0 + Math.max(0, v * T + v * dv * inv2SqrtAB); // 期望安全間距
+			double termFree = powDelta(v * invV0); // 自由路段加速趨近 0
+			double termInt = 0; // 跟車抑制項
+			if (follow) {
+				double r = sStar / Math.max(1.0, s);
+				termInt = r * r;
+			}
+			return aMax * (1 - termFree - termInt);
+		}
+
+		/** x^delta：delta 為小整數時展開成乘法，其餘才呼叫 Math.pow。*/
+		double powDelta(double x) {
+			switch (deltaInt) {
+			case 1: return x;
+			case 2: return x * x;
+			case 3: return x * x * x;
+			case 4: { double x2 = x * x; return x2 * x2; }
+			default: return Math.pow(x, delta);
+			}
+		}
+
+		/**
+		 * 批次 IDM 加速度：out[i] = a(v[i], gap[i], vLead[i])，i < n。
+		 * 無前車時傳入 gap = +∞、vLead = v（相對速度 0、跟車項為 0），迴圈因此沒有分支；
+		 * 常數外提、delta = 4 展開成兩次平方，只用乘加與 max/除法，讓 JIT 能自動向量化。
+		 */
+		void accIDMBatch(double[] v, double[] gap, double[] vLead, double[] out, int n) {
+			final double s0 = this.s0, T = this.T, aMax = this.aMax, inv2 = this.inv2SqrtAB, invV0 = this.invV0;
+			if (deltaInt == 4) {
+				for (int i = 0; i < n; i++) {
+					double vi = v[i];
+					double sStar = s0 + Math.max(0, vi * T + vi * (vi - vLead[i]) * inv2);
+					double x = vi * invV0;
+					double x2 = x * x;
+					double r = sStar / Math.max(1.0, gap[i]);
+					out[i] = aMax * (1 - x2 * x2 - r * r);
+				}
+			} else {
+				for (int i = 0; i < n; i++) {
+					double vi = v[i];
+					double sStar = s0 + Math.max(0, vi * T + vi * (vi - vLead[i]) * inv2);
+					double r = sStar / Math.max(1.0, gap[i]);
+					out[i] = aMax * (1 - powDelta(vi * invV0) - r * r);
+				}
+			}
+		}
+
+		// ------------------ 彈道積分與可變步長 ------------------
+		static final double TIGHT_SUBSTEP = 1.0 / 60.0; // 緊密跟車時的子步長（秒）
+		static final int MAX_SUBSTEPS = 30;
+		static final double ROUTE_STEP_FRACTION = 0.08; // 有限段每步最多前進的路段比例（保留併入判斷的機會）
+
+		/**
+		 * 彈道更新（Treiber & Kanagaraj）：v' = max(0, v + a·h)，位移 = (v + v')/2·h；
+		 * 若本步內會停下則只前進煞停距離 v²/(2|a|)，不會出現負速度或倒退。
+		 * 與前車處於緊密互動（間距小於期望間距的 1.5 倍或碰撞時間短）時，
+		 * 以 TIGHT_SUBSTEP 細分本步並把前車以等速外插；位移另以「不超過目前間距 - s0/2」夾住，
+		 * 因前車只會前進，可保證不追撞。最後寫入本車可接受的下一步最大步長 c.dtHint。
+		 */
+		void stepBallistic(Car c, Car leader, double gap, double dt) {
+			boolean follow = (leader != null);
+			double vLead = follow ? leader.v : 0;
+			double vmax = speedLimit(c);
+			int k = 1;
+			if (follow && isTight(c.v, vLead, gap))
+				k = Math.min(MAX_SUBSTEPS, (int) Math.ceil(dt / TIGHT_SUBSTEP - 1e-9));
+			double h = dt / k;
+			double v = c.v, x = 0; // x：本步累積位移（px）
+			double aMin = Double.POSITIVE_INFINITY; // 子步中最強的 IDM 減速需求（安全指標用）
+			for (int i = 0; i < k; i++) {
+				double gapNow = follow ? gap + vLead * (i * h) - x : Double.POSITIVE_INFINITY;
+				double a = accIDM(v, follow, vLead, gapNow);
+				aMin = Math.min(aMin, a);
+				double vn = v + a * h;
+				double dx;
+				if (vn < 0) {
+					dx = (a < 0) ? -v * v / (2 * a) : 0; // 本子步內煞停
+					vn = 0;
+				} else {
+					if (vn > vmax)
+						vn = vmax;
+					dx = 0.5 * (v + vn) * h;
+				}
+				if (follow)
+					dx = Math.max(0, Math.min(dx, gapNow - 0.5 * s0));
+				x += dx;
+				v = vn;
+			}
+			c.vNext = v;
+			c.sNext = c.s + x / c.lane.path.length;
+			c.accIdm = aMin;
+			c.dtHint = maxStep(c, v, follow, vLead, follow ? gap + vLead * dt - x : Double.POSITIVE_INFINITY);
+		}
+
+		/** 是否需要子步：已進入期望間距的 1.5 倍內，或以目前接近速度 4 秒內會撞上。*/
+		boolean isTight(double v, double vLead, double gap) {
+			double closing = v - vLead;
+			return gap < 1.5 * (s0 + v * T) || (closing > 0 && (gap - s0) < 4.0 * closing);
+		}
+
+		/**
+		 * 本車允許的下一步最大步長：
+		 * 有限段上每步前進不超過 ROUTE_STEP_FRACTION；沒看到前車的車一步不得走超過搜尋半徑的一半
+		 * （否則可能越過尚未進入搜尋範圍的前車）；自由車不得在一步內從寬鬆變成緊密
+		 * （緊密的車自己會細分，不限制全域步長）。
+		 */
+		double maxStep(Car c, double v, boolean follow, double vLead, double gap) {
+			double h = dtMax;
+			double frac = c.lane.finite ? ROUTE_STEP_FRACTION : 0.25;
+			if (v > 1e-3) {
+				h = Math.min(h, frac * c.lane.path.length / v);
+				if (!follow)
+					h = Math.min(h, 0.5 * NEIGHBOR_RANGE / v);
+			}
+			if (follow && !isTight(v, vLead, gap)) {
+				double closing = v - vLead;
+				double room = gap - 1.5 * (s0 + v * T);
+				if (closing > 0)
+					h = Math.min(h, 0.5 * room / closing);
+			}
+			return Math.max(dtMin, h);
+		}
+
+		/** 下一步建議的全域步長（BALLISTIC 模式，由上一步各車的 dtHint 取最小值）。*/
+		double nextDt() {
+			if (integrator != Integrator.BALLISTIC)
+				return dtMin;
+			return Math.max(dtMin, Math.min(dtMax, dtHint));
+		}
+
+		// 繪圖常數（避免每幀重建 Stroke / Color）
+		static final BasicStroke ROAD_STROKE = new BasicStroke(24, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND);
+		static final BasicStroke MARK_STROKE = new BasicStroke(2, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND, 0, new float[] { 10, 14 }, 0);
+		static final Color ROAD_COLOR = new Color(64, 74, 90);
+		static final Color MARK_COLOR = new Color(240, 220, 100);
+		static final Color MEDIAN_COLOR = new Color(52, 60, 75);
+		static final Color GLASS_COLOR = new Color(220, 230, 240);
+		static final RoundRectangle2D CAR_BODY = new RoundRectangle2D.Double(-10, -7, 20, 14, 6, 6);
+		static final RoundRectangle2D CAR_GLASS = new RoundRectangle2D.Double(-5, -6, 9, 12, 6, 6);
+
+		// 車輛批次繪製用的可重用物件（只在繪圖執行緒使用）
+		private final AffineTransform carTx = new AffineTransform();
+		private final Path2D.Double bodyPath = new Path2D.Double();
+		private final Path2D.Double glassPath = new Path2D.Double();
+
+		/** 負責繪製道路與快照 f 中的車輛（不使用快取的完整繪製）。*/
+		void render(Graphics2D g, RenderFrame f) {
+			renderRoads(g, null);
+			renderCars(g, f, null);
+		}
+
+		/**
+		 * 繪製靜態道路（底色、車道虛線、中央分隔），SimPanel 會把結果快取成影像。
+		 * clip 不為 null 時只畫格網索引中與 clip 相交的路徑（大型路網只畫視窗內的部分）。
+		 */
+		void renderRoads(Graphics2D g, Rectangle2D clip) {
+			int[] visible = clip != null ? roadIndex.query(clip) : null;
+			int n = visible != null ? visible.length : paths.size();
+			// 道路底色（粗線）
+			g.setStroke(ROAD_STROKE);
+			g.setColor(ROAD_COLOR);
+			for (int i = 0; i < n; i++)
+				g.draw(paths.get(visible != null ? visible[i] : i).asPath2D());
+			// 車道虛線標記
+			g.setStroke(MARK_STROKE);
+			g.setColor(MARK_COLOR);
+			for (int i = 0; i < n; i++)
+				g.draw(paths.get(visible != null ? visible[i] : i).asPath2D());
+			// 十字中央實體（視覺裝飾，每個交流道一組）
+			g.setColor(MEDIAN_COLOR);
+			for (Point2D m : medians) {
+				g.fillRect((int) (m.getX() - highwayHalf), (int) (m.getY() - 8), (int) (2 * highwayHalf), 16);
+				g.fillRect((int) (m.getX() - 8), (int) (m.getY() - highwayHalf), 16, (int) (2 * highwayHalf));
+			}
+		}
+
+		/** 以格網索引找離 (x,y) 最近、距離在 maxDist 內的車道；沒有則回傳 null。*/
+		Lane laneAt(double x, double y, double maxDist) {
+			int p = roadIndex.nearest(x, y, maxDist);
+			if (p < 0)
+				return null;
+			RoadPath path = paths.get(p);
+			for (Lane l : lanes)
+				if (l.path == path)
+					return l;
+			return null;
+		}
+
+		/**
+		 * 繪製快照 f 中的車輛（讀最近完成的快照，不鎖定模擬狀態）。
+		 * view 為可見的世界座標範圍（null 表示全部）：有格網索引時只走與 view 相交的格子，成本與畫面內的車數成正比；
+		 * 所有車都在畫面內（例如預設視圖看得到整個路網）時索引沒有可裁的，直接依序畫，省下逐格走訪與逐車判斷；
+		 * 車身逐台填色，車窗同色故累積成一條 Path2D 最後一次填滿，且不需逐台保存／還原轉換矩陣。
+		 */
+		void renderCars(Graphics2D g, RenderFrame f, Rectangle2D view) {
+			double margin = 12; // 車身半長 + 緩衝
+			glassPath.reset();
+			SegmentIndex grid = f.grid;
+			double minX = 0, maxX = 0, minY = 0, maxY = 0;
+			if (view != null) {
+				minX = view.getMinX() - margin;
+				maxX = view.getMaxX() + margin;
+				minY = view.getMinY() - margin;
+				maxY = view.getMaxY() + margin;
+			}
+			if (view == null || grid == null || (f.minX >= minX && f.maxX <= maxX && f.minY >= minY && f.maxY <= maxY)) {
+				for (int i = 0; i < f.count; i++)
+					drawCar(g, f, i);
+			} else {
+				int c0 = grid.col(minX), c1 = grid.col(maxX);
+				for (int row = grid.row(minY); row <= grid.row(maxY); row++) {
+					// 列優先編號：同一列 c0..c1 的格子在 order 中是連續一段
+					int to = f.cellStart[row * grid.cols + c1 + 1];
+					for (int k = f.cellStart[row * grid.cols + c0]; k < to; k++) {
+						int i = f.order[k];
+						double x = f.x[i], y = f.y[i];
+						if (x >= minX && x <= maxX && y >= minY && y <= maxY)
+							drawCar(g, f, i);
+					}
+				}
+			}
+			g.setColor(GLASS_COLOR);
+			g.fill(glassPath);
+		}
+
+		private void drawCar(Graphics2D g, RenderFrame f, int i) {
+			carTx.setToTranslation(f.x[i], f.y[i]);
+			carTx.rotate(f.heading[i]);
+			bodyPath.reset();
+			bodyPath.append(CAR_BODY.getPathIterator(carTx), false);
+			g.setColor(f.color[i]);
+			g.fill(bodyPath);
+			glassPath.append(CAR_GLASS.getPathIterator(carTx), false);
+		}
+
+		// 縮小時的細節層級：車長 20 px，縮放低於 LOD_DOT_ZOOM（約 6 螢幕像素）改畫點，
+		// 低於 LOD_TILE_ZOOM（一格 128 px 約 10 螢幕像素）改畫每格的密度色塊
+		static final double LOD_DOT_ZOOM = 0.3;
+		static final double LOD_TILE_ZOOM = 0.08;
+		static final int TILE_FULL = 24; // 一格達到這個車數即畫成最深的顏色
+		static final Color[] DENSITY_COLORS = new Color[TILE_FULL + 1];
+		static {
+			for (int k = 0; k <= TILE_FULL; k++) {
+				float t = k / (float) TILE_FULL;
+				DENSITY_COLORS[k] = Color.getHSBColor(0.33f * (1 - t), 0.85f, 0.95f); // 綠 → 黃 → 紅
+			}
+		}
+
+		// 點模式的畫面大小影像與上一幀畫過的像素（只清掉這些，不必每幀清整張）
+		private BufferedImage dotImage;
+		private int[] dotPixels;
+		private int[] dotDirty = new int[0];
+		private int dotDirtyCount;
+
+		/**
+		 * 縮小時的車輛繪製（g 為畫面座標，tx 為世界→畫面的平移縮放）：
+		 * 縮放低於 LOD_TILE_ZOOM 時把可見格子依車數畫成密度色塊（直接讀索引的格子計數，與車數無關）；
+		 * 否則把可見的車寫成畫面影像上的 2×2 像素點，一次貼上，不經過 Graphics2D 的路徑填色。
+		 */
+		void renderCarsLod(Graphics2D g, RenderFrame f, Rectangle2D view, AffineTransform tx, int w, int h) {
+			SegmentIndex grid = f.grid;
+			if (grid == null)
+				return;
+			double sc = tx.getScaleX(), ox = tx.getTranslateX(), oy = tx.getTranslateY();
+			int c0 = grid.col(view.getMinX()), c1 = grid.col(view.getMaxX());
+			int r0 = grid.row(view.getMinY()), r1 = grid.row(view.getMaxY());
+			if (sc < LOD_TILE_ZOOM) {
+				int px = (int) Math.ceil(grid.cell * sc);
+				for (int row = r0; row <= r1; row++) {
+					int y = (int) Math.floor((grid.y0 + row * grid.cell) * sc + oy);
+					for (int c = c0; c <= c1; c++) {
+						int k = row * grid.cols + c;
+						int n = f.cellStart[k + 1] - f.cellStart[k];
+						if (n == 0)
+							continue;
+						g.setColor(DENSITY_COLORS[Math.min(n, TILE_FULL)]);
+						g.fillRect((int) Math.floor((grid.x0 + c * grid.cell) * sc + ox), y, px, px);
+					}
+				}
+				return;
+			}
+			if (dotImage == null || dotImage.getWidth() != w || dotImage.getHeight() != h) {
+				dotImage = new BufferedImage(Math.max(1, w), Math.max(1, h), BufferedImage.TYPE_INT_ARGB);
+				dotPixels = ((DataBufferInt) dotImage.getRaster().getDataBuffer()).getData();
+				dotDirtyCount = 0;
+			}
+			for (int k = 0; k < dotDirtyCount; k++)
+				dotPixels[dotDirty[k]] = 0;
+			dotDirtyCount = 0;
+			for (int row = r0; row <= r1; row++) {
+				int end = f.cellStart[row * grid.cols + c1 + 1];
+				for (int k = f.cellStart[row * grid.cols + c0]; k < end; k++) {
+					int i = f.order[k];
+					int x = (int) (f.x[i] * sc + ox), y = (int) (f.y[i] * sc + oy);
+					if (x < 0 || y < 0 || x + 1 >= w || y + 1 >= h)
+						continue;
+					if (dotDirty.length < dotDirtyCount + 4)
+						dotDirty = Arrays.copyOf(dotDirty, Math.max(1024, dotDirty.length * 2));
+					int rgb = f.color[i].getRGB() | 0xFF000000, p = y * w + x;
+					dotPixels[p] = dotPixels[p + 1] = dotPixels[p + w] = dotPixels[p + w + 1] = rgb;
+					dotDirty[dotDirtyCount++] = p;
+					dotDirty[dotDirtyCount++] = p + 1;
+					dotDirty[dotDirtyCount++] = p + w;
+					dotDirty[dotDirtyCount++] = p + w + 1;
+				}
+			}
+			g.drawImage(dotImage, 0, 0, w, h, null);
+		}
+		
+		// ---- 幾何工具：向量叉積 ----
+		double cross(double ax, double ay, double bx, double by) {
+		    return ax * by - ay * bx;
+		}
+
+		// ---- 兩線段相交：回傳是否命中與各自的參數 tA/tB（0~1）與交點 ----
+		static class InterResult {
+			boolean hit;
+			double tA, tB;
+			Point2D pt;
+
+			InterResult(boolean h, double ta, double tb, Point2D p) {
+				hit = h;
+				tA = ta;
+				tB = tb;
+				pt = p;
+			}
+		}
+
+		InterResult segIntersect(Point2D a1, Point2D a2, Point2D b1, Point2D b2) {
+			double rX = a2.getX() - a1.getX(), rY = a2.getY() - a1.getY();
+			double sX = b2.getX() - b1.getX(), sY = b2.getY() - b1.getY();
+			double denom = cross(rX, rY, sX, sY);
+			if (Math.abs(denom) < 1e-9)
+				return new InterResult(false, 0, 0, null); // 平行或共線視為不交
+			double qpx = b1.getX() - a1.getX(), qpy = b1.getY() - a1.getY();
+			double t = cross(qpx, qpy, sX, sY) / denom; // a 上的參數
+			double u = cross(qpx, qpy, rX, rY) / denom; // b 上的參數
+			if (t >= 0 && t <= 1 && u >= 0 && u <= 1) {
+				Point2D pt = new Point2D.Double(a1.getX() + t * rX, a1.getY() + t * rY);
+				return new InterResult(true, t, u, pt);
+			}
+			return new InterResult(false, 0, 0, null);
+		}
+
+		// ---- 從 from 的尾端段 與 to 的起始段 找交點；回傳 to 上的 s（0~1），找不到就回傳投影 s ----
+		Double mergeSAtIntersection(RoadPath from, RoadPath to) {
+			// 掃描範圍：from 最後 20% 切 24 段，to 前 40% 切 48 段（沿解析式幾何即時取點）
+			int na = 24, nb = 48;
+			double fromStart = 0.8, toEnd = 0.4;
+
+			Point2D a1 = from.pointAt(fromStart);
+			for (int i = 1; i <= na; i++) {
+				Point2D a2 = from.pointAt(fromStart + (1 - fromStart) * i / na);
+				Point2D b1 = to.pointAt(0);
+				for (int j = 1; j <= nb; j++) {
+					double sb0 = toEnd * (j - 1) / nb, sb1 = toEnd * j / nb;
+					Point2D b2 = to.pointAt(sb1);
+					InterResult ir = segIntersect(a1, a2, b1, b2);
+					if (ir.hit) {
+						// 交點位於 to 的 [sb0, sb1] 區間，依 tB 內插
+						double s = sb0 + ir.tB * (sb1 - sb0);
+						// 為安全起見，把 s 限制在 to 起點一小段內
+						return Math.max(0.0, Math.min(s, 0.25));
+					}
+					b1 = b2;
+				}
+				a1 = a2;
+			}
+
+			// 如果沒有精確交點，退而求其次：把 from 終點投影到 to 上，取最近點的 s
+			return projectPointToPathS(to, from.pointAt(1.0));
+		}
+
+		// ---- 將點投影到路徑，回傳對應的 s（0~1） ----
+		Double projectPointToPathS(RoadPath path, Point2D p) {
+			return path.project(p);
+		}
+		
+		// 掃描一個插入視窗（預設 0.00~0.15），找第一個安全的 s；找不到回傳 null
+		Double findSafeMergeS(Car me, Lane target, double sStart, double sEnd, int samples) {
+		    //double bestS = -1;
+		    for (int i = 0; i < samples; i++) {
+		        double t = (samples == 1) ? 0.0 : (i / (double)(samples - 1));
+		        double sCand = sStart + (sEnd - sStart) * t;
+
+		        if (gapOK(me, target, sCand)) {
+		            return sCand; // 找到就回傳
+		        }
+		    }
+		    return null;
+		}
+		
+		Double findSafeAroundSByProjection(Car me, Lane target, double radius, int samples) {
+			// 以「目前世界座標」投影到目標車道，拿到中心 s
+			Point2D now = me.position();
+			double sCenter = projectPointToPathS(target.path, now);
+			return findSafeAroundS(me, target, sCenter, radius, samples);
+		}
+
+		// 同上，但中心 s 取自 from→to 併入表（超出表的範圍才退回即時投影）
+		Double findSafeAroundSByEdge(Car me, MergeEdge edge, double radius, int samples) {
+			double sCenter = edge.covers(me.s) ? edge.projectFrom(me.s) : projectPointToPathS(edge.to.path, me.position());
+			return findSafeAroundS(me, edge.to, sCenter, radius, samples);
+		}
+
+		// 在 sCenter±radius 內等距掃描，回傳第一個安全的 s；找不到回傳 null
+		Double findSafeAroundS(Car me, Lane target, double sCenter, double radius, int samples) {
+			double sStart = Math.max(0.0, sCenter - radius);
+			double sEnd = Math.min(1.0, sCenter + radius);
+
+			// 在 [sStart, sEnd] 掃描安全 gap
+			for (int i = 0; i < samples; i++) {
+				double t = (samples == 1) ? 0.0 : (i / (double) (samples - 1));
+				double sCand = sStart + (sEnd - sStart) * t;
+				if (gapOK(me, target, sCand))
+					return sCand;
+			}
+			return null;
+		}
+
+		// 檢查在 target 車道的 sCand 處是否有足夠前後安全距離
+		boolean gapOK(Car me, Lane target, double sCand) {
+		    Car ahead = null, behind = null;
+		    double bestAhead = Double.POSITIVE_INFINITY, bestBehind = Double.POSITIVE_INFINITY;
+
+		    for (Car c : cars) if (c.lane == target && c != me) {
+		        // 前方距離
+		        double dsF = c.s - sCand;
+		        if (dsF < 0) dsF += 1.0;
+		        double dpxF = dsF * target.path.length;
+		        if (dpxF >= 0 && dpxF < bestAhead) { bestAhead = dpxF; ahead = c; }
+
+		        // 後方距離
+		        double dsB = sCand - c.s;
+		        if (dsB < 0) dsB += 1.0;
+		        double dpxB = dsB * target.path.length;
+		        if (dpxB >= 0 && dpxB < bestBehind) { bestBehind = dpxB; behind = c; }
+		    }
+
+		    // 動態安全距離：考慮相對速差，尾隨車更嚴格一點
+		    double vM = Math.max(1.0, me.v);
+		    double vB = (behind != null ? Math.max(1.0, behind.v) : vM);
+		    double sStarMe     = s0 + Math.max(0, vM * T);
+		    double sStarBehind = s0 + Math.max(0, vB * T);
+
+		    // 放寬係數：前方 1.10、後方 1.20（避免插到後車鼻尖）
+		    boolean okAhead  = (ahead  == null) || (bestAhead  > sStarMe * 1.10);
+		    boolean okBehind = (behind == null) || (bestBehind > sStarBehind * 1.20);
+
+		    // 若我幾乎停住（<= 2 px/s），允許稍微更緊湊的併入（像實務 zipper merge）
+		    if (vM <= 2.0) {
+		        okAhead  = (ahead  == null) || (bestAhead  > sStarMe * 1.05);
+		        okBehind = (behind == null) || (bestBehind > sStarBehind * 1.10);
+		    }
+		    return okAhead && okBehind;
+		}
+		
+		//gapOK：加入「壓力」參數（等越久越放寬）
+		boolean gapOK(Car me, Lane target, double sCand, double relax) {
+	    Car ahead = null, behind = null;
+	    double bestAhead = Double.POSITIVE_INFINITY, bestBehind = Double.POSITIVE_INFINITY;
+
+	    for (Car c : cars) if (c.lane == target && c != me) {
+	        double dsF = c.s - sCand; if (dsF < 0) dsF += 1.0;
+	        double dpxF = dsF * target.path.length;
+	        if (dpxF >= 0 && dpxF < bestAhead)  { bestAhead  = dpxF; ahead  = c; }
+
+	        double dsB = sCand - c.s; if (dsB < 0) dsB += 1.0;
+	        double dpxB = dsB * target.path.length;
+	        if (dpxB >= 0 && dpxB < bestBehind) { bestBehind = dpxB; behind = c; }
+	    }
+
+	    double vM = Math.max(1.0, me.v);
+	    double vB = (behind != null ? Math.max(1.0, behind.v) : vM);
+	    double sStarMe     = s0 + Math.max(0, vM * T);
+	    double sStarBehind = s0 + Math.max(0, vB * T);
+
+	    // 原本門檻：前方 1.10、後方 1.20
+	    double fwd = 1.10, back = 1.20;
+
+	    // 等越久越放寬（最多放寬 30%）
+	    double k = Math.max(0, Math.min(0.30, relax)); // 0~0.30
+	    fwd  *= (1.0 - k);
+	    back *= (1.0 - k * 0.8); // 對後車稍微保守
+
+	    boolean okAhead  = (ahead  == null) || (bestAhead  > sStarMe     * fwd);
+	    boolean okBehind = (behind == null) || (bestBehind > sStarBehind * back);
+
+	    if (vM <= 2.0) { // 幾乎停住時再額外小放寬
+	        okAhead  = (ahead  == null) || (bestAhead  > sStarMe     * Math.max(0.95, fwd  - 0.05));
+	        okBehind = (behind == null) || (bestBehind > sStarBehind * Math.max(1.05, back - 0.10));
+	    }
+	    return okAhead && okBehind;
+	}
+
+
+		// 角度差（0~π）
+		static double angleDiff(double a, double b) {
+		    double d = Math.abs(a - b);
+		    while (d > Math.PI) d -= 2*Math.PI;
+		    return Math.abs(d);
+		}
+
+		// 在目標附近，挑一條「與當前 heading 最對齊」的直線 Lane
+		Lane pickAlignedLaneNear(Point2D where, double headingNow, Lane preferred, List<Lane> all) {
+		    Lane best = null;
+		    double bestScore = -1;
+
+		    // 蒐集候選：同區域直線（含 preferred 自己）
+		    for (Lane L : all) {
+		        if (L == null || L.path == null || !L.path.isStraight) continue;
+
+		        // 以投影點取得該 Lane 的 s 與 heading
+		        double s = projectPointToPathS(L.path, where);       // 0..1
+		        double h = L.path.headingAt(s);
+		        double score = Math.cos(angleDiff(headingNow, h));   // 1=同向, -1=反向
+
+		        // 以與 preferred 距離做簡單濾波：同一走廊/附近
+		        // （你也可以用名稱前綴，例如 "EW_" 或 "NS_" 來濾一輪）
+		        if (score > bestScore) {
+		            bestScore = score;
+		            best = L;
+		        }
+		    }
+		    // 若全都找不到，就回傳 preferred
+		    return (best != null ? best : preferred);
+		}
+
+
+	}
+
+	// =============================== Lane ===============================
+	/**
+	 * Lane：車道是 RoadPath 的包裝，並可連結左右相鄰車道（用於變道）。
+	 */
+	static class Lane {
+		final RoadPath path;
+		Lane adjLeft, adjRight; // 左右相鄰（直線使用）
+		Lane wrapTo;            // 主線回繞時的接續車道（走廊中的下一個交流道；null 表示在本車道循環）
+
+		// ---- 種類、下一段、可生成與匝道入口：內建路網由名稱解析，匯入路網由 id 直接給定 ----
+		// ---- 其餘由 World.resolveLaneMeta() 在建立路徑圖後一次填入 ----
+		int id = -1;                        // 在 World.lanes 中的索引
+		LaneKind kind = LaneKind.MAINLINE;  // 車道種類
+		boolean mainline;                   // 是否為主線（EW/NS）
+		boolean finite;                     // 是否有下一段（entry/ramp/exit/connector）
+		boolean spawn;                      // 是否可在此生成車輛
+		Lane[] next = new Lane[0];          // routeGraph 的下一段
+		double vLimit;                      // 車道速度上限（px/s）
+		Lane slipEntry, loopEntry;          // 主線：外側直通匝道／環道入口
+		double slipEntryS, loopEntryS;      // 入口在本主線上的參考 s
+		MergeEdge[] nextEdge = new MergeEdge[0]; // 與 next 對應的併入表
+		MergeEdge slipEdge, loopEdge;       // 主線 → 匝道入口的併入表
+		LoopDetector[] detectors = new LoopDetector[0]; // 放在本車道上的虛擬偵測器
+
+		public Lane(RoadPath p) {
+			this.path = p;
+		}
+	}
+
+	// ============================== LoopDetector ========================
+	/**
+	 * LoopDetector：放在某車道 s 位置的虛擬線圈偵測器。
+	 * 推進階段以 sPrev→s 是否跨過偵測點判斷通過，只做常數次累加；
+	 * 每個統計區間結束時寫入環狀緩衝，並以加入新區間、扣掉最舊區間的方式維護滾動視窗總和。
+	 */
+	static final class LoopDetector {
+		final String name;
+		final Lane lane;
+		final double s;
+
+		// 目前區間的累計
+		int count;
+		double speedSum, invSpeedSum;
+
+		// 最近 DetectorBank.WINDOW_BINS 個區間的環狀緩衝與滾動總和
+		final int[] binCount = new int[DetectorBank.WINDOW_BINS];
+		final double[] binSpeedSum = new double[DetectorBank.WINDOW_BINS];
+		final double[] binInvSpeedSum = new double[DetectorBank.WINDOW_BINS];
+		int winCount;
+		double winSpeedSum, winInvSpeedSum;
+
+		LoopDetector(String name, Lane lane, double s) {
+			this.name = name;
+			this.lane = lane;
+			this.s = s;
+		}
+
+		long total;  // 上次 reset 以來的總通過數
+
+		/** 一輛車以速度 v 通過。*/
+		void hit(double v) {
+			total++;
+			count++;
+			speedSum += v;
+			invSpeedSum += 1.0 / Math.max(v, 0.1); // 停等車不讓調和平均發散
+		}
+
+		/** 結束目前區間：放進環狀緩衝第 slot 格並更新滾動總和。*/
+		void closeBin(int slot) {
+			winCount += count - binCount[slot];
+			winSpeedSum += speedSum - binSpeedSum[slot];
+			winInvSpeedSum += invSpeedSum - binInvSpeedSum[slot];
+			binCount[slot] = count;
+			binSpeedSum[slot] = speedSum;
+			binInvSpeedSum[slot] = invSpeedSum;
+			count = 0;
+			speedSum = invSpeedSum = 0;
+		}
+
+		void reset() {
+			total = 0;
+			count = winCount = 0;
+			speedSum = invSpeedSum = winSpeedSum = winInvSpeedSum = 0;
+			Arrays.fill(binCount, 0);
+			Arrays.fill(binSpeedSum, 0);
+			Arrays.fill(binInvSpeedSum, 0);
+		}
+	}
+
+	// ============================== DetectorBank ========================
+	/**
+	 * DetectorBank：管理所有虛擬偵測器、統計區間與 CSV 匯出。
+	 * 每個區間（BIN_SEC 模擬秒）對每個偵測器記下一列：流量、時間平均速度、空間平均速度（調和平均）
+	 * 與由 q = k·v_s 推得的密度；滾動視窗涵蓋最近 WINDOW_BINS 個區間。
+	 * 每步成本只與通過的車數有關，與歷史長度無關；歷史列存在可成長的基本型別陣列。
+	 */
+	static final class DetectorBank {
+		static final double BIN_SEC = 30.0;   // 統計區間（模擬秒）
+		static final int WINDOW_BINS = 10;    // 滾動視窗區間數（5 分鐘）
+		static final int COLS = 9;            // 歷史列欄位：時間、偵測器、車數、流量、時間平均速度、空間平均速度、密度、視窗流量、視窗空間平均速度
+
+		final List<LoopDetector> detectors = new ArrayList<>();
+		double time = 0;     // 模擬時間（秒）
+		double binTime = 0;  // 目前區間已經過的時間
+		int slot = 0;        // 環狀緩衝中下一個要寫入的格
+		int bins = 0;        // 已結束的區間數
+		double[] history = new double[COLS * 256];
+		int rows = 0;
+
+		/** 在 lane 的位置 s 加一個偵測器。*/
+		LoopDetector add(String name, Lane lane, double s) {
+			LoopDetector d = new LoopDetector(name, lane, s);
+			detectors.add(d);
+			lane.detectors = Arrays.copyOf(lane.detectors, lane.detectors.length + 1);
+			lane.detectors[lane.detectors.length - 1] = d;
+			return d;
+		}
+
+		/** 預設配置：每條車道中點各一個（同名的平行車道以索引區分）。*/
+		void addDefaults(World w) {
+			for (Lane l : w.lanes)
+				add(l.path.name + "#" + l.id + "@0.5", l, 0.5);
+		}
+
+		/** 依 "車道名稱@s"（名稱可為前綴）或世界座標 "x,y"（由格網索引找最近車道）加入偵測器。*/
+		LoopDetector add(World w, String spec) {
+			int at = spec.lastIndexOf('@');
+			int comma = spec.indexOf(',');
+			if (at < 0 && comma > 0) {
+				double x = Double.parseDouble(spec.substring(0, comma)), y = Double.parseDouble(spec.substring(comma + 1));
+				Lane lane = w.laneAt(x, y, 40);
+				if (lane == null)
+					throw new IllegalArgumentException("No lane within 40 px of " + spec);
+				return add(lane.path.name + "#" + lane.id + "@" + spec, lane, Math.min(lane.path.project(new Point2D.Double(x, y)), 0.999));
 			}
+			if (at <= 0)
+				throw new IllegalArgumentException("Detector spec must be <lane>@<s> or <x>,<y>: " + spec);
+			String laneName = spec.substring(0, at);
+			double s = Double.parseDouble(spec.substring(at + 1));
+			if (s < 0 || s >= 1)
+				throw new IllegalArgumentException("Detector position must be in [0,1): " + spec);
+			Lane lane = null;
+			for (Lane l : w.lanes)
+				if (lane == null && l.path.name.equals(laneName))
+					lane = l;
+			if (lane == null)
+				lane = w.findLaneByName(laneName);
+			if (lane == null)
+				throw new IllegalArgumentException("Unknown lane: " + laneName);
+			return add(spec, lane, s);
+		}
 
-			// 2) 以目前車輛位置重建 QuadTree（便於區域查詢）
-			qt = new QuadTree(worldBounds, 6, 8);
-			synchronized (cars) {
-				for (Car c : cars)
-					qt.insert(new QTItem(c.position(), c));
+		/** 推進模擬時間；區間結束時結算所有偵測器（每 BIN_SEC 一次，與車數無關）。*/
+		void tick(double dt) {
+			time += dt;
+			binTime += dt;
+			if (binTime < BIN_SEC - 1e-9) // dt 累加的捨入誤差不應拖到下一步
+				return;
+			for (int i = 0; i < detectors.size(); i++) {
+				LoopDetector d = detectors.get(i);
+				double q = d.count / binTime;                               // veh/s
+				double vt = d.count > 0 ? d.speedSum / d.count : 0;         // 時間平均速度
+				double vs = d.count > 0 ? d.count / d.invSpeedSum : 0;      // 空間平均速度
+				double k = vs > 0 ? q / vs : 0;                             // veh/px
+				int count = d.count;
+				d.closeBin(slot);
+				appendRow(time, i, count, q * 3600, vt, vs, k * 1000, windowFlow(d, bins + 1), windowSpaceMeanSpeed(d));
 			}
+			slot = (slot + 1) % WINDOW_BINS;
+			bins++;
+			binTime = 0;
+		}
 
-			// 3) 第一階段：使用 QuadTree 找出各車在同車道/左右車道的前車與後車（近似）
-			Map<Car, NeighborInfo> neigh = new ConcurrentHashMap<>();
-			List<Callable<Void>> tasks = new ArrayList<>();
-			synchronized (cars) {
-				for (Car c : cars) {
-					tasks.add(() -> {
-						neigh.put(c, findNeighbors(c));
-						return null;
-					});
+		private void appendRow(double... v) {
+			if ((rows + 1) * COLS > history.length)
+				history = Arrays.copyOf(history, history.length * 2);
+			System.arraycopy(v, 0, history, rows * COLS, COLS);
+			rows++;
+		}
+
+		/** 滾動視窗流量（veh/h）。*/
+		double windowFlow(LoopDetector d) {
+			return windowFlow(d, bins);
+		}
+
+		private double windowFlow(LoopDetector d, int closedBins) {
+			double span = Math.min(closedBins, WINDOW_BINS) * BIN_SEC;
+			return span > 0 ? d.winCount / span * 3600 : 0;
+		}
+
+		/** 滾動視窗空間平均速度（px/s）。*/
+		double windowSpaceMeanSpeed(LoopDetector d) {
+			return d.winCount > 0 ? d.winCount / d.winInvSpeedSum : 0;
+		}
+
+		void reset() {
+			time = binTime = 0;
+			slot = bins = rows = 0;
+			for (LoopDetector d : detectors)
+				d.reset();
+		}
+
+		/** 匯出所有已結束區間為 CSV（速度 px/s、流量 veh/h、密度 veh/1000px）。*/
+		void writeCsv(File file) throws IOException {
+			try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+				out.println("time_s,detector,lane,lane_id,kind,s,count,flow_veh_h,speed_time_mean,speed_space_mean,density_veh_kpx,window_flow_veh_h,window_speed_space_mean");
+				for (int r = 0; r < rows; r++) {
+					int o = r * COLS;
+					LoopDetector d = detectors.get((int) history[o + 1]);
+					out.printf(Locale.ROOT, "%.1f,%s,%s,%d,%s,%.3f,%d,%.1f,%.2f,%.2f,%.3f,%.1f,%.2f%n", history[o], d.name, d.lane.path.name, d.lane.id, d.lane.kind,
+							d.s, (int) history[o + 2], history[o + 3], history[o + 4], history[o + 5], history[o + 6], history[o + 7], history[o + 8]);
 				}
 			}
-			invokeAll(tasks); // 平行化鄰近搜尋
+		}
+	}
 
-			// 4) 第二階段：MOBIL 變換車道（順序處理以避免衝突；隨機順序減少偏誤）
-			if (mobilEnabled)
-				laneChangeRound(neigh);
+	// ============================== SafetyMonitor =======================
+	/**
+	 * SafetyMonitor：替代安全指標（surrogate safety measures）。
+	 * IDM 階段結束、提交狀態之前，把每台微觀車與同車道前車的間距、速度與本步 IDM 加速度抄進基本型別陣列；
+	 * 急煞看的是 IDM 加速度而非 (vNext − v)/dt，換車道時速度上限的跳降不是駕駛行為，不算急煞。
+	 * 推進完成後再以固定數量的區塊平行計算 TTC（間距／接近速度）、DRAC（接近速度²／2·間距）與急煞，
+	 * 累加到「區塊 × 車道」的基本型別累加器。區塊數固定，結果與執行緒數無關；只在輸出時合併。
+	 * 事件只在進入衝突狀態的那一步計一次（以 Car.safetyFlags 記住上一步狀態），暴露時間則逐步累加。
+	 * 間距不到 OVERLAP_GAP 的車已重疊（通常是跨段瞬移或生成造成），另計為重疊事件，不進 TTC／DRAC 欄位。
+	 * 距離與加速度沿用模擬單位（px、px/s²）。
+	 */
+	static final class SafetyMonitor {
+		static final double PX_PER_M = 40;                    // 與 ModelParams 的 aSafe（-2 m/s² × 40）同一換算
+		static final double DRAC_THRESHOLD = 3.35 * PX_PER_M; // 常用的 DRAC 門檻 3.35 m/s²
+		static final int CHUNKS = 8;
+		static final double OVERLAP_GAP = 1.0;                // 與 accIDM 的 max(1, s) 一致：間距不到 1 px 視為重疊
+
+		// 每條車道的累加欄位
+		static final int OBS = 0;         // 觀測車秒
+		static final int FOLLOW = 1;      // 有前車的車秒
+		static final int TTC_EVENTS = 2;  // 進入 TTC < 門檻的次數
+		static final int TTC_TIME = 3;    // TET：TTC < 門檻的車秒
+		static final int TTC_INTEGRAL = 4;// TIT：Σ(門檻 − TTC)·dt
+		static final int TTC_MIN = 5;     // 最小 TTC（s）
+		static final int DRAC_EVENTS = 6; // 進入 DRAC > 門檻的次數
+		static final int DRAC_TIME = 7;   // DRAC > 門檻的車秒
+		static final int DRAC_MAX = 8;    // 最大 DRAC
+		static final int BRAKE_EVENTS = 9;// 進入急煞（加速度 < aSafe）的次數
+		static final int ACC_MIN = 10;    // 最小 IDM 加速度
+		static final int OVERLAP_EVENTS = 11; // 進入重疊（間距 < OVERLAP_GAP）的次數
+		static final int OVERLAP_TIME = 12;   // 重疊的車秒
+		static final int FIELDS = 13;
+
+		static final byte F_TTC = 1, F_DRAC = 2, F_BRAKE = 4, F_OVERLAP = 8;
+
+		final double ttcThreshold;  // TTC 門檻（s）
+		final double hardBrake;     // 急煞門檻（px/s²，負值）
+		final double[][] acc;       // [區塊][車道 × FIELDS]
+		final int laneCount;
+		double time;                // 觀測的模擬秒數
+
+		// 本步抄下的輸入（只由模擬執行緒寫入）
+		private Car[] car = new Car[0];
+		private int[] lane = new int[0];
+		private double[] v = new double[0], gap = new double[0], vLead = new double[0], a = new double[0];
+		private int n;
+		private double dt;
+		private final List<Callable<Void>> tasks = new ArrayList<>();
+
+		SafetyMonitor(int laneCount, double ttcThreshold, double hardBrake) {
+			this.laneCount = laneCount;
+			this.ttcThreshold = ttcThreshold;
+			this.hardBrake = hardBrake;
+			acc = new double[CHUNKS][laneCount * FIELDS];
+			for (int k = 0; k < CHUNKS; k++) {
+				final int chunk = k;
+				tasks.add(() -> {
+					observe(chunk);
+					return null;
+				});
+			}
+			reset();
+		}
 
-			// 5) 第三階段：依 IDM 計算加速度並積分速度與參數 s（平行化）
-			tasks.clear();
-			synchronized (cars) {
-				for (Car c : cars) {
-					tasks.add(() -> {
-						stepIDM(c, neigh.get(c), dt);
-						return null;
-					});
+		void reset() {
+			time = 0;
+			n = 0;
+			for (double[] t : acc)
+				for (int l = 0; l < laneCount; l++) {
+					int o = l * FIELDS;
+					Arrays.fill(t, o, o + FIELDS, 0);
+					t[o + TTC_MIN] = Double.POSITIVE_INFINITY;
 				}
+		}
+
+		/** 提交狀態前呼叫：抄下每台車的前車間距、速度與本步 IDM 加速度（Car.accIdm）。*/
+		void capture(List<Car> cars, Map<Car, NeighborInfo> neigh, double dt) {
+			n = cars.size();
+			this.dt = dt;
+			if (car.length < n) {
+				int cap = Math.max(n, car.length * 2);
+				car = new Car[cap];
+				lane = new int[cap];
+				v = new double[cap];
+				gap = new double[cap];
+				vLead = new double[cap];
+				a = new double[cap];
 			}
-			invokeAll(tasks);
+			for (int i = 0; i < n; i++) {
+				Car c = cars.get(i);
+				NeighborInfo N = neigh.get(c);
+				Car leader = N != null ? N.leaderSame : null;
+				car[i] = c;
+				lane[i] = c.lane.id;
+				v[i] = c.v;
+				gap[i] = leader != null ? N.leaderSameDist : Double.POSITIVE_INFINITY;
+				vLead[i] = leader != null ? leader.v : c.v;
+				a[i] = c.accIdm;
+			}
+		}
 
-			// 6) 單次推進位置，並交給 wrapOrRecycle 與 followRoute 處理
-			synchronized (cars) {
-				for (Car c : cars) {
-					double sPrev = c.s; // 先存起來
-					c.advance(dt);
-					wrapOrRecycle(c);
-					followRoute(c);
-
-					// 若這條主線是「無限直線」（沒有下一段），s 從大變小代表 wrap 了一圈
-					boolean finiteSegment = routeGraph.containsKey(c.lane) && !routeGraph.get(c.lane).isEmpty();
-					if (!finiteSegment && c.lane.path.isStraight) {
-						if (c.s < sPrev) {
-							c.passedEntryThisLap = false; // 新的一圈，解鎖
+		/** 平行計算本步抄下的樣本並累加；區塊之間不共用累加器，不需同步。*/
+		void observe(World w) {
+			if (n > 0)
+				w.invokeAll(tasks);
+			time += dt;
+			Arrays.fill(car, 0, n, null); // 不留住已離開的車
+			n = 0;
+		}
+
+		private void observe(int chunk) {
+			double[] t = acc[chunk];
+			int from = (int) ((long) n * chunk / CHUNKS), to = (int) ((long) n * (chunk + 1) / CHUNKS);
+			for (int i = from; i < to; i++) {
+				int o = lane[i] * FIELDS;
+				Car c = car[i];
+				byte flags = 0;
+				t[o + OBS] += dt;
+				if (gap[i] < OVERLAP_GAP) {
+					flags |= F_OVERLAP;
+					t[o + OVERLAP_TIME] += dt;
+					if ((c.safetyFlags & F_OVERLAP) == 0)
+						t[o + OVERLAP_EVENTS]++;
+				} else if (gap[i] < Double.POSITIVE_INFINITY) {
+					t[o + FOLLOW] += dt;
+					double closing = v[i] - vLead[i];
+					if (closing > 0) {
+						double ttc = gap[i] / closing;
+						double drac = closing * closing / (2 * gap[i]);
+						if (ttc < t[o + TTC_MIN])
+							t[o + TTC_MIN] = ttc;
+						if (drac > t[o + DRAC_MAX])
+							t[o + DRAC_MAX] = drac;
+						if (ttc < ttcThreshold) {
+							flags |= F_TTC;
+							t[o + TTC_TIME] += dt;
+							t[o + TTC_INTEGRAL] += (ttcThreshold - ttc) * dt;
+							if ((c.safetyFlags & F_TTC) == 0)
+								t[o + TTC_EVENTS]++;
+						}
+						if (drac > DRAC_THRESHOLD) {
+							flags |= F_DRAC;
+							t[o + DRAC_TIME] += dt;
+							if ((c.safetyFlags & F_DRAC) == 0)
+								t[o + DRAC_EVENTS]++;
 						}
 					}
-					c.sPrev = c.s; // 更新上一幀進度
 				}
-			}
-			
-		}
-
-		/** 將任務提交至執行緒池並等待完成。 */
-		void invokeAll(List<Callable<Void>> tasks) {
-			try {
-				pool.invokeAll(tasks);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
+				// 重疊時 IDM 的跟車項發散，那不是煞車需求，不計入急煞與最小加速度
+				if ((flags & F_OVERLAP) == 0) {
+					if (a[i] < t[o + ACC_MIN])
+						t[o + ACC_MIN] = a[i];
+					if (a[i] < hardBrake) {
+						flags |= F_BRAKE;
+						if ((c.safetyFlags & F_BRAKE) == 0)
+							t[o + BRAKE_EVENTS]++;
+					}
+				}
+				c.safetyFlags = flags;
 			}
 		}
 
-		/**
-		 * 直線道：s 超出 [0,1) 時循環回包（實現無限長直線效果）。
-		 * 匝道弧線：s>=1 時回到 0（形成回圈）。
-		 */
-		void wrapOrRecycle(Car c) {
-			// 只要這條 Lane 在 routeGraph 中「有」下一段，表示它是有限段（entry/ramp/exit/connector）
-			boolean finiteSegment = routeGraph.containsKey(c.lane) && !routeGraph.get(c.lane).isEmpty();
-			
-			if (c.lane.path.isStraight) { //連結型態為直線
-				if (finiteSegment) {
-					// NEW: 有下一段 → not wrap，夾住在尾端附近等合流
-					if (c.s > 0.995) {
-						// 溫和降速，但保留最小蠕行速度
-		        c.v = Math.max(6.0, c.v * 0.85);
-		        c.s -= 1;
+		/** 把各區塊合併成每條車道一列（次數與時間相加、極值取極值）。*/
+		double[] merged() {
+			double[] m = new double[laneCount * FIELDS];
+			for (int l = 0; l < laneCount; l++)
+				m[l * FIELDS + TTC_MIN] = Double.POSITIVE_INFINITY;
+			for (double[] t : acc)
+				for (int l = 0; l < laneCount; l++) {
+					int o = l * FIELDS;
+					for (int f = 0; f < FIELDS; f++) {
+						if (f == TTC_MIN || f == ACC_MIN)
+							m[o + f] = Math.min(m[o + f], t[o + f]);
+						else if (f == DRAC_MAX)
+							m[o + f] = Math.max(m[o + f], t[o + f]);
+						else
+							m[o + f] += t[o + f];
 					}
-				} else {
-					// 無下一段的無限直線（主線）才循環
-					if (c.s > 1.0)
-						c.s = 0;
-					else if (c.s < 0)
-						c.s = 0;
-				}
-			} else {
-				// 弧線（匝道本身通常也有下一段），同理：有下一段就別回繞
-				if (finiteSegment) {
-					if (c.s > 0.995)
-						c.s = 0.995;
-				} else {
-					if (c.s > 1.0)
-						c.s = 0.0; // 保留原本回圈行為
 				}
+			return m;
+		}
+
+		/** 依車道種類加總的事件數：{TTC, DRAC, 急煞, 重疊}。*/
+		Map<LaneKind, long[]> eventsByKind(List<Lane> lanes) {
+			double[] m = merged();
+			Map<LaneKind, long[]> out = new LinkedHashMap<>();
+			for (LaneKind k : LaneKind.values())
+				out.put(k, new long[4]);
+			for (Lane l : lanes) {
+				long[] e = out.get(l.kind);
+				int o = l.id * FIELDS;
+				e[0] += (long) m[o + TTC_EVENTS];
+				e[1] += (long) m[o + DRAC_EVENTS];
+				e[2] += (long) m[o + BRAKE_EVENTS];
+				e[3] += (long) m[o + OVERLAP_EVENTS];
 			}
+			return out;
 		}
 
-		/** 隨機在主幹直線道生成一輛車（初始 s 落在 [0,0.2)）；並隨機決定是否偏好走匝道。 */
-		void spawnCar() {
-			List<Lane> spawnable = new ArrayList<>();
-			for (Lane l : lanes)
-				if (l.path.isStraight && (l.path.name.startsWith("EW") || l.path.name.startsWith("NS")))
-					spawnable.add(l);
-			Lane lane = spawnable.get(rng.nextInt(spawnable.size()));
-			Car c = new Car(lane);
-			c.s = rng.nextDouble() * 0.08;
-			c.v = v0 * (0.4 + 0.2 * rng.nextDouble()); // 初速略低於期望速度
-			c.color = randomColor(rng);
-			// 60% 直行、40% 走匝道（可調整）
-			c.takeRamp = (rng.nextDouble() < 0.4);
-			synchronized (cars) {
-				cars.add(c);
+		/** 匯出每條有車經過的車道一列（時間 s、距離 px、加速度 px/s²）。*/
+		void writeCsv(File file, List<Lane> lanes) throws IOException {
+			double[] m = merged();
+			try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+				out.printf(Locale.ROOT, "# %.1f s observed, TTC < %.2f s, DRAC > %.1f px/s^2, hard braking < %.1f px/s^2%n", time, ttcThreshold,
+						DRAC_THRESHOLD, hardBrake);
+				out.println("lane,lane_id,kind,car_seconds,following_seconds,ttc_conflicts,ttc_exposed_s,ttc_integrated,min_ttc_s,"
+						+ "drac_conflicts,drac_exposed_s,max_drac,hard_brakes,min_accel,conflicts_per_car_hour,overlaps,overlap_s");
+				for (Lane l : lanes) {
+					int o = l.id * FIELDS;
+					if (m[o + OBS] <= 0)
+						continue;
+					out.printf(Locale.ROOT, "%s,%d,%s,%.1f,%.1f,%d,%.2f,%.3f,%s,%d,%.2f,%.1f,%d,%.1f,%.3f,%d,%.2f%n", l.path.name, l.id, l.kind, m[o + OBS],
+							m[o + FOLLOW], (long) m[o + TTC_EVENTS], m[o + TTC_TIME], m[o + TTC_INTEGRAL],
+							m[o + TTC_MIN] < Double.POSITIVE_INFINITY ? String.format(Locale.ROOT, "%.2f", m[o + TTC_MIN]) : "",
+							(long) m[o + DRAC_EVENTS], m[o + DRAC_TIME], m[o + DRAC_MAX], (long) m[o + BRAKE_EVENTS], m[o + ACC_MIN],
+							m[o + TTC_EVENTS] / (m[o + OBS] / 3600), (long) m[o + OVERLAP_EVENTS], m[o + OVERLAP_TIME]);
+				}
 			}
 		}
+	}
 
-		/** 產生亮麗的 HSB 顏色當作車色。 */
-		Color randomColor(Random r) {
-			float h = r.nextFloat();
-			float s = 0.6f + r.nextFloat() * 0.3f;
-			float b = 0.75f + r.nextFloat() * 0.2f;
-			return Color.getHSBColor(h, s, b);
+	// ============================== MergeEdge ===========================
+	/**
+	 * MergeEdge：from→to 跨段時的預先計算資訊。
+	 * sIntersect 為 from 尾端與 to 起點的幾何交點（在 to 上的 s）；
+	 * projS 為 from 在 [fromLo,fromHi] 等分位置投影到 to 的 s，查表內插即得車輛的投影位置。
+	 */
+	static class MergeEdge {
+		static final int SAMPLES = 32;
+
+		final Lane from, to;
+		final double sIntersect;
+		final double fromLo, fromHi;
+		final double[] projS;
+
+		MergeEdge(Lane from, Lane to, double sIntersect, double fromLo, double fromHi, double[] projS) {
+			this.from = from;
+			this.to = to;
+			this.sIntersect = sIntersect;
+			this.fromLo = fromLo;
+			this.fromHi = fromHi;
+			this.projS = projS;
 		}
 
-		/** 使用 QuadTree 在附近範圍找出可能的前後車（同車道、左右相鄰車道）。*/
-		NeighborInfo findNeighbors(Car me) {
-			Point2D p = me.position();
-			// 以 me 為中心建立查詢矩形（寬高 120px）
-			Rectangle2D rect = new Rectangle2D.Double(p.getX() - 60, p.getY() - 60, 120, 120);
-			List<QTItem> list = qt.query(rect);
+		boolean covers(double sFrom) {
+			return sFrom >= fromLo && sFrom <= fromHi;
+		}
 
-			Car leaderSame = null;
-			double leaderSameDist = Double.POSITIVE_INFINITY;
-			Car follSame = null;
-			double follSameDist = Double.POSITIVE_INFINITY;
-			Car leaderLeft = null, leaderRight = null, follLeft = null, follRight = null;
-			double ld = 1e9, rd = 1e9, fld = 1e9, frd = 1e9;
+		/** from 上 sFrom 處投影到 to 的 s（線性內插）。*/
+		double projectFrom(double sFrom) {
+			double f = (sFrom - fromLo) / (fromHi - fromLo) * SAMPLES;
+			int i = Math.max(0, Math.min(SAMPLES - 1, (int) f));
+			return RoadPath.lerp(projS[i], projS[i + 1], Math.max(0, Math.min(1, f - i)));
+		}
+	}
 
-			for (QTItem it : list) {
-				Car other = (Car) it.payload;
-				if (other == me)
-					continue;
-				// 同車道：找前車與後車（取最近者）
-				if (other.lane == me.lane) {
-					double d = laneDistanceAhead(me, other);
-					double back = laneDistanceAhead(other, me);
-					if (d >= 0 && d < leaderSameDist) {
-						leaderSameDist = d;
-						leaderSame = other;
-					}
-					if (back >= 0 && back < follSameDist) {
-						follSameDist = back;
-						follSame = other;
-					}
-				}
-				// 只在直線道上考慮左右相鄰變道
-				if (me.lane.adjLeft != null && other.lane == me.lane.adjLeft) {
-					double d = laneDistanceAhead(me, other);
-					if (d >= 0 && d < ld) {
-						ld = d;
-						leaderLeft = other;
-					}
-					double back = laneDistanceAhead(other, me);
-					if (back >= 0 && back < fld) {
-						fld = back;
-						follLeft = me; // 簡化：僅記錄距離
-					}
-				}
-				if (me.lane.adjRight != null && other.lane == me.lane.adjRight) {
-					double d = laneDistanceAhead(me, other);
-					if (d >= 0 && d < rd) {
-						rd = d;
-						leaderRight = other;
+	// ============================== RouteTable ==========================
+	/**
+	 * RouteTable：起訖需求用的路徑表，世界建好後對 routeGraph（加上主線的匝道入口與回繞接續）一次算完。
+	 * 並排可變道的車道（adjLeft/adjRight 相連）合成一個節點；目的地是主線車行道，開到其段尾即離開路網。
+	 * 每個目的地由終點往回做一次 Dijkstra（邊長取起點車道長），next 記下最短路徑上的下一個節點，
+	 * 所以車輛每次路由決策只是一次陣列查表；route() 可把同一張表展開成整條車道序列。
+	 */
+	static final class RouteTable {
+		static final int NONE = -1;
+
+		final int[] nodeOf;    // 車道 id → 節點
+		final int[] laneOf;    // 節點 → 代表車道 id（節點內 id 最小者）
+		final int[] sinks;     // 目的地節點（主線車行道）
+		final int[] next;      // [node * sinks.length + d] → 往目的地 d 的下一個節點；已到達或到不了為 NONE
+		final double[] dist;   // 同上索引：到目的地的路徑長（px），到不了為 +∞
+
+		RouteTable(List<Lane> lanes) {
+			int n = lanes.size();
+			int[] root = new int[n];
+			for (int i = 0; i < n; i++)
+				root[i] = i;
+			for (Lane l : lanes)
+				for (Lane adj : new Lane[] { l.adjLeft, l.adjRight })
+					if (adj != null) {
+						int a = find(root, l.id), b = find(root, adj.id);
+						root[Math.max(a, b)] = Math.min(a, b);
 					}
-					double back = laneDistanceAhead(other, me);
-					if (back >= 0 && back < frd) {
-						frd = back;
-						follRight = me; // 簡化：僅記錄距離
+			nodeOf = new int[n];
+			int[] nodeOfRoot = new int[n];
+			Arrays.fill(nodeOfRoot, NONE);
+			int count = 0;
+			for (int i = 0; i < n; i++) {
+				int r = find(root, i);
+				if (nodeOfRoot[r] == NONE)
+					nodeOfRoot[r] = count++;
+				nodeOf[i] = nodeOfRoot[r];
+			}
+			laneOf = new int[count];
+			double[] length = new double[count];
+			boolean[] sink = new boolean[count];
+			Arrays.fill(laneOf, NONE);
+			for (Lane l : lanes) {
+				int u = nodeOf[l.id];
+				if (laneOf[u] == NONE)
+					laneOf[u] = l.id;
+				length[u] = Math.max(length[u], l.path.length);
+				sink[u] |= (l.mainline && l.path.isStraight);
+			}
+
+			// 反向鄰接：pred[u] 為可一步接到 u 的節點
+			List<Set<Integer>> pred = new ArrayList<>(count);
+			for (int u = 0; u < count; u++)
+				pred.add(new LinkedHashSet<>());
+			for (Lane l : lanes) {
+				int u = nodeOf[l.id];
+				for (Lane to : l.next)
+					pred.get(nodeOf[to.id]).add(u);
+				for (Lane to : new Lane[] { l.slipEntry, l.loopEntry, l.wrapTo })
+					if (to != null && nodeOf[to.id] != u)
+						pred.get(nodeOf[to.id]).add(u);
+			}
+
+			int sinkCount = 0;
+			for (boolean b : sink)
+				sinkCount += b ? 1 : 0;
+			sinks = new int[sinkCount];
+			for (int u = 0, d = 0; u < count; u++)
+				if (sink[u])
+					sinks[d++] = u;
+			next = new int[count * sinkCount];
+			dist = new double[count * sinkCount];
+			Arrays.fill(next, NONE);
+			Arrays.fill(dist, Double.POSITIVE_INFINITY);
+			double[] best = new double[count];
+			PriorityQueue<double[]> open = new PriorityQueue<>((a, b) -> a[0] != b[0] ? Double.compare(a[0], b[0]) : Double.compare(a[1], b[1]));
+			for (int d = 0; d < sinkCount; d++) {
+				Arrays.fill(best, Double.POSITIVE_INFINITY);
+				best[sinks[d]] = 0;
+				open.add(new double[] { 0, sinks[d] });
+				while (!open.isEmpty()) {
+					double[] top = open.poll();
+					int u = (int) top[1];
+					if (top[0] > best[u])
+						continue;
+					for (int v : pred.get(u)) {
+						double nd = best[u] + length[v];
+						if (nd < best[v]) {
+							best[v] = nd;
+							next[v * sinkCount + d] = u;
+							open.add(new double[] { nd, v });
+						}
 					}
 				}
+				for (int u = 0; u < count; u++)
+					dist[u * sinkCount + d] = best[u];
 			}
-			return new NeighborInfo(leaderSame, follSame, leaderLeft, follLeft, leaderRight, follRight,
-					leaderSameDist, follSameDist, ld, fld, rd, frd);
 		}
 
-		/** 回傳 a 車看見 b 車的前向距離（同車道、以 s 參數差轉換為長度）。*/
-		double laneDistanceAhead(Car a, Car b) {
-			if (a.lane != b.lane)
-				return Double.NaN;
-			double ds = b.s - a.s;
-			if (ds < 0)
-				ds += 1.0;
-			return ds * a.lane.path.length;
+		private static int find(int[] root, int i) {
+			while (root[i] != i)
+				i = root[i] = root[root[i]];
+			return i;
 		}
 
-		// ------------------- MOBIL lane change -------------------
-		/** 對所有車依隨機順序嘗試變道（先左後右），以減少競爭衝突。*/
-		void laneChangeRound(Map<Car, NeighborInfo> neigh) {
-			List<Car> order;
-			synchronized (cars) {
-				order = new ArrayList<>(cars);
+		/** 節點 node 往第 d 個目的地的下一個節點。*/
+		int next(int node, int d) {
+			return next[node * sinks.length + d];
+		}
+
+		boolean reachable(int node, int d) {
+			return dist[node * sinks.length + d] < Double.POSITIVE_INFINITY;
+		}
+
+		/** 由節點 from 到第 d 個目的地的車道序列（每個節點取代表車道，含起訖兩端）；到不了回傳 null。*/
+		int[] route(int from, int d) {
+			if (!reachable(from, d))
+				return null;
+			int len = 1;
+			for (int u = from; u != sinks[d]; u = next(u, d))
+				len++;
+			int[] seq = new int[len];
+			int i = 0;
+			for (int u = from;; u = next(u, d)) {
+				seq[i++] = laneOf[u];
+				if (u == sinks[d])
+					return seq;
 			}
-			Collections.shuffle(order, rng);
+		}
+	}
 
-			for (Car c : order) {
-				// NEW: 冷卻中就跳過
-				if (c.laneCooldown > 0)
+	// ============================== OdDemand ============================
+	/**
+	 * OdDemand：起訖需求矩陣。每次生成依各筆流量（veh/h）的比例抽出一筆，
+	 * 在起點車行道可生成的車道中挑一條，目的地存進 Car.dest 供路由查表。
+	 * 起點不在本世界生成車道上的流量（分區模擬的他區）略過。
+	 */
+	static final class OdDemand {
+		final List<RoadNetwork.OdFlow> flows; // 原始流量（匯出路網時寫回）
+		final Lane[][] origin;                // 每筆有效流量的起點車道
+		final int[] sink;                     // 每筆有效流量的目的地（RouteTable.sinks 的索引）
+		final double[] cumPerHour;            // 累積流量
+		final double totalPerHour;
+
+		/** 依世界目前的生成車道與路徑表建立；目的地不是主線或到不了時丟 IllegalArgumentException。*/
+		OdDemand(World w, List<RoadNetwork.OdFlow> flows) {
+			RouteTable rt = w.routes;
+			int[] sinkIndex = new int[rt.laneOf.length];
+			Arrays.fill(sinkIndex, RouteTable.NONE);
+			for (int d = 0; d < rt.sinks.length; d++)
+				sinkIndex[rt.sinks[d]] = d;
+			List<Lane[]> origins = new ArrayList<>();
+			List<Integer> sinks = new ArrayList<>();
+			List<Double> rates = new ArrayList<>();
+			for (RoadNetwork.OdFlow f : flows) {
+				int from = rt.nodeOf[f.from], d = sinkIndex[rt.nodeOf[f.to]];
+				if (d == RouteTable.NONE)
+					throw new IllegalArgumentException("Demand destination lane " + f.to + " is not a straight mainline");
+				if (!rt.reachable(from, d))
+					throw new IllegalArgumentException("No route from lane " + f.from + " to lane " + f.to);
+				List<Lane> starts = new ArrayList<>();
+				for (Lane l : w.spawnLanes)
+					if (rt.nodeOf[l.id] == from)
+						starts.add(l);
+				if (starts.isEmpty() || f.perHour <= 0)
 					continue;
+				origins.add(starts.toArray(new Lane[0]));
+				sinks.add(d);
+				rates.add(f.perHour);
+			}
+			this.flows = new ArrayList<>(flows);
+			this.origin = origins.toArray(new Lane[0][]);
+			this.sink = new int[sinks.size()];
+			this.cumPerHour = new double[sinks.size()];
+			double total = 0;
+			for (int i = 0; i < sink.length; i++) {
+				sink[i] = sinks.get(i);
+				cumPerHour[i] = total += rates.get(i);
+			}
+			this.totalPerHour = total;
+		}
 
-				boolean changed = false;
-				Lane left = c.lane.adjLeft;
-				Lane right = c.lane.adjRight;
+		/** 依流量比例抽一筆流量的索引。*/
+		int pick(Random rng) {
+			double r = rng.nextDouble() * totalPerHour;
+			int i = Arrays.binarySearch(cumPerHour, r);
+			i = i >= 0 ? i + 1 : -i - 1;
+			return Math.min(i, cumPerHour.length - 1);
+		}
+	}
 
-				if (left != null && considerLaneChange(c, left, neigh, true)) {
-					startLaneChange(c, left); // NEW
-					changed = true;
-				} else if (right != null && considerLaneChange(c, right, neigh, false)) {
-					startLaneChange(c, right); // NEW
-					changed = true;
-				}
+	// ============================== MesoLink ============================
+	/**
+	 * MesoLink：混合模式下直線主線中段（遠離匝道入口、併入點與車道兩端）的中觀路段。
+	 * 車在 sIn 轉入後不再做鄰車搜尋、IDM 與 MOBIL，只排在先進先出佇列裡：以自由流速度前進、
+	 * 與前車至少保持擁塞間距；出口依容量（最小車頭時距）與下游空間逐台放回微觀模擬。
+	 * 佇列回堵到入口時，最後一台就停在入口附近，上游的微觀車照常把它當前車。
+	 * 每步仍更新 s 與 v，繪圖、偵測器與檢查點不必區分兩種表示法。
+	 */
+	static final class MesoLink {
+		final Lane lane;
+		final double sIn, sOut; // 中觀範圍（車道參數 s）
+		final double length;    // 範圍長度（px）
+		final double vFree;     // 自由流速度（px/s）
+		final double T;         // 安全時距（s），出口速度依下游間距回推
+		final double jamGap;    // 擁塞時的最小車距（px）
+		final double headway;   // 出口最小車頭時距（s），即容量的倒數
+		final int storage;      // 可容納車數
+		final ArrayDeque<Car> queue = new ArrayDeque<>(); // 頭為最下游
+		double lastExit = Double.NEGATIVE_INFINITY;
+
+		MesoLink(Lane lane, double sIn, double sOut, double vFree, double T, double s0) {
+			this.lane = lane;
+			this.sIn = sIn;
+			this.sOut = sOut;
+			this.length = (sOut - sIn) * lane.path.length;
+			this.vFree = vFree;
+			this.T = T;
+			this.jamGap = s0;
+			this.headway = T + s0 / vFree; // IDM 穩態下的最大流量約為 v0 / (s0 + v0·T)
+			this.storage = Math.max(1, (int) (length / jamGap));
+		}
 
-				// NEW: 一幀只處理一次，避免連續兩次切換
-				if (changed)
-					continue;
-			}
+		boolean full() {
+			return queue.size() >= storage;
 		}
-		
-		void startLaneChange(Car c, Lane target) {
-			Lane from = c.lane;
-			c.lane = target;
-			c.laneCooldown = Math.max(c.laneCooldown, 1.8); // 約 1.8s 冷卻，可依喜好 1.2~3.0
-			// 視覺補間：從舊線過渡到新線
-			c.animFromLane = from;
-			c.animT = 0.0;
+
+		/** 車從微觀轉入：依目前位置回推進入時間，讓自由流位置與實際位置一致，並依 s 排進佇列。*/
+		void admit(Car c, double now) {
+			c.meso = this;
+			c.mesoIn = now - (c.s - sIn) * lane.path.length / vFree;
+			if (queue.isEmpty() || queue.peekLast().s >= c.s) {
+				queue.addLast(c);
+				return;
+			}
+			// 少見：車在段中轉入（例如載入檢查點或剛開啟混合模式），插到依 s 排序的位置
+			List<Car> order = new ArrayList<>(queue);
+			int i = 0;
+			while (i < order.size() && order.get(i).s >= c.s)
+				i++;
+			order.add(i, c);
+			queue.clear();
+			queue.addAll(order);
 		}
 
 		/**
-		 * 判斷是否由 me 變到 target 車道：
-		 * 1) 安全性：目標車道後車的加速度不可低於 aSafe（避免急煞）。
-		 * 2) 動機值：IDM 估算變道前後自身加速度差 + 禮讓加權他人影響 > 門檻。
+		 * 推進到時間 now：先依自由流位置前進（不超過前車減擁塞間距、也不後退；
+		 * 一步最多走 vFree·dt，佇列放行時被擋住的車是逐步跟上而不是一次跳一個擁塞間距，偵測器看到的速度不會超過自由流），
+		 * 再放行已到出口、距上一台達車頭時距且下游有空間的頭車。aheadS 為出口下游最近微觀車的 s（沒有為 +∞）。
+		 * 放行的車 meso 清為 null，速度取下游間距對應的穩態速度；回傳放行數。
 		 */
-		boolean considerLaneChange(Car me, Lane target, Map<Car, NeighborInfo> neigh, boolean toLeft) {
-			
-			boolean hasNext = routeGraph.containsKey(me.lane) && !routeGraph.get(me.lane).isEmpty();
-			if (hasNext) return false; // 在 entry/ramp/exit 等有限段不上 MOBIL
-			
-	    if (!me.lane.path.isStraight || !target.path.isStraight) return false;
-	    if (me.laneCooldown > 0) return false; // NEW: 冷卻
-			
-			if (!me.lane.path.isStraight || !target.path.isStraight)
-				return false; // 簡化：僅在直線上變道
-			// 安全性：計算目標車道之後車（newFollower）是否需過度煞車
-			Car newFollower = nearestBehindInLane(me, target);
-			Car newLeader = nearestAheadInLane(me, target);
-			double aNewFollower = 0;
-			if (newFollower != null)
-				aNewFollower = accIDM(newFollower, newLeader, distAlong(newFollower, newLeader));
-			if (newFollower != null && aNewFollower < aSafe)
-				return false; // 不安全，放棄
+		int advance(double now, double dt, double aheadS) {
+			double len = lane.path.length;
+			double limit = sOut;
+			for (Car c : queue) {
+				double sOld = c.s;
+				double s = Math.min(Math.min(sIn + vFree * (now - c.mesoIn) / len, limit), sOld + vFree * dt / len);
+				c.s = Math.max(sOld, s);
+				c.v = (c.s - sOld) * len / dt;
+				for (LoopDetector d : lane.detectors)
+					if (sOld < d.s && c.s >= d.s)
+						d.hit(c.v);
+				c.sPrev = c.s;
+				limit = c.s - jamGap / len;
+			}
+			int released = 0;
+			while (!queue.isEmpty()) {
+				Car h = queue.peekFirst();
+				double gap = (aheadS - sOut) * len;
+				if (h.s < sOut || now < lastExit + headway || gap < 2 * jamGap)
+					break;
+				queue.pollFirst();
+				h.meso = null;
+				h.v = Math.min(vFree, (gap - jamGap) / T);
+				h.nextDecisionS = Double.NEGATIVE_INFINITY;
+				lastExit = now;
+				aheadS = sOut;
+				released++;
+			}
+			return released;
+		}
+
+		/** 關閉混合模式或重置時：佇列裡的車原地回到微觀模擬。*/
+		void release() {
+			for (Car c : queue) {
+				c.meso = null;
+				c.nextDecisionS = Double.NEGATIVE_INFINITY;
+			}
+			queue.clear();
+			lastExit = Double.NEGATIVE_INFINITY;
+		}
+	}
+
+	/** 時間積分方式。*/
+	enum Integrator {
+		EULER,    // 顯式 Euler（固定小步長，互動模式使用）
+		BALLISTIC // 彈道位置更新 + 依前車限制的可變步長（無視窗長時間模擬）
+	}
+
+	/** 車道種類（由名稱前綴一次解析）。*/
+	enum LaneKind {
+		MAINLINE, CONNECTOR, RAMP, SLIP
+	}
+
+	// =============================== Car ================================
+	/**
+	 * Car：以參數 s∈[0,1) 表示在當前 Lane 的位置；v 為像素/秒。
+	 */
+	static class Car {
+		int id;       // 生成順序編號
+		Lane lane;
+		double s = 0; // 位置參數 path長的比例 [0 1）（current：平行階段唯讀）
+		double v = 0; // 速度（px/s）（current：平行階段唯讀）
+		double sNext, vNext; // next：stepIDM 寫入，swapState() 提交
+		double dtHint = Double.POSITIVE_INFINITY; // BALLISTIC：本車可接受的下一步最大步長
+		double nextDecisionS = Double.NEGATIVE_INFINITY; // 目前車道上下一個路由決策點（-∞：下一步就評估）
+		Color color = Color.CYAN;
+		boolean takeRamp = false; // 是否偏好走匝道（沒有目的地的隨機繞行車）
+		int dest = -1;            // 起訖需求的目的地（RouteTable.sinks 的索引），-1 表示隨機繞行
+		boolean exited;           // 本步已在目的地離開路網，待收回車輛池
+		byte safetyFlags;         // 安全指標：上一步是否處於 TTC／DRAC 衝突、急煞或重疊（事件只在進入時計一次）
+		double accIdm;            // 本步的 IDM 加速度（速度上限夾住之前），供安全指標判斷急煞
+		MesoLink meso;            // 混合模式：目前所在的中觀路段（null 表示微觀模擬）
+		double mesoIn;            // 混合模式：以自由流回推的進入中觀路段時間（s）
+		double laneCooldown = 0;  // NEW: 變道冷卻秒數
+		
+		// ★ 新增：跨段（followRoute）冷卻，避免連續兩次
+    double routeCooldown = 0.0;
+    // ★（可選）紀錄剛剛切換到的新段，避免馬上重做同目標
+    Lane lastRouteTo = null;
+		
+		// NEW: 視覺平滑（補間）狀態
+		Lane animFromLane = null;
+		double animT = 0;         // 0->1 的補間進度
+		// ★ 新增：從世界座標補間（彎→直也能平滑）
+    Point2D animFromPoint = null;
+    
+    double sPrev = 0.0;          // 上一幀的 s，用來偵測是否 wrap（從 1 回到 0）
+    boolean passedEntryThisLap = false; // 這一圈是否已經越過對應匝道入口（主線->匝道）
+    
+    // ★ 出匝道後的匝道鎖與速度緩升控制
+    double rampLockout = 0.0;      // 期間禁止再次嘗試上任何匝道（秒）
+    double postExitCooldown = 0.0; // 期間內限制最高速，並逐步放寬（秒）
+    double postExitVmax = 0.0;     // 冷卻期初始的最高速上限（px/s）
+    
+    // 在段尾等待（靠近 s=1）的累積秒數，用來逐步放寬併入門檻
+    double endHold = 0.0;
 
-			// 動機值：自己變道的收益（aGo - aStay）+ 禮讓乘子 ×（跟車者變化）
-			NeighborInfo N = neigh.get(me);
-			Car oldLeader = N.leaderSame;
-			double sOld = N.leaderSameDist;
-			double aOld = accIDM(me, oldLeader, sOld);
-			double aStay = aOld; // 簡化：忽略他車隨後調整
+		public Car(Lane lane) {
+			this.lane = lane;
+		}
 
-			double sNew = distAlong(me, newLeader);
-			double aGo = accIDM(me, newLeader, sNew);
+		/** 自車輛池取出重用時回到剛建立的狀態（編號、位置、速度與顏色由生成端填入）。*/
+		void reset(Lane lane) {
+			this.lane = lane;
+			s = v = sNext = vNext = 0;
+			dtHint = Double.POSITIVE_INFINITY;
+			nextDecisionS = Double.NEGATIVE_INFINITY;
+			color = Color.CYAN;
+			takeRamp = false;
+			dest = -1;
+			exited = false;
+			safetyFlags = 0;
+			meso = null;
+			mesoIn = 0;
+			laneCooldown = routeCooldown = 0;
+			lastRouteTo = null;
+			animFromLane = null;
+			animFromPoint = null;
+			animT = 0;
+			sPrev = 0;
+			passedEntryThisLap = false;
+			rampLockout = postExitCooldown = postExitVmax = 0;
+			endHold = 0;
+		}
 
-			// 影響跟車者（近似）
-			double aOldFollowerDelta = 0; // 簡化未計算舊後車
-			double aNewFollowerDelta = 0;
-			if (newFollower != null) {
-				double aBefore = accIDM(newFollower, newLeader, distAlong(newFollower, newLeader));
-				double aAfter = accIDM(newFollower, me, distAlong(newFollower, me));
-				aNewFollowerDelta = aAfter - aBefore;
-			}
-			double incentive = (aGo - aStay) + politeness * (aOldFollowerDelta + aNewFollowerDelta);
-			
-	    // NEW: 遲滯（hysteresis）：提高觸發門檻，避免邊界振盪
-	    double hysteresis = 0.15 * 40; // 約 6 px/s^2 的額外門檻
-			
-	    return incentive > (aLaneChangeThreshold + hysteresis);
+		Point2D position() {
+			return lane.path.pointAt(s);
 		}
 
-		/** 找出 ref 在指定車道上最近的前車。*/
-		Car nearestAheadInLane(Car ref, Lane lane) {
-			Car best = null;
-			double bestDs = Double.POSITIVE_INFINITY;
-			synchronized (cars) {
-				for (Car c : cars)
-					if (c.lane == lane && c != ref) {
-						double ds = c.s - ref.s;
-						if (ds < 0)
-							ds += 1.0;
-						if (ds >= 0 && ds < bestDs) {
-							bestDs = ds;
-							best = c;
-						}
-					}
-			}
-			return best;
+		double heading() {
+			return lane.path.headingAt(s);
 		}
 
-		/** 找出 ref 在指定車道上最近的後車。*/
-		Car nearestBehindInLane(Car ref, Lane lane) {
-			Car best = null;
-			double bestDs = Double.POSITIVE_INFINITY;
-			synchronized (cars) {
-				for (Car c : cars)
-					if (c.lane == lane && c != ref) {
-						double ds = ref.s - c.s;
-						if (ds < 0)
-							ds += 1.0;
-						if (ds >= 0 && ds < bestDs) {
-							bestDs = ds;
-							best = c;
-						}
-					}
+		/** 提交 stepIDM 寫入的 next 狀態。*/
+		void swapState() {
+			s = sNext;
+			v = vNext;
+		}
+
+		// 單純依速度與 dt 積分 s；wrap 或夾住由 wrapOrRecycle() 負責
+		void advance(double dt) {
+			s += (v * dt) / lane.path.length;
+		}
+	}
+
+	// ============================== RoadLayer ===========================
+	/**
+	 * RoadLayer：把靜態道路預先畫進一張與裝置像素等大的透明影像。
+	 * 以「視圖轉換 + 面板尺寸 + 裝置縮放」為鍵，只有縮放或平移時才重畫，其餘每幀只貼一張圖。
+	 */
+	static class RoadLayer {
+		private BufferedImage image;
+		private AffineTransform keyView;
+		private int keyW, keyH;
+		private double keySx, keySy;
+
+		BufferedImage get(World world, AffineTransform view, AffineTransform device, int w, int h) {
+			double sx = device.getScaleX(), sy = device.getScaleY(); // HiDPI 縮放
+			if (image == null || w != keyW || h != keyH || sx != keySx || sy != keySy || !view.equals(keyView)) {
+				int pw = Math.max(1, (int) Math.ceil(w * sx)), ph = Math.max(1, (int) Math.ceil(h * sy));
+				if (image == null || image.getWidth() != pw || image.getHeight() != ph)
+					image = new BufferedImage(pw, ph, BufferedImage.TYPE_INT_ARGB_PRE);
+				Graphics2D g = image.createGraphics();
+				g.setComposite(AlphaComposite.Clear);
+				g.fillRect(0, 0, pw, ph);
+				g.setComposite(AlphaComposite.SrcOver);
+				g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+				g.scale(sx, sy);
+				g.transform(view);
+				Rectangle2D clip = null;
+				try {
+					clip = view.createInverse().createTransformedShape(new Rectangle2D.Double(0, 0, w, h)).getBounds2D();
+				} catch (NoninvertibleTransformException ex) {
+					// 縮放為 0 時不裁切
+				}
+				world.renderRoads(g, clip);
+				g.dispose();
+				keyView = new AffineTransform(view);
+				keyW = w;
+				keyH = h;
+				keySx = sx;
+				keySy = sy;
 			}
-			return best;
+			return image;
 		}
+	}
 
-		/** 計算 rear 與 front 之間沿車道的距離（若非同車道或 front 不存在回傳無限大）。*/
-		double distAlong(Car rear, Car front) {
-			if (front == null)
-				return Double.POSITIVE_INFINITY;
-			if (rear.lane != front.lane)
-				return Double.POSITIVE_INFINITY;
-			double ds = front.s - rear.s;
-			if (ds < 0)
-				ds += 1.0;
-			return ds * rear.lane.path.length;
+	// ============================= RenderFrame ==========================
+	/**
+	 * RenderFrame：一幀完成後的車輛繪圖快照（位置、朝向、顏色）與 HUD 用的少量狀態。
+	 * 由 FrameExchange 重複使用；被繪圖端持有期間模擬端不會改寫。
+	 */
+	static class RenderFrame {
+		int count;
+		double spawnEverySec;
+		double[] x = new double[0], y = new double[0], heading = new double[0];
+		Color[] color = new Color[0];
+
+		// 車輛的格網索引（與道路 SegmentIndex 同一組格子）：cellStart[k]..cellStart[k+1] 為第 k 格在 order 中的範圍
+		SegmentIndex grid;
+		int[] cellStart = new int[1];
+		int[] order = new int[0];
+		private int[] cellOf = new int[0];
+		private int[] cellNext = new int[0]; // 計數排序時各格下一個寫入位置（重複使用）
+		double minX, minY, maxX, maxY;       // 所有車的外框（全部在畫面內時不必走格子）
+
+		void ensureCapacity(int n) {
+			if (x.length >= n)
+				return;
+			int cap = Math.max(n, x.length * 2);
+			x = new double[cap];
+			y = new double[cap];
+			heading = new double[cap];
+			color = new Color[cap];
+			order = new int[cap];
+			cellOf = new int[cap];
 		}
 
-		// ------------------- IDM -------------------
-		/** 依 IDM 計算加速度並以顯式歐拉積分更新速度與位置參數 s。*/
-		void stepIDM(Car c, NeighborInfo N, double dt) {
-			Car leader = (N != null ? N.leaderSame : null);
-			double s = (N != null ? N.leaderSameDist : Double.POSITIVE_INFINITY);
-			double a = accIDM(c, leader, s);
+		/** 位置填好後以計數排序把車輛分到格子（O(車數 + 格數)，由發佈端在模擬執行緒完成）。*/
+		void buildIndex(SegmentIndex g) {
+			grid = g;
+			int cells = g.cols * g.rows;
+			if (cellStart.length != cells + 1) {
+				cellStart = new int[cells + 1];
+				cellNext = new int[cells];
+			} else {
+				Arrays.fill(cellStart, 0);
+			}
+			double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY, x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < count; i++) {
+				int k = g.row(y[i]) * g.cols + g.col(x[i]);
+				cellOf[i] = k;
+				cellStart[k + 1]++;
+				x0 = Math.min(x0, x[i]);
+				y0 = Math.min(y0, y[i]);
+				x1 = Math.max(x1, x[i]);
+				y1 = Math.max(y1, y[i]);
+			}
+			minX = x0;
+			minY = y0;
+			maxX = x1;
+			maxY = y1;
+			for (int k = 0; k < cells; k++)
+				cellStart[k + 1] += cellStart[k];
+			System.arraycopy(cellStart, 0, cellNext, 0, cells);
+			for (int i = 0; i < count; i++)
+				order[cellNext[cellOf[i]]++] = i;
+		}
+	}
 
-			// 積分速度
-			c.v += a * dt;
-			if (c.v < 0)
-				c.v = 0;
+	// ============================= FrameExchange ========================
+	/**
+	 * FrameExchange：單一寫入者（模擬執行緒）與單一讀取者（EDT）之間的無鎖三重緩衝。
+	 * 寫入者填好 back 後與 middle 交換；讀取者只在 middle 有新資料時與自己的 front 交換，
+	 * 兩端都不會等待對方，讀取者永遠拿到最近完成的一幀。
+	 */
+	static class FrameExchange {
+		private static final int FRESH = 4; // middle 是否為尚未被讀取的新幀
 
-			// ★ 新增：以當前車道（或預彎道）的上限夾住
-			//double vmax = speedLimit(c.lane);
-			double vmax = speedLimit(c); // ★ 改看車輛狀態
-			if (c.v > vmax)
-				c.v = vmax;
+		private final RenderFrame[] slots = { new RenderFrame(), new RenderFrame(), new RenderFrame() };
+		private final AtomicInteger middle = new AtomicInteger(1);
+		private int back = 0;  // 只由寫入者使用
+		private int front = 2; // 只由讀取者使用
 
-			// 積分位置參數
-			c.s += (c.v * dt) / c.lane.path.length;
+		/** 寫入者：取得可填寫的後台幀。*/
+		RenderFrame back() {
+			return slots[back];
 		}
 
-		/** IDM 加速度項：自由加速 - 跟車抑制。*/
-		double accIDM(Car c, Car leader, double s) {
-			double dv = 0;
-			if (leader != null)
-				dv = c.v - leader.v; // 與前車相對速度
-			double sStar = s0 + Math.max(0, c.v * T + (c.v * dv) / (2 * Math.sqrt(aMax * b))); // 期望安全間距
-			double termFree = Math.pow(c.v / v0, delta); // 自由路段加速趨近 0
-			double termInt = (leader == null ? 0 : Math.pow(sStar / Math.max(1.0, s), 2)); // 跟車抑制項
-			double a = aMax * (1 - termFree - termInt);
-			return a;
+		/** 寫入者：發佈剛填好的後台幀。*/
+		void publish() {
+			back = middle.getAndSet(back | FRESH) & 3;
 		}
 
-		/** 負責繪製道路與車輛（呼叫於 paintComponent 內）。*/
-		void render(Graphics2D g) {
-			// 道路底色（粗線）
-			g.setStroke(new BasicStroke(24, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND));
-			g.setColor(new Color(64, 74, 90));
-			for (RoadPath p : paths)
-				g.draw(p.asPath2D());
-			// 車道虛線標記
-			g.setStroke(new BasicStroke(2, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND, 0, new float[] { 10, 14 }, 0));
-			g.setColor(new Color(240, 220, 100));
-			for (RoadPath p : paths)
-				g.draw(p.asPath2D());
-			// 十字中央實體（視覺裝飾）
-			g.setColor(new Color(52, 60, 75));
-			g.fillRect((int) (cx - highwayHalf), (int) (cy - 8), (int) (2 * highwayHalf), 16);
-			g.fillRect((int) (cx - 8), (int) (cy - highwayHalf), 16, (int) (2 * highwayHalf));
-
-			// 繪製所有車輛
-			synchronized (cars) {
-				for (Car c : cars)
-					drawCar(g, c);
-			}
-		}
-
-		/** 以車身長寬與朝向繪製一台小車。*/
-		void drawCar(Graphics2D g, Car c) {
-	    Point2D pt;
-	    double heading;
-
-			if (c.animFromPoint != null && c.animT < 1.0) {
-				Point2D p1 = c.lane.path.pointAt(c.s); // 新車道上的當前位置
-				double x = RoadPath.lerp(c.animFromPoint.getX(), p1.getX(), c.animT);
-				double y = RoadPath.lerp(c.animFromPoint.getY(), p1.getY(), c.animT);
-				pt = new Point2D.Double(x, y);
-				heading = c.lane.path.headingAt(c.s); // 方向以目標車道為準
-				if (c.animT >= 1.0)
-					c.animFromPoint = null; // 收尾
-			} else if (c.animFromLane != null && c.animT < 1.0) {
-				Point2D p0 = c.animFromLane.path.pointAt(c.s);
-				Point2D p1 = c.lane.path.pointAt(c.s);
-				double x = RoadPath.lerp(p0.getX(), p1.getX(), c.animT);
-				double y = RoadPath.lerp(p0.getY(), p1.getY(), c.animT);
-				pt = new Point2D.Double(x, y);
-				double h0 = c.animFromLane.path.headingAt(c.s);
-				double h1 = c.lane.path.headingAt(c.s);
-				heading = h0 + (h1 - h0) * c.animT;
-				if (c.animT >= 1.0)
-					c.animFromLane = null;
-			} else {
-				pt = c.position();
-				heading = c.heading();
-				c.animFromLane = null;
-				c.animFromPoint = null;
-			}
+		/** 讀取者：取得最近發佈的一幀。*/
+		RenderFrame latest() {
+			if ((middle.get() & FRESH) != 0)
+				front = middle.getAndSet(front) & 3;
+			return slots[front];
+		}
+	}
 
-	    AffineTransform at = g.getTransform();
-	    g.translate(pt.getX(), pt.getY());
-	    g.rotate(heading);
-	    g.setColor(c.color);
-	    g.fillRoundRect(-10, -7, 20, 14, 6, 6);
-	    g.setColor(new Color(220, 230, 240));
-	    g.fillRoundRect(-5, -6, 9, 12, 6, 6);
-	    g.setTransform(at);
+	// ============================== SimLoop =============================
+	/**
+	 * SimLoop：在獨立執行緒以固定 dt、接近即時的節奏推進 World。
+	 * UI 對世界的修改經由 post() 排入佇列，在兩步之間由模擬執行緒執行。
+	 * 可同時把每一步寫入軌跡檔；若指定了重播檔則不推進模型，改為逐幀發佈檔案中的狀態。
+	 */
+	static class SimLoop implements Runnable {
+		static final int TRAJ_KEY_EVERY = 120; // 軌跡檔關鍵幀間隔（步）
+
+		final World world;
+		final double dt;
+		volatile boolean paused = false;       // 是否暫停
+		volatile boolean mobilEnabled = true;  // 是否啟用 MOBIL 車道變換模型
+		final RateMeter simRate = new RateMeter(); // 實測模擬步數／秒
+		final TrajectoryReader replay;         // 重播來源（null 表示即時模擬）
+		volatile int replayFrame = 0;          // 下一個要發佈的重播幀
+		private TrajectoryWriter trajectory;   // 軌跡紀錄（只由模擬執行緒存取）
+		private volatile File trajectoryFile;  // 紀錄中的檔案（供 HUD 顯示）
+		private final ConcurrentLinkedQueue<Consumer<World>> commands = new ConcurrentLinkedQueue<>();
+		private volatile boolean running;
+		private Thread thread;
+
+		SimLoop(World world, double dt) {
+			this(world, dt, null);
 		}
-		
-		// ---- 幾何工具：向量叉積 ----
-		double cross(double ax, double ay, double bx, double by) {
-		    return ax * by - ay * bx;
+
+		SimLoop(World world, double dt, TrajectoryReader replay) {
+			this.world = world;
+			this.dt = dt;
+			this.replay = replay;
+			if (replay != null && replay.laneCount != world.lanes.size())
+				throw new IllegalArgumentException("Trajectory log has " + replay.laneCount + " lanes, network has " + world.lanes.size());
 		}
 
-		// ---- 兩線段相交：回傳是否命中與各自的參數 tA/tB（0~1）與交點 ----
-		static class InterResult {
-			boolean hit;
-			double tA, tB;
-			Point2D pt;
+		void start() {
+			running = true;
+			thread = new Thread(this, "sim");
+			thread.setDaemon(true);
+			thread.start();
+		}
 
-			InterResult(boolean h, double ta, double tb, Point2D p) {
-				hit = h;
-				tA = ta;
-				tB = tb;
-				pt = p;
-			}
+		void stop() {
+			running = false;
+			if (thread != null)
+				thread.interrupt();
 		}
 
-		InterResult segIntersect(Point2D a1, Point2D a2, Point2D b1, Point2D b2) {
-			double rX = a2.getX() - a1.getX(), rY = a2.getY() - a1.getY();
-			double sX = b2.getX() - b1.getX(), sY = b2.getY() - b1.getY();
-			double denom = cross(rX, rY, sX, sY);
-			if (Math.abs(denom) < 1e-9)
-				return new InterResult(false, 0, 0, null); // 平行或共線視為不交
-			double qpx = b1.getX() - a1.getX(), qpy = b1.getY() - a1.getY();
-			double t = cross(qpx, qpy, sX, sY) / denom; // a 上的參數
-			double u = cross(qpx, qpy, rX, rY) / denom; // b 上的參數
-			if (t >= 0 && t <= 1 && u >= 0 && u <= 1) {
-				Point2D pt = new Point2D.Double(a1.getX() + t * rX, a1.getY() + t * rY);
-				return new InterResult(true, t, u, pt);
-			}
-			return new InterResult(false, 0, 0, null);
+		/** 將一個修改世界的動作交給模擬執行緒執行。*/
+		void post(Consumer<World> cmd) {
+			commands.add(cmd);
 		}
 
-		// ---- 從 from 的尾端段 與 to 的起始段 找交點；回傳 to 上的 s（0~1），找不到就回傳投影 s ----
-		Double mergeSAtIntersection(RoadPath from, RoadPath to) {
-			// 掃描範圍：from 最後 24 段，to 前 48 段（可依需要調整）
-			int na = from.pts.size();
-			int nb = to.pts.size();
-			int iStart = Math.max(0, na - 1 - 24);
-			int jEnd = Math.min(nb - 1, 48);
-
-			for (int i = iStart; i < na - 1; i++) {
-				Point2D a1 = from.pts.get(i), a2 = from.pts.get(i + 1);
-				for (int j = 1; j <= jEnd; j++) {
-					Point2D b1 = to.pts.get(j - 1), b2 = to.pts.get(j);
-					InterResult ir = segIntersect(a1, a2, b1, b2);
-					if (ir.hit) {
-						// 交點位於 to 的第 j-1 段，to 上對應的弧長 = segLen[j-1] + u * (segLen[j]-segLen[j-1])
-						double segLen = to.segLen[j] - to.segLen[j - 1];
-						double sLen = to.segLen[j - 1] + ir.tB * Math.max(1e-9, segLen);
-						double s = sLen / Math.max(1e-9, to.length);
-						// 為安全起見，把 s 限制在 to 起點一小段內
-						return Math.max(0.0, Math.min(s, 0.25));
+		@Override
+		public void run() {
+			long period = (long) (dt * 1e9);
+			long next = System.nanoTime();
+			while (running) {
+				Consumer<World> cmd;
+				while ((cmd = commands.poll()) != null)
+					cmd.accept(world);
+				if (!paused) {
+					if (replay != null) {
+						stepReplay();
+					} else {
+						world.update(dt, mobilEnabled);
+						recordTrajectory();
 					}
+					simRate.tick();
 				}
+
+				next += period;
+				long wait = next - System.nanoTime();
+				if (wait > 0)
+					LockSupport.parkNanos(wait);
+				else if (wait < -5 * period)
+					next = System.nanoTime(); // 落後太多就不追趕，避免連續爆衝
 			}
+			closeTrajectory();
+		}
 
-			// 如果沒有精確交點，退而求其次：把 from 終點投影到 to 上，取最近點的 s
-			Point2D tail = from.pts.get(na - 1);
-			return projectPointToPathS(to, tail);
+		/** 發佈下一個重播幀；播到結尾就停在最後一幀。*/
+		private void stepReplay() {
+			int f = replayFrame;
+			if (f < replay.frameCount()) {
+				world.publishFrame(replay.read(f));
+				replayFrame = f + 1;
+			}
 		}
 
-		// ---- 將點投影到 polyline，回傳對應的 s（0~1） ----
-		Double projectPointToPathS(RoadPath path, Point2D p) {
-			int n = path.pts.size();
-			double bestD2 = Double.POSITIVE_INFINITY;
-			double bestSlen = 0.0;
-
-			for (int i = 0; i < n - 1; i++) {
-				Point2D a = path.pts.get(i), b = path.pts.get(i + 1);
-				double vx = b.getX() - a.getX(), vy = b.getY() - a.getY();
-				double wx = p.getX() - a.getX(), wy = p.getY() - a.getY();
-				double vv = vx * vx + vy * vy;
-				double t = (vv < 1e-9) ? 0.0 : (vx * wx + vy * wy) / vv; // 投影比例
-				if (t < 0)
-					t = 0;
-				else if (t > 1)
-					t = 1;
-				double px = a.getX() + t * vx, py = a.getY() + t * vy;
-				double dx = p.getX() - px, dy = p.getY() - py;
-				double d2 = dx * dx + dy * dy;
-				if (d2 < bestD2) {
-					bestD2 = d2;
-					double seg = path.segLen[i + 1] - path.segLen[i];
-					bestSlen = path.segLen[i] + t * Math.max(1e-9, seg);
-				}
-			}
-			double s = bestSlen / Math.max(1e-9, path.length);
-			return Math.max(0.0, Math.min(s, 1.0));
+		/** 跳到指定的重播幀並立即發佈（在模擬執行緒上呼叫，例如經由 post()）。*/
+		void seekReplay(int frame) {
+			if (replay == null || replay.frameCount() == 0)
+				return;
+			int f = Math.max(0, Math.min(replay.frameCount() - 1, frame));
+			world.publishFrame(replay.read(f));
+			replayFrame = f + 1;
 		}
-		
-		// 掃描一個插入視窗（預設 0.00~0.15），找第一個安全的 s；找不到回傳 null
-		Double findSafeMergeS(Car me, Lane target, double sStart, double sEnd, int samples) {
-		    //double bestS = -1;
-		    for (int i = 0; i < samples; i++) {
-		        double t = (samples == 1) ? 0.0 : (i / (double)(samples - 1));
-		        double sCand = sStart + (sEnd - sStart) * t;
 
-		        if (gapOK(me, target, sCand)) {
-		            return sCand; // 找到就回傳
-		        }
-		    }
-		    return null;
+		boolean isRecordingTrajectory() {
+			return trajectoryFile != null;
 		}
-		
-		Double findSafeAroundSByProjection(Car me, Lane target, double radius, int samples) {
-			// 以「目前世界座標」投影到目標車道，拿到中心 s
-			Point2D now = me.position();
-			double sCenter = projectPointToPathS(target.path, now);
-			double sStart = Math.max(0.0, sCenter - radius);
-			double sEnd = Math.min(1.0, sCenter + radius);
 
-			// 在 [sStart, sEnd] 掃描安全 gap
-			for (int i = 0; i < samples; i++) {
-				double t = (samples == 1) ? 0.0 : (i / (double) (samples - 1));
-				double sCand = sStart + (sEnd - sStart) * t;
-				if (gapOK(me, target, sCand))
-					return sCand;
+		File trajectoryFile() {
+			return trajectoryFile;
+		}
+
+		/** 開始／停止軌跡紀錄（在模擬執行緒上呼叫）。*/
+		void toggleTrajectory(File file) {
+			if (trajectory != null) {
+				closeTrajectory();
+				return;
+			}
+			try {
+				trajectory = new TrajectoryWriter(file, world, TRAJ_KEY_EVERY, dt);
+				trajectoryFile = file;
+				recordTrajectory(); // 先記下目前狀態作為第 0 幀
+			} catch (IOException ex) {
+				ex.printStackTrace();
 			}
-			return null;
 		}
 
-		// 檢查在 target 車道的 sCand 處是否有足夠前後安全距離
-		boolean gapOK(Car me, Lane target, double sCand) {
-		    Car ahead = null, behind = null;
-		    double bestAhead = Double.POSITIVE_INFINITY, bestBehind = Double.POSITIVE_INFINITY;
+		private void recordTrajectory() {
+			if (trajectory == null)
+				return;
+			try {
+				trajectory.write(world);
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				closeTrajectory();
+			}
+		}
 
-		    synchronized (cars) {
-		        for (Car c : cars) if (c.lane == target && c != me) {
-		            // 前方距離
-		            double dsF = c.s - sCand;
-		            if (dsF < 0) dsF += 1.0;
-		            double dpxF = dsF * target.path.length;
-		            if (dpxF >= 0 && dpxF < bestAhead) { bestAhead = dpxF; ahead = c; }
-
-		            // 後方距離
-		            double dsB = sCand - c.s;
-		            if (dsB < 0) dsB += 1.0;
-		            double dpxB = dsB * target.path.length;
-		            if (dpxB >= 0 && dpxB < bestBehind) { bestBehind = dpxB; behind = c; }
-		        }
-		    }
+		private void closeTrajectory() {
+			if (trajectory == null)
+				return;
+			try {
+				trajectory.close();
+				System.out.println("Trajectory saved: " + trajectoryFile.getAbsolutePath() + " (" + trajectory.frameNo + " frames)");
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+			trajectory = null;
+			trajectoryFile = null;
+		}
+	}
 
-		    // 動態安全距離：考慮相對速差，尾隨車更嚴格一點
-		    double vM = Math.max(1.0, me.v);
-		    double vB = (behind != null ? Math.max(1.0, behind.v) : vM);
-		    double sStarMe     = s0 + Math.max(0, vM * T);
-		    double sStarBehind = s0 + Math.max(0, vB * T);
+	// ============================== StepProfiler ========================
+	/**
+	 * StepProfiler：World.update 各階段的常駐計時器。
+	 * 每步只多幾次 System.nanoTime() 與陣列累加；每秒（牆鐘）把視窗內的直方圖整理成不可變的 Summary
+	 * 供 HUD 讀取，並在 JFR 錄製中以 traffic.WorldStep 事件輸出每步的階段耗時與計數。
+	 * 只由模擬執行緒寫入；其他執行緒只讀 summary。
+	 */
+	static final class StepProfiler {
+		enum Phase {
+			COOLDOWN("Cooldown"), SPAWN("Spawn"), MESO("Meso"), QUADTREE("QuadTree"), NEIGHBORS("Neighbors"),
+			MOBIL("MOBIL"), IDM_ROUTE("IDM+Route"), SAFETY("Safety"), PUBLISH("Publish");
 
-		    // 放寬係數：前方 1.10、後方 1.20（避免插到後車鼻尖）
-		    boolean okAhead  = (ahead  == null) || (bestAhead  > sStarMe * 1.10);
-		    boolean okBehind = (behind == null) || (bestBehind > sStarBehind * 1.20);
+			final String label;
 
-		    // 若我幾乎停住（<= 2 px/s），允許稍微更緊湊的併入（像實務 zipper merge）
-		    if (vM <= 2.0) {
-		        okAhead  = (ahead  == null) || (bestAhead  > sStarMe * 1.05);
-		        okBehind = (behind == null) || (bestBehind > sStarBehind * 1.10);
-		    }
-		    return okAhead && okBehind;
+			Phase(String label) {
+				this.label = label;
+			}
 		}
-		
-		//gapOK：加入「壓力」參數（等越久越放寬）
-		boolean gapOK(Car me, Lane target, double sCand, double relax) {
-	    Car ahead = null, behind = null;
-	    double bestAhead = Double.POSITIVE_INFINITY, bestBehind = Double.POSITIVE_INFINITY;
 
-	    synchronized (cars) {
-	        for (Car c : cars) if (c.lane == target && c != me) {
-	            double dsF = c.s - sCand; if (dsF < 0) dsF += 1.0;
-	            double dpxF = dsF * target.path.length;
-	            if (dpxF >= 0 && dpxF < bestAhead)  { bestAhead  = dpxF; ahead  = c; }
+		static final Phase[] PHASES = Phase.values();
+		static final int STEP = PHASES.length; // 直方圖最後一列為整步耗時
 
-	            double dsB = sCand - c.s; if (dsB < 0) dsB += 1.0;
-	            double dpxB = dsB * target.path.length;
-	            if (dpxB >= 0 && dpxB < bestBehind) { bestBehind = dpxB; behind = c; }
-	        }
-	    }
+		final long[] lastNanos = new long[STEP + 1]; // 最近一步各階段耗時（ns）
+		private final LogHistogram[] window = new LogHistogram[STEP + 1];
+		private long stepStart, mark;
+		private StepEvent event;
 
-	    double vM = Math.max(1.0, me.v);
-	    double vB = (behind != null ? Math.max(1.0, behind.v) : vM);
-	    double sStarMe     = s0 + Math.max(0, vM * T);
-	    double sStarBehind = s0 + Math.max(0, vB * T);
+		// 本步計數（由 World 在對應處累加）
+		int laneChanges, merges, failedMerges;
+		// 視窗累計
+		private long winLaneChanges, winMerges, winFailedMerges, winSteps, winStart = System.nanoTime();
 
-	    // 原本門檻：前方 1.10、後方 1.20
-	    double fwd = 1.10, back = 1.20;
+		volatile Summary summary = new Summary(new long[STEP + 1][4], 0, 0, 0, 0, 0);
 
-	    // 等越久越放寬（最多放寬 30%）
-	    double k = Math.max(0, Math.min(0.30, relax)); // 0~0.30
-	    fwd  *= (1.0 - k);
-	    back *= (1.0 - k * 0.8); // 對後車稍微保守
+		StepProfiler() {
+			for (int i = 0; i <= STEP; i++)
+				window[i] = new LogHistogram();
+		}
 
-	    boolean okAhead  = (ahead  == null) || (bestAhead  > sStarMe     * fwd);
-	    boolean okBehind = (behind == null) || (bestBehind > sStarBehind * back);
+		/** 一步開始：重設計數並開始計時。*/
+		void begin() {
+			event = new StepEvent();
+			event.begin();
+			laneChanges = merges = failedMerges = 0;
+			stepStart = mark = System.nanoTime();
+		}
 
-	    if (vM <= 2.0) { // 幾乎停住時再額外小放寬
-	        okAhead  = (ahead  == null) || (bestAhead  > sStarMe     * Math.max(0.95, fwd  - 0.05));
-	        okBehind = (behind == null) || (bestBehind > sStarBehind * Math.max(1.05, back - 0.10));
-	    }
-	    return okAhead && okBehind;
-	}
+		/** 結束 phase 階段（從上一個標記到現在）。*/
+		void mark(Phase phase) {
+			long now = System.nanoTime();
+			lastNanos[phase.ordinal()] = now - mark;
+			mark = now;
+		}
 
+		/** 一步結束：記錄直方圖、輸出 JFR 事件，每秒整理一次摘要。*/
+		void end(int cars) {
+			long now = System.nanoTime();
+			lastNanos[STEP] = now - stepStart;
+			for (int i = 0; i <= STEP; i++)
+				window[i].record(lastNanos[i]);
+			winLaneChanges += laneChanges;
+			winMerges += merges;
+			winFailedMerges += failedMerges;
+			winSteps++;
+
+			event.end();
+			if (event.shouldCommit()) {
+				event.cars = cars;
+				event.laneChanges = laneChanges;
+				event.merges = merges;
+				event.failedMerges = failedMerges;
+				event.cooldown = lastNanos[Phase.COOLDOWN.ordinal()];
+				event.spawn = lastNanos[Phase.SPAWN.ordinal()];
+				event.meso = lastNanos[Phase.MESO.ordinal()];
+				event.quadTree = lastNanos[Phase.QUADTREE.ordinal()];
+				event.neighbors = lastNanos[Phase.NEIGHBORS.ordinal()];
+				event.mobil = lastNanos[Phase.MOBIL.ordinal()];
+				event.idmRoute = lastNanos[Phase.IDM_ROUTE.ordinal()];
+				event.safety = lastNanos[Phase.SAFETY.ordinal()];
+				event.publish = lastNanos[Phase.PUBLISH.ordinal()];
+				event.commit();
+			}
+			event = null;
+
+			long span = now - winStart;
+			if (span >= 1_000_000_000L) {
+				long[][] rows = new long[STEP + 1][];
+				for (int i = 0; i <= STEP; i++) {
+					LogHistogram h = window[i];
+					rows[i] = new long[] { h.mean(), h.percentile(0.50), h.percentile(0.99), h.max };
+					h.reset();
+				}
+				double sec = span / 1e9;
+				summary = new Summary(rows, cars, winSteps / sec, winLaneChanges / sec, winMerges / sec, winFailedMerges / sec);
+				winLaneChanges = winMerges = winFailedMerges = winSteps = 0;
+				winStart = now;
+			}
+		}
 
-		// 角度差（0~π）
-		static double angleDiff(double a, double b) {
-		    double d = Math.abs(a - b);
-		    while (d > Math.PI) d -= 2*Math.PI;
-		    return Math.abs(d);
+		/** 最近一個視窗的統計：rows[phase] = {mean, p50, p99, max}（ns），最後一列為整步。*/
+		static final class Summary {
+			final long[][] rows;
+			final int cars;
+			final double stepsPerSec, laneChangesPerSec, mergesPerSec, failedMergesPerSec;
+
+			Summary(long[][] rows, int cars, double stepsPerSec, double laneChangesPerSec, double mergesPerSec, double failedMergesPerSec) {
+				this.rows = rows;
+				this.cars = cars;
+				this.stepsPerSec = stepsPerSec;
+				this.laneChangesPerSec = laneChangesPerSec;
+				this.mergesPerSec = mergesPerSec;
+				this.failedMergesPerSec = failedMergesPerSec;
+			}
 		}
+	}
 
-		// 在目標附近，挑一條「與當前 heading 最對齊」的直線 Lane
-		Lane pickAlignedLaneNear(Point2D where, double headingNow, Lane preferred, List<Lane> all) {
-		    Lane best = null;
-		    double bestScore = -1;
+	/** JFR 事件：一次 World.update 的各階段耗時與計數。*/
+	@Name("traffic.WorldStep")
+	@Label("World Step")
+	@Category("Traffic")
+	@StackTrace(false)
+	static final class StepEvent extends Event {
+		@Label("Cars") int cars;
+		@Label("Lane Changes") int laneChanges;
+		@Label("Merges") int merges;
+		@Label("Failed Merge Attempts") int failedMerges;
+		@Label("Cooldown") @Timespan long cooldown;
+		@Label("Spawn") @Timespan long spawn;
+		@Label("Meso Links") @Timespan long meso;
+		@Label("QuadTree Build") @Timespan long quadTree;
+		@Label("Neighbour Search") @Timespan long neighbors;
+		@Label("MOBIL") @Timespan long mobil;
+		@Label("IDM + Advance + Route") @Timespan long idmRoute;
+		@Label("Safety Measures") @Timespan long safety;
+		@Label("Publish Frame") @Timespan long publish;
+	}
+
+	// ============================== LogHistogram ========================
+	/**
+	 * LogHistogram：HDR 式對數－線性直方圖。每個 2 的冪次再分 16 格，
+	 * 相對誤差約 6%，以固定大小的 long 陣列涵蓋整個 long 範圍，記錄時不配置記憶體。
+	 */
+	static final class LogHistogram {
+		static final int SUB_BITS = 4, SUB = 1 << SUB_BITS;
+		final long[] counts = new long[(65 - SUB_BITS) * SUB];
+		long count, sum, max;
+
+		void record(long v) {
+			if (v < 0)
+				v = 0;
+			counts[index(v)]++;
+			count++;
+			sum += v;
+			if (v > max)
+				max = v;
+		}
 
-		    // 蒐集候選：同區域直線（含 preferred 自己）
-		    for (Lane L : all) {
-		        if (L == null || L.path == null || !L.path.isStraight) continue;
+		static int index(long v) {
+			if (v < SUB)
+				return (int) v;
+			int exp = 63 - Long.numberOfLeadingZeros(v); // >= SUB_BITS
+			return (exp - SUB_BITS + 1) * SUB + (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+		}
 
-		        // 以投影點取得該 Lane 的 s 與 heading
-		        double s = projectPointToPathS(L.path, where);       // 0..1
-		        double h = L.path.headingAt(s);
-		        double score = Math.cos(angleDiff(headingNow, h));   // 1=同向, -1=反向
+		/** 第 idx 格涵蓋的最大值。*/
+		static long upperBound(int idx) {
+			if (idx < 2 * SUB)
+				return idx;
+			int shift = idx / SUB - 1;
+			long lower = (long) (SUB + idx % SUB) << shift;
+			return lower + (1L << shift) - 1;
+		}
 
-		        // 以與 preferred 距離做簡單濾波：同一走廊/附近
-		        // （你也可以用名稱前綴，例如 "EW_" 或 "NS_" 來濾一輪）
-		        if (score > bestScore) {
-		            bestScore = score;
-		            best = L;
-		        }
-		    }
-		    // 若全都找不到，就回傳 preferred
-		    return (best != null ? best : preferred);
+		long percentile(double q) {
+			if (count == 0)
+				return 0;
+			long target = Math.max(1, (long) Math.ceil(q * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= target)
+					return Math.min(upperBound(i), max);
+			}
+			return max;
 		}
 
+		long mean() {
+			return count == 0 ? 0 : sum / count;
+		}
 
+		void reset() {
+			Arrays.fill(counts, 0);
+			count = sum = max = 0;
+		}
 	}
 
-	// =============================== Lane ===============================
+	// ============================== RateMeter ===========================
 	/**
-	 * Lane：車道是 RoadPath 的包裝，並可連結左右相鄰車道（用於變道）。
+	 * RateMeter：每秒統計一次事件數，作為實測頻率（可跨執行緒讀取）。
 	 */
-	static class Lane {
-		final RoadPath path;
-		Lane adjLeft, adjRight; // 左右相鄰（直線使用）
+	static class RateMeter {
+		private long windowStart = System.nanoTime();
+		private int count = 0;
+		private volatile double rate = 0;
 
-		public Lane(RoadPath p) {
-			this.path = p;
+		/** 記錄一次事件（只由單一執行緒呼叫）。*/
+		void tick() {
+			count++;
+			long now = System.nanoTime();
+			long span = now - windowStart;
+			if (span >= 1_000_000_000L) {
+				rate = count * 1e9 / span;
+				count = 0;
+				windowStart = now;
+			}
+		}
+
+		double rate() {
+			return rate;
 		}
 	}
 
-	// =============================== Car ================================
+	// ============================= LaneSnapshot =========================
 	/**
-	 * Car：以參數 s∈[0,1) 表示在當前 Lane 的位置；v 為像素/秒。
+	 * LaneSnapshot：某一時刻各車道上車輛依 s 排序的快照；
+	 * 以二分搜尋在 O(log n) 找出指定位置的前車／後車（主線為環狀，超出即回繞）。
 	 */
-	static class Car {
-		Lane lane;
-		double s = 0; // 位置參數 path長的比例 [0 1）
-		double v = 0; // 速度（px/s）
-		Color color = Color.CYAN;
-		boolean takeRamp = false; // 是否偏好走匝道
-		double laneCooldown = 0;  // NEW: 變道冷卻秒數
-		
-		// ★ 新增：跨段（followRoute）冷卻，避免連續兩次
-    double routeCooldown = 0.0;
-    // ★（可選）紀錄剛剛切換到的新段，避免馬上重做同目標
-    Lane lastRouteTo = null;
-		
-		// NEW: 視覺平滑（補間）狀態
-		Lane animFromLane = null;
-		double animT = 0;         // 0->1 的補間進度
-		// ★ 新增：從世界座標補間（彎→直也能平滑）
-    Point2D animFromPoint = null;
-    
-    double sPrev = 0.0;          // 上一幀的 s，用來偵測是否 wrap（從 1 回到 0）
-    boolean passedEntryThisLap = false; // 這一圈是否已經越過對應匝道入口（主線->匝道）
-    
-    // ★ 出匝道後的匝道鎖與速度緩升控制
-    double rampLockout = 0.0;      // 期間禁止再次嘗試上任何匝道（秒）
-    double postExitCooldown = 0.0; // 期間內限制最高速，並逐步放寬（秒）
-    double postExitVmax = 0.0;     // 冷卻期初始的最高速上限（px/s）
-    
-    // 在段尾等待（靠近 s=1）的累積秒數，用來逐步放寬併入門檻
-    double endHold = 0.0;
+	static class LaneSnapshot {
+		private static final Car[] NO_CARS = new Car[0];
+		private static final double[] NO_S = new double[0];
+
+		final Car[][] carsByLane;
+		final double[][] sByLane;
+
+		LaneSnapshot(List<Lane> lanes, List<Car> cars) {
+			int[] count = new int[lanes.size()];
+			for (Car c : cars)
+				count[c.lane.id]++;
+			carsByLane = new Car[lanes.size()][];
+			sByLane = new double[lanes.size()][];
+			for (int i = 0; i < count.length; i++) {
+				carsByLane[i] = count[i] > 0 ? new Car[count[i]] : NO_CARS; // 大路網多數車道是空的，共用空陣列
+				count[i] = 0;
+			}
+			for (Car c : cars)
+				carsByLane[c.lane.id][count[c.lane.id]++] = c;
+			for (int i = 0; i < carsByLane.length; i++) {
+				if (carsByLane[i].length == 0) {
+					sByLane[i] = NO_S;
+					continue;
+				}
+				Arrays.sort(carsByLane[i], (x, y) -> Double.compare(x.s, y.s));
+				sByLane[i] = new double[carsByLane[i].length];
+				for (int k = 0; k < carsByLane[i].length; k++)
+					sByLane[i][k] = carsByLane[i][k].s;
+			}
+		}
 
-		public Car(Lane lane) {
-			this.lane = lane;
+		/** lane 上位置 s 處（含）之後最近的車。*/
+		Car ahead(Lane lane, double s) {
+			Car[] cs = carsByLane[lane.id];
+			if (cs.length == 0)
+				return null;
+			int i = lowerBound(sByLane[lane.id], s);
+			return cs[i < cs.length ? i : 0];
 		}
 
-		Point2D position() {
-			return lane.path.pointAt(s);
+		/** lane 上位置 s 處（含）之前最近的車。*/
+		Car behind(Lane lane, double s) {
+			Car[] cs = carsByLane[lane.id];
+			if (cs.length == 0)
+				return null;
+			int i = upperBound(sByLane[lane.id], s) - 1;
+			return cs[i >= 0 ? i : cs.length - 1];
 		}
 
-		double heading() {
-			return lane.path.headingAt(s);
+		static int lowerBound(double[] a, double key) {
+			int lo = 0, hi = a.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (a[mid] < key)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
 		}
 
-		// 單純依速度與 dt 積分 s；wrap 或夾住由 wrapOrRecycle() 負責
-		void advance(double dt) {
-			s += (v * dt) / lane.path.length;
+		static int upperBound(double[] a, double key) {
+			int lo = 0, hi = a.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (a[mid] <= key)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
 		}
 	}
 
@@ -1540,153 +5790,689 @@ public class CloverleafSimIDM extends JFrame {
 
 	// ============================== RoadPath ============================
 	/**
-	 * RoadPath：以多段線（或近似圓弧的折線）描述一條路徑。
-	 * 提供弧長表、插值點與切線方向、偏移線與 Path2D 以供繪圖。
+	 * RoadPath：以解析式幾何段（Segment）描述一條路徑。
+	 * s∈[0,1] 對應弧長比例；取點、切線方向、曲率與投影皆直接由解析式計算，
+	 * 不再保存取樣折線，因此查詢成本與取樣密度無關。
 	 */
 	static class RoadPath {
-		final List<Point2D> pts;  // 節點序列
+		final Segment geom;       // 解析式幾何
 		final String name;        // 名稱（便於除錯與路徑圖連結）
 		final double length;      // 總弧長
-		final double[] segLen;    // 前綴弧長表，segLen[i] = 0..i 的長度
 		final boolean isStraight; // 是否為直線（影響變道規則）
-		
-		// NEW: 若為圓弧，保留曲率中心與半徑，供速度上限估算使用
+
+		// 若為圓弧，保留曲率中心與半徑；其他曲線只提供最小曲率半徑，供速度上限估算使用
 		final Double cx;
 		final Double cy;
 		final Double radius;
 
-		RoadPath(List<Point2D> pts, String name, boolean straight) {
-			this.pts = pts;
+		RoadPath(Segment geom, String name) {
+			this.geom = geom;
 			this.name = name;
-			this.isStraight = straight;
-			this.segLen = new double[pts.size()];
-			double sum = 0;
-			segLen[0] = 0;
-			for (int i = 1; i < pts.size(); i++) {
-				sum += pts.get(i - 1).distance(pts.get(i));
-				segLen[i] = sum;
-			}
-			this.length = Math.max(1.0, sum); // 避免除以 0
-			
-			// 非弧線預設沒有曲率資訊
-			this.cx = null;
-			this.cy = null;
-			this.radius = null;
+			this.isStraight = (geom instanceof LineSeg);
+			this.length = Math.max(1.0, geom.length()); // 避免除以 0
+			if (geom instanceof ArcSeg) {
+				ArcSeg a = (ArcSeg) geom;
+				this.cx = a.cx;
+				this.cy = a.cy;
+				this.radius = a.r;
+			} else {
+				double k = geom.maxAbsCurvature();
+				this.cx = null;
+				this.cy = null;
+				this.radius = (k > 1e-9 ? 1.0 / k : null);
+			}
 		}
 
-		/** 建立兩點直線（以 120 段等分取樣成折線呈現，便於計算與繪圖）。*/
+		/** 建立兩點直線。*/
 		static RoadPath straight(double x1, double y1, double x2, double y2, String name) {
-			List<Point2D> l = new ArrayList<>();
-			int n = 120;
+			return new RoadPath(new LineSeg(x1, y1, x2, y2), name);
+		}
+
+		/**
+		 * 建立圓弧：中心 (cx,cy)、半徑 r、起訖角度（度）。
+		 * 角度由 degStart 線性走到 degEnd；clockwise 僅為呼叫端標示用（方向已由起訖角度決定）。
+		 */
+		static RoadPath arc(double cx, double cy, double r, double degStart, double degEnd, boolean clockwise, String name) {
+			return new RoadPath(new ArcSeg(cx, cy, r, Math.toRadians(degStart), Math.toRadians(degEnd)), name);
+		}
+
+		/** 建立緩和曲線（Clothoid）：起點、起始方向（弧度）、起訖曲率與長度。*/
+		static RoadPath clothoid(double x0, double y0, double heading0, double k0, double k1, double len, String name) {
+			return new RoadPath(new ClothoidSeg(x0, y0, heading0, k0, k1, len), name);
+		}
+
+		/** 建立三次 Bézier 曲線：p0 起點、p1/p2 控制點、p3 終點。*/
+		static RoadPath bezier(double x0, double y0, double x1, double y1, double x2, double y2, double x3, double y3, String name) {
+			return new RoadPath(new BezierSeg(x0, y0, x1, y1, x2, y2, x3, y3), name);
+		}
+
+		/** 往左法向平移固定距離產生偏移路徑（直線、圓弧為精確偏移；緩和曲線與 Bézier 以 OffsetSeg 數值平行線表示）。*/
+		RoadPath offset(double orthogonal) {
+			return new RoadPath(geom.offset(orthogonal), name + "_off");
+		}
+
+		private Shape shape; // 快取的繪圖形狀（幾何不變，建一次即可）
+
+		/** 將幾何轉為 Path2D 以供 Graphics2D 畫線（結果快取，呼叫端不得修改）。*/
+		Shape asPath2D() {
+			if (shape == null) {
+				Path2D p = new Path2D.Double();
+				geom.appendTo(p);
+				shape = p;
+			}
+			return shape;
+		}
+
+		/** 依 s∈[0,1] 取對應弧長位置的座標（超出範圍夾在端點）。*/
+		Point2D pointAt(double s01) {
+			return geom.pointAt(clamp01(s01) * geom.length());
+		}
+
+		/** s 處的切線方向（弧度）。*/
+		double headingAt(double s01) {
+			return geom.headingAt(clamp01(s01) * geom.length());
+		}
+
+		/** s 處的帶號曲率（1/px，左彎為正）。*/
+		double curvatureAt(double s01) {
+			return geom.curvatureAt(clamp01(s01) * geom.length());
+		}
+
+		/** 將點投影到路徑上，回傳最近點的 s（0~1）。*/
+		double project(Point2D p) {
+			return clamp01(geom.project(p.getX(), p.getY()) / Math.max(1e-9, geom.length()));
+		}
+
+		static double clamp01(double s) {
+			return s < 0 ? 0 : (s > 1 ? 1 : s);
+		}
+
+		static double lerp(double a, double b, double t) {
+			return a + (b - a) * t;
+		}
+	}
+
+	// ============================== Segment =============================
+	/**
+	 * Segment：以弧長 u∈[0,length] 參數化的道路幾何基本元素。
+	 */
+	interface Segment {
+		double length();
+
+		/** 弧長 u 處的座標。*/
+		Point2D pointAt(double u);
+
+		/** 弧長 u 處的切線方向（弧度）。*/
+		double headingAt(double u);
+
+		/** 弧長 u 處的帶號曲率（1/px）。*/
+		double curvatureAt(double u);
+
+		/** 整段的最大絕對曲率（直線為 0）。*/
+		double maxAbsCurvature();
+
+		/** 將點 (x,y) 投影到本段，回傳最近點的弧長 u。*/
+		double project(double x, double y);
+
+		/** 往左法向平移 d 後的段。*/
+		Segment offset(double d);
+
+		/** 整段平移 (dx,dy) 後的段（路網複製用）。*/
+		Segment translate(double dx, double dy);
+
+		/** 將此段加入 Path2D（第一點以 moveTo 開始）。*/
+		void appendTo(Path2D p);
+	}
+
+	/** 直線段：全部閉式計算。*/
+	static class LineSeg implements Segment {
+		final double x0, y0, x1, y1;
+		final double len, ux, uy, heading;
+
+		LineSeg(double x0, double y0, double x1, double y1) {
+			this.x0 = x0;
+			this.y0 = y0;
+			this.x1 = x1;
+			this.y1 = y1;
+			double dx = x1 - x0, dy = y1 - y0;
+			this.len = Math.hypot(dx, dy);
+			this.ux = len > 1e-9 ? dx / len : 1;
+			this.uy = len > 1e-9 ? dy / len : 0;
+			this.heading = Math.atan2(uy, ux);
+		}
+
+		public double length() { return len; }
+
+		public Point2D pointAt(double u) {
+			return new Point2D.Double(x0 + ux * u, y0 + uy * u);
+		}
+
+		public double headingAt(double u) { return heading; }
+
+		public double curvatureAt(double u) { return 0; }
+
+		public double maxAbsCurvature() { return 0; }
+
+		public double project(double x, double y) {
+			double u = (x - x0) * ux + (y - y0) * uy;
+			return u < 0 ? 0 : (u > len ? len : u);
+		}
+
+		public Segment offset(double d) {
+			// 左法線 (-uy, ux)
+			return new LineSeg(x0 - uy * d, y0 + ux * d, x1 - uy * d, y1 + ux * d);
+		}
+
+		public Segment translate(double dx, double dy) {
+			return new LineSeg(x0 + dx, y0 + dy, x1 + dx, y1 + dy);
+		}
+
+		public void appendTo(Path2D p) {
+			p.moveTo(x0, y0);
+			p.lineTo(x1, y1);
+		}
+	}
+
+	/** 圓弧段：角度由 a0 線性走到 a1（弧度），全部閉式計算。*/
+	static class ArcSeg implements Segment {
+		final double cx, cy, r, a0, a1;
+		final double dir, sweep, len;
+
+		ArcSeg(double cx, double cy, double r, double a0, double a1) {
+			this.cx = cx;
+			this.cy = cy;
+			this.r = r;
+			this.a0 = a0;
+			this.a1 = a1;
+			this.dir = (a1 >= a0 ? 1 : -1);
+			this.sweep = Math.abs(a1 - a0);
+			this.len = r * sweep;
+		}
+
+		double angleAt(double u) {
+			return a0 + dir * (len > 1e-9 ? u / r : 0);
+		}
+
+		public double length() { return len; }
+
+		public Point2D pointAt(double u) {
+			double a = angleAt(u);
+			return new Point2D.Double(cx + r * Math.cos(a), cy + r * Math.sin(a));
+		}
+
+		public double headingAt(double u) {
+			return angleAt(u) + dir * Math.PI / 2;
+		}
+
+		public double curvatureAt(double u) { return dir / r; }
+
+		public double maxAbsCurvature() { return 1.0 / r; }
+
+		public double project(double x, double y) {
+			double a = Math.atan2(y - cy, x - cx);
+			double d = (a - a0) * dir; // 沿行進方向相對起點的角度
+			d %= 2 * Math.PI;
+			if (d < 0)
+				d += 2 * Math.PI;
+			if (d <= sweep)
+				return d * r;
+			// 落在弧外：取較近的端點
+			return (d - sweep < 2 * Math.PI - d) ? len : 0;
+		}
+
+		public Segment offset(double d) {
+			// 角度遞增時左法線指向圓心
+			return new ArcSeg(cx, cy, r - dir * d, a0, a1);
+		}
+
+		public Segment translate(double dx, double dy) {
+			return new ArcSeg(cx + dx, cy + dy, r, a0, a1);
+		}
+
+		public void appendTo(Path2D p) {
+			int n = Math.max(2, (int) Math.ceil(Math.toDegrees(sweep) / 2)); // 每 2 度一點
 			for (int i = 0; i <= n; i++) {
-				double t = i / (double) n;
-				l.add(new Point2D.Double(lerp(x1, x2, t), lerp(y1, y2, t)));
+				double a = a0 + (a1 - a0) * i / (double) n;
+				double x = cx + r * Math.cos(a), y = cy + r * Math.sin(a);
+				if (i == 0)
+					p.moveTo(x, y);
+				else
+					p.lineTo(x, y);
+			}
+		}
+	}
+
+	/**
+	 * 緩和曲線（Clothoid）：曲率沿弧長線性由 k0 變到 k1。
+	 * 方向角為弧長的二次式（閉式）；座標為 Fresnel 積分，預先在固定數量的節點積分，
+	 * 查詢時由最近節點以 Gauss-Legendre 做一段短積分，成本為 O(1)。
+	 */
+	static class ClothoidSeg implements Segment {
+		static final int NODES = 32;
+		static final double[] GL_X = { -0.8611363115940526, -0.3399810435848563, 0.3399810435848563, 0.8611363115940526 };
+		static final double[] GL_W = { 0.3478548451374538, 0.6521451548625461, 0.6521451548625461, 0.3478548451374538 };
+
+		final double x0, y0, h0, k0, k1, len;
+		final double[] nx = new double[NODES + 1], ny = new double[NODES + 1];
+
+		ClothoidSeg(double x0, double y0, double h0, double k0, double k1, double len) {
+			this.x0 = x0;
+			this.y0 = y0;
+			this.h0 = h0;
+			this.k0 = k0;
+			this.k1 = k1;
+			this.len = Math.max(1e-9, len);
+			nx[0] = x0;
+			ny[0] = y0;
+			double step = this.len / NODES;
+			for (int i = 1; i <= NODES; i++) {
+				double ua = (i - 1) * step;
+				nx[i] = nx[i - 1] + integrate(ua, step, true);
+				ny[i] = ny[i - 1] + integrate(ua, step, false);
+			}
+		}
+
+		/** ∫_{ua}^{ua+du} cos/sin θ(u) du，4 點 Gauss-Legendre。*/
+		double integrate(double ua, double du, boolean cos) {
+			double half = du / 2, mid = ua + half, sum = 0;
+			for (int k = 0; k < 4; k++) {
+				double th = headingAt(mid + half * GL_X[k]);
+				sum += GL_W[k] * (cos ? Math.cos(th) : Math.sin(th));
+			}
+			return sum * half;
+		}
+
+		public double length() { return len; }
+
+		public Point2D pointAt(double u) {
+			u = u < 0 ? 0 : (u > len ? len : u);
+			double step = len / NODES;
+			int i = Math.min(NODES - 1, (int) (u / step));
+			double ua = i * step;
+			return new Point2D.Double(nx[i] + integrate(ua, u - ua, true), ny[i] + integrate(ua, u - ua, false));
+		}
+
+		public double headingAt(double u) {
+			return h0 + k0 * u + (k1 - k0) * u * u / (2 * len);
+		}
+
+		public double curvatureAt(double u) {
+			return k0 + (k1 - k0) * u / len;
+		}
+
+		public double maxAbsCurvature() {
+			return Math.max(Math.abs(k0), Math.abs(k1));
+		}
+
+		public double project(double x, double y) {
+			return projectByNewton(this, x, y, nx, ny, len / NODES);
+		}
+
+		public Segment offset(double d) {
+			return new OffsetSeg(this, d); // 緩和曲線的平行線不再是緩和曲線
+		}
+
+		public Segment translate(double dx, double dy) {
+			return new ClothoidSeg(x0 + dx, y0 + dy, h0, k0, k1, len);
+		}
+
+		public void appendTo(Path2D p) {
+			p.moveTo(nx[0], ny[0]);
+			int sub = 4; // 每個節點區間再細分，繪圖夠平滑
+			double step = len / (NODES * sub);
+			for (int i = 1; i <= NODES * sub; i++) {
+				Point2D q = pointAt(i * step);
+				p.lineTo(q.getX(), q.getY());
+			}
+		}
+	}
+
+	/**
+	 * 三次 Bézier：預先建立「等弧長 → t」反查表，pointAt 以查表內插 t 後代入多項式，成本 O(1)。
+	 */
+	static class BezierSeg implements Segment {
+		static final int TABLE = 64;   // 反查表等分數
+		static final int FINE = 1024;  // 建表時的細分取樣數
+
+		final double x0, y0, x1, y1, x2, y2, x3, y3;
+		final double len;
+		final double[] tOfS = new double[TABLE + 1];
+		final double[] nx = new double[TABLE + 1], ny = new double[TABLE + 1];
+		final double maxK;
+
+		BezierSeg(double x0, double y0, double x1, double y1, double x2, double y2, double x3, double y3) {
+			this.x0 = x0; this.y0 = y0;
+			this.x1 = x1; this.y1 = y1;
+			this.x2 = x2; this.y2 = y2;
+			this.x3 = x3; this.y3 = y3;
+
+			// 細分取樣累積弧長
+			double[] cum = new double[FINE + 1];
+			double px = x0, py = y0;
+			for (int i = 1; i <= FINE; i++) {
+				double t = i / (double) FINE;
+				double qx = bx(t), qy = by(t);
+				cum[i] = cum[i - 1] + Math.hypot(qx - px, qy - py);
+				px = qx;
+				py = qy;
+			}
+			this.len = Math.max(1e-9, cum[FINE]);
+
+			// 反查：每個等弧長位置對應的 t
+			int j = 0;
+			double k = 0;
+			for (int i = 0; i <= TABLE; i++) {
+				double target = len * i / TABLE;
+				while (j < FINE && cum[j + 1] < target)
+					j++;
+				double seg = (j < FINE ? cum[j + 1] - cum[j] : 0);
+				double f = seg > 1e-12 ? (target - cum[j]) / seg : 0;
+				tOfS[i] = Math.min(1.0, (j + f) / FINE);
+				nx[i] = bx(tOfS[i]);
+				ny[i] = by(tOfS[i]);
+				k = Math.max(k, Math.abs(curvatureAtT(tOfS[i])));
+			}
+			this.maxK = k;
+		}
+
+		double bx(double t) {
+			double m = 1 - t;
+			return m * m * m * x0 + 3 * m * m * t * x1 + 3 * m * t * t * x2 + t * t * t * x3;
+		}
+
+		double by(double t) {
+			double m = 1 - t;
+			return m * m * m * y0 + 3 * m * m * t * y1 + 3 * m * t * t * y2 + t * t * t * y3;
+		}
+
+		double tAt(double u) {
+			double f = (u < 0 ? 0 : (u > len ? len : u)) / len * TABLE;
+			int i = Math.min(TABLE - 1, (int) f);
+			return RoadPath.lerp(tOfS[i], tOfS[i + 1], f - i);
+		}
+
+		double curvatureAtT(double t) {
+			double m = 1 - t;
+			double dx = 3 * (m * m * (x1 - x0) + 2 * m * t * (x2 - x1) + t * t * (x3 - x2));
+			double dy = 3 * (m * m * (y1 - y0) + 2 * m * t * (y2 - y1) + t * t * (y3 - y2));
+			double ddx = 6 * (m * (x2 - 2 * x1 + x0) + t * (x3 - 2 * x2 + x1));
+			double ddy = 6 * (m * (y2 - 2 * y1 + y0) + t * (y3 - 2 * y2 + y1));
+			double sp = Math.hypot(dx, dy);
+			return sp > 1e-9 ? (dx * ddy - dy * ddx) / (sp * sp * sp) : 0;
+		}
+
+		public double length() { return len; }
+
+		public Point2D pointAt(double u) {
+			double t = tAt(u);
+			return new Point2D.Double(bx(t), by(t));
+		}
+
+		public double headingAt(double u) {
+			double t = tAt(u), m = 1 - t;
+			double dx = m * m * (x1 - x0) + 2 * m * t * (x2 - x1) + t * t * (x3 - x2);
+			double dy = m * m * (y1 - y0) + 2 * m * t * (y2 - y1) + t * t * (y3 - y2);
+			if (Math.abs(dx) < 1e-12 && Math.abs(dy) < 1e-12) // 控制點與端點重合：退用弦方向
+				return Math.atan2(y3 - y0, x3 - x0);
+			return Math.atan2(dy, dx);
+		}
+
+		public double curvatureAt(double u) {
+			return curvatureAtT(tAt(u));
+		}
+
+		public double maxAbsCurvature() { return maxK; }
+
+		public double project(double x, double y) {
+			return projectByNewton(this, x, y, nx, ny, len / TABLE);
+		}
+
+		public Segment offset(double d) {
+			return new OffsetSeg(this, d); // 三次 Bézier 的平行線不再是三次 Bézier
+		}
+
+		public Segment translate(double dx, double dy) {
+			return new BezierSeg(x0 + dx, y0 + dy, x1 + dx, y1 + dy, x2 + dx, y2 + dy, x3 + dx, y3 + dy);
+		}
+
+		public void appendTo(Path2D p) {
+			p.moveTo(x0, y0);
+			p.curveTo(x1, y1, x2, y2, x3, y3);
+		}
+	}
+
+	/**
+	 * 平行曲線：基準段往左法向平移 d。點為 P(u) + d·n(u)，切線方向與基準段相同，
+	 * 曲率為 k/(1 − d·k)。平行線的弧長 v 與基準弧長 u 的關係 dv/du = 1 − d·k(u)
+	 * 預先在固定數量的節點以 Gauss-Legendre 積分成表，查詢時兩向都以節點內插，成本 O(1)。
+	 * 投影直接借用基準段（平行曲線的法線相同，最近點落在同一個 u）。
+	 */
+	static class OffsetSeg implements Segment {
+		static final int NODES = 64;
+
+		final Segment base;
+		final double d;
+		final double len;
+		final double[] vAt = new double[NODES + 1]; // 基準節點 u = i·step 處的平行線弧長
+		final double maxK;
+
+		OffsetSeg(Segment base, double d) {
+			this.base = base;
+			this.d = d;
+			double step = base.length() / NODES, k = 0;
+			for (int i = 0; i <= NODES; i++) {
+				if (i > 0) {
+					double half = step / 2, mid = (i - 1) * step + half, sum = 0;
+					for (int q = 0; q < 4; q++)
+						sum += ClothoidSeg.GL_W[q] * Math.abs(1 - d * base.curvatureAt(mid + half * ClothoidSeg.GL_X[q]));
+					vAt[i] = vAt[i - 1] + sum * half;
+				}
+				k = Math.max(k, Math.abs(curvatureOfBase(i * step)));
+			}
+			this.len = Math.max(1e-9, vAt[NODES]);
+			this.maxK = k;
+		}
+
+		/** 基準弧長 u 處的平行線座標。*/
+		private Point2D at(double u) {
+			Point2D p = base.pointAt(u);
+			double h = base.headingAt(u);
+			return new Point2D.Double(p.getX() - Math.sin(h) * d, p.getY() + Math.cos(h) * d);
+		}
+
+		private double curvatureOfBase(double u) {
+			double k = base.curvatureAt(u), den = 1 - d * k;
+			return Math.abs(den) > 1e-9 ? k / den : 0; // 平移量等於曲率半徑時退化成尖點
+		}
+
+		/** 平行線弧長 v → 基準弧長 u。*/
+		double baseU(double v) {
+			v = v < 0 ? 0 : (v > len ? len : v);
+			int lo = 0, hi = NODES;
+			while (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				if (vAt[mid] <= v)
+					lo = mid;
+				else
+					hi = mid;
+			}
+			double seg = vAt[hi] - vAt[lo];
+			double f = seg > 1e-12 ? (v - vAt[lo]) / seg : 0;
+			return (lo + f) * base.length() / NODES;
+		}
+
+		public double length() { return len; }
+
+		public Point2D pointAt(double u) {
+			return at(baseU(u));
+		}
+
+		public double headingAt(double u) {
+			return base.headingAt(baseU(u));
+		}
+
+		public double curvatureAt(double u) {
+			return curvatureOfBase(baseU(u));
+		}
+
+		public double maxAbsCurvature() { return maxK; }
+
+		public double project(double x, double y) {
+			double f = base.project(x, y) / Math.max(1e-9, base.length()) * NODES;
+			int i = Math.min(NODES - 1, (int) f);
+			return RoadPath.lerp(vAt[i], vAt[i + 1], f - i);
+		}
+
+		public Segment offset(double d2) {
+			return new OffsetSeg(base, d + d2);
+		}
+
+		public Segment translate(double dx, double dy) {
+			return new OffsetSeg(base.translate(dx, dy), d);
+		}
+
+		public void appendTo(Path2D p) {
+			Point2D q0 = at(0);
+			p.moveTo(q0.getX(), q0.getY());
+			int sub = 2; // 每個節點區間再細分，繪圖夠平滑
+			for (int i = 1; i <= NODES * sub; i++) {
+				Point2D q = at(i * base.length() / (NODES * sub));
+				p.lineTo(q.getX(), q.getY());
 			}
-			return new RoadPath(l, name, true);
 		}
+	}
 
-		/**
-		 * 建立圓弧折線：中心 (cx,cy)、半徑 r、起訖角度（度）、順逆時針。
-		 * 以 160 段近似圓弧，足以獲得平滑視覺。
-		 */
-		static RoadPath arc(double cx, double cy, double r, double degStart, double degEnd, boolean clockwise, String name) {
-			int steps = 160;
-			double a0 = Math.toRadians(degStart), a1 = Math.toRadians(degEnd);
-			List<Point2D> l = new ArrayList<>();
-			double a = 0;
-			for (int i = 0; i <= steps; i++) {
-				double t = i / (double) steps;
-				a = a0 + (a1 - a) * 0 + (a1 - a0) * t; // 線性插值角度
-				double x = cx + r * Math.cos(a);
-				double y = cy + r * Math.sin(a);
-				l.add(new Point2D.Double(x, y));
+	/**
+	 * 曲線投影：先在等弧長節點中找最近點，再以切線方向做數次 Newton 修正。
+	 * nodeX/nodeY 為弧長 i*step 處的座標。
+	 */
+	static double projectByNewton(Segment seg, double x, double y, double[] nodeX, double[] nodeY, double step) {
+		int best = 0;
+		double bestD2 = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < nodeX.length; i++) {
+			double dx = x - nodeX[i], dy = y - nodeY[i];
+			double d2 = dx * dx + dy * dy;
+			if (d2 < bestD2) {
+				bestD2 = d2;
+				best = i;
 			}
-			
-			// 生成路徑並填入曲率資訊
-			RoadPath p = new RoadPath(l, name, false);
-			try {
-			    java.lang.reflect.Field fcx = RoadPath.class.getDeclaredField("cx");
-			    java.lang.reflect.Field fcy = RoadPath.class.getDeclaredField("cy");
-			    java.lang.reflect.Field fr  = RoadPath.class.getDeclaredField("radius");
-			    fcx.setAccessible(true);
-			    fcy.setAccessible(true);
-			    fr.setAccessible(true);
-			    fcx.set(p, cx);
-			    fcy.set(p, cy);
-			    fr.set(p, r);
-			} catch (Exception ignore) {
-				ignore.printStackTrace();
+		}
+		double u = best * step, len = seg.length();
+		for (int it = 0; it < 4; it++) {
+			Point2D q = seg.pointAt(u);
+			double h = seg.headingAt(u);
+			double du = (x - q.getX()) * Math.cos(h) + (y - q.getY()) * Math.sin(h);
+			u = Math.max(0, Math.min(len, u + du));
+			if (Math.abs(du) < 1e-6)
+				break;
+		}
+		return u;
+	}
+
+	// ============================ SegmentIndex ==========================
+	/**
+	 * SegmentIndex：路段的均勻格網索引。每條路徑沿弧長切成不超過半格長的小段，
+	 * 把各小段的外框（含道路半寬）登記到覆蓋的格子；查詢只看相交的格子，成本與路網總大小無關。
+	 * 路網建好後不再變動，建一次即可在多執行緒間唯讀共用。
+	 */
+	static final class SegmentIndex {
+		static final double CELL = 128;   // 格子邊長（px）
+		static final double HALF_WIDTH = 12; // 道路半寬（與 ROAD_STROKE 一致）
+
+		final List<RoadPath> paths;
+		final double cell, x0, y0;
+		final int cols, rows;
+		final int[][] cells; // 每格登記的路徑索引（遞增、不重複）
+
+		SegmentIndex(List<RoadPath> paths, double cell) {
+			this.paths = paths;
+			this.cell = cell;
+			double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+			double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+			List<double[]> pieces = new ArrayList<>(); // {路徑索引, minX, minY, maxX, maxY}
+			for (int i = 0; i < paths.size(); i++) {
+				RoadPath p = paths.get(i);
+				int n = Math.max(1, (int) Math.ceil(p.length / (cell / 2)));
+				Point2D a = p.pointAt(0);
+				for (int k = 1; k <= n; k++) {
+					Point2D b = p.pointAt(k / (double) n);
+					double[] box = { i, Math.min(a.getX(), b.getX()) - HALF_WIDTH, Math.min(a.getY(), b.getY()) - HALF_WIDTH,
+							Math.max(a.getX(), b.getX()) + HALF_WIDTH, Math.max(a.getY(), b.getY()) + HALF_WIDTH };
+					pieces.add(box);
+					minX = Math.min(minX, box[1]);
+					minY = Math.min(minY, box[2]);
+					maxX = Math.max(maxX, box[3]);
+					maxY = Math.max(maxY, box[4]);
+					a = b;
+				}
 			}
-			return p;
+			if (pieces.isEmpty())
+				minX = minY = maxX = maxY = 0;
+			this.x0 = minX;
+			this.y0 = minY;
+			this.cols = Math.max(1, (int) Math.ceil((maxX - minX) / cell));
+			this.rows = Math.max(1, (int) Math.ceil((maxY - minY) / cell));
+			// 兩趟：先數每格的路徑數，再配置並填入
+			int[] count = new int[cols * rows];
+			register(pieces, count, null);
+			this.cells = new int[cols * rows][];
+			for (int c = 0; c < cells.length; c++)
+				cells[c] = new int[count[c]];
+			Arrays.fill(count, 0);
+			register(pieces, count, cells);
 		}
 
-		/**
-		 * 以粗略法（節點法）產生偏移路徑：取局部切線，往其左法向平移固定距離。
-		 * 視覺上可接受，非幾何嚴格偏移。
-		 */
-		RoadPath offset(double orthogonal) {
-			List<Point2D> out = new ArrayList<>();
-			for (int i = 0; i < pts.size(); i++) {
-				Point2D p = pts.get(i);
-				Point2D t0 = pts.get(Math.max(0, i - 1));
-				Point2D t1 = pts.get(Math.min(pts.size() - 1, i + 1));
-				double dx = t1.getX() - t0.getX();
-				double dy = t1.getY() - t0.getY();
-				double len = Math.hypot(dx, dy);
-				if (len < 1e-6)
-					len = 1;
-				dx /= len;
-				dy /= len;
-				// 左法線
-				double nx = -dy, ny = dx;
-				out.add(new Point2D.Double(p.getX() + nx * orthogonal, p.getY() + ny * orthogonal));
-			}
-			return new RoadPath(out, name + "_off", this.isStraight);
-		}
-
-		/** 將節點序列轉為 Path2D 以供 Graphics2D 畫線。*/
-		Shape asPath2D() {
-			Path2D p = new Path2D.Double();
-			boolean first = true;
-			for (Point2D q : pts) {
-				if (first) {
-					p.moveTo(q.getX(), q.getY());
-					first = false;
-				} else
-					p.lineTo(q.getX(), q.getY());
+		private void register(List<double[]> pieces, int[] count, int[][] fill) {
+			int[] last = new int[cols * rows];
+			Arrays.fill(last, -1);
+			for (double[] box : pieces) {
+				int id = (int) box[0];
+				for (int r = row(box[2]); r <= row(box[4]); r++) {
+					for (int c = col(box[1]); c <= col(box[3]); c++) {
+						int k = r * cols + c;
+						if (last[k] == id)
+							continue; // 同一路徑的相鄰小段落在同一格
+						last[k] = id;
+						if (fill != null)
+							fill[k][count[k]] = id;
+						count[k]++;
+					}
+				}
 			}
-			return p;
 		}
 
-		/**
-		 * 依 s∈[0,1] 取對應弧長位置的座標：
-		 * 先用二分查表找落在哪個線段，再線性插值端點。
-		 */
-		Point2D pointAt(double s01) {
-			double target = s01 * length;
-			int hi = Arrays.binarySearch(segLen, target);
-			if (hi >= 0)
-				return pts.get(hi);
-			hi = -hi - 1;
-			int lo = Math.max(0, hi - 1);
-			if (hi >= pts.size())
-				return pts.get(pts.size() - 1);
-			double seg = segLen[hi] - segLen[lo];
-			double t = seg > 1e-9 ? (target - segLen[lo]) / seg : 0;
-			Point2D a = pts.get(lo), b = pts.get(hi);
-			return new Point2D.Double(lerp(a.getX(), b.getX(), t), lerp(a.getY(), b.getY(), t));
-		}
-
-		/** 由相鄰兩點估計該處切線方向（弧度）。*/
-		double headingAt(double s01) {
-			double e = 1e-3;
-			Point2D p1 = pointAt(Math.max(0, s01 - e));
-			Point2D p2 = pointAt(Math.min(1, s01 + e));
-			return Math.atan2(p2.getY() - p1.getY(), p2.getX() - p1.getX());
+		int col(double x) {
+			return Math.max(0, Math.min(cols - 1, (int) Math.floor((x - x0) / cell)));
 		}
 
-		static double lerp(double a, double b, double t) {
-			return a + (b - a) * t;
+		int row(double y) {
+			return Math.max(0, Math.min(rows - 1, (int) Math.floor((y - y0) / cell)));
+		}
+
+		/** 與矩形 r 可能相交的路徑索引（遞增、不重複）。*/
+		int[] query(Rectangle2D r) {
+			BitSet hit = new BitSet(paths.size());
+			for (int row = row(r.getMinY()); row <= row(r.getMaxY()); row++)
+				for (int c = col(r.getMinX()); c <= col(r.getMaxX()); c++)
+					for (int id : cells[row * cols + c])
+						hit.set(id);
+			return hit.stream().toArray();
+		}
+
+		/** 離 (x,y) 最近、距離在 maxDist 內的路徑索引；沒有則回傳 -1。*/
+		int nearest(double x, double y, double maxDist) {
+			Point2D q = new Point2D.Double(x, y);
+			int best = -1;
+			double bestD = maxDist;
+			for (int id : query(new Rectangle2D.Double(x - maxDist, y - maxDist, 2 * maxDist, 2 * maxDist))) {
+				RoadPath p = paths.get(id);
+				double d = p.pointAt(p.project(q)).distance(q);
+				if (d <= bestD) {
+					bestD = d;
+					best = id;
+				}
+			}
+			return best;
 		}
 	}
 
@@ -1787,70 +6573,727 @@ public class CloverleafSimIDM extends JFrame {
 		}
 	}
 
+	// ============================== CarRecords ==========================
+	/**
+	 * CarRecords：一幀車輛狀態的量化快照（依車號遞增排序的平行陣列），
+	 * 是軌跡紀錄寫入與重播解碼共用的資料格式。
+	 */
+	static final class CarRecords {
+		static final int ANIM_NONE = 0, ANIM_LANE = 1, ANIM_POINT = 2; // 變道補間種類
+		static final double S_SCALE = 1 << 20; // s 量化單位
+		static final double V_SCALE = 100;     // v 量化單位（0.01 px/s）
+		static final double XY_SCALE = 16;     // 補間起點座標量化單位（1/16 px）
+		static final double T_SCALE = 255;     // animT 量化單位
+
+		int n;
+		int[] id = new int[0], lane = new int[0], sQ = new int[0], vQ = new int[0], rgb = new int[0];
+		int[] animKind = new int[0], animFrom = new int[0], animXQ = new int[0], animYQ = new int[0], animTQ = new int[0];
+
+		void ensureCapacity(int cap) {
+			if (id.length >= cap)
+				return;
+			cap = Math.max(cap, id.length * 2);
+			id = Arrays.copyOf(id, cap);
+			lane = Arrays.copyOf(lane, cap);
+			sQ = Arrays.copyOf(sQ, cap);
+			vQ = Arrays.copyOf(vQ, cap);
+			rgb = Arrays.copyOf(rgb, cap);
+			animKind = Arrays.copyOf(animKind, cap);
+			animFrom = Arrays.copyOf(animFrom, cap);
+			animXQ = Arrays.copyOf(animXQ, cap);
+			animYQ = Arrays.copyOf(animYQ, cap);
+			animTQ = Arrays.copyOf(animTQ, cap);
+		}
+
+		/** 由世界目前的車輛狀態建立快照（車輛依生成順序加入，車號本來就遞增）。*/
+		void fromWorld(World w) {
+			List<Car> cars = w.cars;
+			n = cars.size();
+			ensureCapacity(n);
+			for (int i = 0; i < n; i++) {
+				Car c = cars.get(i);
+				id[i] = c.id;
+				lane[i] = c.lane.id;
+				sQ[i] = (int) Math.round(c.s * S_SCALE);
+				vQ[i] = (int) Math.round(c.v * V_SCALE);
+				rgb[i] = c.color.getRGB() & 0xFFFFFF;
+				animKind[i] = ANIM_NONE;
+				animFrom[i] = animXQ[i] = animYQ[i] = animTQ[i] = 0;
+				if (c.animFromPoint != null && c.animT < 1.0) {
+					animKind[i] = ANIM_POINT;
+					animXQ[i] = (int) Math.round(c.animFromPoint.getX() * XY_SCALE);
+					animYQ[i] = (int) Math.round(c.animFromPoint.getY() * XY_SCALE);
+				} else if (c.animFromLane != null && c.animT < 1.0) {
+					animKind[i] = ANIM_LANE;
+					animFrom[i] = c.animFromLane.id;
+				}
+				if (animKind[i] != ANIM_NONE)
+					animTQ[i] = (int) Math.round(c.animT * T_SCALE);
+			}
+		}
+
+		double s(int i) { return sQ[i] / S_SCALE; }
+
+		double v(int i) { return vQ[i] / V_SCALE; }
+
+		double animX(int i) { return animXQ[i] / XY_SCALE; }
+
+		double animY(int i) { return animYQ[i] / XY_SCALE; }
+
+		double animT(int i) { return animTQ[i] / T_SCALE; }
+
+		Color color(int i) { return new Color(rgb[i]); }
+
+		boolean sameAnim(int i, CarRecords o, int j) {
+			return animKind[i] == o.animKind[j] && animFrom[i] == o.animFrom[j] && animXQ[i] == o.animXQ[j]
+					&& animYQ[i] == o.animYQ[j] && animTQ[i] == o.animTQ[j];
+		}
+
+		void copyAnim(int i, CarRecords o, int j) {
+			animKind[i] = o.animKind[j];
+			animFrom[i] = o.animFrom[j];
+			animXQ[i] = o.animXQ[j];
+			animYQ[i] = o.animYQ[j];
+			animTQ[i] = o.animTQ[j];
+		}
+
+		// ---- 差分編碼：以 prev 為基準（關鍵幀時 prev 為空）----
+		static final int F_NEW = 1, F_LANE = 2, F_ANIM = 4;
+
+		/** 將 cur 相對於 prev 的差分寫入 out。*/
+		static void encode(CarRecords cur, CarRecords prev, VarBuf out) {
+			out.varint(cur.n);
+			int j = 0, lastId = -1;
+			for (int i = 0; i < cur.n; i++) {
+				int id = cur.id[i];
+				while (j < prev.n && prev.id[j] < id)
+					j++;
+				// 車號可能因重置或載入檢查點而被重複使用：顏色不同就視為新車（顏色只在新車時寫入）
+				boolean has = j < prev.n && prev.id[j] == id && prev.rgb[j] == cur.rgb[i];
+				int flags = 0;
+				if (!has) {
+					flags = F_NEW | (cur.animKind[i] != ANIM_NONE ? F_ANIM : 0);
+				} else {
+					if (cur.lane[i] != prev.lane[j])
+						flags |= F_LANE;
+					if (!cur.sameAnim(i, prev, j))
+						flags |= F_ANIM;
+				}
+				out.varint(id - lastId - 1);
+				lastId = id;
+				out.put(flags);
+				if (!has) {
+					out.varint(cur.lane[i]);
+					out.varint(cur.sQ[i]);
+					out.varint(cur.vQ[i]);
+					out.varint(cur.rgb[i]);
+				} else {
+					if ((flags & F_LANE) != 0)
+						out.varint(cur.lane[i]);
+					out.zigzag(cur.sQ[i] - prev.sQ[j]);
+					out.zigzag(cur.vQ[i] - prev.vQ[j]);
+				}
+				if ((flags & F_ANIM) != 0) {
+					out.put(cur.animKind[i]);
+					if (cur.animKind[i] == ANIM_LANE) {
+						out.varint(cur.animFrom[i]);
+					} else if (cur.animKind[i] == ANIM_POINT) {
+						out.zigzag(cur.animXQ[i]);
+						out.zigzag(cur.animYQ[i]);
+					}
+					if (cur.animKind[i] != ANIM_NONE)
+						out.varint(cur.animTQ[i]);
+				}
+			}
+		}
+
+		/** 由 in 讀出相對於 prev 的差分，結果寫入 this。*/
+		void decode(ByteBuffer in, CarRecords prev) {
+			n = VarBuf.readVarint(in);
+			ensureCapacity(n);
+			int j = 0, lastId = -1;
+			for (int i = 0; i < n; i++) {
+				int cid = lastId + 1 + VarBuf.readVarint(in);
+				lastId = cid;
+				id[i] = cid;
+				while (j < prev.n && prev.id[j] < cid)
+					j++;
+				int flags = in.get() & 0xFF;
+				if ((flags & F_NEW) != 0) {
+					lane[i] = VarBuf.readVarint(in);
+					sQ[i] = VarBuf.readVarint(in);
+					vQ[i] = VarBuf.readVarint(in);
+					rgb[i] = VarBuf.readVarint(in);
+					animKind[i] = ANIM_NONE;
+					animFrom[i] = animXQ[i] = animYQ[i] = animTQ[i] = 0;
+				} else {
+					lane[i] = (flags & F_LANE) != 0 ? VarBuf.readVarint(in) : prev.lane[j];
+					sQ[i] = prev.sQ[j] + VarBuf.readZigzag(in);
+					vQ[i] = prev.vQ[j] + VarBuf.readZigzag(in);
+					rgb[i] = prev.rgb[j];
+					copyAnim(i, prev, j);
+				}
+				if ((flags & F_ANIM) != 0) {
+					animKind[i] = in.get() & 0xFF;
+					animFrom[i] = animXQ[i] = animYQ[i] = animTQ[i] = 0;
+					if (animKind[i] == ANIM_LANE) {
+						animFrom[i] = VarBuf.readVarint(in);
+					} else if (animKind[i] == ANIM_POINT) {
+						animXQ[i] = VarBuf.readZigzag(in);
+						animYQ[i] = VarBuf.readZigzag(in);
+					}
+					if (animKind[i] != ANIM_NONE)
+						animTQ[i] = VarBuf.readVarint(in);
+				}
+			}
+		}
+	}
+
+	// ============================== VarBuf ==============================
+	/**
+	 * VarBuf：可成長的位元組緩衝，提供 LEB128 varint 與 zigzag 有號整數編碼。
+	 */
+	static final class VarBuf {
+		byte[] data = new byte[4096];
+		int size;
+
+		void reset() {
+			size = 0;
+		}
+
+		void put(int b) {
+			if (size == data.length)
+				data = Arrays.copyOf(data, size * 2);
+			data[size++] = (byte) b;
+		}
+
+		void putInt(int v) {
+			put(v >>> 24);
+			put(v >>> 16);
+			put(v >>> 8);
+			put(v);
+		}
+
+		void varint(int v) {
+			while ((v & ~0x7F) != 0) {
+				put((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			put(v);
+		}
+
+		void zigzag(int v) {
+			varint((v << 1) ^ (v >> 31));
+		}
+
+		static int readVarint(ByteBuffer in) {
+			int v = 0, shift = 0, b;
+			do {
+				b = in.get();
+				v |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return v;
+		}
+
+		static int readZigzag(ByteBuffer in) {
+			int v = readVarint(in);
+			return (v >>> 1) ^ -(v & 1);
+		}
+	}
+
+	// ============================ TrajectoryWriter ======================
+	/**
+	 * TrajectoryWriter：把每一步的車輛狀態（車號、車道索引、s、v、變道補間）寫成精簡的二進位軌跡檔。
+	 * 檔頭：magic "CLTR"、版本、車道數、關鍵幀間隔、dt（微秒）。
+	 * 之後每幀為「varint 長度 + 內容」，內容為 varint 幀號、關鍵幀旗標與 CarRecords 差分；
+	 * 每 keyEvery 幀寫一個關鍵幀（對空集合差分＝完整狀態），重播可由最近的關鍵幀快速定位。
+	 * 以 direct ByteBuffer 緩衝後成批寫入 FileChannel。只應由模擬執行緒呼叫。
+	 */
+	static final class TrajectoryWriter implements Closeable {
+		static final int MAGIC = 0x434C5452; // "CLTR"
+		static final int VERSION = 1;
+
+		final File file;
+		final int keyEvery;
+		private final FileChannel ch;
+		private final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+		private final VarBuf frame = new VarBuf(), len = new VarBuf();
+		private CarRecords prev = new CarRecords(), cur = new CarRecords();
+		private final CarRecords empty = new CarRecords();
+		int frameNo = 0;
+
+		TrajectoryWriter(File file, World w, int keyEvery, double dt) throws IOException {
+			this.file = file;
+			this.keyEvery = keyEvery;
+			this.ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			frame.putInt(MAGIC);
+			frame.varint(VERSION);
+			frame.varint(w.lanes.size());
+			frame.varint(keyEvery);
+			frame.varint((int) Math.round(dt * 1e6));
+			append(frame);
+		}
+
+		/** 記錄世界目前的狀態為一幀。*/
+		void write(World w) throws IOException {
+			cur.fromWorld(w);
+			boolean key = (frameNo % keyEvery == 0);
+			frame.reset();
+			frame.varint(frameNo);
+			frame.put(key ? 1 : 0);
+			CarRecords.encode(cur, key ? empty : prev, frame);
+			len.reset();
+			len.varint(frame.size);
+			append(len);
+			append(frame);
+			CarRecords t = prev;
+			prev = cur;
+			cur = t;
+			frameNo++;
+		}
+
+		private void append(VarBuf b) throws IOException {
+			int off = 0;
+			while (off < b.size) {
+				if (!buf.hasRemaining())
+					flush();
+				int k = Math.min(buf.remaining(), b.size - off);
+				buf.put(b.data, off, k);
+				off += k;
+			}
+		}
+
+		private void flush() throws IOException {
+			buf.flip();
+			while (buf.hasRemaining())
+				ch.write(buf);
+			buf.clear();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				ch.close();
+			}
+		}
+	}
+
+	// ============================ TrajectoryReader ======================
+	/**
+	 * TrajectoryReader：開啟軌跡檔並建立幀位移索引，可循序讀取或跳到任意幀
+	 * （從該幀之前最近的關鍵幀開始解碼，最多解碼 keyEvery 幀）。
+	 */
+	static final class TrajectoryReader implements Closeable {
+		final int laneCount, keyEvery;
+		final double dt;
+		private final FileChannel ch;
+		private final ByteBuffer map;
+		private int[] offset = new int[1024]; // 各幀內容起點
+		private boolean[] key = new boolean[1024];
+		private int frames;
+		private CarRecords state = new CarRecords(), next = new CarRecords();
+		private final CarRecords empty = new CarRecords();
+		private int current = -1; // state 對應的幀號
+
+		TrajectoryReader(File file) throws IOException {
+			ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			if (map.remaining() < 4 || map.getInt() != TrajectoryWriter.MAGIC)
+				throw new IOException("Not a trajectory log: " + file);
+			int version = VarBuf.readVarint(map);
+			if (version != TrajectoryWriter.VERSION)
+				throw new IOException("Unsupported trajectory log version " + version);
+			laneCount = VarBuf.readVarint(map);
+			keyEvery = VarBuf.readVarint(map);
+			dt = VarBuf.readVarint(map) / 1e6;
+
+			// 掃描各幀長度建立索引（寫到一半中斷的最後一幀直接略過）
+			while (map.hasRemaining()) {
+				int start = map.position();
+				int n = VarBuf.readVarint(map);
+				int body = map.position();
+				if (body + n > map.limit()) {
+					map.position(start);
+					break;
+				}
+				VarBuf.readVarint(map); // 幀號
+				boolean k = map.get() != 0;
+				if (frames == offset.length) {
+					offset = Arrays.copyOf(offset, frames * 2);
+					key = Arrays.copyOf(key, frames * 2);
+				}
+				offset[frames] = body;
+				key[frames] = k;
+				frames++;
+				map.position(body + n);
+			}
+		}
+
+		int frameCount() {
+			return frames;
+		}
+
+		/** 取得第 frame 幀的車輛狀態（回傳的物件在下次呼叫前有效）。*/
+		CarRecords read(int frame) {
+			if (frame < 0 || frame >= frames)
+				throw new IndexOutOfBoundsException("frame " + frame + " of " + frames);
+			if (frame != current + 1 && frame != current) {
+				int k = frame;
+				while (k > 0 && !key[k])
+					k--;
+				current = k - 1;
+				decodeNext(); // 關鍵幀
+			}
+			while (current < frame)
+				decodeNext();
+			return state;
+		}
+
+		private void decodeNext() {
+			int f = current + 1;
+			map.position(offset[f]);
+			VarBuf.readVarint(map); // 幀號
+			boolean k = map.get() != 0;
+			next.decode(map, k ? empty : state);
+			CarRecords t = state;
+			state = next;
+			next = t;
+			current = f;
+		}
+
+		@Override
+		public void close() throws IOException {
+			ch.close();
+		}
+	}
+
+	// ============================== SimRandom ===========================
+	/**
+	 * SimRandom：與 java.util.Random 相同的 48 位元線性同餘產生器（同種子產生相同序列），
+	 * 但內部狀態可讀寫，讓檢查點能精確保存並還原亂數進度。
+	 */
+	static final class SimRandom extends Random {
+		private static final long MULT = 0x5DEECE66DL, ADD = 0xBL, MASK = (1L << 48) - 1;
+		private long state; // 不可給初值：父類別建構子會先呼叫 setSeed()
+
+		SimRandom(long seed) {
+			super(seed);
+		}
+
+		@Override
+		public synchronized void setSeed(long seed) {
+			state = (seed ^ MULT) & MASK;
+		}
+
+		@Override
+		protected int next(int bits) {
+			state = (state * MULT + ADD) & MASK;
+			return (int) (state >>> (48 - bits));
+		}
+
+		long getState() {
+			return state;
+		}
+
+		void setState(long s) {
+			state = s & MASK;
+		}
+
+		/** SplitMix64 的混合函式：把任意 64 位元值打散成均勻分布的 64 位元值。*/
+		static long mix64(long z) {
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			return z ^ (z >>> 31);
+		}
+	}
+
+	// ============================ VehicleRandom =========================
+	/**
+	 * VehicleRandom：單一車輛的計數器式亂數流（SplitMix64：第 k 次輸出 = mix64(key + k·γ)）。
+	 * key 由 (種子, 車號) 雜湊而來，不保存序列狀態以外的任何東西；同一台車不論何時、在哪一區生成，
+	 * 抽到的值都相同，也不會因為其他車多抽或少抽而錯位。
+	 */
+	static final class VehicleRandom extends Random {
+		private static final long GAMMA = 0x9E3779B97F4A7C15L;
+		private long counter; // 不可給初值：父類別建構子會先呼叫 setSeed()
+
+		VehicleRandom(long seed, int id) {
+			super(0);
+			counter = SimRandom.mix64(SimRandom.mix64(seed) + id * GAMMA);
+		}
+
+		@Override
+		public synchronized void setSeed(long seed) {
+			// 由建構子設定 counter；不支援重設種子
+		}
+
+		@Override
+		protected int next(int bits) {
+			counter += GAMMA;
+			return (int) (SimRandom.mix64(counter) >>> (64 - bits));
+		}
+	}
+
+	// ============================= WorldCheckpoint ======================
+	/**
+	 * WorldCheckpoint：把世界的動態狀態（車輛、生成計時、亂數狀態）存成精簡的二進位檢查點，
+	 * 之後可在毫秒內還原，讓實驗從已達穩態的路網直接分支，不必重新暖機。
+	 * 車道以索引儲存，並附上路網簽章以拒絕載入到不同的路網；格式自帶版本號，不使用 Java 序列化。
+	 * 存取 World 的動作都應在模擬執行緒上進行（例如經由 SimLoop.post()）。
+	 */
+	static final class WorldCheckpoint {
+		static final int MAGIC = 0x434C434B; // "CLCK"
+		static final int VERSION = 2; // 2：加入起訖需求的目的地與完成旅次數（仍可讀 1）
+
+		// 車輛旗標位元
+		private static final int C_TAKE_RAMP = 1, C_PASSED_ENTRY = 2, C_ANIM_LANE = 4, C_ANIM_POINT = 8, C_LAST_ROUTE = 16, C_ROUTED = 32;
+
+		/** 路網簽章：車道數與依序的車道名稱雜湊。*/
+		static int networkSignature(World w) {
+			int h = w.lanes.size();
+			for (Lane l : w.lanes)
+				h = 31 * h + l.path.name.hashCode();
+			return h;
+		}
+
+		static void save(World w, File file) throws IOException {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+				write(w, out);
+			}
+		}
+
+		static void load(World w, File file) throws IOException {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				read(w, in);
+			}
+		}
+
+		static void write(World w, DataOutput out) throws IOException {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeInt(w.lanes.size());
+			out.writeInt(networkSignature(w));
+
+			out.writeDouble(w.spawnEverySec);
+			out.writeDouble(w.spawnAcc);
+			out.writeInt(w.maxCars);
+			out.writeInt(w.nextCarId);
+			out.writeLong(w.rng.getState());
+			out.writeLong(w.tripsCompleted);
+
+			out.writeInt(w.cars.size());
+			for (Car c : w.cars) {
+				int flags = (c.takeRamp ? C_TAKE_RAMP : 0) | (c.passedEntryThisLap ? C_PASSED_ENTRY : 0)
+						| (c.animFromLane != null ? C_ANIM_LANE : 0) | (c.animFromPoint != null ? C_ANIM_POINT : 0)
+						| (c.lastRouteTo != null ? C_LAST_ROUTE : 0) | (c.dest >= 0 ? C_ROUTED : 0);
+				out.writeInt(c.id);
+				out.writeShort(c.lane.id);
+				out.writeByte(flags);
+				out.writeInt(c.color.getRGB());
+				out.writeDouble(c.s);
+				out.writeDouble(c.v);
+				out.writeDouble(c.sPrev);
+				out.writeDouble(c.laneCooldown);
+				out.writeDouble(c.routeCooldown);
+				out.writeDouble(c.rampLockout);
+				out.writeDouble(c.postExitCooldown);
+				out.writeDouble(c.postExitVmax);
+				out.writeDouble(c.endHold);
+				out.writeDouble(c.animT);
+				if (c.animFromLane != null)
+					out.writeShort(c.animFromLane.id);
+				if (c.animFromPoint != null) {
+					out.writeDouble(c.animFromPoint.getX());
+					out.writeDouble(c.animFromPoint.getY());
+				}
+				if (c.lastRouteTo != null)
+					out.writeShort(c.lastRouteTo.id);
+				if (c.dest >= 0)
+					out.writeShort(c.dest);
+			}
+		}
+
+		/** 讀取檢查點並取代世界目前的動態狀態；格式或路網不符時丟出 IOException，世界維持原狀。*/
+		static void read(World w, DataInput in) throws IOException {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a world checkpoint");
+			int version = in.readUnsignedShort();
+			if (version < 1 || version > VERSION)
+				throw new IOException("Unsupported checkpoint version " + version);
+			int laneCount = in.readInt();
+			if (laneCount != w.lanes.size() || in.readInt() != networkSignature(w))
+				throw new IOException("Checkpoint was saved on a different road network");
+
+			double spawnEverySec = in.readDouble();
+			double spawnAcc = in.readDouble();
+			int maxCars = in.readInt();
+			int nextCarId = in.readInt();
+			long rngState = in.readLong();
+			long trips = version >= 2 ? in.readLong() : 0;
+
+			int n = in.readInt();
+			List<Car> cars = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				int id = in.readInt();
+				Car c = new Car(lane(w, in.readUnsignedShort()));
+				int flags = in.readUnsignedByte();
+				c.id = id;
+				c.color = new Color(in.readInt(), true);
+				c.s = in.readDouble();
+				c.v = in.readDouble();
+				c.sPrev = in.readDouble();
+				c.laneCooldown = in.readDouble();
+				c.routeCooldown = in.readDouble();
+				c.rampLockout = in.readDouble();
+				c.postExitCooldown = in.readDouble();
+				c.postExitVmax = in.readDouble();
+				c.endHold = in.readDouble();
+				c.animT = in.readDouble();
+				c.takeRamp = (flags & C_TAKE_RAMP) != 0;
+				c.passedEntryThisLap = (flags & C_PASSED_ENTRY) != 0;
+				if ((flags & C_ANIM_LANE) != 0)
+					c.animFromLane = lane(w, in.readUnsignedShort());
+				if ((flags & C_ANIM_POINT) != 0)
+					c.animFromPoint = new Point2D.Double(in.readDouble(), in.readDouble());
+				if ((flags & C_LAST_ROUTE) != 0)
+					c.lastRouteTo = lane(w, in.readUnsignedShort());
+				if ((flags & C_ROUTED) != 0) {
+					c.dest = in.readUnsignedShort();
+					if (w.routes == null || c.dest >= w.routes.sinks.length)
+						throw new IOException("Checkpoint has routed cars but the world has no matching demand");
+				}
+				cars.add(c);
+			}
+
+			// 全部讀取成功後才套用；中觀佇列不存檔，載入的車先回到微觀，下一步在中觀範圍內的會重新轉入
+			for (MesoLink m : w.mesoLinks)
+				m.release();
+			w.cars.clear();
+			w.cars.addAll(cars);
+			w.spawnEverySec = spawnEverySec;
+			w.spawnAcc = spawnAcc;
+			w.maxCars = maxCars;
+			w.nextCarId = nextCarId;
+			w.rng.setState(rngState);
+			w.tripsCompleted = trips;
+			w.publishFrame();
+		}
+
+		private static Lane lane(World w, int index) throws IOException {
+			if (index >= w.lanes.size())
+				throw new IOException("Lane index out of range: " + index);
+			return w.lanes.get(index);
+		}
+	}
+
 	// ============================ VideoRecorder (Animated GIF) ==========
 	/**
-	 * VideoRecorder：以 ImageIO 的序列寫入功能輸出動畫 GIF。
-	 * 注意：JRE 內建 GIF 編碼器簡易可用，但色彩索引與壓縮非最佳；本範例著重示意。
+	 * VideoRecorder：背景執行緒輸出動畫 GIF。
+	 * EDT 只把畫面畫進固定數量、可重複使用的影格緩衝區後丟進有界佇列；沒有空緩衝區就丟棄該幀並計數（背壓）。
+	 * 編碼器在第一幀建立固定調色盤（255 色 + 1 個透明色）與 15-bit 反查表，之後每幀只輸出
+	 * 與上一幀不同的矩形區域，未變的像素以透明色表示；完全沒變的幀則併入上一幀的停留時間。
 	 */
 	static class VideoRecorder {
-		private ImageWriter gifWriter;      // GIF 編碼器
-		private ImageWriteParam imageWriteParam; // 這裡維持預設（可為 null）
-		private IIOMetadata imageMeta;      // 用於設定每幀延遲與迴圈
-		private ImageOutputStream output;   // 檔案輸出串流
-		private boolean recording = false;  // 是否正在錄影
-		private int frameCount = 0;         // 累積幀數
+		static final int POOL = 4;          // 影格緩衝區數量（也是佇列上限）
+		static final int TRANSPARENT = 255; // 透明色索引
+
+		/** 一個可重用的影格緩衝區。*/
+		static final class Slot {
+			final BufferedImage img;
+			int delayMs;
+
+			Slot(BufferedImage img) {
+				this.img = img;
+			}
+		}
+
+		private static final Slot END = new Slot(null); // 結束訊號
+
+		private BlockingQueue<Slot> free;   // 可供 EDT 填寫的緩衝區
+		private BlockingQueue<Slot> full;   // 待編碼的影格
+		private volatile boolean recording = false; // 是否正在錄影
+		private final AtomicInteger dropped = new AtomicInteger(); // 因背壓丟棄的幀數
+		private Thread encoder;
 
 		public boolean isRecording() {
 			return recording;
 		}
 
-		/** 開始錄影：尋找 GIF Writer、開啟輸出檔，並準備寫入序列。*/
-		public void start(File file) throws IOException {
+		/** 等待編碼的影格數。*/
+		public int queued() {
+			BlockingQueue<Slot> q = full;
+			return q == null ? 0 : q.size();
+		}
+
+		public int dropped() {
+			return dropped.get();
+		}
+
+		/** 開始錄影：尋找 GIF Writer、開啟輸出檔、配置緩衝區並啟動編碼執行緒。*/
+		public void start(File file, int w, int h) throws IOException {
 			Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix("gif");
 			if (!writers.hasNext())
 				throw new IOException("No GIF writer available");
-			gifWriter = writers.next();
-			output = ImageIO.createImageOutputStream(file);
-			gifWriter.setOutput(output);
-			gifWriter.prepareWriteSequence(null);
+			GifEncoder enc = new GifEncoder(writers.next(), ImageIO.createImageOutputStream(file), w, h);
+			free = new ArrayBlockingQueue<>(POOL);
+			full = new ArrayBlockingQueue<>(POOL + 1); // +1 給結束訊號
+			for (int i = 0; i < POOL; i++)
+				free.add(new Slot(new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB)));
+			dropped.set(0);
+			BlockingQueue<Slot> in = full, out = free;
+			encoder = new Thread(() -> encodeLoop(enc, in, out, file), "gif-encoder");
+			encoder.setDaemon(true);
+			encoder.start();
 			recording = true;
-			frameCount = 0;
 			System.out.println("Recording GIF to " + file.getAbsolutePath());
 		}
 
-		/** 新增一幀到 GIF 序列；首次呼叫時建立並設定中繼資料（延遲、循環）。*/
-		public void addFrame(RenderedImage img, int delayMs) {
+		/**
+		 * 擷取一幀：取一個空緩衝區交給 painter 繪製後送入編碼佇列。
+		 * 沒有空緩衝區時不等待，直接丟棄並計數，確保呼叫端不被編碼速度拖慢。
+		 */
+		public void capture(Consumer<Graphics2D> painter, int delayMs) {
+			if (!recording)
+				return;
+			Slot s = free.poll();
+			if (s == null) {
+				dropped.incrementAndGet();
+				return;
+			}
+			Graphics2D g = s.img.createGraphics();
+			painter.accept(g);
+			g.dispose();
+			s.delayMs = delayMs;
+			full.add(s);
+		}
+
+		/** 結束錄影：送出結束訊號，由編碼執行緒寫完剩餘影格並關檔（不阻塞呼叫端）。*/
+		public void finish() {
 			if (!recording)
 				return;
+			recording = false;
+			full.add(END);
+			encoder = null;
+		}
+
+		private static void encodeLoop(GifEncoder enc, BlockingQueue<Slot> in, BlockingQueue<Slot> out, File file) {
 			try {
-				if (imageMeta == null) {
-					ImageTypeSpecifier type = ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_ARGB);
-					imageMeta = gifWriter.getDefaultImageMetadata(type, imageWriteParam);
-					String metaFormat = imageMeta.getNativeMetadataFormatName();
-					IIOMetadataNode root = (IIOMetadataNode) imageMeta.getAsTree(metaFormat);
-					// 設定每幀延遲（GraphicControlExtension）
-					IIOMetadataNode gce = getNode(root, "GraphicControlExtension");
-					gce.setAttribute("disposalMethod", "none");
-					gce.setAttribute("userInputFlag", "FALSE");
-					gce.setAttribute("transparentColorFlag", "FALSE");
-					int centi = Math.max(1, delayMs / 10); // 以 1/100 秒計
-					gce.setAttribute("delayTime", Integer.toString(centi));
-					gce.setAttribute("transparentColorIndex", "0");
-					// 設定 Netscape 2.0 擴展以實現無限循環
-					IIOMetadataNode appExts = getNode(root, "ApplicationExtensions");
-					IIOMetadataNode app = new IIOMetadataNode("ApplicationExtension");
-					app.setAttribute("applicationID", "NETSCAPE");
-					app.setAttribute("authenticationCode", "2.0");
-					byte[] loopBytes = new byte[] { 0x1, 0x0, 0x0 }; // 迴圈無限次
-					app.setUserObject(loopBytes);
-					appExts.appendChild(app);
-					imageMeta.setFromTree(metaFormat, root);
+				while (true) {
+					Slot s = in.take();
+					if (s == END)
+						break;
+					enc.addFrame(s.img, s.delayMs);
+					out.add(s);
 				}
-				IIOImage frame = new IIOImage(img, null, imageMeta);
-				gifWriter.writeToSequence(frame, imageWriteParam);
-				frameCount++;
+				enc.finish();
+				System.out.println("GIF saved. Frames=" + enc.frameCount + " -> " + file.getAbsolutePath());
 			} catch (IOException ex) {
 				ex.printStackTrace();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
 			}
 		}
 
@@ -1867,21 +7310,213 @@ public class CloverleafSimIDM extends JFrame {
 			return node;
 		}
 
-		/** 結束錄影：關閉序列並釋放資源。*/
-		public void finish() {
-			if (!recording)
-				return;
-			try {
-				gifWriter.endWriteSequence();
-				output.close();
-				System.out.println("GIF saved. Frames=" + frameCount);
-			} catch (IOException ignored) {
+		/**
+		 * GifEncoder：在編碼執行緒上執行的調色盤量化與差異幀輸出（非執行緒安全）。
+		 */
+		static final class GifEncoder {
+			final ImageWriter gifWriter;
+			final ImageOutputStream output;
+			final int w, h;
+			IndexColorModel palette;           // 第一幀建立後固定
+			final byte[] lookup = new byte[1 << 15]; // 15-bit RGB → 調色盤索引
+			byte[] prev, cur;                  // 上一幀／本幀的索引像素
+			int frameCount = 0;
+
+			// 尚未寫出的幀（用來累加無變化幀的停留時間）
+			BufferedImage pendingImg;
+			int pendingX, pendingY, pendingMs;
+
+			GifEncoder(ImageWriter writer, ImageOutputStream output, int w, int h) throws IOException {
+				this.gifWriter = writer;
+				this.output = output;
+				this.w = w;
+				this.h = h;
+				gifWriter.setOutput(output);
+				prev = new byte[w * h];
+				cur = new byte[w * h];
+			}
+
+			void addFrame(BufferedImage img, int delayMs) throws IOException {
+				int[] px = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+				if (palette == null) {
+					buildPalette(px);
+					startSequence();
+				}
+				for (int i = 0; i < px.length; i++) {
+					int p = px[i];
+					cur[i] = lookup[((p >> 9) & 0x7C00) | ((p >> 6) & 0x03E0) | ((p >> 3) & 0x001F)];
+				}
+
+				// 差異範圍（第一幀為全畫面）
+				int x0 = 0, y0 = 0, x1 = w - 1, y1 = h - 1;
+				if (pendingImg != null) {
+					x0 = w;
+					y0 = h;
+					x1 = -1;
+					y1 = -1;
+					for (int y = 0, i = 0; y < h; y++) {
+						for (int x = 0; x < w; x++, i++) {
+							if (cur[i] != prev[i]) {
+								if (x < x0) x0 = x;
+								if (x > x1) x1 = x;
+								if (y < y0) y0 = y;
+								y1 = y;
+							}
+						}
+					}
+					if (x1 < 0) { // 完全沒變：延長上一幀
+						pendingMs += delayMs;
+						return;
+					}
+				}
+
+				int rw = x1 - x0 + 1, rh = y1 - y0 + 1;
+				BufferedImage sub = new BufferedImage(rw, rh, BufferedImage.TYPE_BYTE_INDEXED, palette);
+				byte[] dst = ((DataBufferByte) sub.getRaster().getDataBuffer()).getData();
+				boolean first = (pendingImg == null);
+				for (int y = 0; y < rh; y++) {
+					int src = (y0 + y) * w + x0;
+					for (int x = 0; x < rw; x++, src++) {
+						byte b = cur[src];
+						dst[y * rw + x] = (!first && b == prev[src]) ? (byte) TRANSPARENT : b;
+					}
+				}
+				flushPending();
+				pendingImg = sub;
+				pendingX = x0;
+				pendingY = y0;
+				pendingMs = delayMs;
+
+				byte[] t = prev;
+				prev = cur;
+				cur = t;
+			}
+
+			/** 以第一幀的 15-bit 色彩直方圖挑出最常見的 255 色作為固定調色盤，並建立反查表。*/
+			void buildPalette(int[] px) {
+				int[] count = new int[1 << 15];
+				long[] sr = new long[1 << 15], sg = new long[1 << 15], sb = new long[1 << 15];
+				for (int p : px) {
+					int r = (p >> 16) & 255, g = (p >> 8) & 255, b = p & 255;
+					int k = ((r >> 3) << 10) | ((g >> 3) << 5) | (b >> 3);
+					count[k]++;
+					sr[k] += r;
+					sg[k] += g;
+					sb[k] += b;
+				}
+				Integer[] bins = new Integer[1 << 15];
+				for (int i = 0; i < bins.length; i++)
+					bins[i] = i;
+				Arrays.sort(bins, (a, b) -> Integer.compare(count[b], count[a]));
+
+				byte[] r = new byte[256], g = new byte[256], b = new byte[256];
+				int n = 0;
+				for (; n < TRANSPARENT && count[bins[n]] > 0; n++) {
+					int k = bins[n];
+					r[n] = (byte) (sr[k] / count[k]);
+					g[n] = (byte) (sg[k] / count[k]);
+					b[n] = (byte) (sb[k] / count[k]);
+				}
+				// 補一組粗略的 6x6x6 色立方，讓之後新出現的顏色也有近似色可用
+				for (int i = 0; n < TRANSPARENT && i < 216; i++, n++) {
+					r[n] = (byte) ((i / 36) * 51);
+					g[n] = (byte) (((i / 6) % 6) * 51);
+					b[n] = (byte) ((i % 6) * 51);
+				}
+				palette = new IndexColorModel(8, 256, r, g, b, TRANSPARENT);
+
+				for (int k = 0; k < lookup.length; k++) {
+					int kr = ((k >> 10) << 3) + 4, kg = (((k >> 5) & 31) << 3) + 4, kb = ((k & 31) << 3) + 4;
+					int best = 0, bestD = Integer.MAX_VALUE;
+					for (int i = 0; i < n; i++) {
+						int dr = kr - (r[i] & 255), dg = kg - (g[i] & 255), db = kb - (b[i] & 255);
+						int d = dr * dr + dg * dg + db * db;
+						if (d < bestD) {
+							bestD = d;
+							best = i;
+						}
+					}
+					lookup[k] = (byte) best;
+				}
+			}
+
+			/** 以固定調色盤作為全域色表開始寫入序列（各幀不再附帶區域色表）。*/
+			void startSequence() throws IOException {
+				IIOMetadata sm = gifWriter.getDefaultStreamMetadata(null);
+				String fmt = sm.getNativeMetadataFormatName();
+				IIOMetadataNode root = (IIOMetadataNode) sm.getAsTree(fmt);
+				IIOMetadataNode lsd = getNode(root, "LogicalScreenDescriptor");
+				lsd.setAttribute("logicalScreenWidth", Integer.toString(w));
+				lsd.setAttribute("logicalScreenHeight", Integer.toString(h));
+				lsd.setAttribute("colorResolution", "8");
+				lsd.setAttribute("pixelAspectRatio", "0");
+				IIOMetadataNode gct = getNode(root, "GlobalColorTable");
+				while (gct.getFirstChild() != null)
+					gct.removeChild(gct.getFirstChild());
+				gct.setAttribute("sizeOfGlobalColorTable", "256");
+				gct.setAttribute("backgroundColorIndex", "0");
+				gct.setAttribute("sortFlag", "FALSE");
+				for (int i = 0; i < 256; i++) {
+					IIOMetadataNode e = new IIOMetadataNode("ColorTableEntry");
+					e.setAttribute("index", Integer.toString(i));
+					e.setAttribute("red", Integer.toString(palette.getRed(i)));
+					e.setAttribute("green", Integer.toString(palette.getGreen(i)));
+					e.setAttribute("blue", Integer.toString(palette.getBlue(i)));
+					gct.appendChild(e);
+				}
+				sm.setFromTree(fmt, root);
+				gifWriter.prepareWriteSequence(sm);
+			}
+
+			/** 寫出暫存的幀（停留時間已累加完成）。*/
+			void flushPending() throws IOException {
+				if (pendingImg == null)
+					return;
+				ImageTypeSpecifier type = ImageTypeSpecifier.createFromRenderedImage(pendingImg);
+				IIOMetadata meta = gifWriter.getDefaultImageMetadata(type, null);
+				String metaFormat = meta.getNativeMetadataFormatName();
+				IIOMetadataNode root = (IIOMetadataNode) meta.getAsTree(metaFormat);
+				IIOMetadataNode lct = getNode(root, "LocalColorTable");
+				root.removeChild(lct); // 使用全域色表
+				IIOMetadataNode desc = getNode(root, "ImageDescriptor");
+				desc.setAttribute("imageLeftPosition", Integer.toString(pendingX));
+				desc.setAttribute("imageTopPosition", Integer.toString(pendingY));
+				desc.setAttribute("imageWidth", Integer.toString(pendingImg.getWidth()));
+				desc.setAttribute("imageHeight", Integer.toString(pendingImg.getHeight()));
+				desc.setAttribute("interlaceFlag", "FALSE");
+				// 設定每幀延遲與透明色（GraphicControlExtension）；保留前一幀，差異幀疊在上面
+				IIOMetadataNode gce = getNode(root, "GraphicControlExtension");
+				gce.setAttribute("disposalMethod", "doNotDispose");
+				gce.setAttribute("userInputFlag", "FALSE");
+				gce.setAttribute("transparentColorFlag", "TRUE");
+				gce.setAttribute("transparentColorIndex", Integer.toString(TRANSPARENT));
+				gce.setAttribute("delayTime", Integer.toString(Math.max(1, Math.round(pendingMs / 10f)))); // 以 1/100 秒計
+				if (frameCount == 0) {
+					// 設定 Netscape 2.0 擴展以實現無限循環
+					IIOMetadataNode appExts = getNode(root, "ApplicationExtensions");
+					IIOMetadataNode app = new IIOMetadataNode("ApplicationExtension");
+					app.setAttribute("applicationID", "NETSCAPE");
+					app.setAttribute("authenticationCode", "2.0");
+					app.setUserObject(new byte[] { 0x1, 0x0, 0x0 }); // 迴圈無限次
+					appExts.appendChild(app);
+				}
+				meta.setFromTree(metaFormat, root);
+				gifWriter.writeToSequence(new IIOImage(pendingImg, null, meta), null);
+				frameCount++;
+				pendingImg = null;
+			}
+
+			/** 寫出最後一幀並關閉序列與檔案。*/
+			void finish() throws IOException {
+				try {
+					flushPending();
+					if (palette != null) // 至少寫過一幀才有開始序列
+						gifWriter.endWriteSequence();
+				} finally {
+					output.close();
+					gifWriter.dispose();
+				}
 			}
-			recording = false;
-			frameCount = 0;
-			gifWriter = null;
-			imageMeta = null;
-			output = null;
 		}
 	}
 }
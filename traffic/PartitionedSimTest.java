@@ -0,0 +1,52 @@
+/**
+ * PartitionedSim 失敗回報測試（本樹沒有建置工具與測試框架，以 main 執行，失敗時以非零結束碼離開）。
+ *
+ * 編譯：javac -encoding UTF-8 CloverleafSimIDM.java PartitionedSimTest.java
+ * 執行：java PartitionedSimTest
+ *
+ * 讓某一區的 World.update 擲出例外，檢查 run 會在時限內返回並以 IllegalStateException 帶回原始錯誤，
+ * 而不是讓其他工作執行緒永遠卡在同步點。依執行緒數與失敗區的組合各跑一次。
+ */
+public class PartitionedSimTest {
+
+	static final long TIMEOUT_MS = 30_000;
+
+	public static void main(String[] args) throws Exception {
+		int failures = 0;
+		int[][] cases = { { 4, 1, 0 }, { 4, 2, 1 }, { 4, 4, 3 }, { 6, 3, 5 } }; // {區數, 執行緒數, 失敗區}
+		for (int[] c : cases) {
+			String name = String.format("regions=%d threads=%d failing=%d", c[0], c[1], c[2]);
+			String error = runFailing(c[0], c[1], c[2]);
+			System.out.println((error == null ? "PASS " : "FAIL ") + name + (error == null ? "" : ": " + error));
+			if (error != null)
+				failures++;
+		}
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/** 回傳 null 表示通過，否則為失敗原因。*/
+	static String runFailing(int partitions, int threads, int failing) throws InterruptedException {
+		CloverleafSimIDM.PartitionedSim sim = new CloverleafSimIDM.PartitionedSim(CloverleafSimIDM.RoadNetwork.corridor(partitions),
+				new CloverleafSimIDM.ModelParams(), partitions, threads);
+		sim.regions[failing].world.cars.add(null); // 下一次 update 走訪車輛時擲出 NullPointerException
+
+		Throwable[] thrown = new Throwable[1];
+		Thread runner = new Thread(() -> {
+			try {
+				sim.run(10, 1.0 / 60.0);
+			} catch (Throwable e) {
+				thrown[0] = e;
+			}
+		}, "partitioned-run");
+		runner.setDaemon(true); // 若真的卡住，不讓測試程序跟著卡住
+		runner.start();
+		runner.join(TIMEOUT_MS);
+		if (runner.isAlive())
+			return "run did not return within " + TIMEOUT_MS + " ms";
+		if (!(thrown[0] instanceof IllegalStateException))
+			return "expected IllegalStateException, got " + thrown[0];
+		if (!(thrown[0].getCause() instanceof NullPointerException))
+			return "expected the region's NullPointerException as cause, got " + thrown[0].getCause();
+		return null;
+	}
+}